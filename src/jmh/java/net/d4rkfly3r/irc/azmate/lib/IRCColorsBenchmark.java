@@ -0,0 +1,105 @@
+package net.d4rkfly3r.irc.azmate.lib;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the single pass {@link IRCColors#remove(String)} with the
+ * old version that deleted every code from a StringBuffer.
+ * <p>
+ * The corpus holds eight messages: plain text only, a mix where one in
+ * four messages carries markup, or messages full of colours and
+ * formatting. Scores are per message.
+ * </p>
+ * <p>
+ * <pre>
+ * gradle jmh -PjmhArgs="IRCColorsBenchmark -prof gc"
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IRCColorsBenchmark {
+
+    private static final String[] PLAIN = {
+            "hello there, how is everyone doing today?",
+            "did anyone try the new release yet? it fails to start for me",
+            "yes, you need to remove the old configuration file first",
+            "thanks, that worked",
+            "brb",
+            "https://example.com/some/rather/long/link/to/a/paste/that/somebody/shared",
+            "The quick brown fox jumps over the lazy dog, again and again and again.",
+            "lol",
+    };
+    private static final String[] MIXED = {
+            "hello there, how is everyone doing today?",
+            "\u000304build failed\u0003 on \u0002master\u0002: 3 tests broken",
+            "yes, you need to remove the old configuration file first",
+            "thanks, that worked",
+            "brb",
+            "\u000309,01[ok]\u000f deploy finished in 42s",
+            "The quick brown fox jumps over the lazy dog, again and again and again.",
+            "lol",
+    };
+    private static final String[] HEAVY = {
+            "\u00034r\u00037a\u00038i\u00033n\u000312b\u00032o\u00036w\u000f \u0002\u001fbold underline\u000f",
+            "\u000304,01red on black\u0003 and \u000308,02yellow on blue\u0003, \u0016reverse\u0016",
+            "\u0002[\u000312NEWS\u0003]\u0002 \u001dsomething happened\u001d \u000314(2 min ago)\u0003",
+            "\u000303+\u0003 \u000309added\u0003 \u000304-\u0003 \u000305removed\u0003 \u000307~\u0003 \u000308changed\u0003",
+            "\u00041e90ffhex blue\u0004 \u001estrike\u001e \u0011mono\u0011 \u000399,99default\u0003",
+            "\u0002\u0002\u0002\u0002\u0002\u001f\u001f\u001f\u001f\u0016\u0016\u0016\u000f\u000f\u000f",
+            "\u000301,00 \u000302,01 \u000303,02 \u000304,03 \u000305,04 \u000306,05 \u000307,06 \u0003",
+            "\u00034,5a\u00034,b\u00034,\u00034",
+    };
+
+    @Param({"plain", "mixed", "heavy"})
+    private String corpus;
+
+    private String[] lines;
+
+    @Setup
+    public void setup() {
+        switch (this.corpus) {
+            case "plain":
+                this.lines = IRCColorsBenchmark.PLAIN;
+                break;
+            case "mixed":
+                this.lines = IRCColorsBenchmark.MIXED;
+                break;
+            default:
+                this.lines = IRCColorsBenchmark.HEAVY;
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(8)
+    public void legacyRemove(final Blackhole bh) {
+        for (final String line : this.lines) {
+            bh.consume(LegacyIRCColors.remove(line));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(8)
+    public void remove(final Blackhole bh) {
+        for (final String line : this.lines) {
+            bh.consume(IRCColors.remove(line));
+        }
+    }
+}
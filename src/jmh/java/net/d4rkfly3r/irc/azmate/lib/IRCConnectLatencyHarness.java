@@ -0,0 +1,104 @@
+package net.d4rkfly3r.irc.azmate.lib;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long connecting takes when the nickname is in use, on a
+ * server answering after a simulated network delay.
+ * <p>
+ * Before alternative nicknames, the caller had to catch the
+ * {@link IRCNickNameException} and connect again with another nickname;
+ * {@link IRCConnection#connectAsync()} returns right away and tries the
+ * alternatives over the same connection. A pipelined SASL PLAIN login
+ * is measured as well.
+ * </p>
+ * <p>
+ * <pre>
+ * gradle harness -Pharness=IRCConnectLatencyHarness -PharnessArgs="10 20"
+ * </pre>
+ */
+public final class IRCConnectLatencyHarness {
+
+    private IRCConnectLatencyHarness() {
+    }
+
+    /**
+     * Connects repeatedly each way and prints the average times.
+     *
+     * @param args The server delay in milliseconds (default 10) and the
+     *             number of measured connections (default 20).
+     * @throws Exception If anything went wrong while connecting.
+     */
+    public static void main(final String[] args) throws Exception {
+        final long delay = args.length > 0 ? Long.parseLong(args[0]) : 10;
+        final int runs = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        final int warmup = 3;
+        final IRCEventLoop eventLoop = new IRCEventLoop(1);
+        long reconnect = 0;
+        long asyncReturn = 0;
+        long asyncRegistered = 0;
+        long saslRegistered = 0;
+        boolean valid = true;
+        try (IRCTestServer server = new IRCTestServer()) {
+            server.setCapabilities("multi-prefix sasl=PLAIN");
+            server.setNicksInUse("taken");
+            server.setSaslAccount("account", "secret");
+            server.setDelay(delay);
+            for (int i = 0; i < warmup + runs; i++) {
+                final boolean measured = i >= warmup;
+
+                // fail, then reconnect with another nickname
+                long start = System.nanoTime();
+                final IRCConnection first = IRCTestSupport.connection(server, eventLoop, "taken");
+                try {
+                    first.connect();
+                    valid = false;
+                } catch (final IRCNickNameException expected) {
+                    // the nickname is in use
+                }
+                final IRCConnection second = IRCTestSupport.connection(server, eventLoop, "old" + i);
+                second.connect();
+                if (measured) {
+                    reconnect += System.nanoTime() - start;
+                }
+                second.disconnect();
+
+                // alternative nickname tried in flight
+                start = System.nanoTime();
+                final IRCConnection async = IRCTestSupport.connection(server, eventLoop, "taken");
+                async.setAlternativeNicks("new" + i);
+                final CompletableFuture<IRCConnection> future = async.connectAsync();
+                final long returned = System.nanoTime() - start;
+                future.get(10, TimeUnit.SECONDS);
+                if (measured) {
+                    asyncReturn += returned;
+                    asyncRegistered += System.nanoTime() - start;
+                }
+                valid &= ("new" + i).equals(async.getClient().getNick());
+                async.disconnect();
+
+                // SASL PLAIN sent along with the registration
+                start = System.nanoTime();
+                final IRCConnection sasl = IRCTestSupport.connection(server, eventLoop, "sasl" + i);
+                sasl.setSaslPlain("account", "secret");
+                sasl.connectAsync().get(10, TimeUnit.SECONDS);
+                if (measured) {
+                    saslRegistered += System.nanoTime() - start;
+                }
+                valid &= sasl.getCapabilities().isSaslAuthenticated();
+                sasl.disconnect();
+            }
+        }
+        eventLoop.shutdown();
+        System.out.printf("server delay %d ms, nickname in use, %d runs%n", delay, runs);
+        System.out.printf("connect, fail and reconnect: caller blocked %.1f ms until registered%n", reconnect / 1e6 / runs);
+        System.out.printf("connectAsync with an alternative: returned after %.2f ms, registered after %.1f ms%n",
+                asyncReturn / 1e6 / runs, asyncRegistered / 1e6 / runs);
+        System.out.printf("connectAsync with SASL PLAIN: registered after %.1f ms%n", saslRegistered / 1e6 / runs);
+        if (!valid) {
+            System.out.println("unexpected nickname or failed SASL authentication!");
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package net.d4rkfly3r.irc.azmate.lib;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Measures the threads and memory idle connections cost, with the
+ * blocking input/output threads or with an {@link IRCEventLoop}.
+ * <p>
+ * The server runs in a separate process, so only the client side is
+ * measured. Run each mode in its own JVM:
+ * </p>
+ * <p>
+ * <pre>
+ * gradle harness -Pharness=IRCIdleConnectionsHarness -PharnessArgs="threads 1000"
+ * gradle harness -Pharness=IRCIdleConnectionsHarness -PharnessArgs="loop 1000"
+ * </pre>
+ */
+public final class IRCIdleConnectionsHarness {
+
+    private IRCIdleConnectionsHarness() {
+    }
+
+    /**
+     * Connects, waits for the connections to settle and prints the
+     * threads and memory they added.
+     *
+     * @param args The mode, {@code threads} or {@code loop}, and the
+     *             number of connections (default 1000).
+     * @throws Exception If anything went wrong while connecting.
+     */
+    public static void main(final String[] args) throws Exception {
+        final boolean loop = (args.length == 0) || args[0].equals("loop");
+        final int count = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        final Process server = new ProcessBuilder(
+                System.getProperty("java.home") + File.separator + "bin" + File.separator + "java",
+                "-cp", System.getProperty("java.class.path"), IRCTestServer.class.getName())
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        try {
+            final int port = Integer.parseInt(new BufferedReader(
+                    new InputStreamReader(server.getInputStream(), StandardCharsets.US_ASCII)).readLine());
+            final int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+            final long heapBefore = IRCTestSupport.usedHeap();
+            final long directBefore = IRCIdleConnectionsHarness.usedDirect();
+            final IRCEventLoop eventLoop = loop ? new IRCEventLoop() : null;
+            final IRCConnection[] connections = new IRCConnection[count];
+            final long start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                connections[i] = new IRCConnection("127.0.0.1", port);
+                connections[i].setNick("idle" + i);
+                connections[i].setEventLoop(eventLoop);
+                connections[i].connect();
+            }
+            final long elapsed = System.nanoTime() - start;
+            // let replies that arrived after 004 be parsed
+            Thread.sleep(1000);
+            final int threads = ManagementFactory.getThreadMXBean().getThreadCount() - threadsBefore;
+            final long heap = IRCTestSupport.usedHeap() - heapBefore;
+            final long direct = IRCIdleConnectionsHarness.usedDirect() - directBefore;
+            System.out.printf("mode=%s connections=%d connect=%.0fms%n", loop ? "loop" : "threads", count, elapsed / 1e6);
+            System.out.printf("threads: %d (%.1f per 1000 connections)%n", threads, threads * 1000.0 / count);
+            System.out.printf("heap: %.1f MB (%.1f KB per connection)%n", heap / 1048576.0, heap / 1024.0 / count);
+            System.out.printf("direct buffers: %.1f MB (%.1f KB per connection)%n", direct / 1048576.0, direct / 1024.0 / count);
+            for (final IRCConnection irc : connections) {
+                irc.disconnect();
+            }
+            if (eventLoop != null) {
+                eventLoop.shutdown();
+            }
+        } finally {
+            server.destroy();
+        }
+    }
+
+    /**
+     * Gives the memory held by direct buffers.
+     *
+     * @return The direct buffer memory in bytes.
+     */
+    private static long usedDirect() {
+        for (final BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (pool.getName().equals("direct")) {
+                return pool.getMemoryUsed();
+            }
+        }
+        return 0;
+    }
+}
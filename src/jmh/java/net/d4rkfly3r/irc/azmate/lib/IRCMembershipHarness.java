@@ -0,0 +1,124 @@
+package net.d4rkfly3r.irc.azmate.lib;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Measures the heap a channel membership retains.
+ * <p>
+ * The same channels are joined twice from the same pool of users: once
+ * with half of the members, once with all of them. Users and channels
+ * are the same in both states, so the difference in retained heap
+ * divided by the extra memberships is the cost of a membership alone.
+ * </p>
+ * <p>
+ * <pre>
+ * gradle harness -Pharness=IRCMembershipHarness -PharnessArgs="2000 200 20000"
+ * </pre>
+ */
+public final class IRCMembershipHarness {
+
+    private IRCMembershipHarness() {
+    }
+
+    /**
+     * Joins the channels with half and with all members and prints the
+     * heap retained per membership.
+     *
+     * @param args The number of channels (default 2000), members per
+     *             channel (default 200) and distinct users (default 20000).
+     * @throws Exception If interrupted while waiting for the collector.
+     */
+    public static void main(final String[] args) throws Exception {
+        final int channels = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        final int members = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        final int users = args.length > 2 ? Integer.parseInt(args[2]) : 20000;
+        // warm up
+        IRCMembershipHarness.join(channels, members / 2, users);
+        IRCTestSupport.usedHeap();
+        final long empty = IRCTestSupport.usedHeap();
+        IRCConnection irc = IRCMembershipHarness.join(channels, members / 2, users);
+        final long half = IRCTestSupport.usedHeap();
+        IRCMembershipHarness.keep(irc);
+        irc = null;
+        IRCTestSupport.usedHeap();
+        final long emptyAgain = IRCTestSupport.usedHeap();
+        irc = IRCMembershipHarness.join(channels, members, users);
+        final long full = IRCTestSupport.usedHeap();
+        IRCMembershipHarness.keep(irc);
+        final long memberships = (long) channels * members;
+        final long extra = memberships - (long) channels * (members / 2);
+        System.out.printf("%d channels, %d users: %.1f MB with %d memberships, %.1f MB with %d%n",
+                channels, users, (half - empty) / 1048576.0, memberships - extra,
+                (full - emptyAgain) / 1048576.0, memberships);
+        System.out.printf("heap per membership: %.1f bytes%n",
+                ((full - emptyAgain) - (half - empty)) / (double) extra);
+    }
+
+    /**
+     * Parses the lines joining the channels on a new connection.
+     *
+     * @param channels The number of channels.
+     * @param members  The number of members in each channel.
+     * @param users    The number of distinct users.
+     * @return The connection.
+     * @throws IOException Never.
+     */
+    private static IRCConnection join(final int channels, final int members, final int users) throws IOException {
+        final IRCConnection irc = IRCTestSupport.offline();
+        final IRCLineFramer framer = new IRCLineFramer(StandardCharsets.UTF_8);
+        for (int c = 0; c < channels; c++) {
+            IRCTestSupport.parse(irc, framer, new ByteArrayInputStream(IRCMembershipHarness.lines(c, members, users)));
+        }
+        return irc;
+    }
+
+    /**
+     * Builds the lines the server sends when joining a channel. With the
+     * default sizes every user is among the first half of the members of
+     * some channel, so all users exist with half of the members already.
+     *
+     * @param c       The channel number.
+     * @param members The number of members.
+     * @param users   The number of distinct users.
+     * @return The raw lines.
+     */
+    private static byte[] lines(final int c, final int members, final int users) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final String channel = "#channel" + c;
+        IRCTestSupport.write(out, ":me!~me@me.example.com JOIN " + channel);
+        final String start = ":irc.example.net 353 me = " + channel + " :";
+        final StringBuilder line = new StringBuilder(start).append("@me");
+        for (int u = 1; u < members; u++) {
+            if (line.length() > 400) {
+                IRCTestSupport.write(out, line.toString());
+                line.setLength(0);
+                line.append(start);
+            } else {
+                line.append(' ');
+            }
+            if (u % 50 == 0) {
+                line.append('@');
+            } else if (u % 20 == 0) {
+                line.append('+');
+            }
+            line.append("user").append((c * 97L + u * 7919L) % users);
+        }
+        IRCTestSupport.write(out, line.toString());
+        IRCTestSupport.write(out, ":irc.example.net 366 me " + channel + " :End of /NAMES list.");
+        return out.toByteArray();
+    }
+
+    /**
+     * Keeps given connection reachable until here.
+     *
+     * @param irc The connection.
+     */
+    private static void keep(final IRCConnection irc) {
+        if (irc.getClient() == null) {
+            System.out.println();
+        }
+    }
+}
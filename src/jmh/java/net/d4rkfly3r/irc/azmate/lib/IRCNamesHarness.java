@@ -0,0 +1,110 @@
+package net.d4rkfly3r.irc.azmate.lib;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Measures the time and memory allocated to join channels with large
+ * NAMES replies, by feeding the JOIN, RPL_NAMREPLY and RPL_ENDOFNAMES
+ * lines through the parser of a fresh connection. Users are shared
+ * between channels, as on a real network.
+ * <p>
+ * <pre>
+ * gradle harness -Pharness=IRCNamesHarness -PharnessArgs="50 5000"
+ * </pre>
+ */
+public final class IRCNamesHarness {
+
+    /**
+     * Number of distinct nicknames the members are picked from.
+     */
+    private static final int NICKS = 60000;
+
+    private IRCNamesHarness() {
+    }
+
+    /**
+     * Joins the channels a few times to warm up, then prints the median
+     * time and allocation of five runs.
+     *
+     * @param args The number of channels (default 50) and of users in
+     *             each (default 5000).
+     * @throws IOException Never.
+     */
+    public static void main(final String[] args) throws IOException {
+        final int channels = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+        final int users = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+        final byte[] lines = IRCNamesHarness.lines(channels, users);
+        final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long thread = Thread.currentThread().getId();
+        for (int i = 0; i < 5; i++) {
+            IRCNamesHarness.join(lines);
+        }
+        final long[] times = new long[5];
+        final long[] allocated = new long[5];
+        for (int i = 0; i < times.length; i++) {
+            System.gc();
+            final long bytes = threads.getThreadAllocatedBytes(thread);
+            final long start = System.nanoTime();
+            IRCNamesHarness.join(lines);
+            times[i] = System.nanoTime() - start;
+            allocated[i] = threads.getThreadAllocatedBytes(thread) - bytes;
+        }
+        Arrays.sort(times);
+        Arrays.sort(allocated);
+        System.out.printf("%d channels of %d users (%d KB of lines): %.0f ms, %.1f MB allocated%n",
+                channels, users, lines.length / 1024, times[2] / 1e6, allocated[2] / 1048576.0);
+    }
+
+    /**
+     * Parses given lines on a new connection.
+     *
+     * @param lines The raw lines.
+     * @throws IOException Never.
+     */
+    private static void join(final byte[] lines) throws IOException {
+        IRCTestSupport.parse(IRCTestSupport.offline(), new IRCLineFramer(StandardCharsets.UTF_8),
+                new ByteArrayInputStream(lines));
+    }
+
+    /**
+     * Builds the lines the server sends when joining the channels.
+     *
+     * @param channels The number of channels.
+     * @param users    The number of users in each channel.
+     * @return The raw lines.
+     */
+    private static byte[] lines(final int channels, final int users) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final StringBuilder line = new StringBuilder();
+        for (int c = 0; c < channels; c++) {
+            final String channel = "#channel" + c;
+            IRCTestSupport.write(out, ":me!~me@me.example.com JOIN " + channel);
+            final String start = ":irc.example.net 353 me = " + channel + " :";
+            line.setLength(0);
+            line.append(start).append("@me");
+            for (int u = 0; u < users - 1; u++) {
+                if (line.length() > 400) {
+                    IRCTestSupport.write(out, line.toString());
+                    line.setLength(0);
+                    line.append(start);
+                } else {
+                    line.append(' ');
+                }
+                if (u % 50 == 0) {
+                    line.append('@');
+                } else if (u % 20 == 0) {
+                    line.append('+');
+                }
+                line.append("user").append((c * 1000 + u) % IRCNamesHarness.NICKS);
+            }
+            IRCTestSupport.write(out, line.toString());
+            IRCTestSupport.write(out, ":irc.example.net 366 me " + channel + " :End of /NAMES list.");
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,155 @@
+package net.d4rkfly3r.irc.azmate.lib;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Counts the writes needed to send bursts of lines: with the old
+ * writer that flushed every line, with the batching {@link IRCOutput}
+ * on a stream, and with an event loop connection to
+ * {@link IRCTestServer}, where every write is a system call.
+ * <p>
+ * <pre>
+ * gradle harness -Pharness=IRCOutputBurstHarness -PharnessArgs="1 10 100"
+ * </pre>
+ */
+public final class IRCOutputBurstHarness {
+
+    private IRCOutputBurstHarness() {
+    }
+
+    /**
+     * Sends one burst of each given size along every path and prints
+     * the writes it took.
+     *
+     * @param args Burst sizes (default 1, 10 and 100).
+     * @throws Exception If anything went wrong while sending.
+     */
+    public static void main(final String[] args) throws Exception {
+        final int[] bursts = args.length > 0 ? new int[args.length] : new int[]{1, 10, 100};
+        for (int i = 0; i < args.length; i++) {
+            bursts[i] = Integer.parseInt(args[i]);
+        }
+        try (IRCTestServer server = new IRCTestServer()) {
+            final IRCEventLoop eventLoop = new IRCEventLoop(1);
+            final IRCConnection irc = IRCOutputBurstHarness.connection(server.getPort());
+            irc.setEventLoop(eventLoop);
+            irc.connect();
+            System.out.println("lines   legacy stream   output stream   event loop socket");
+            for (final int burst : bursts) {
+                System.out.printf("%5d   %13d   %13d   %17d%n", burst,
+                        IRCOutputBurstHarness.legacy(burst),
+                        IRCOutputBurstHarness.stream(burst),
+                        IRCOutputBurstHarness.socket(irc, burst));
+            }
+            irc.disconnect();
+            eventLoop.shutdown();
+        }
+    }
+
+    /**
+     * Writes a burst the way the output did before lines were batched:
+     * one BufferedWriter flush per line.
+     *
+     * @param burst The number of lines.
+     * @return The writes to the stream.
+     * @throws IOException Never.
+     */
+    private static long legacy(final int burst) throws IOException {
+        final CountingStream stream = new CountingStream();
+        final BufferedWriter out = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8));
+        for (int i = 0; i < burst; i++) {
+            out.write(IRCOutputBurstHarness.line(i) + IRCConnection.ENDLINE);
+            out.flush();
+        }
+        return stream.writes;
+    }
+
+    /**
+     * Queues a burst on an output writing to a stream, and drains it.
+     *
+     * @param burst The number of lines.
+     * @return The writes to the stream.
+     */
+    private static long stream(final int burst) {
+        final CountingStream stream = new CountingStream();
+        final IRCOutput out = new IRCOutput(IRCOutputBurstHarness.connection(0), stream);
+        for (int i = 0; i < burst; i++) {
+            out.send(IRCOutputBurstHarness.line(i), IRCPriority.NORMAL);
+        }
+        while (out.drain(System.currentTimeMillis()) >= 0) {
+            // the limiter allows every line at once
+        }
+        return stream.writes;
+    }
+
+    /**
+     * Queues a burst on an event loop connection and waits until it was
+     * sent. The output is locked while queueing, so the event loop drains
+     * the whole burst at once, like a burst queued from a listener.
+     *
+     * @param irc   The connection.
+     * @param burst The number of lines.
+     * @return The writes to the socket.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    private static long socket(final IRCConnection irc, final int burst) throws InterruptedException {
+        final IRCOutputStatistics before = irc.getOutputStatistics();
+        final IRCOutput out = irc.getOutput();
+        synchronized (out) {
+            for (int i = 0; i < burst; i++) {
+                out.send(IRCOutputBurstHarness.line(i), IRCPriority.NORMAL);
+            }
+        }
+        IRCOutputStatistics after;
+        do {
+            Thread.sleep(10);
+            after = irc.getOutputStatistics();
+        } while (after.getLines() - before.getLines() < burst);
+        return after.getWrites() - before.getWrites();
+    }
+
+    /**
+     * Creates a connection that may send any number of lines at once.
+     *
+     * @param port The server port.
+     * @return The connection.
+     */
+    private static IRCConnection connection(final int port) {
+        final IRCConnection irc = new IRCConnection("127.0.0.1", port);
+        irc.setNick("burst");
+        irc.setRateLimiter(new IRCTokenBucketLimiter(1000, 1));
+        return irc;
+    }
+
+    /**
+     * Gives a line of a burst.
+     *
+     * @param i The line number.
+     * @return The line.
+     */
+    private static String line(final int i) {
+        return "PRIVMSG #bench :line " + i + " of a burst of messages";
+    }
+
+    /**
+     * Stream counting the writes it receives.
+     */
+    private static final class CountingStream extends OutputStream {
+
+        private long writes = 0;
+
+        @Override
+        public void write(final int b) {
+            this.writes++;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) {
+            this.writes++;
+        }
+    }
+}
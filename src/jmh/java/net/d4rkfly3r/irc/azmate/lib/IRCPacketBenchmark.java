@@ -0,0 +1,118 @@
+package net.d4rkfly3r.irc.azmate.lib;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the lazily decoded, reused {@link IRCPacket} with the old
+ * constructor that parsed every field of every line.
+ * <p>
+ * The {@code dispatch} benchmarks only read the command, as the parser
+ * does for lines nobody handles; the {@code fields} benchmarks read
+ * all fields and the sender. Scores are per line.
+ * </p>
+ * <p>
+ * <pre>
+ * gradle jmh -PjmhArgs="IRCPacketBenchmark -prof gc"
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IRCPacketBenchmark {
+
+    /**
+     * Lines received in a busy channel.
+     */
+    private static final String[] LINES = {
+            ":alice!~alice@alice.example.com PRIVMSG #channel :hello there, how is everyone doing today?",
+            ":bob!~bob@192.0.2.17 PRIVMSG #channel :\u000304,01red on black\u0003 and \u0002bold\u0002 text",
+            ":carol!carol@user/carol JOIN #channel",
+            ":dave!~dave@dave.example.net PART #channel :Leaving",
+            ":irc.example.net 353 me = #channel :@alice +bob carol dave erin frank",
+            ":irc.example.net 366 me #channel :End of /NAMES list.",
+            ":erin!~erin@erin.example.org NOTICE me :\u0001VERSION\u0001",
+            ":alice!~alice@alice.example.com MODE #channel +o bob",
+            "PING :irc.example.net",
+            ":frank!~frank@frank.example.com QUIT :Ping timeout: 240 seconds",
+            ":alice!~alice@alice.example.com PRIVMSG #channel :\u0001ACTION waves\u0001",
+            ":irc.example.net 372 me :- Welcome to the example network, please read the rules",
+    };
+
+    private IRCConnection irc;
+    private byte[] stream;
+    private IRCLineFramer framer;
+    private IRCPacket packet;
+
+    @Setup
+    public void setup() {
+        this.irc = new IRCConnection("irc.example.net");
+        this.irc.setNick("me");
+        this.irc.setCharset(StandardCharsets.UTF_8);
+        this.stream = (String.join("\r\n", IRCPacketBenchmark.LINES) + "\r\n").getBytes(StandardCharsets.UTF_8);
+        this.framer = new IRCLineFramer(StandardCharsets.UTF_8);
+        this.packet = new IRCPacket();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(12)
+    public void legacyDispatch(final Blackhole bh) {
+        for (final String line : IRCPacketBenchmark.LINES) {
+            bh.consume(new LegacyIRCPacket(line, this.irc).getCommand());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(12)
+    public void legacyFields(final Blackhole bh) {
+        for (final String line : IRCPacketBenchmark.LINES) {
+            final LegacyIRCPacket packet = new LegacyIRCPacket(line, this.irc);
+            bh.consume(packet.getCommand());
+            bh.consume(packet.getPrefix());
+            bh.consume(packet.getArguments());
+            bh.consume(packet.getMessage());
+            bh.consume(packet.getSender());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(12)
+    public void viewDispatch(final Blackhole bh) throws IOException {
+        this.framer.read(new ByteArrayInputStream(this.stream));
+        while (this.framer.next()) {
+            bh.consume(this.packet.reset(this.framer, this.irc).getCommandHash());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(12)
+    public void viewFields(final Blackhole bh) throws IOException {
+        this.framer.read(new ByteArrayInputStream(this.stream));
+        while (this.framer.next()) {
+            final IRCPacket packet = this.packet.reset(this.framer, this.irc);
+            bh.consume(packet.getCommand());
+            bh.consume(packet.getPrefix());
+            bh.consume(packet.getArguments());
+            bh.consume(packet.getMessage());
+            bh.consume(packet.getSender());
+        }
+    }
+}
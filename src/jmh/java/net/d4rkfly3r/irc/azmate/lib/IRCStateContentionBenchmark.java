@@ -0,0 +1,148 @@
+package net.d4rkfly3r.irc.azmate.lib;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how fast the input thread applies JOIN, MODE, TOPIC, NICK and
+ * PART lines while eight other threads read the client state.
+ * <p>
+ * In the {@code snapshot} group the readers take
+ * {@link IRCClientState#getSnapshot()} and walk it; in the
+ * {@code iterate} group they walk the live channels and their users
+ * instead; the {@code alone} group has no readers at all. The score of
+ * the {@code input} method is lines per second.
+ * </p>
+ * <p>
+ * <pre>
+ * gradle jmh -PjmhArgs="IRCStateContentionBenchmark"
+ * </pre>
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IRCStateContentionBenchmark {
+
+    private static final int CHANNELS = 20;
+    private static final int MEMBERS = 200;
+
+    private IRCConnection irc;
+    private IRCLineFramer framer;
+    private ByteArrayInputStream cycle;
+
+    @Setup
+    public void setup() throws IOException {
+        this.irc = IRCTestSupport.offline();
+        this.framer = new IRCLineFramer(StandardCharsets.UTF_8);
+        final ByteArrayOutputStream join = new ByteArrayOutputStream();
+        for (int c = 0; c < IRCStateContentionBenchmark.CHANNELS; c++) {
+            final String channel = "#channel" + c;
+            IRCTestSupport.write(join, ":me!~me@me.example.com JOIN " + channel);
+            final StringBuilder names = new StringBuilder(":irc.example.net 353 me = " + channel + " :@me @op");
+            for (int u = 0; u < IRCStateContentionBenchmark.MEMBERS; u++) {
+                names.append(" user").append(c * 100 + u);
+                if (names.length() > 400) {
+                    IRCTestSupport.write(join, names.toString());
+                    names.setLength(0);
+                    names.append(":irc.example.net 353 me = ").append(channel).append(" :");
+                }
+            }
+            IRCTestSupport.write(join, names.toString());
+            IRCTestSupport.write(join, ":irc.example.net 366 me " + channel + " :End of /NAMES list.");
+        }
+        IRCTestSupport.parse(this.irc, this.framer, new ByteArrayInputStream(join.toByteArray()));
+        // every cycle leaves the state as it found it
+        final ByteArrayOutputStream cycle = new ByteArrayOutputStream();
+        for (int i = 0; i < 50; i++) {
+            final String channel = "#channel" + (i % IRCStateContentionBenchmark.CHANNELS);
+            final String nick = "guest" + i;
+            IRCTestSupport.write(cycle, ":" + nick + "!~g@guest.example.com JOIN " + channel);
+            IRCTestSupport.write(cycle, ":op!~op@op.example.com MODE " + channel + " +v " + nick);
+            IRCTestSupport.write(cycle, ":op!~op@op.example.com TOPIC " + channel + " :welcome " + nick);
+            IRCTestSupport.write(cycle, ":" + nick + "!~g@guest.example.com NICK " + nick + "_");
+            IRCTestSupport.write(cycle, ":" + nick + "_!~g@guest.example.com PART " + channel + " :bye");
+        }
+        this.cycle = new ByteArrayInputStream(cycle.toByteArray());
+    }
+
+    /**
+     * Parses the next line of the cycle.
+     *
+     * @throws IOException Never.
+     */
+    private void parse() throws IOException {
+        while (!this.framer.next()) {
+            if (this.framer.read(this.cycle) < 0) {
+                this.cycle.reset();
+            }
+        }
+        this.irc.getParser().parseLine(this.irc, this.framer);
+    }
+
+    @Benchmark
+    @Group("snapshot")
+    @GroupThreads(1)
+    public void input() throws IOException {
+        this.parse();
+    }
+
+    @Benchmark
+    @Group("snapshot")
+    @GroupThreads(8)
+    public void snapshot(final Blackhole bh) {
+        for (final IRCChannelSnapshot channel : this.irc.getState().getSnapshot().getChannels()) {
+            bh.consume(channel.getTopic());
+            bh.consume(channel.getNicks());
+        }
+    }
+
+    @Benchmark
+    @Group("iterate")
+    @GroupThreads(1)
+    public void iterateInput() throws IOException {
+        this.parse();
+    }
+
+    @Benchmark
+    @Group("iterate")
+    @GroupThreads(8)
+    public void iterate(final Blackhole bh) {
+        final Iterator<IRCChannel> channels = this.irc.getState().getChannels();
+        while (channels.hasNext()) {
+            final IRCChannel channel = channels.next();
+            bh.consume(channel.getTopic());
+            final Iterator<IRCUser> users = channel.getUsers();
+            while (users.hasNext()) {
+                bh.consume(users.next().getNick());
+            }
+        }
+    }
+
+    @Benchmark
+    @Group("alone")
+    @GroupThreads(1)
+    public void aloneInput() throws IOException {
+        this.parse();
+    }
+}
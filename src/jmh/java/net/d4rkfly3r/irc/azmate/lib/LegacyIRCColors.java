@@ -0,0 +1,72 @@
+package net.d4rkfly3r.irc.azmate.lib;
+
+/**
+ * Markup removal as {@link IRCColors} did it before the single pass
+ * scan, kept as the baseline for the benchmarks.
+ */
+final class LegacyIRCColors {
+
+    private LegacyIRCColors() {
+    }
+
+    /**
+     * Removes all color codes and markup from given text.
+     *
+     * @param input Text to clear.
+     * @return Given text without markup.
+     */
+    protected static String remove(final String input) {
+        return LegacyIRCColors.remove(new StringBuffer(input)).toString();
+    }
+
+    /**
+     * Removes all color codes and markup from given text.
+     *
+     * @param buf input Text to clear.
+     * @return Given text without markup.
+     */
+    private static StringBuffer remove(StringBuffer buf) {
+        int len = buf.length();
+        for (int i = 0, j = 0, c; i < len; i++, j = i) {
+            c = buf.charAt(i);
+            try {
+                // COLORS Beginning
+                // (format:
+                // <colorIndicator><int>[<int>][[,<int>[<int>]]
+                if (c == 3) {
+                    c = buf.charAt(++j);
+                    if (('0' <= c) && (c <= '9')) { // first int
+                        c = buf.charAt(++j);
+                        if (('0' <= c) && (c <= '9')) {
+                            c = buf.charAt(++j); // second int
+                        }
+                    }
+                    if (c == ',') {
+                        c = buf.charAt(++j); // comma
+                    }
+                    if (('0' <= c) && (c <= '9')) { // first int
+                        c = buf.charAt(++j);
+                        if (('0' <= c) && (c <= '9')) {
+                            c = buf.charAt(++j); // second int
+                        }
+                    }
+                    // CTCP / BOLD / UNDERLINE / COLOR END
+                    // (format: <ctcpDelimiter> / <boldIndicator>
+                    // etc.)
+                } else if ((c == 31) || (c == 2) || (c == 15) || (c == 22)) {
+                    j++;
+                }
+            } catch (final StringIndexOutOfBoundsException exc) {
+                // we got the end of the string with a call to
+                // charAt(++iIndexEnd)
+                // nothing
+            }
+            if (j > i) {
+                buf = buf.delete(i, j); // remove the cars
+                len -= (j - i);
+                i--;
+            }
+        }
+        return buf;
+    }
+}
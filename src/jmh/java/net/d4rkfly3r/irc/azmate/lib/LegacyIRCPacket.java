@@ -0,0 +1,120 @@
+package net.d4rkfly3r.irc.azmate.lib;
+
+/**
+ * Line parsing as the {@link IRCPacket} constructor did it before
+ * packets became lazily decoded views, kept as the baseline for the
+ * benchmarks. Every field is parsed and the sender created up front.
+ */
+final class LegacyIRCPacket {
+
+    private String arguments = null;
+    private int cmdNumeric = -1;
+    private String command = null;
+    private boolean ctcp = false;
+    private String message = null;
+    private boolean numeric = false;
+    private String prefix = null;
+    private IRCUser sender = null;
+
+    /**
+     * Parses given raw IRC data.
+     *
+     * @param line Raw data from the server.
+     * @param irc  The IRCConnection used to send messages.
+     */
+    protected LegacyIRCPacket(String line, final IRCConnection irc) {
+        line = LegacyIRCColors.remove(line);
+        final int locLineStart = line.indexOf(':') + 1;
+        int locCommand;
+        // some messages don't have a prefix
+        if ((locLineStart > 1) || (locLineStart < 0)) {
+            locCommand = 0;
+            this.prefix = null;
+        } else {
+            // space between sender and command
+            locCommand = line.indexOf(' ', locLineStart + 1);
+            // retrieve sender
+            this.prefix = line.substring(locLineStart, locCommand);
+        }
+        // space between command and receiver
+        final int locArgs = line.indexOf(' ', locCommand + 1);
+        // retrieve command
+        this.command = line.substring(locCommand + 1, locArgs);
+        // colon between arguments and message
+        final int locMsg = line.indexOf(':', locArgs);
+        // if there are arguments, save them
+        if ((locMsg - locArgs) > 1) {
+            this.arguments = line.substring(locArgs + 1, locMsg - 1);
+        } else if (locMsg < 0) {
+            // there is no message, so arguments go to the end
+            this.arguments = line.substring(locArgs + 1);
+        }
+        // If there is a message, save it
+        if (locMsg > 0) {
+            this.message = line.substring(locMsg + 1);
+            // check if this message is a CTCP request
+            if (this.message.startsWith(IRCPacket.CTCP)
+                    && this.message.endsWith(IRCPacket.CTCP)) {
+                this.ctcp = true;
+                this.message = this.message.substring(1,
+                        this.message.length() - 1);
+            }
+        }
+        // check if the command is a server reply
+        this.cmdNumeric = this.getInteger(this.command);
+        if (this.cmdNumeric != -1) {
+            // numeric server response
+            this.numeric = true;
+        }
+        // if possible, parse the sender into a user object
+        if ((this.prefix != null) && (this.prefix.indexOf('!') > 0)) {
+            final String[] stuff = this.prefix.split("@|!");
+            if (stuff.length == 3) {
+                this.sender = new IRCUser(stuff[0], stuff[1], stuff[2], null, irc);
+            } else if (stuff.length == 1)
+                this.sender = new IRCUser(stuff[0], irc);
+        } else if (prefix != null) {
+            this.sender = new IRCUser(this.prefix, irc);
+        }
+    }
+
+    private int getInteger(final String parse) {
+        try {
+            return Integer.parseInt(parse);
+        } catch (final NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    protected String getArguments() {
+        return this.arguments;
+    }
+
+    protected String getCommand() {
+        return this.command;
+    }
+
+    protected String getMessage() {
+        return this.message;
+    }
+
+    protected int getNumericCommand() {
+        return this.cmdNumeric;
+    }
+
+    protected String getPrefix() {
+        return this.prefix;
+    }
+
+    protected IRCUser getSender() {
+        return this.sender;
+    }
+
+    protected boolean isCtcp() {
+        return this.ctcp;
+    }
+
+    protected boolean isNumeric() {
+        return this.numeric;
+    }
+}
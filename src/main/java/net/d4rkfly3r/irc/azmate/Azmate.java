@@ -8,15 +8,13 @@ import net.d4rkfly3r.irc.azmate.events.AzmatePageLoadedEvent;
 import net.d4rkfly3r.irc.azmate.events.WindowCloseEvent;
 import net.d4rkfly3r.irc.azmate.lib.IRCChannel;
 import net.d4rkfly3r.irc.azmate.lib.IRCConnection;
-import net.d4rkfly3r.irc.azmate.lib.IRCNickNameException;
-import net.d4rkfly3r.irc.azmate.lib.IRCPasswordException;
+import net.d4rkfly3r.irc.azmate.lib.IRCPriority;
 import net.d4rkfly3r.irc.azmate.plugins.events.*;
 import net.d4rkfly3r.irc.azmate.ui.MainApplication;
 import netscape.javascript.JSObject;
 
 import javax.swing.*;
 import java.awt.*;
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
@@ -24,7 +22,7 @@ import java.util.Date;
 @Plugin
 public class Azmate {
 
-    private IRCChannel testChannel;
+    private volatile IRCChannel testChannel;
     private IRCConnection ircConnection;
     private String defChannel;
     private MainApplication mainApplication = null;
@@ -58,18 +56,14 @@ public class Azmate {
     }
 
     private void attemptConnection() {
-        try {
-            ircConnection.connect();
-            testChannel = ircConnection.createChannel(defChannel);
+        ircConnection.connectAsync().thenAccept(connection -> {
+            testChannel = connection.createChannel(defChannel);
             testChannel.join();
             System.out.println("IRC Client Connected & Channel Joined!");
-        } catch (IOException e) {
+        }).exceptionally(e -> {
             e.printStackTrace();
-        } catch (IRCNickNameException e) {
-            e.printStackTrace();
-        } catch (IRCPasswordException e) {
-            e.printStackTrace();
-        }
+            return null;
+        });
     }
 
     @Listener
@@ -162,7 +156,13 @@ public class Azmate {
         }
 
         public void sendMessage(String message) {
-            Azmate.this.testChannel.send(message);
+            final IRCChannel channel = Azmate.this.testChannel;
+            if (channel == null) {
+                // set once connectAsync completed, nowhere to send to before
+                System.err.println("Not connected yet, dropped: " + message);
+                return;
+            }
+            channel.send(message, IRCPriority.INTERACTIVE);
             final String e = new Message("chat", ircConnection.getClient().getPreferredName(), message).toJSON();
             System.err.println(e);
             messages.add(e);
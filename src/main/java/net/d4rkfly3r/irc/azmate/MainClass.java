@@ -3,13 +3,15 @@ package net.d4rkfly3r.irc.azmate;
 import net.d4rkfly3r.irc.azmate.plugins.PluginBus;
 import net.d4rkfly3r.irc.azmate.plugins.events.PluginInitEvent;
 
+import java.util.HashMap;
+
 public class MainClass {
 
     public MainClass() {
         PluginBus pluginBus = PluginBus.getInstance();
         pluginBus.init();
 
-        pluginBus.fireEvent(new PluginInitEvent(pluginBus.plugins));
+        pluginBus.fireEvent(new PluginInitEvent(new HashMap<>(pluginBus.getPlugins())));
     }
 
     public static void main(String[] args) {
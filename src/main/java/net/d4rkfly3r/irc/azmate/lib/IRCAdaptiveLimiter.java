@@ -0,0 +1,137 @@
+package net.d4rkfly3r.irc.azmate.lib;
+
+/**
+ * Rate limiter that backs off when the server complains about flooding.
+ * <p>
+ * Wraps another rate limiter and adds a minimum interval between
+ * messages. Every time the server indicates we are sending too fast the
+ * interval is doubled, and it is halved again after each quiet period
+ * without complaints, until the wrapped limiter alone decides again.
+ * </p>
+ * <p>
+ * <pre>
+ * irc.setRateLimiter(new IRCAdaptiveLimiter(new IRCPenaltyLimiter()));
+ * </pre>
+ */
+@SuppressWarnings("unused")
+public final class IRCAdaptiveLimiter implements IRCRateLimiter {
+
+    /**
+     * The wrapped rate limiter.
+     */
+    private final IRCRateLimiter limiter;
+    /**
+     * Interval set after the first complaint, in milliseconds.
+     */
+    private final long initial;
+    /**
+     * Maximum interval, in milliseconds.
+     */
+    private final long maximum;
+    /**
+     * Time without complaints after which the interval is halved, in
+     * milliseconds.
+     */
+    private final long recovery;
+    /**
+     * Current minimum interval between messages, in milliseconds.
+     */
+    private long interval = 0;
+    /**
+     * Time of the last complaint or recovery step, in milliseconds.
+     */
+    private long changed = 0;
+    /**
+     * Time the last message was sent, in milliseconds.
+     */
+    private long lastSent = 0;
+    /**
+     * Number of complaints received.
+     */
+    private int floods = 0;
+
+    /**
+     * Creates a new adaptive limiter backing off from 500ms up to 8
+     * seconds and recovering every minute.
+     *
+     * @param limiter The rate limiter to wrap.
+     */
+    public IRCAdaptiveLimiter(final IRCRateLimiter limiter) {
+        this(limiter, 500, 8000, 60000);
+    }
+
+    /**
+     * Creates a new adaptive limiter.
+     *
+     * @param limiter  The rate limiter to wrap.
+     * @param initial  Interval set after the first complaint, in
+     *                 milliseconds.
+     * @param maximum  Maximum interval, in milliseconds.
+     * @param recovery Time without complaints after which the interval
+     *                 is halved, in milliseconds.
+     */
+    public IRCAdaptiveLimiter(final IRCRateLimiter limiter, final long initial, final long maximum, final long recovery) {
+        if ((limiter == null) || (initial < 1) || (maximum < initial) || (recovery < 1)) {
+            throw new IllegalArgumentException("Invalid adaptive rate limiter settings!");
+        }
+        this.limiter = limiter;
+        this.initial = initial;
+        this.maximum = maximum;
+        this.recovery = recovery;
+    }
+
+    @Override
+    public synchronized long delay(final long now, final int length) {
+        this.recover(now);
+        return Math.max(this.limiter.delay(now, length), (this.lastSent + this.interval) - now);
+    }
+
+    @Override
+    public synchronized void flooded(final long now) {
+        this.floods++;
+        this.interval = Math.min(this.maximum, Math.max(this.initial, this.interval * 2));
+        this.changed = now;
+        this.limiter.flooded(now);
+    }
+
+    /**
+     * Gives the number of times the server complained about flooding.
+     *
+     * @return The number of complaints.
+     */
+    public synchronized int getFloods() {
+        return this.floods;
+    }
+
+    /**
+     * Gives the current minimum interval between messages.
+     *
+     * @return The interval in milliseconds, 0 if not backing off.
+     */
+    public synchronized long getInterval() {
+        return this.interval;
+    }
+
+    /**
+     * Halves the interval for every quiet period that passed.
+     *
+     * @param now The current time in milliseconds.
+     */
+    private void recover(final long now) {
+        while ((this.interval > 0) && ((now - this.changed) >= this.recovery)) {
+            this.interval = this.interval / 2 < this.initial ? 0 : this.interval / 2;
+            this.changed += this.recovery;
+        }
+    }
+
+    @Override
+    public synchronized void sent(final long now, final int length) {
+        this.lastSent = now;
+        this.limiter.sent(now, length);
+    }
+
+    @Override
+    public String toString() {
+        return "adaptive(" + this.limiter + ", +" + this.interval + "ms)";
+    }
+}
@@ -0,0 +1,387 @@
+package net.d4rkfly3r.irc.azmate.lib;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * IRCv3 capabilities offered by the server and enabled for this
+ * connection.
+ * <p>
+ * Capabilities are negotiated before registering: the client lists the
+ * capabilities of the server ({@code CAP LS 302}), requests the wanted
+ * ones it offers ({@code CAP REQ}) and ends the negotiation
+ * ({@code CAP END}) once all requests were acknowledged or refused.
+ * Capabilities offered or withdrawn later ({@code cap-notify}) are
+ * requested or disabled right away.
+ * </p>
+ * <p>
+ * When SASL is configured, {@code sasl} is requested and authentication
+ * started along with {@code CAP LS}, without waiting for the server to
+ * list it; servers handle the lines in order, so the request has been
+ * answered by the time authentication starts. The negotiation ends once
+ * authentication succeeded or failed.
+ * </p>
+ *
+ * @see IRCConnection#getCapabilities()
+ * @see IRCConnection#setCapabilityWanted(String, boolean)
+ */
+public final class IRCCapabilities {
+
+    /**
+     * Version of the capability negotiation sent with {@code CAP LS}.
+     */
+    protected static final String VERSION = "302";
+    /**
+     * Capabilities requested unless changed. Each replaces polling or
+     * extra requests: privileges and hosts in NAMES replies, accounts
+     * and real names in joins, and notifications of account, away and
+     * host changes.
+     */
+    protected static final String[] DEFAULTS = {"multi-prefix", "userhost-in-names", "extended-join",
+            "account-notify", "away-notify", "chghost", "message-tags", "batch", "server-time", "cap-notify"};
+    /**
+     * Maximum length of a {@code CAP REQ} line, excluding CR-LF.
+     */
+    private static final int MAX_REQUEST_LENGTH = IRCOutput.MAX_LINE_LENGTH - 2;
+    /**
+     * Maximum length of the data in an {@code AUTHENTICATE} line.
+     */
+    private static final int MAX_AUTHENTICATE_LENGTH = 400;
+    /**
+     * Capabilities offered by the server, with their values or an empty
+     * string.
+     */
+    private final Map<String, String> available = new ConcurrentHashMap<>();
+    /**
+     * Capabilities enabled for this connection.
+     */
+    private final Set<String> enabled = ConcurrentHashMap.newKeySet();
+    /**
+     * Capabilities requested, answered or not.
+     */
+    private final Set<String> requested = ConcurrentHashMap.newKeySet();
+    /**
+     * Number of requests not acknowledged or refused yet.
+     */
+    private int pending = 0;
+    /**
+     * Whether the negotiation was not ended yet.
+     */
+    private boolean negotiating = true;
+    /**
+     * Whether SASL authentication was started and not finished yet.
+     */
+    private boolean authenticating = false;
+    /**
+     * Whether SASL authentication succeeded.
+     */
+    private volatile boolean saslAuthenticated = false;
+
+    /**
+     * Gives the value the server announced for a capability, like the
+     * mechanisms of {@code sasl}.
+     *
+     * @param capability The capability name.
+     * @return The value, an empty string if it has none, or {@code null}
+     * if the capability is not offered.
+     */
+    public String getValue(final String capability) {
+        return this.available.get(capability.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Gives all capabilities enabled for this connection.
+     *
+     * @return An unmodifiable view of the capability names.
+     */
+    public Set<String> getEnabled() {
+        return Collections.unmodifiableSet(this.enabled);
+    }
+
+    /**
+     * Checks whether the server offers a capability.
+     *
+     * @param capability The capability name.
+     * @return True if the capability is offered.
+     */
+    public boolean isAvailable(final String capability) {
+        return this.available.containsKey(capability.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Checks whether a capability is enabled for this connection.
+     *
+     * @param capability The capability name, like {@code away-notify}.
+     * @return True if the server acknowledged the capability.
+     */
+    public boolean isEnabled(final String capability) {
+        return this.enabled.contains(capability.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Checks whether SASL authentication succeeded while registering.
+     *
+     * @return True if logged in to the configured account.
+     * @see IRCConnection#setSaslPlain(String, String)
+     */
+    public boolean isSaslAuthenticated() {
+        return this.saslAuthenticated;
+    }
+
+    /**
+     * Checks whether the negotiation is still going on.
+     *
+     * @return True until {@code CAP END} was sent.
+     */
+    protected boolean isNegotiating() {
+        return this.negotiating;
+    }
+
+    /**
+     * Ends the negotiation without sending anything, because the server
+     * does not know capabilities.
+     */
+    protected void abort() {
+        this.negotiating = false;
+        this.authenticating = false;
+        this.pending = 0;
+    }
+
+    /**
+     * Starts the negotiation with {@code CAP LS}, followed by the request
+     * for {@code sasl} and the chosen mechanism if SASL is configured.
+     *
+     * @param ircConnection The connection.
+     * @throws IOException If anything goes wrong while sending.
+     */
+    protected void start(final IRCConnection ircConnection) throws IOException {
+        final IRCOutput out = ircConnection.getOutput();
+        out.sendNowEx(IRCPacketFactory.createCAP("LS " + IRCCapabilities.VERSION, null));
+        final String mechanism = ircConnection.getSaslMechanism();
+        if (mechanism != null) {
+            this.pending++;
+            this.requested.add("sasl");
+            this.authenticating = true;
+            out.sendNowEx(IRCPacketFactory.createCAP("REQ", "sasl"));
+            out.sendNowEx(IRCPacketFactory.createAUTHENTICATE(mechanism));
+        }
+    }
+
+    /**
+     * Handles an AUTHENTICATE line, answering the server with the
+     * credentials once it is ready for them.
+     *
+     * @param ircConnection The connection.
+     * @param packet        The AUTHENTICATE line.
+     */
+    protected void authenticate(final IRCConnection ircConnection, final IRCPacket packet) {
+        final String[] arguments = packet.getArgumentsArray();
+        final String data = packet.hasMessage() ? packet.getMessage()
+                : (arguments != null) && (arguments.length > 0) ? arguments[0] : "";
+        if (!this.authenticating || !"+".equals(data)) {
+            return;
+        }
+        if (!"PLAIN".equals(ircConnection.getSaslMechanism())) {
+            // EXTERNAL uses the certificate, nothing to send
+            IRCCapabilities.send(ircConnection, IRCPacketFactory.createAUTHENTICATE("+"));
+            return;
+        }
+        final String account = ircConnection.getSaslAccount();
+        final String encoded = Base64.getEncoder().encodeToString((account + '\0' + account + '\0'
+                + ircConnection.getSaslPassword()).getBytes(StandardCharsets.UTF_8));
+        int offset = 0;
+        do {
+            final int end = Math.min(offset + IRCCapabilities.MAX_AUTHENTICATE_LENGTH, encoded.length());
+            IRCCapabilities.send(ircConnection, IRCPacketFactory.createAUTHENTICATE(encoded.substring(offset, end)));
+            offset = end;
+        } while (offset < encoded.length());
+        if ((encoded.length() % IRCCapabilities.MAX_AUTHENTICATE_LENGTH) == 0) {
+            // a full last line means more follows, unless ended with +
+            IRCCapabilities.send(ircConnection, IRCPacketFactory.createAUTHENTICATE("+"));
+        }
+    }
+
+    /**
+     * Handles the outcome of SASL authentication, and ends the
+     * negotiation if nothing else is waiting. Registration goes on
+     * without an account if authentication failed.
+     *
+     * @param ircConnection The connection.
+     * @param packet        The RPL_LOGGEDIN, RPL_SASLSUCCESS or error line.
+     */
+    protected void authenticated(final IRCConnection ircConnection, final IRCPacket packet) {
+        final String[] arguments = packet.getArgumentsArray();
+        switch (packet.getNumericCommand()) {
+            case IRCPacket.RPL_LOGGEDIN:
+                // <client> <nick>!<user>@<host> <account> :<message>
+                if ((arguments != null) && (arguments.length >= 3) && (ircConnection.getState().getClient() != null)) {
+                    ircConnection.getState().getClient().setAccount(arguments[2]);
+                }
+                return;
+            case IRCPacket.RPL_SASLSUCCESS:
+                this.saslAuthenticated = true;
+                break;
+        }
+        this.authenticating = false;
+        this.end(ircConnection);
+    }
+
+    /**
+     * Handles a CAP line.
+     *
+     * @param ircConnection The connection.
+     * @param packet        The CAP line.
+     */
+    protected void parse(final IRCConnection ircConnection, final IRCPacket packet) {
+        final String[] arguments = packet.getArgumentsArray();
+        if ((arguments == null) || (arguments.length < 2)) {
+            return;
+        }
+        // a * before the list means more lines follow
+        final boolean more = (arguments.length >= 3) && "*".equals(arguments[2]);
+        final String list = packet.hasMessage() ? packet.getMessage()
+                : arguments.length >= 3 && !more ? arguments[2] : "";
+        switch (arguments[1].toUpperCase(Locale.ROOT)) {
+            case "LS":
+                this.offer(list);
+                // the pipelined sasl request may still be waiting
+                if (!more && this.negotiating) {
+                    this.request(ircConnection);
+                    this.end(ircConnection);
+                }
+                break;
+            case "NEW":
+                this.offer(list);
+                this.request(ircConnection);
+                break;
+            case "DEL":
+                for (final String capability : IRCCapabilities.split(list)) {
+                    this.available.remove(capability);
+                    this.enabled.remove(capability);
+                    this.requested.remove(capability);
+                }
+                break;
+            case "ACK":
+                for (final String capability : IRCCapabilities.split(list)) {
+                    if (capability.startsWith("-")) {
+                        this.enabled.remove(capability.substring(1));
+                    } else {
+                        this.enabled.add(capability);
+                    }
+                }
+                this.answered(ircConnection);
+                break;
+            case "NAK":
+                for (final String capability : IRCCapabilities.split(list)) {
+                    this.requested.remove(capability);
+                    if ("sasl".equals(capability)) {
+                        // the server answers the pipelined AUTHENTICATE with an error
+                        this.authenticating = false;
+                    }
+                }
+                this.answered(ircConnection);
+                break;
+        }
+    }
+
+    /**
+     * Splits a list of capabilities.
+     *
+     * @param list The space separated list.
+     * @return The capabilities, lowercase.
+     */
+    private static String[] split(final String list) {
+        final String trimmed = list.trim();
+        return trimmed.isEmpty() ? new String[0] : trimmed.toLowerCase(Locale.ROOT).split(" +");
+    }
+
+    /**
+     * Records that a request was acknowledged or refused, and ends the
+     * negotiation after the last one.
+     *
+     * @param ircConnection The connection.
+     */
+    private void answered(final IRCConnection ircConnection) {
+        if (this.pending > 0) {
+            this.pending--;
+        }
+        if (this.pending == 0) {
+            this.end(ircConnection);
+        }
+    }
+
+    /**
+     * Sends {@code CAP END}, unless the negotiation already ended.
+     *
+     * @param ircConnection The connection.
+     */
+    private void end(final IRCConnection ircConnection) {
+        if (this.negotiating && (this.pending == 0) && !this.authenticating) {
+            this.negotiating = false;
+            IRCCapabilities.send(ircConnection, IRCPacketFactory.createCAP("END", null));
+        }
+    }
+
+    /**
+     * Stores the capabilities listed by the server.
+     *
+     * @param list The space separated list, with values after {@code =}.
+     */
+    private void offer(final String list) {
+        for (final String token : list.trim().split(" +")) {
+            final int equals = token.indexOf('=');
+            final String name = (equals < 0 ? token : token.substring(0, equals)).toLowerCase(Locale.ROOT);
+            if (!name.isEmpty()) {
+                this.available.put(name, equals < 0 ? "" : token.substring(equals + 1));
+            }
+        }
+    }
+
+    /**
+     * Requests all wanted capabilities the server offers and that were not
+     * requested yet, in as few lines as possible.
+     *
+     * @param ircConnection The connection.
+     */
+    private void request(final IRCConnection ircConnection) {
+        final StringBuilder line = new StringBuilder();
+        for (final String capability : this.available.keySet()) {
+            if (!ircConnection.isCapabilityWanted(capability) || this.enabled.contains(capability)
+                    || !this.requested.add(capability)) {
+                continue;
+            }
+            if ((line.length() > 0) && ("CAP REQ :".length() + line.length() + 1 + capability.length()
+                    > IRCCapabilities.MAX_REQUEST_LENGTH)) {
+                this.pending++;
+                IRCCapabilities.send(ircConnection, IRCPacketFactory.createCAP("REQ", line.toString()));
+                line.setLength(0);
+            }
+            if (line.length() > 0) {
+                line.append(' ');
+            }
+            line.append(capability);
+        }
+        if (line.length() > 0) {
+            this.pending++;
+            IRCCapabilities.send(ircConnection, IRCPacketFactory.createCAP("REQ", line.toString()));
+        }
+    }
+
+    /**
+     * Sends a line right away, also while registering.
+     *
+     * @param ircConnection The connection.
+     * @param packet        The line.
+     */
+    private static void send(final IRCConnection ircConnection, final IRCPacket packet) {
+        if (ircConnection.getOutput() != null) {
+            ircConnection.getOutput().sendNow(packet);
+        }
+    }
+}
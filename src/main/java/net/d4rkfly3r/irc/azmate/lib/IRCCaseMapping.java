@@ -0,0 +1,180 @@
+package net.d4rkfly3r.irc.azmate.lib;
+
+/**
+ * The rules a server uses to compare nicknames and channel names, as
+ * announced by the {@code CASEMAPPING} feature.
+ * <p>
+ * Names are folded one character at a time, so names can be hashed and
+ * compared without creating lowercase copies.
+ * </p>
+ *
+ * @see IRCISupport#getCaseMapping()
+ */
+public enum IRCCaseMapping {
+
+    /**
+     * Only {@code A-Z} are uppercase versions of {@code a-z}.
+     */
+    ASCII("ascii", 'Z'),
+    /**
+     * Like {@link #ASCII}, and {@code []\~} are the uppercase versions of
+     * <code>{}|^</code>. (Default)
+     */
+    RFC1459("rfc1459", '^'),
+    /**
+     * Like {@link #RFC1459}, except {@code ~} and {@code ^} are distinct.
+     */
+    STRICT_RFC1459("strict-rfc1459", ']');
+
+    /**
+     * The name used by the {@code CASEMAPPING} feature.
+     */
+    private final String name;
+    /**
+     * The last character that has a lowercase version. All characters
+     * from {@code A} up to this one are folded.
+     */
+    private final char upper;
+
+    /**
+     * Creates a new case mapping.
+     *
+     * @param name  The name used by the {@code CASEMAPPING} feature.
+     * @param upper The last character that has a lowercase version.
+     */
+    IRCCaseMapping(final String name, final char upper) {
+        this.name = name;
+        this.upper = upper;
+    }
+
+    /**
+     * Finds the case mapping for a {@code CASEMAPPING} value. Unknown
+     * mappings, like {@code rfc7613}, are compared as {@link #ASCII},
+     * which they all include.
+     *
+     * @param name The announced value.
+     * @return The case mapping.
+     */
+    public static IRCCaseMapping forName(final String name) {
+        for (final IRCCaseMapping mapping : IRCCaseMapping.values()) {
+            if (mapping.name.equalsIgnoreCase(name)) {
+                return mapping;
+            }
+        }
+        return IRCCaseMapping.ASCII;
+    }
+
+    /**
+     * Folds the case of a character.
+     *
+     * @param c The character.
+     * @return The lowercase character.
+     */
+    public char fold(final char c) {
+        return (c >= 'A') && (c <= this.upper) ? (char) (c + 32) : c;
+    }
+
+    /**
+     * Gives the name used by the {@code CASEMAPPING} feature.
+     *
+     * @return The name, like {@code rfc1459}.
+     */
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * Computes the case insensitive hash of a name.
+     *
+     * @param name The name.
+     * @return The hash.
+     */
+    protected int hash(final CharSequence name) {
+        int hash = 0;
+        for (int i = 0; i < name.length(); i++) {
+            hash = (31 * hash) + this.fold(name.charAt(i));
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Computes the case insensitive hash of an ASCII name.
+     *
+     * @param buffer The raw bytes.
+     * @param from   Start of the name.
+     * @param to     End of the name.
+     * @return The hash.
+     */
+    protected int hash(final byte[] buffer, final int from, final int to) {
+        int hash = 0;
+        for (int i = from; i < to; i++) {
+            hash = (31 * hash) + this.fold((char) (buffer[i] & 0xff));
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Compares two names ignoring case.
+     *
+     * @param first  The first name.
+     * @param second The second name.
+     * @return True if both names are equal.
+     */
+    public boolean matches(final CharSequence first, final CharSequence second) {
+        if (first.length() != second.length()) {
+            return false;
+        }
+        for (int i = 0; i < first.length(); i++) {
+            if (this.fold(first.charAt(i)) != this.fold(second.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compares a name with an ASCII name ignoring case.
+     *
+     * @param name   The name.
+     * @param buffer The raw bytes.
+     * @param from   Start of the other name.
+     * @param to     End of the other name.
+     * @return True if both names are equal.
+     */
+    protected boolean matches(final CharSequence name, final byte[] buffer, final int from, final int to) {
+        if (name.length() != (to - from)) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (this.fold(name.charAt(i)) != this.fold((char) (buffer[from + i] & 0xff))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Folds the case of a name.
+     *
+     * @param name The name.
+     * @return The lowercase name. This is {@code name} itself if it has
+     * no uppercase characters.
+     */
+    public String toLowerCase(final String name) {
+        for (int i = 0; i < name.length(); i++) {
+            if (this.fold(name.charAt(i)) != name.charAt(i)) {
+                final char[] chars = name.toCharArray();
+                for (int j = i; j < chars.length; j++) {
+                    chars[j] = this.fold(chars[j]);
+                }
+                return new String(chars);
+            }
+        }
+        return name;
+    }
+
+    @Override
+    public String toString() {
+        return this.name;
+    }
+}
@@ -1,7 +1,9 @@
 package net.d4rkfly3r.irc.azmate.lib;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.List;
 
 /**
  * Represents a channel on the IRC server.
@@ -10,7 +12,9 @@ import java.util.concurrent.ConcurrentHashMap;
 public final class IRCChannel {
 
     /**
-     * Possible channel prefixes.
+     * Default channel prefixes, used until the server announces its own.
+     *
+     * @see IRCISupport#getChannelTypes()
      */
     protected static final String CHANNEL_PREFIX = "#&+!";
     /**
@@ -24,11 +28,59 @@ public final class IRCChannel {
     /**
      * The topic of this channel.
      */
-    private String topic;
+    private volatile String topic;
+    /**
+     * Whether this object is shared.
+     */
+    private final boolean global;
+    /**
+     * Id of the shared channel object, or 0 if it is not in the client
+     * state.
+     */
+    private volatile int id = 0;
+    /**
+     * How much this channel keeps track of its members.
+     */
+    private volatile IRCTrackingPolicy trackingPolicy;
+    /**
+     * The members and their privileges, or {@code null} if this channel
+     * is not shared, or does not keep its members or evicted them.
+     */
+    private volatile IRCMembers members;
+    /**
+     * Number of members, while there is no member table.
+     */
+    private volatile int userCount = 0;
+    /**
+     * When the number of members was last received from the server.
+     */
+    private volatile long countTime = 0;
+    /**
+     * Whether the members were requested from the server.
+     */
+    private volatile boolean requested = false;
     /**
-     * The user list.
+     * When the members were last asked for. Written without
+     * synchronization by all readers, so it is only a hint.
      */
-    private ConcurrentHashMap<String, IRCUser> users;
+    private long lastAccess;
+    /**
+     * Version of the client state this channel was last changed in. Read
+     * by other threads only while taking a snapshot, which is validated.
+     */
+    private long modified = 0;
+    /**
+     * The last validated copy of this channel.
+     */
+    private volatile IRCChannelSnapshot snapshot = null;
+    /**
+     * Cached prefix for messages to this channel.
+     */
+    private IRCOutboundPrefix messagePrefix = null;
+    /**
+     * Cached prefix for notices to this channel.
+     */
+    private IRCOutboundPrefix noticePrefix = null;
 
     /**
      * Creates a new {@code IRCChannel} object with given name.
@@ -41,10 +93,36 @@ public final class IRCChannel {
     protected IRCChannel(final String name, final IRCConnection irc, final boolean global) {
         this.name = name;
         this.irc = irc;
-        if (global) {
-            this.users = new ConcurrentHashMap<>(100, .75f, 2);
-        } else {
-            this.users = null;
+        this.global = global;
+        this.trackingPolicy = global && (irc != null) ? irc.getTrackingPolicy(name) : IRCTrackingPolicy.FULL;
+        this.members = global && (this.trackingPolicy == IRCTrackingPolicy.FULL) ? new IRCMembers(0) : null;
+        this.lastAccess = System.currentTimeMillis();
+    }
+
+    /**
+     * Records that the members of this channel were asked for, and
+     * requests them from the server if they were evicted.
+     *
+     * @return The member table, or {@code null} if there is none yet.
+     */
+    private IRCMembers access() {
+        this.lastAccess = System.currentTimeMillis();
+        final IRCMembers members = this.members;
+        if ((members == null) && this.global && (this.trackingPolicy == IRCTrackingPolicy.FULL)) {
+            this.requestNames();
+        }
+        return members;
+    }
+
+    /**
+     * Requests the members of this channel from the server, unless they
+     * were requested already.
+     */
+    private void requestNames() {
+        final IRCOutput out = this.irc.getOutput();
+        if (!this.requested && (out != null)) {
+            this.requested = true;
+            out.send("NAMES " + this.name, IRCPriority.NORMAL);
         }
     }
 
@@ -54,8 +132,22 @@ public final class IRCChannel {
      * @param ircUser The IRCUser to add.
      */
     protected void addUser(final IRCUser ircUser) {
-        if (this.users != null) {
-            this.users.putIfAbsent(ircUser.getNickLower(), ircUser);
+        final IRCClientState state = this.irc.getState();
+        state.beginWrite();
+        try {
+            final IRCMembers members = this.members;
+            if (members != null) {
+                final IRCUser shared = state.addUser(ircUser);
+                if (members.add(shared.getId(), 0)) {
+                    shared.addChannel(this);
+                    this.touch();
+                }
+            } else if (this.global && (this.trackingPolicy != IRCTrackingPolicy.NONE)) {
+                this.userCount++;
+                this.touch();
+            }
+        } finally {
+            state.endWrite();
         }
     }
 
@@ -142,7 +234,14 @@ public final class IRCChannel {
      * @param topic The new topic.
      */
     protected void setTopic(final String topic) {
-        this.topic = topic;
+        final IRCClientState state = this.irc.getState();
+        state.beginWrite();
+        try {
+            this.topic = topic;
+            this.touch();
+        } finally {
+            state.endWrite();
+        }
     }
 
     /**
@@ -152,16 +251,74 @@ public final class IRCChannel {
      * returns a {@link IRCUser}, even if the user is not in this
      * channel.
      *
-     * @param nickLower The nickname of this user.
+     * @param nick The nickname of this user.
      * @return A user object, or null if the user isn't in this
      * channel.
      */
-    protected IRCUser getUser(final String nickLower) {
-        return this.users.get(nickLower);
+    protected IRCUser getUser(final CharSequence nick) {
+        final IRCUser shared = this.irc.getState().getUser(nick);
+        final IRCMembers members = this.members;
+        return (shared != null) && (members != null) && members.contains(shared.getId()) ? shared : null;
+    }
+
+    /**
+     * Gives the id a user is stored under in this channel.
+     *
+     * @param ircUser The user, shared or not.
+     * @return The id of the shared user object, or 0 if there is none.
+     */
+    private int idOf(final IRCUser ircUser) {
+        if (ircUser.getId() != 0) {
+            return ircUser.getId();
+        }
+        final IRCUser shared = ircUser.getNick() != null ? this.irc.getState().getUser(ircUser.getNick()) : null;
+        return shared != null ? shared.getId() : 0;
+    }
+
+    /**
+     * Gives the prefix of the highest privilege a user has in this
+     * channel, like {@code @} for an operator.
+     *
+     * @param ircUser The user.
+     * @return The prefix, or 0 if the user has no privileges or this
+     * channel is not shared.
+     * @see IRCISupport#getPrefixChars()
+     */
+    public char getPrefix(final IRCUser ircUser) {
+        this.access();
+        final int bits = this.getPrivileges(ircUser);
+        final String chars = this.irc.getISupport().getPrefixChars();
+        final int rank = Integer.numberOfTrailingZeros(bits);
+        return (bits == 0) || (rank >= chars.length()) ? 0 : chars.charAt(rank);
+    }
+
+    /**
+     * Gives the privileges of a user in this channel.
+     *
+     * @param ircUser The user.
+     * @return The privileges, as bits by rank.
+     */
+    protected int getPrivileges(final IRCUser ircUser) {
+        final IRCMembers members = this.members;
+        return members != null ? members.getPrivileges(this.idOf(ircUser)) : 0;
+    }
+
+    /**
+     * Gives an estimate of the heap used to store the members of this
+     * channel.
+     *
+     * @return The estimated size in bytes, or 0 if this channel is not
+     * shared.
+     */
+    public long getMemoryEstimate() {
+        final IRCMembers members = this.members;
+        return members != null ? members.getMemoryEstimate() : 0;
     }
 
     public IRCUser getUs() {
-        return this.users.get(this.irc.getClient().getNickLower());
+        final IRCUser client = this.irc.getClient();
+        final IRCMembers members = this.access();
+        return (members != null) && members.contains(client.getId()) ? client : null;
     }
 
     /**
@@ -176,11 +333,168 @@ public final class IRCChannel {
      * }
      * </pre>
      *
-     * @return All users in this channel.
+     * @return All users in this channel. If the members were evicted,
+     * they are requested from the server and this is empty until they
+     * are received.
      * @see #isGlobal()
+     * @see #getTrackingPolicy()
      */
     public Iterator<IRCUser> getUsers() {
-        return this.users.values().iterator();
+        final IRCMembers members = this.access();
+        final int[] ids = members != null ? members.ids() : new int[0];
+        final IRCClientState state = this.irc.getState();
+        final List<IRCUser> users = new ArrayList<>(ids.length);
+        for (final int id : ids) {
+            final IRCUser ircUser = state.getUser(id);
+            if (ircUser != null) {
+                users.add(ircUser);
+            }
+        }
+        return users.iterator();
+    }
+
+    /**
+     * Gives the shared user objects of all members, without counting as a
+     * use of this channel.
+     *
+     * @return The members, or an empty array if there is no member table.
+     */
+    protected IRCUser[] getMemberArray() {
+        final IRCMembers members = this.members;
+        if (members == null) {
+            return new IRCUser[0];
+        }
+        final IRCClientState state = this.irc.getState();
+        final int[] ids = members.ids();
+        final IRCUser[] users = new IRCUser[ids.length];
+        int count = 0;
+        for (final int id : ids) {
+            final IRCUser ircUser = state.getUser(id);
+            if (ircUser != null) {
+                users[count++] = ircUser;
+            }
+        }
+        return count == users.length ? users : Arrays.copyOf(users, count);
+    }
+
+    /**
+     * Gives the number of users in this channel. Without a member table,
+     * the count is refreshed from the server when it is older than the
+     * channel idle time, since quits cannot be counted.
+     *
+     * @return The number of users, or 0 if this channel is not shared or
+     * does not track its members.
+     * @see #isGlobal()
+     * @see IRCConnection#setChannelIdleTime(long)
+     */
+    public int getUserCount() {
+        final IRCMembers members = this.members;
+        if (members != null) {
+            return members.size();
+        }
+        final long idleTime = this.irc.getChannelIdleTime();
+        if (this.global && (this.trackingPolicy != IRCTrackingPolicy.NONE) && (idleTime > 0)
+                && ((System.currentTimeMillis() - this.countTime) > idleTime)) {
+            this.requestNames();
+        }
+        return this.userCount;
+    }
+
+    /**
+     * Gives the number of users in this channel, as currently known.
+     *
+     * @return The number of users.
+     */
+    protected int countUsers() {
+        final IRCMembers members = this.members;
+        return members != null ? members.size() : this.userCount;
+    }
+
+    /**
+     * Gives the id of the shared channel object, used by users to store
+     * the channels they share with us.
+     *
+     * @return The id, or 0 if this object is not in the client state.
+     * @see IRCClientState#getChannel(int)
+     */
+    protected int getId() {
+        return this.id;
+    }
+
+    /**
+     * Changes the id of the shared channel object.
+     *
+     * @param id The id, or 0 if this object is no longer in the client
+     *           state.
+     */
+    protected void setId(final int id) {
+        this.id = id;
+    }
+
+    /**
+     * Gives when the members of this channel were last asked for.
+     *
+     * @return The time in milliseconds.
+     */
+    protected long getLastAccess() {
+        return this.lastAccess;
+    }
+
+    /**
+     * Gives how much this channel keeps track of its members.
+     *
+     * @return The tracking policy.
+     */
+    public IRCTrackingPolicy getTrackingPolicy() {
+        return this.trackingPolicy;
+    }
+
+    /**
+     * Changes how much this channel keeps track of its members. Members
+     * dropped by a lower policy are requested from the server again
+     * when they are needed under a higher one.
+     *
+     * @param trackingPolicy The tracking policy.
+     * @see IRCConnection#setTrackingPolicy(String, IRCTrackingPolicy)
+     */
+    public void setTrackingPolicy(final IRCTrackingPolicy trackingPolicy) {
+        if (trackingPolicy == null) {
+            throw new IllegalArgumentException("Tracking policy can't be null!");
+        }
+        if (!this.global) {
+            this.trackingPolicy = trackingPolicy;
+            return;
+        }
+        final IRCClientState state = this.irc.getState();
+        state.beginWrite();
+        try {
+            final IRCTrackingPolicy old = this.trackingPolicy;
+            this.trackingPolicy = trackingPolicy;
+            if (trackingPolicy != IRCTrackingPolicy.FULL) {
+                this.evict();
+            }
+            if (trackingPolicy == IRCTrackingPolicy.NONE) {
+                this.userCount = 0;
+            } else if (old == IRCTrackingPolicy.NONE) {
+                // nothing was counted
+                this.countTime = 0;
+            }
+        } finally {
+            state.endWrite();
+        }
+    }
+
+    /**
+     * Gives the number of users with a privilege in this channel. The
+     * count is kept up to date and not computed on every call.
+     *
+     * @param mode The privilege mode, like {@code o} for operator.
+     * @return The number of users, or 0 if this channel is not shared.
+     * @see IRCISupport#getPrefixModes()
+     */
+    public int getUserCount(final char mode) {
+        final IRCMembers members = this.access();
+        return members != null ? members.count(this.irc.getISupport().getPrefixRank(mode)) : 0;
     }
 
     /**
@@ -234,6 +548,21 @@ public final class IRCChannel {
         this.setMode(IRCUser.MODE_VOICE, ircUser, true);
     }
 
+    /**
+     * Checks whether a user has a privilege in this channel. This is
+     * kept up to date from mode changes, without asking the server.
+     *
+     * @param ircUser The user.
+     * @param mode    The privilege mode, like {@code o} for operator.
+     * @return True if the user has the privilege.
+     * @see IRCISupport#getPrefixModes()
+     */
+    public boolean hasPrivilege(final IRCUser ircUser, final char mode) {
+        this.access();
+        final int rank = this.irc.getISupport().getPrefixRank(mode);
+        return (rank >= 0) && (rank < Integer.SIZE) && ((this.getPrivileges(ircUser) & (1 << rank)) != 0);
+    }
+
     /**
      * Checks whether given user is in this channel.
      *
@@ -241,7 +570,8 @@ public final class IRCChannel {
      * @return True if given user is in this channel, false otherwise.
      */
     public boolean hasUser(final String nick) {
-        return (this.users != null) && this.users.containsKey(nick.toLowerCase());
+        this.access();
+        return this.getUser(nick) != null;
     }
 
     /**
@@ -251,7 +581,8 @@ public final class IRCChannel {
      * @return True if given ircUser is in this channel, false otherwise.
      */
     public boolean hasUser(final IRCUser ircUser) {
-        return this.hasUser(ircUser.getNickLower());
+        final IRCMembers members = this.access();
+        return (members != null) && members.contains(this.idOf(ircUser));
     }
 
     /**
@@ -261,7 +592,17 @@ public final class IRCChannel {
      * @return True if this channel object is shared.
      */
     public boolean isGlobal() {
-        return this.users != null;
+        return this.global;
+    }
+
+    /**
+     * Checks whether members received from the server are stored in a
+     * member table, rather than only counted.
+     *
+     * @return True if the members are or will be stored.
+     */
+    protected boolean isTracking() {
+        return (this.members != null) || (this.requested && (this.trackingPolicy == IRCTrackingPolicy.FULL));
     }
 
     /**
@@ -351,36 +692,96 @@ public final class IRCChannel {
      * @param ircUser The ircUser to remove.
      */
     protected void removeUser(final IRCUser ircUser) {
-        if (this.users != null) {
-            this.users.remove(ircUser.getNickLower());
+        final IRCClientState state = this.irc.getState();
+        state.beginWrite();
+        try {
+            final IRCMembers members = this.members;
+            if (members == null) {
+                if (this.userCount > 0) {
+                    this.userCount--;
+                    this.touch();
+                }
+                return;
+            }
+            final int id = this.idOf(ircUser);
+            if (members.remove(id)) {
+                this.touch();
+                this.release(state.getUser(id));
+            }
+        } finally {
+            state.endWrite();
         }
     }
 
     /**
-     * Remove voice privileges from a ircUser in this channel.
-     *
-     * @param ircUser The ircUser to remove voice privileges from.
+     * Removes all members, after we left this channel.
      */
-    public void removeVoice(final IRCUser ircUser) {
-        this.setMode(IRCUser.MODE_VOICE, ircUser, false);
+    protected void removeUsers() {
+        final IRCClientState state = this.irc.getState();
+        state.beginWrite();
+        try {
+            final IRCMembers members = this.members;
+            this.userCount = 0;
+            this.touch();
+            if (members != null) {
+                this.members = new IRCMembers(0);
+                for (final int id : members.ids()) {
+                    this.release(state.getUser(id));
+                }
+            }
+        } finally {
+            state.endWrite();
+        }
     }
 
     /**
-     * Changes the nickname of a user in this channel.
+     * Drops the member table of this channel and keeps only the number of
+     * members. Users sharing no other channel are forgotten.
      *
-     * @param old  The old nickname.
-     * @param neww The new nickname.
+     * @return True if there was a member table.
      */
-    protected void renameUser(final String old, final String neww) {
-        if (this.users != null) {
-            final IRCUser ircUser = this.users.remove(old);
-            if (ircUser != null) {
-                ircUser.setNick(neww);
-                this.users.put(ircUser.getNickLower(), ircUser);
+    protected boolean evict() {
+        final IRCClientState state = this.irc.getState();
+        state.beginWrite();
+        try {
+            final IRCMembers members = this.members;
+            if (members == null) {
+                return false;
+            }
+            this.members = null;
+            this.userCount = members.size();
+            this.requested = false;
+            this.touch();
+            for (final int id : members.ids()) {
+                this.release(state.getUser(id));
             }
+            return true;
+        } finally {
+            state.endWrite();
+        }
+    }
+
+    /**
+     * Forgets this channel for a user who is no longer a member, and the
+     * user itself if no other channel is shared with it.
+     *
+     * @param ircUser The shared user object, may be {@code null}.
+     */
+    private void release(final IRCUser ircUser) {
+        if ((ircUser != null) && ircUser.removeChannel(this)) {
+            this.irc.getState().releaseUser(ircUser);
         }
     }
 
+    /**
+     * Remove voice privileges from a ircUser in this channel.
+     *
+     * @param ircUser The ircUser to remove voice privileges from.
+     */
+    public void removeVoice(final IRCUser ircUser) {
+        this.setMode(IRCUser.MODE_VOICE, ircUser, false);
+    }
+
     /**
      * Send message to channel.
      *
@@ -391,6 +792,17 @@ public final class IRCChannel {
         this.sendMessage(message);
     }
 
+    /**
+     * Send message to channel with given priority.
+     *
+     * @param message  The message to send.
+     * @param priority The priority in the outgoing message queue.
+     * @see #sendMessage(String, IRCPriority)
+     */
+    public void send(final String message, final IRCPriority priority) {
+        this.sendMessage(message, priority);
+    }
+
     /**
      * Sends a CTCP ACTION command.
      *
@@ -407,7 +819,9 @@ public final class IRCChannel {
      * @param command Command to send.
      */
     public void sendCtcp(final String command) {
-        this.irc.getOutput().send("PRIVMSG " + this.getName() + " :" + IRCPacket.CTCP + command + IRCPacket.CTCP);
+        final IRCOutput out = this.irc.getOutput();
+        this.messagePrefix = out.prefix(this.messagePrefix, "PRIVMSG", this.getName());
+        out.send(this.messagePrefix, out.ctcp(this.messagePrefix, command), IRCPriority.NORMAL, false);
     }
 
     /**
@@ -428,7 +842,19 @@ public final class IRCChannel {
      * @param message The message to send.
      */
     public void sendMessage(final String message) {
-        this.irc.getOutput().send("PRIVMSG " + this.getName() + " :" + message);
+        this.sendMessage(message, IRCPriority.NORMAL);
+    }
+
+    /**
+     * Send message to channel with given priority.
+     *
+     * @param message  The message to send.
+     * @param priority The priority in the outgoing message queue.
+     */
+    public void sendMessage(final String message, final IRCPriority priority) {
+        final IRCOutput out = this.irc.getOutput();
+        this.messagePrefix = out.prefix(this.messagePrefix, "PRIVMSG", this.getName());
+        out.send(this.messagePrefix, message, priority, true);
     }
 
     /**
@@ -437,7 +863,122 @@ public final class IRCChannel {
      * @param message The notice to send.
      */
     public void sendNotice(final String message) {
-        this.irc.getOutput().send("NOTICE " + this.getName() + " :" + message);
+        this.sendNotice(message, IRCPriority.NORMAL);
+    }
+
+    /**
+     * Send notice to channel with given priority.
+     *
+     * @param message  The notice to send.
+     * @param priority The priority in the outgoing message queue.
+     */
+    public void sendNotice(final String message, final IRCPriority priority) {
+        final IRCOutput out = this.irc.getOutput();
+        this.noticePrefix = out.prefix(this.noticePrefix, "NOTICE", this.getName());
+        out.send(this.noticePrefix, message, priority, true);
+    }
+
+    /**
+     * Replaces all members of this channel with the members received in
+     * a NAMES burst. Users who are no longer in any channel are
+     * forgotten. Channels without a member table only take the number
+     * of members, unless the members were requested to rebuild it.
+     *
+     * @param burst The members.
+     */
+    protected void setMembers(final IRCNamesBurst burst) {
+        if (!this.global) {
+            return;
+        }
+        final IRCClientState state = this.irc.getState();
+        state.beginWrite();
+        try {
+            final boolean tracking = this.isTracking();
+            final IRCMembers old = this.members;
+            this.requested = false;
+            this.countTime = System.currentTimeMillis();
+            this.touch();
+            if (!tracking) {
+                this.userCount = this.trackingPolicy != IRCTrackingPolicy.NONE ? burst.getCount() : 0;
+                return;
+            }
+            final IRCMembers members = new IRCMembers(burst.size());
+            for (int i = 0; i < burst.size(); i++) {
+                // users found by nickname are shared already, but another
+                // burst may have registered a new user meanwhile
+                final IRCUser user = burst.getUser(i);
+                final IRCUser shared = state.getUser(user.getId()) == user ? user : state.addUser(user);
+                if (members.load(shared.getId(), burst.getPrivileges(i))
+                        && ((old == null) || !old.contains(shared.getId()))) {
+                    shared.addChannel(this);
+                }
+            }
+            this.members = members;
+            this.userCount = 0;
+            if (old != null) {
+                for (final int id : old.ids()) {
+                    if (!members.contains(id)) {
+                        this.release(state.getUser(id));
+                    }
+                }
+            }
+        } finally {
+            state.endWrite();
+        }
+    }
+
+    /**
+     * Gives or takes a privilege of a user in this channel. This does not
+     * send a request to the IRC server.
+     *
+     * @param ircUser The user.
+     * @param rank    The rank of the privilege.
+     * @param enable  True to give the privilege, false to take it.
+     * @see IRCISupport#getPrefixModes()
+     */
+    protected void setPrivilege(final IRCUser ircUser, final int rank, final boolean enable) {
+        final IRCClientState state = this.irc.getState();
+        state.beginWrite();
+        try {
+            final IRCMembers members = this.members;
+            if ((members != null) && members.setPrivilege(this.idOf(ircUser), rank, enable)) {
+                this.touch();
+            }
+        } finally {
+            state.endWrite();
+        }
+    }
+
+    /**
+     * Replaces the privileges of a user in this channel.
+     *
+     * @param ircUser The user.
+     * @param bits    The privileges, as bits by rank.
+     */
+    protected void setPrivileges(final IRCUser ircUser, final int bits) {
+        final IRCClientState state = this.irc.getState();
+        state.beginWrite();
+        try {
+            final IRCMembers members = this.members;
+            if ((members != null) && members.setPrivileges(this.idOf(ircUser), bits)) {
+                this.touch();
+            }
+        } finally {
+            state.endWrite();
+        }
+    }
+
+    /**
+     * Remembers a validated copy of this channel, so later snapshots can
+     * reuse it while this channel does not change.
+     *
+     * @param snapshot The copy.
+     */
+    protected void setSnapshot(final IRCChannelSnapshot snapshot) {
+        final IRCChannelSnapshot current = this.snapshot;
+        if ((current == null) || (current.getVersion() < snapshot.getVersion())) {
+            this.snapshot = snapshot;
+        }
     }
 
     /**
@@ -469,11 +1010,50 @@ public final class IRCChannel {
         this.irc.getOutput().send("MODE " + this.getName() + " " + mode);
     }
 
+    /**
+     * Copies this channel, or reuses the last copy if this channel did
+     * not change since.
+     *
+     * @param version The version of the client state.
+     * @return The copy, which must be validated before it is used.
+     * @see IRCClientState#getSnapshot()
+     */
+    protected IRCChannelSnapshot takeSnapshot(final long version) {
+        final String prefixChars = this.irc.getISupport().getPrefixChars();
+        final IRCChannelSnapshot cached = this.snapshot;
+        if ((cached != null) && (cached.getVersion() >= this.modified) && cached.getPrefixChars().equals(prefixChars)) {
+            return cached;
+        }
+        final IRCMembers members = this.members;
+        final int[] ids = members != null ? members.ids() : new int[0];
+        final IRCClientState state = this.irc.getState();
+        final String[] nicks = new String[ids.length];
+        final int[] privileges = new int[ids.length];
+        int count = 0;
+        for (final int id : ids) {
+            final IRCUser ircUser = state.getUser(id);
+            if (ircUser != null) {
+                nicks[count] = ircUser.getNick();
+                privileges[count] = members.getPrivileges(id);
+                count++;
+            }
+        }
+        return new IRCChannelSnapshot(this.name, this.topic, count == ids.length ? nicks : Arrays.copyOf(nicks, count),
+                count == ids.length ? privileges : Arrays.copyOf(privileges, count), prefixChars, version);
+    }
+
     @Override
     public String toString() {
         return this.getName();
     }
 
+    /**
+     * Records that this channel changed in the current write section.
+     */
+    protected void touch() {
+        this.modified = this.irc.getState().getVersion();
+    }
+
     /**
      * Updates the current shared IRCUser object with changes in a fresh
      * one and returns the updated shared object.
@@ -484,15 +1064,21 @@ public final class IRCChannel {
      * @return The updated shared IRCUser object.
      */
     protected IRCUser updateUser(final IRCUser ircUser, final boolean createNew) {
-        if (this.hasUser(ircUser.getNickLower())) {
+        if (this.members == null) {
+            // members are not tracked, or were evicted
+            return ircUser;
+        }
+        final IRCUser shared = ircUser.getNick() != null ? this.getUser(ircUser.getNick()) : null;
+        if (shared != null) {
             // update IRCUser if it exists
-            final IRCUser shared = this.getUser(ircUser.getNickLower());
-            shared.updateUser(ircUser);
+            if (shared != ircUser) {
+                shared.updateUser(ircUser);
+            }
             return shared;
         } else if (createNew) {
             // create a new one
             this.addUser(ircUser);
-            return ircUser;
+            return this.getUser(ircUser.getNick());
         }
         return null;
     }
@@ -0,0 +1,144 @@
+package net.d4rkfly3r.irc.azmate.lib;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An unchanging copy of a channel: its name, topic and members with
+ * their privileges, as they were at one version of the client state.
+ *
+ * @see IRCStateSnapshot
+ */
+public final class IRCChannelSnapshot {
+
+    /**
+     * The channel name.
+     */
+    private final String name;
+    /**
+     * The topic, or {@code null} if unknown.
+     */
+    private final String topic;
+    /**
+     * Nicknames of the members.
+     */
+    private final String[] nicks;
+    /**
+     * Privileges of the members, as bits by rank.
+     */
+    private final int[] privileges;
+    /**
+     * The privilege prefixes by rank.
+     */
+    private final String prefixChars;
+    /**
+     * Version of the client state this copy was taken at.
+     */
+    private final long version;
+
+    /**
+     * Creates a new snapshot.
+     *
+     * @param name        The channel name.
+     * @param topic       The topic.
+     * @param nicks       Nicknames of the members.
+     * @param privileges  Privileges of the members, as bits by rank.
+     * @param prefixChars The privilege prefixes by rank.
+     * @param version     Version of the client state.
+     */
+    protected IRCChannelSnapshot(final String name, final String topic, final String[] nicks, final int[] privileges,
+                                 final String prefixChars, final long version) {
+        this.name = name;
+        this.topic = topic;
+        this.nicks = nicks;
+        this.privileges = privileges;
+        this.prefixChars = prefixChars;
+        this.version = version;
+    }
+
+    /**
+     * Returns the channel name.
+     *
+     * @return The channel name.
+     */
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * Gives the nickname of a member.
+     *
+     * @param index The index of the member, from 0 to
+     *              {@link #getUserCount()} - 1.
+     * @return The nickname.
+     */
+    public String getNick(final int index) {
+        return this.nicks[index];
+    }
+
+    /**
+     * Gives the nicknames of all members.
+     *
+     * @return An unmodifiable list of nicknames.
+     */
+    public List<String> getNicks() {
+        return Collections.unmodifiableList(Arrays.asList(this.nicks));
+    }
+
+    /**
+     * Gives the prefix of the highest privilege of a member, like
+     * {@code @} for an operator.
+     *
+     * @param index The index of the member.
+     * @return The prefix, or 0 if the member has no privileges.
+     * @see IRCChannel#getPrefix(IRCUser)
+     */
+    public char getPrefix(final int index) {
+        final int bits = this.privileges[index];
+        final int rank = Integer.numberOfTrailingZeros(bits);
+        return (bits == 0) || (rank >= this.prefixChars.length()) ? 0 : this.prefixChars.charAt(rank);
+    }
+
+    /**
+     * Gives the prefixes this copy was taken with.
+     *
+     * @return The privilege prefixes by rank.
+     */
+    protected String getPrefixChars() {
+        return this.prefixChars;
+    }
+
+    /**
+     * Gives the topic of the channel, or null if unknown.
+     *
+     * @return The topic.
+     */
+    public String getTopic() {
+        return this.topic;
+    }
+
+    /**
+     * Gives the number of members.
+     *
+     * @return The number of members, or 0 if the channel is not shared.
+     */
+    public int getUserCount() {
+        return this.nicks.length;
+    }
+
+    /**
+     * Gives the version of the client state this copy was taken at.
+     *
+     * @return The version.
+     * @see IRCStateSnapshot#getVersion()
+     */
+    public long getVersion() {
+        return this.version;
+    }
+
+    @Override
+    public String toString() {
+        return this.name;
+    }
+}
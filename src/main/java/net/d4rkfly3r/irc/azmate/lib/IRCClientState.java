@@ -1,33 +1,108 @@
 package net.d4rkfly3r.irc.azmate.lib;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
-import java.util.Map;
+import java.util.List;
+import java.util.concurrent.locks.StampedLock;
 
 /**
  * Contains information about an {@link IRCConnection}.
+ * <p>
+ * The state is changed by the thread reading from the server and may be
+ * read by any thread. Reads never lock: lookups go through structures
+ * that stay consistent while they are changed, and
+ * {@link #getSnapshot()} copies all channels optimistically, retrying
+ * only if the state changed during the copy. Changes run in write
+ * sections, which are serialized and counted as versions.
+ * </p>
  */
 public final class IRCClientState {
 
     /**
      * The list of channels.
      */
-    private final Map<String, IRCChannel> channels;
+    private final IRCNameMap<IRCChannel> channels;
     /**
-     * Contains a singleton for all known users.
+     * Contains a singleton for all users sharing a channel with us.
      */
-    private final Map<String, IRCUser> users;
+    private final IRCNameMap<IRCUser> users;
+    /**
+     * Channel members being received, by channel name.
+     */
+    private final IRCNameMap<IRCNamesBurst> namesBursts;
+    /**
+     * Shared user objects by id, including the local user.
+     */
+    private volatile IRCUser[] usersById = new IRCUser[256];
+    /**
+     * Ids released by users that are no longer shared.
+     */
+    private int[] freeIds = new int[16];
+    /**
+     * Number of released ids.
+     */
+    private int freeIdCount = 0;
+    /**
+     * The next id never handed out. Ids start at 1.
+     */
+    private int nextId = 1;
+    /**
+     * Shared channel objects by id.
+     */
+    private volatile IRCChannel[] channelsById = new IRCChannel[16];
+    /**
+     * Ids released by channels that were removed.
+     */
+    private int[] freeChannelIds = new int[16];
+    /**
+     * Number of released channel ids.
+     */
+    private int freeChannelIdCount = 0;
+    /**
+     * The next channel id never handed out. Ids start at 1.
+     */
+    private int nextChannelId = 1;
     /**
      * The local user.
      */
-    private IRCUser client;
+    private volatile IRCUser client;
+    /**
+     * Held for writing during write sections, which serializes them and
+     * lets snapshots check whether the state changed while they were
+     * copied.
+     */
+    private final StampedLock versions = new StampedLock();
+    /**
+     * Stamp of the current write section.
+     */
+    private long writeStamp;
+    /**
+     * The thread in a write section, or {@code null}. Other threads may
+     * see a stale value, which is never their own thread.
+     */
+    private Thread writer = null;
+    /**
+     * Nesting depth of the current write section.
+     */
+    private int writeDepth = 0;
+    /**
+     * Number of write sections started so far. Read by other threads
+     * only while validating against {@link #versions}.
+     */
+    private long version = 0;
+    /**
+     * The last snapshot taken.
+     */
+    private volatile IRCStateSnapshot snapshot = null;
 
     /**
      * Creates a new IRCClientState.
      */
     protected IRCClientState() {
-        this.channels = new HashMap<>();
-        this.users = new HashMap<>();
+        this.channels = new IRCNameMap<>();
+        this.users = new IRCNameMap<>(256);
+        this.namesBursts = new IRCNameMap<>(4);
     }
 
     /**
@@ -36,20 +111,145 @@ public final class IRCClientState {
      * @param IRCChannel The IRCChannel to add.
      */
     protected void addChannel(final IRCChannel IRCChannel) {
-        if (!this.channels.containsKey(IRCChannel.getName().toLowerCase())) {
-            this.channels.put(IRCChannel.getName().toLowerCase(), IRCChannel);
+        this.beginWrite();
+        try {
+            if (this.channels.putIfAbsent(IRCChannel.getName(), IRCChannel) == null) {
+                this.register(IRCChannel);
+            }
+        } finally {
+            this.endWrite();
         }
     }
 
     /**
-     * Adds a IRCUser to the IRCUser map.
+     * Adds a IRCUser to the IRCUser map, unless a shared object for the
+     * same nickname exists.
      *
      * @param IRCUser The IRCUser to add.
+     * @return The shared user object.
+     */
+    protected IRCUser addUser(final IRCUser IRCUser) {
+        if ((IRCUser == this.client) || (IRCUser.getNick() == null)) {
+            return IRCUser;
+        }
+        this.beginWrite();
+        try {
+            final IRCUser shared = this.users.putIfAbsent(IRCUser.getNick(), IRCUser);
+            if (shared != null) {
+                return shared;
+            }
+            this.register(IRCUser);
+            return IRCUser;
+        } finally {
+            this.endWrite();
+        }
+    }
+
+    /**
+     * Starts a write section. Sections may be nested; other threads
+     * changing the state wait until the outermost section ends. Readers
+     * are never blocked.
+     *
+     * @see #endWrite()
      */
-    protected void addUser(final IRCUser IRCUser) {
-        if (!this.users.containsKey(IRCUser.getNickLower())) {
-            this.users.put(IRCUser.getNickLower(), IRCUser);
+    protected void beginWrite() {
+        final Thread current = Thread.currentThread();
+        if (this.writer != current) {
+            this.writeStamp = this.versions.writeLock();
+            this.writer = current;
+            this.version++;
         }
+        this.writeDepth++;
+    }
+
+    /**
+     * Ends a write section.
+     *
+     * @see #beginWrite()
+     */
+    protected void endWrite() {
+        if (--this.writeDepth == 0) {
+            this.writer = null;
+            this.versions.unlockWrite(this.writeStamp);
+        }
+    }
+
+    /**
+     * Hands out an id to a shared user object.
+     *
+     * @param IRCUser The user.
+     */
+    private void register(final IRCUser IRCUser) {
+        if (IRCUser.getId() != 0) {
+            return;
+        }
+        final int id = this.freeIdCount > 0 ? this.freeIds[--this.freeIdCount] : this.nextId++;
+        IRCUser[] usersById = this.usersById;
+        if (id >= usersById.length) {
+            usersById = Arrays.copyOf(usersById, usersById.length * 2);
+            usersById[id] = IRCUser;
+            this.usersById = usersById;
+        } else {
+            usersById[id] = IRCUser;
+        }
+        IRCUser.setId(id);
+    }
+
+    /**
+     * Takes back the id of a user object that is no longer shared.
+     *
+     * @param IRCUser The user.
+     */
+    private void unregister(final IRCUser IRCUser) {
+        final int id = IRCUser.getId();
+        if ((id == 0) || (id >= this.usersById.length) || (this.usersById[id] != IRCUser)) {
+            return;
+        }
+        this.usersById[id] = null;
+        IRCUser.setId(0);
+        IRCUser.clearChannels();
+        if (this.freeIdCount == this.freeIds.length) {
+            this.freeIds = Arrays.copyOf(this.freeIds, this.freeIds.length * 2);
+        }
+        this.freeIds[this.freeIdCount++] = id;
+    }
+
+    /**
+     * Hands out an id to a shared channel object.
+     *
+     * @param IRCChannel The channel.
+     */
+    private void register(final IRCChannel IRCChannel) {
+        final int id = this.freeChannelIdCount > 0
+                ? this.freeChannelIds[--this.freeChannelIdCount] : this.nextChannelId++;
+        IRCChannel[] channelsById = this.channelsById;
+        if (id >= channelsById.length) {
+            channelsById = Arrays.copyOf(channelsById, channelsById.length * 2);
+            channelsById[id] = IRCChannel;
+            this.channelsById = channelsById;
+        } else {
+            channelsById[id] = IRCChannel;
+        }
+        IRCChannel.setId(id);
+    }
+
+    /**
+     * Takes back the id of a channel that was removed. Its members must
+     * have been released before.
+     *
+     * @param IRCChannel The channel.
+     */
+    private void unregister(final IRCChannel IRCChannel) {
+        final int id = IRCChannel.getId();
+        if ((id == 0) || (id >= this.channelsById.length) || (this.channelsById[id] != IRCChannel)) {
+            return;
+        }
+        this.channelsById[id] = null;
+        IRCChannel.setId(0);
+        if (this.freeChannelIdCount == this.freeChannelIds.length) {
+            this.freeChannelIds = Arrays.copyOf(this.freeChannelIds, this.freeChannelIds.length * 2);
+        }
+        this.freeChannelIds[this.freeChannelIdCount++] = id;
     }
 
     /**
@@ -58,7 +258,7 @@ public final class IRCClientState {
      * @param IRCChannel A IRCChannel object representing this IRCChannel.
      * @return The IRCChannel, or null if this IRCChannel doesn't exist. (The local
      * user is not in that IRCChannel)
-     * @see #getChannel(String)
+     * @see #getChannel(CharSequence)
      */
     protected IRCChannel getChannel(final IRCChannel IRCChannel) {
         return this.getChannel(IRCChannel.getName());
@@ -71,11 +271,77 @@ public final class IRCClientState {
      * @return The channel, or null if this channel doesn't exist. (The local
      * user is not in that channel)
      */
-    protected IRCChannel getChannel(final String channel) {
-        if (channel != null && this.channels.containsKey(channel.toLowerCase())) {
-            return this.channels.get(channel.toLowerCase());
+    protected IRCChannel getChannel(final CharSequence channel) {
+        return channel != null ? this.channels.get(channel) : null;
+    }
+
+    /**
+     * Retrieves a shared channel object using the raw bytes of a received
+     * channel name. The name must only contain ASCII characters.
+     *
+     * @param buffer The raw bytes.
+     * @param from   Start of the channel name.
+     * @param to     End of the channel name.
+     * @return The channel, or null if this channel doesn't exist.
+     */
+    protected IRCChannel getChannel(final byte[] buffer, final int from, final int to) {
+        return this.channels.get(buffer, from, to);
+    }
+
+    /**
+     * Gives the rules used to compare nicknames and channel names.
+     *
+     * @return The case mapping.
+     */
+    protected IRCCaseMapping getCaseMapping() {
+        return this.users.getCaseMapping();
+    }
+
+    /**
+     * Changes the rules used to compare nicknames and channel names, as
+     * announced by the server, and rehashes all names.
+     *
+     * @param caseMapping The new case mapping.
+     */
+    protected void setCaseMapping(final IRCCaseMapping caseMapping) {
+        if (caseMapping == this.users.getCaseMapping()) {
+            return;
         }
-        return null;
+        this.beginWrite();
+        try {
+            this.users.setCaseMapping(caseMapping);
+            this.namesBursts.setCaseMapping(caseMapping);
+            this.channels.setCaseMapping(caseMapping);
+        } finally {
+            this.endWrite();
+        }
+    }
+
+    /**
+     * Gives the members of a channel received so far, starting a new
+     * burst if none is being received. Bursts are only used by the
+     * thread reading from the server.
+     *
+     * @param channel The shared channel object.
+     * @return The burst.
+     */
+    protected IRCNamesBurst getNamesBurst(final IRCChannel channel) {
+        IRCNamesBurst burst = this.namesBursts.get(channel.getName());
+        if ((burst == null) || (burst.getChannel() != channel)) {
+            burst = new IRCNamesBurst(channel, channel.isTracking() ? channel.countUsers() : 0);
+            this.namesBursts.put(channel.getName(), burst);
+        }
+        return burst;
+    }
+
+    /**
+     * Removes and returns the members of a channel received so far.
+     *
+     * @param channel The channel name.
+     * @return The burst, or {@code null} if none was being received.
+     */
+    protected IRCNamesBurst removeNamesBurst(final CharSequence channel) {
+        return this.namesBursts.remove(channel);
     }
 
     /**
@@ -84,7 +350,7 @@ public final class IRCClientState {
      * @return an iterator through all Channels.
      */
     public Iterator<IRCChannel> getChannels() {
-        return this.channels.values().iterator();
+        return this.channels.iterator();
     }
 
     /**
@@ -102,22 +368,334 @@ public final class IRCClientState {
      * @param IRCUser The local {@code IRCUser}.
      */
     protected void setClient(final IRCUser IRCUser) {
-        this.client = IRCUser;
+        this.beginWrite();
+        try {
+            if (this.client != null) {
+                this.unregister(this.client);
+            }
+            this.client = IRCUser;
+            this.register(IRCUser);
+        } finally {
+            this.endWrite();
+        }
     }
 
     /**
-     * Retrieves a shared user object from the users map.
+     * Retrieves a shared user object from the users map. Case is ignored
+     * and the local user is found as well.
      *
      * @param nick The nickname of this user.
      * @return The shared user object, or null if there is no singleton IRCUser
      * object for this user.
      */
-    protected IRCUser getUser(final String nick) {
-        //TODO: implement singleton users in IRCUser, IRCChannel and IRCConnection
-        if (this.users.containsKey(nick)) {
-            return this.users.get(nick);
+    protected IRCUser getUser(final CharSequence nick) {
+        final IRCUser user = this.users.get(nick);
+        if ((user == null) && (this.client != null) && (this.client.getNick() != null)
+                && this.users.getCaseMapping().matches(this.client.getNick(), nick)) {
+            return this.client;
+        }
+        return user;
+    }
+
+    /**
+     * Retrieves a shared user object using the raw bytes of a received
+     * nickname. The nickname must only contain ASCII characters.
+     *
+     * @param buffer The raw bytes.
+     * @param from   Start of the nickname.
+     * @param to     End of the nickname.
+     * @return The shared user object, or null if there is no singleton IRCUser
+     * object for this user.
+     */
+    protected IRCUser getUser(final byte[] buffer, final int from, final int to) {
+        final IRCUser user = this.users.get(buffer, from, to);
+        if ((user == null) && (this.client != null) && (this.client.getNick() != null)
+                && this.users.getCaseMapping().matches(this.client.getNick(), buffer, from, to)) {
+            return this.client;
+        }
+        return user;
+    }
+
+    /**
+     * Retrieves a shared user object by its id.
+     *
+     * @param id The id.
+     * @return The shared user object, or null if no user has this id.
+     * @see IRCUser#getId()
+     */
+    protected IRCUser getUser(final int id) {
+        final IRCUser[] usersById = this.usersById;
+        return (id > 0) && (id < usersById.length) ? usersById[id] : null;
+    }
+
+    /**
+     * Retrieves a shared channel object by its id.
+     *
+     * @param id The id.
+     * @return The shared channel object, or null if no channel has this id.
+     * @see IRCChannel#getId()
+     */
+    protected IRCChannel getChannel(final int id) {
+        final IRCChannel[] channelsById = this.channelsById;
+        return (id > 0) && (id < channelsById.length) ? channelsById[id] : null;
+    }
+
+    /**
+     * Gives the channels shared with a user. Other threads copy them
+     * optimistically and retry if the state changed meanwhile.
+     *
+     * @param IRCUser The shared user object.
+     * @return The shared channel objects.
+     */
+    protected IRCChannel[] getChannels(final IRCUser IRCUser) {
+        if (this.writer == Thread.currentThread()) {
+            return this.resolve(IRCUser.copyChannelIds());
+        }
+        while (true) {
+            final long stamp = this.versions.tryOptimisticRead();
+            if (stamp == 0) {
+                Thread.yield();
+                continue;
+            }
+            final IRCChannel[] channels = this.resolve(IRCUser.copyChannelIds());
+            if (this.versions.validate(stamp)) {
+                return channels;
+            }
+        }
+    }
+
+    /**
+     * Looks up shared channel objects by id.
+     *
+     * @param ids The channel ids.
+     * @return The channels, skipping ids no longer in use.
+     */
+    private IRCChannel[] resolve(final int[] ids) {
+        final IRCChannel[] channels = new IRCChannel[ids.length];
+        int count = 0;
+        for (final int id : ids) {
+            final IRCChannel channel = this.getChannel(id);
+            if (channel != null) {
+                channels[count++] = channel;
+            }
+        }
+        return count == channels.length ? channels : Arrays.copyOf(channels, count);
+    }
+
+    /**
+     * Drops the member tables of channels that were not used for a while,
+     * then of the least recently used channels until the estimated heap
+     * used by member tables fits in a budget.
+     *
+     * @param idleTime How long a channel may go unused, in milliseconds,
+     *                 or 0 to keep idle channels.
+     * @param budget   The budget in bytes, or 0 for no limit.
+     * @see #getMemoryEstimate()
+     */
+    protected void evictChannels(final long idleTime, final long budget) {
+        if ((idleTime <= 0) && (budget <= 0)) {
+            return;
+        }
+        this.beginWrite();
+        try {
+            final long now = System.currentTimeMillis();
+            final List<IRCChannel> kept = new ArrayList<>();
+            for (final IRCChannel channel : this.channels) {
+                if ((idleTime > 0) && ((now - channel.getLastAccess()) > idleTime)) {
+                    channel.evict();
+                } else if (channel.getMemoryEstimate() > 0) {
+                    kept.add(channel);
+                }
+            }
+            long bytes = budget > 0 ? this.getMemoryEstimate() : 0;
+            if (bytes <= budget) {
+                return;
+            }
+            // the access times change while sorting, so sort a copy
+            final long[] accessed = new long[kept.size()];
+            final Integer[] order = new Integer[kept.size()];
+            for (int i = 0; i < order.length; i++) {
+                accessed[i] = kept.get(i).getLastAccess();
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> Long.compare(accessed[a], accessed[b]));
+            for (int i = 0; (i < order.length) && (bytes > budget); i++) {
+                final IRCChannel channel = kept.get(order[i]);
+                bytes -= channel.getMemoryEstimate();
+                channel.evict();
+            }
+        } finally {
+            this.endWrite();
+        }
+    }
+
+    /**
+     * Gives an estimate of the heap used to store the members of all
+     * channels, not counting the user objects themselves.
+     *
+     * @return The estimated size in bytes.
+     * @see IRCChannel#getMemoryEstimate()
+     */
+    public long getMemoryEstimate() {
+        long bytes = 16 + (4L * this.usersById.length);
+        for (final IRCChannel channel : this.channels) {
+            bytes += channel.getMemoryEstimate();
+        }
+        return bytes;
+    }
+
+    /**
+     * Takes a consistent copy of all channels, their topics and members.
+     * The copy is taken without blocking the thread reading from the
+     * server: channels that did not change since the last snapshot are
+     * not copied again, and the copy is retried if the state changed
+     * meanwhile. If it keeps changing, the last snapshot published is
+     * returned instead, which is consistent but may miss the latest
+     * changes.
+     *
+     * @return The snapshot.
+     */
+    public IRCStateSnapshot getSnapshot() {
+        if (this.writer == Thread.currentThread()) {
+            // called from within a change, which no other thread can make
+            return this.takeSnapshot(this.version, new ArrayList<>());
+        }
+        for (int attempt = 0; ; attempt++) {
+            final IRCStateSnapshot cached = this.snapshot;
+            if ((attempt >= 4) && (cached != null)) {
+                return cached;
+            }
+            final long stamp = this.versions.tryOptimisticRead();
+            if (stamp == 0) {
+                Thread.yield();
+                continue;
+            }
+            final long version = this.version;
+            if ((cached != null) && (cached.getVersion() == version) && this.versions.validate(stamp)) {
+                return cached;
+            }
+            final List<IRCChannel> sources = new ArrayList<>();
+            IRCStateSnapshot result;
+            try {
+                result = this.takeSnapshot(version, sources);
+            } catch (final RuntimeException ex) {
+                // the state changed under the copy
+                result = null;
+            }
+            if ((result != null) && this.versions.validate(stamp)) {
+                return this.publish(result, sources);
+            }
+        }
+    }
+
+    /**
+     * Copies all channels, reusing unchanged channel copies.
+     *
+     * @param version The version of the state.
+     * @param sources Receives the channels copied, in order.
+     * @return The snapshot, which must be validated before it is used.
+     */
+    private IRCStateSnapshot takeSnapshot(final long version, final List<IRCChannel> sources) {
+        final List<IRCChannelSnapshot> channels = new ArrayList<>(this.channels.size());
+        for (final IRCChannel channel : this.channels) {
+            channels.add(channel.takeSnapshot(version));
+            sources.add(channel);
+        }
+        return new IRCStateSnapshot(channels, this.users.getCaseMapping(), this.users.size(), version);
+    }
+
+    /**
+     * Remembers a validated snapshot, and its channel copies for the
+     * next snapshot.
+     *
+     * @param snapshot The snapshot.
+     * @param sources  The channels copied, in order.
+     * @return The snapshot.
+     */
+    private IRCStateSnapshot publish(final IRCStateSnapshot snapshot, final List<IRCChannel> sources) {
+        for (int i = 0; i < sources.size(); i++) {
+            sources.get(i).setSnapshot(snapshot.getChannels().get(i));
+        }
+        // readers racing to publish should not put back an older snapshot
+        final IRCStateSnapshot published = this.snapshot;
+        if ((published == null) || (published.getVersion() <= snapshot.getVersion())) {
+            this.snapshot = snapshot;
+        }
+        return snapshot;
+    }
+
+    /**
+     * Gives the number of write sections started so far. Other threads
+     * only get a meaningful value within a validated read.
+     *
+     * @return The version of the state.
+     * @see #beginWrite()
+     */
+    protected long getVersion() {
+        return this.version;
+    }
+
+    /**
+     * Gives the number of shared user objects.
+     *
+     * @return The number of known users, not counting the local user.
+     */
+    public int getUserCount() {
+        return this.users.size();
+    }
+
+    /**
+     * Removes a shared user object if the user no longer shares a
+     * channel with us.
+     *
+     * @param IRCUser The user to release.
+     */
+    protected void releaseUser(final IRCUser IRCUser) {
+        if (IRCUser.getChannelCount() == 0) {
+            this.removeUser(IRCUser);
+        }
+    }
+
+    /**
+     * Removes a shared user object, for example after the user quit.
+     *
+     * @param IRCUser The user to remove.
+     */
+    protected void removeUser(final IRCUser IRCUser) {
+        this.beginWrite();
+        try {
+            if ((IRCUser.getNick() != null) && (this.users.get(IRCUser.getNick()) == IRCUser)) {
+                this.users.remove(IRCUser.getNick());
+                this.unregister(IRCUser);
+            }
+        } finally {
+            this.endWrite();
+        }
+    }
+
+    /**
+     * Changes the nickname of a user, keeping its shared user object.
+     *
+     * @param IRCUser The user.
+     * @param nick    The new nickname.
+     */
+    protected void renameUser(final IRCUser IRCUser, final String nick) {
+        this.beginWrite();
+        try {
+            if ((IRCUser.getNick() != null) && (this.users.get(IRCUser.getNick()) == IRCUser)) {
+                this.users.remove(IRCUser.getNick());
+                IRCUser.setNick(nick);
+                this.users.put(IRCUser.getNick(), IRCUser);
+            } else {
+                IRCUser.setNick(nick);
+            }
+            // channels list members by nickname in their snapshots
+            for (final IRCChannel channel : IRCUser.getChannelArray()) {
+                channel.touch();
+            }
+        } finally {
+            this.endWrite();
         }
-        return null;
     }
 
     /**
@@ -126,15 +704,31 @@ public final class IRCClientState {
      * @param name The name of this channel.
      * @return True if the channel is in the list, false otherwise.
      */
-    protected boolean hasChannel(final String name) {
-        return name != null && this.channels.containsKey(name.toLowerCase());
+    protected boolean hasChannel(final CharSequence name) {
+        return name != null && this.channels.containsKey(name);
     }
 
     /**
      * Remove all channels from the channel map.
      */
     protected void removeAll() {
-        this.channels.clear();
+        this.beginWrite();
+        try {
+            for (final IRCChannel channel : this.channels) {
+                this.unregister(channel);
+            }
+            this.channels.clear();
+            for (final IRCUser user : this.users) {
+                this.unregister(user);
+            }
+            if (this.client != null) {
+                this.client.clearChannels();
+            }
+            this.users.clear();
+            this.namesBursts.clear();
+        } finally {
+            this.endWrite();
+        }
     }
 
     /**
@@ -142,9 +736,21 @@ public final class IRCClientState {
      *
      * @param channel The channel name.
      */
-    protected void removeChannel(final String channel) {
-        if (channel != null && this.channels.containsKey(channel.toLowerCase())) {
-            this.channels.remove(channel.toLowerCase());
+    protected void removeChannel(final CharSequence channel) {
+        if (channel == null) {
+            return;
+        }
+        this.beginWrite();
+        try {
+            final IRCChannel removed = this.channels.remove(channel);
+            if (removed != null) {
+                this.namesBursts.remove(channel);
+                // forget users we no longer share a channel with
+                removed.removeUsers();
+                this.unregister(removed);
+            }
+        } finally {
+            this.endWrite();
         }
     }
 }
@@ -0,0 +1,30 @@
+package net.d4rkfly3r.irc.azmate.lib;
+
+/**
+ * Recognises queued lines that have the same effect when sent more than
+ * once.
+ * <p>
+ * While a line is waiting in the outgoing message queue, lines with the
+ * same key are not queued again. By default queries like {@code NAMES},
+ * {@code WHO}, {@code MODE} and {@code TOPIC} are collapsed, other rules
+ * can be set using
+ * {@link IRCConnection#setCoalescingRule(IRCCoalescingRule)}.
+ * </p>
+ *
+ * @see IRCQueryCoalescingRule
+ * @see IRCOutputStatistics#getSuppressed()
+ */
+public interface IRCCoalescingRule {
+
+    /**
+     * Gives the key identifying lines with the same effect as given line.
+     * Called for every line added to the message queue, so lines that are
+     * not idempotent should be rejected quickly.
+     *
+     * @param line        The raw line, without CR-LF.
+     * @param caseMapping The case mapping of the server, to compare
+     *                    channel names and nicknames with.
+     * @return The key, or {@code null} if the line must always be sent.
+     */
+    String key(String line, IRCCaseMapping caseMapping);
+}
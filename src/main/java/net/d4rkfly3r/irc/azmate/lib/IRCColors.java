@@ -66,6 +66,14 @@ public final class IRCColors {
      * Color number: Green
      */
     public static final int GREEN = 9;
+    /**
+     * Indicator: Hex color code
+     */
+    public static final String HEX_COLOR = "\u0004";
+    /**
+     * Indicator: Italic text
+     */
+    public static final String ITALIC = "\u001d";
     /**
      * Color number: Light Grey
      */
@@ -74,6 +82,10 @@ public final class IRCColors {
      * Color number: Magenta
      */
     public static final int MAGENTA = 13;
+    /**
+     * Indicator: Monospace text
+     */
+    public static final String MONOSPACE = "\u0011";
     /**
      * Color number: Olive
      */
@@ -94,6 +106,10 @@ public final class IRCColors {
      * Indicator: Reversed text
      */
     public static final String REVERSE = "\u0016";
+    /**
+     * Indicator: Strikethrough text
+     */
+    public static final String STRIKETHROUGH = "\u001e";
     /**
      * Color number: Teal
      */
@@ -141,63 +157,112 @@ public final class IRCColors {
     }
 
     /**
-     * Removes all color codes and markup from given text.
+     * Removes all color codes and markup from given text. Text without
+     * any markup is returned as is, without copying it.
      *
      * @param input Text to clear.
      * @return Given text without markup.
      */
     protected static String remove(final String input) {
-        return IRCColors.remove(new StringBuffer(input)).toString();
+        final int length = input.length();
+        int i = 0;
+        while ((i < length) && !IRCColors.isMarkup(input.charAt(i))) {
+            i++;
+        }
+        if (i == length) {
+            return input;
+        }
+        final StringBuilder buf = new StringBuilder(length);
+        int run = 0;
+        while (i < length) {
+            final char c = input.charAt(i);
+            if (!IRCColors.isMarkup(c)) {
+                i++;
+                continue;
+            }
+            // copy the text before this control character
+            buf.append(input, run, i);
+            i++;
+            if (c == '\u0003') {
+                // (format: <colorIndicator><int>[<int>][,<int>[<int>]])
+                i = IRCColors.skipColor(input, i, length, 2, false);
+            } else if (c == '\u0004') {
+                // (format: <hexIndicator><RRGGBB>[,<RRGGBB>])
+                i = IRCColors.skipColor(input, i, length, 6, true);
+            }
+            run = i;
+        }
+        buf.append(input, run, length);
+        return buf.toString();
     }
 
     /**
-     * Removes all color codes and markup from given text.
+     * Checks whether given character starts markup.
      *
-     * @param buf input Text to clear.
-     * @return Given text without markup.
+     * @param c The character to check.
+     * @return True for bold, color, hex color, reset, monospace, reverse,
+     * italic, strikethrough and underline indicators.
      */
-    private static StringBuffer remove(StringBuffer buf) {
-        int len = buf.length();
-        for (int i = 0, j = 0, c; i < len; i++, j = i) {
-            c = buf.charAt(i);
-            try {
-                // COLORS Beginning
-                // (format:
-                // <colorIndicator><int>[<int>][[,<int>[<int>]]
-                if (c == 3) {
-                    c = buf.charAt(++j);
-                    if (('0' <= c) && (c <= '9')) { // first int
-                        c = buf.charAt(++j);
-                        if (('0' <= c) && (c <= '9')) {
-                            c = buf.charAt(++j); // second int
-                        }
-                    }
-                    if (c == ',') {
-                        c = buf.charAt(++j); // comma
-                    }
-                    if (('0' <= c) && (c <= '9')) { // first int
-                        c = buf.charAt(++j);
-                        if (('0' <= c) && (c <= '9')) {
-                            c = buf.charAt(++j); // second int
-                        }
-                    }
-                    // CTCP / BOLD / UNDERLINE / COLOR END
-                    // (format: <ctcpDelimiter> / <boldIndicator>
-                    // etc.)
-                } else if ((c == 31) || (c == 2) || (c == 15) || (c == 22)) {
-                    j++;
-                }
-            } catch (final StringIndexOutOfBoundsException exc) {
-                // we got the end of the string with a call to
-                // charAt(++iIndexEnd)
-                // nothing
-            }
-            if (j > i) {
-                buf = buf.delete(i, j); // remove the cars
-                len -= (j - i);
-                i--;
+    private static boolean isMarkup(final char c) {
+        switch (c) {
+            case '\u0002':
+            case '\u0003':
+            case '\u0004':
+            case '\u000f':
+            case '\u0011':
+            case '\u0016':
+            case '\u001d':
+            case '\u001e':
+            case '\u001f':
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Skips the foreground and optional background color following a
+     * color indicator.
+     *
+     * @param input  The text.
+     * @param from   Position right after the color indicator.
+     * @param length Length of the text.
+     * @param digits Maximum number of digits per color.
+     * @param hex    Whether colors are hexadecimal (and need all digits).
+     * @return Position after the color codes.
+     */
+    private static int skipColor(final String input, final int from, final int length, final int digits, final boolean hex) {
+        int i = IRCColors.skipDigits(input, from, length, digits, hex);
+        if ((i == from) || (i >= length - 1) || (input.charAt(i) != ',')) {
+            return i;
+        }
+        // only a comma followed by a color belongs to the code
+        final int end = IRCColors.skipDigits(input, i + 1, length, digits, hex);
+        return end > (i + 1) ? end : i;
+    }
+
+    /**
+     * Skips a single color number.
+     *
+     * @param input  The text.
+     * @param from   Start of the color number.
+     * @param length Length of the text.
+     * @param digits Maximum number of digits.
+     * @param hex    Whether the number is hexadecimal (and needs all digits).
+     * @return Position after the color number, or {@code from} if there is none.
+     */
+    private static int skipDigits(final String input, final int from, final int length, final int digits, final boolean hex) {
+        int i = from;
+        while ((i < length) && ((i - from) < digits)) {
+            final char c = input.charAt(i);
+            if (!(('0' <= c) && (c <= '9')) && !(hex && ((('a' <= c) && (c <= 'f')) || (('A' <= c) && (c <= 'F'))))) {
+                break;
             }
+            i++;
+        }
+        if (hex && ((i - from) != digits)) {
+            return from;
         }
-        return buf;
+        return i;
     }
 }
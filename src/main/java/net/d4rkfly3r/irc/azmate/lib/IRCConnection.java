@@ -3,12 +3,19 @@ package net.d4rkfly3r.irc.azmate.lib;
 import javax.net.SocketFactory;
 import javax.net.ssl.SSLContext;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
 import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * Main IRC Connection class in sIRC.
@@ -32,6 +39,10 @@ public class IRCConnection {
      * End line character.
      */
     protected static final String ENDLINE = "\n";
+    /**
+     * Least time between evictions after a NAMES reply, in milliseconds.
+     */
+    private static final long EVICTION_INTERVAL = 1000;
     /**
      * The sIRC about string, used in CTCP
      */
@@ -40,6 +51,22 @@ public class IRCConnection {
      * IRC Client state.
      */
     private final IRCClientState state;
+    /**
+     * Parses received lines.
+     */
+    private final IRCParser parser = new IRCParser();
+    /**
+     * Features announced by the server.
+     */
+    private volatile IRCISupport isupport = new IRCISupport();
+    /**
+     * IRCv3 capabilities of the current connection.
+     */
+    private volatile IRCCapabilities capabilities = new IRCCapabilities();
+    /**
+     * IRCv3 capabilities to request, lowercase.
+     */
+    private final Set<String> wantedCapabilities = ConcurrentHashMap.newKeySet();
     /**
      * Connection OutputStream thread.
      */
@@ -52,10 +79,35 @@ public class IRCConnection {
      * Outgoing message delay. (Flood control)
      */
     private int messageDelay = 100;
+    /**
+     * Custom rate limiter, or {@code null} to use the message delay.
+     */
+    private IRCRateLimiter rateLimiter = null;
+    /**
+     * Recognises queued messages with the same effect, or {@code null}.
+     */
+    private IRCCoalescingRule coalescingRule = new IRCQueryCoalescingRule();
+    /**
+     * Maximum number of messages in the outgoing message queue.
+     */
+    private int queueCapacity = 1000;
+    /**
+     * What happens when sending while the outgoing message queue is full.
+     */
+    private IRCOverflowPolicy overflowPolicy = IRCOverflowPolicy.BLOCK;
     /**
      * Connection socket.
      */
     private Socket socket = null;
+    /**
+     * The event loop servicing this connection, or {@code null} to use
+     * blocking input and output threads.
+     */
+    private IRCEventLoop eventLoop = null;
+    /**
+     * Non-blocking session used while connected through an event loop.
+     */
+    private IRCSession session = null;
     /**
      * Custom version string.
      */
@@ -76,6 +128,64 @@ public class IRCConnection {
      * Whether to allow server redirection (bounce) or not.
      */
     private boolean bounceAllowed = false;
+    /**
+     * Whether to fire join and quit events for each user in a netsplit.
+     */
+    private volatile boolean netSplitUserEvents = true;
+    /**
+     * How much channels keep track of their members by default.
+     */
+    private volatile IRCTrackingPolicy trackingPolicy = IRCTrackingPolicy.FULL;
+    /**
+     * Tracking policies of single channels, by name in the case mapping
+     * of the state. Changes are synchronized on the map.
+     */
+    private final IRCNameMap<IRCTrackingPolicy> trackingPolicies = new IRCNameMap<>(4);
+    /**
+     * When channels were last evicted after a NAMES reply. Only used by
+     * the thread reading from the server.
+     */
+    private long lastEviction = 0;
+    /**
+     * How long a channel may go unused before its members are dropped, in
+     * milliseconds, or 0 to keep them.
+     */
+    private volatile long channelIdleTime = 0;
+    /**
+     * Estimated heap available to member tables in bytes, or 0 for no
+     * limit.
+     */
+    private volatile long memberBudget = 0;
+    /**
+     * Whether to fill in user information with WHO requests.
+     */
+    private volatile boolean whoSweep = true;
+    /**
+     * Time to live of user information by ordinal, in milliseconds.
+     */
+    private final AtomicLongArray userInfoTtls = new AtomicLongArray(IRCUserInfo.values().length);
+    /**
+     * Nicknames to try in order when the nickname is in use or invalid
+     * while registering.
+     */
+    private volatile String[] alternativeNicks = new String[0];
+    /**
+     * Number of alternative nicknames tried while registering.
+     */
+    private int nickAttempt = 0;
+    /**
+     * SASL mechanism to authenticate with while registering, or
+     * {@code null}.
+     */
+    private volatile String saslMechanism = null;
+    /**
+     * Account to authenticate as with SASL PLAIN.
+     */
+    private volatile String saslAccount = null;
+    /**
+     * Password to authenticate with using SASL PLAIN.
+     */
+    private volatile String saslPassword = null;
 
     /**
      * Creates a new IRCConnection object.
@@ -114,6 +224,10 @@ public class IRCConnection {
                          final String password) {
         this.server = new IRCServer(server, port, password, false);
         this.state = new IRCClientState();
+        for (final IRCUserInfo info : IRCUserInfo.values()) {
+            this.userInfoTtls.set(info.ordinal(), info.getDefaultTtl());
+        }
+        Collections.addAll(this.wantedCapabilities, IRCCapabilities.DEFAULTS);
     }
 
     /**
@@ -127,6 +241,53 @@ public class IRCConnection {
     }
 
 
+    /**
+     * Registers a handler for packets with given command. Handlers run
+     * on the input thread after the built-in handling of the command,
+     * which allows handling commands sIRC does not know about.
+     *
+     * @param command The command, like {@code PRIVMSG}.
+     * @param handler The handler to add.
+     * @see #removeCommandHandler(String, IRCPacketHandler)
+     */
+    public void addCommandHandler(final String command, final IRCPacketHandler handler) {
+        this.parser.addCommandHandler(command, handler);
+    }
+
+    /**
+     * Registers a handler for given numeric reply. Handlers run on the
+     * input thread after the built-in handling of the reply.
+     *
+     * @param numeric The three digit reply code.
+     * @param handler The handler to add.
+     * @see #removeNumericHandler(int, IRCPacketHandler)
+     */
+    public void addNumericHandler(final int numeric, final IRCPacketHandler handler) {
+        this.parser.addNumericHandler(numeric, handler);
+    }
+
+    /**
+     * Unregisters a handler added with
+     * {@link #addCommandHandler(String, IRCPacketHandler)}.
+     *
+     * @param command The command.
+     * @param handler The handler to remove.
+     */
+    public void removeCommandHandler(final String command, final IRCPacketHandler handler) {
+        this.parser.removeCommandHandler(command, handler);
+    }
+
+    /**
+     * Unregisters a handler added with
+     * {@link #addNumericHandler(int, IRCPacketHandler)}.
+     *
+     * @param numeric The three digit reply code.
+     * @param handler The handler to remove.
+     */
+    public void removeNumericHandler(final int numeric, final IRCPacketHandler handler) {
+        this.parser.removeNumericHandler(numeric, handler);
+    }
+
     /**
      * Sends the MOTD command to the server, which makes the server send us the
      * Message of the Day. (Through ServerListener)
@@ -147,6 +308,30 @@ public class IRCConnection {
         this.out.send(line);
     }
 
+    /**
+     * Send a raw command to the IRC server with given priority.
+     *
+     * @param line     The raw line to send.
+     * @param priority The priority in the outgoing message queue.
+     */
+    public void sendRaw(final String line, final IRCPriority priority) {
+        this.out.send(line, priority);
+    }
+
+    /**
+     * Send a raw command to the IRC server, unless the outgoing message
+     * queue is full. This never waits and never drops other messages, so
+     * senders can detect backpressure and slow down.
+     *
+     * @param line     The raw line to send.
+     * @param priority The priority in the outgoing message queue.
+     * @return True if the line was sent or queued, false if the queue is
+     * full.
+     */
+    public boolean trySendRaw(final String line, final IRCPriority priority) {
+        return this.out.trySend(line, priority);
+    }
+
     /**
      * Asks the userlist for a certain IRCChannel.
      *
@@ -161,6 +346,13 @@ public class IRCConnection {
      */
     private void close() {
         try {
+            if (this.session != null) {
+                // the event loop owns both directions of this connection
+                final IRCSession session = this.session;
+                this.session = null;
+                session.close();
+                return;
+            }
             this.in.interrupt();
             this.out.interrupt();
             // close input stream
@@ -204,7 +396,9 @@ public class IRCConnection {
      * @see #setNick(String)
      */
     public void connect(SSLContext sslctx) throws IOException, IRCNickNameException, IRCPasswordException {
-        if (this.server.isSecure()) {
+        if (this.eventLoop != null) {
+            this.connect(this.eventLoop);
+        } else if (this.server.isSecure()) {
             try {
                 if (sslctx == null)
                     sslctx = SSLContext.getDefault();
@@ -272,54 +466,24 @@ public class IRCConnection {
             reconnecting = false;
         }
         // open streams
-        this.out = new IRCOutput(this, new OutputStreamWriter(this.socket.getOutputStream(), this.charset));
-        this.in = new IRCInput(this, new InputStreamReader(this.socket.getInputStream(), this.charset));
-        if (!reconnecting) {
-            // send password if given
-            if (this.server.getPassword() != null) {
-                this.out.sendNowEx(IRCPacketFactory.createPASS(this.server
-                        .getPassword()));
-            }
-            this.out.sendNowEx(IRCPacketFactory.createUSER(this.state.getClient()
-                    .getUserName(), this.state.getClient().getNick()));
-        }
-        this.out.sendNowEx(IRCPacketFactory.createNICK(this.state.getClient()
-                .getNick()));
+        this.isupport = new IRCISupport();
+        this.capabilities = new IRCCapabilities();
+        this.state.setCaseMapping(this.isupport.getCaseMapping());
+        this.parser.reset();
+        this.nickAttempt = 0;
+        this.out = new IRCOutput(this, this.socket.getOutputStream());
+        this.in = new IRCInput(this, this.socket.getInputStream(), this.charset);
+        this.sendRegistration(!reconnecting);
         // wait for reply
         String line;
-        loop:
-        while ((line = this.in.getReader().readLine()) != null) {
-            IRCDebug.log(line);
-            final IRCPacket decoder = new IRCPacket(line, this);
-            if (decoder.isNumeric()) {
-                final int command = decoder.getNumericCommand();
-                switch (command) {
-                    case 1:
-                    case 2:
-                    case 3: {
-                        final String nick = decoder.getArgumentsArray()[0];
-                        if (!this.state.getClient().getNick().equals(nick))
-                            this.setNick(nick);
-                    }
-                    break;
-                    case 4: // login OK
-                        break loop;
-                    case 432:
-                    case 433: {
-                        // bad/in-use nickname nickname
-                        throw new IRCNickNameException("Nickname " + this.state.getClient().getNick() + " already in use or not allowed!");
-                    }
-                    case 464: {
-                        // wrong password
-                        this.disconnect();
-                        throw new IRCPasswordException("Invalid password");
-                    }
-                }
-            }
-            if (line.startsWith("PING ")) {
-                this.out.pong(line.substring(5));
+        while ((line = this.in.readLine()) != null) {
+            if (this.handshake(line)) {
+                break;
             }
         }
+        if (line == null) {
+            throw new IOException("Connection closed while registering!");
+        }
         // start listening
         this.in.start();
         this.out.start();
@@ -332,6 +496,227 @@ public class IRCConnection {
 //        }
     }
 
+    /**
+     * Connect to the IRC server using non-blocking I/O serviced by given
+     * event loop. No threads are created for this connection.
+     *
+     * @param eventLoop The event loop to register with.
+     * @throws IOException          When anything went wrong while connecting.
+     * @throws IRCNickNameException If the given nickname is already in use or invalid.
+     * @throws IRCPasswordException If the server password is incorrect.
+     */
+    private void connect(final IRCEventLoop eventLoop) throws IOException, IRCNickNameException, IRCPasswordException {
+        final IRCSession session = this.open(eventLoop);
+        // wait for reply
+        session.awaitRegistration();
+        // we are connected
+        this.setConnected(true);
+    }
+
+    /**
+     * Connects to the IRC server without blocking the calling thread. You
+     * must set the server details and nickname before calling this method!
+     * <p>
+     * With an event loop the connection is made and registered entirely
+     * on the event loop thread, which also completes the future; actions
+     * depending on it should not block. Without an event loop, a thread
+     * is started to connect with {@link #connect()}.
+     * </p>
+     *
+     * @return A future completed with this connection once the server
+     * accepted our registration, or completed exceptionally with the
+     * {@link IOException}, {@link IRCNickNameException} or
+     * {@link IRCPasswordException} {@link #connect()} would throw.
+     * @see #setEventLoop(IRCEventLoop)
+     * @see #setAlternativeNicks(String...)
+     */
+    public CompletableFuture<IRCConnection> connectAsync() {
+        final CompletableFuture<IRCConnection> future = new CompletableFuture<>();
+        if (this.eventLoop != null) {
+            try {
+                this.open(this.eventLoop).getRegistration().whenComplete((result, ex) -> {
+                    if (ex != null) {
+                        future.completeExceptionally(ex);
+                        return;
+                    }
+                    // we are connected
+                    this.setConnected(true);
+                    future.complete(this);
+                });
+            } catch (final IOException | IRCNickNameException ex) {
+                future.completeExceptionally(ex);
+            }
+            return future;
+        }
+        final Thread thread = new Thread(() -> {
+            try {
+                this.connect();
+                future.complete(this);
+            } catch (final Exception ex) {
+                future.completeExceptionally(ex);
+            }
+        }, "sIRC-CONNECT:" + this.server.getAddress());
+        thread.setDaemon(true);
+        thread.start();
+        return future;
+    }
+
+    /**
+     * Starts connecting to the IRC server using non-blocking I/O serviced
+     * by given event loop, and sends the whole registration at once. Only
+     * the domain name is resolved on the calling thread; the registration
+     * is written as soon as the connection is established.
+     *
+     * @param eventLoop The event loop to register with.
+     * @return The session, whose registration future completes once the
+     * server accepted our registration.
+     * @throws IOException          When anything went wrong while connecting.
+     * @throws IRCNickNameException If the nickname is empty.
+     */
+    private IRCSession open(final IRCEventLoop eventLoop) throws IOException, IRCNickNameException {
+        // check if a server is given
+        if ((this.server.getAddress() == null)) {
+            throw new IOException("Server address is not set!");
+        }
+        if (this.server.isSecure()) {
+            throw new IOException("SSL is not supported by the event loop!");
+        }
+        // don't even try if nickname is empty
+        if ((this.state.getClient() == null) || this.state.getClient().getNick().trim().equals("")) {
+            throw new IRCNickNameException("Nickname is empty or null!");
+        }
+        final InetSocketAddress address = new InetSocketAddress(this.server.getAddress(), this.server.getPort());
+        if (address.isUnresolved()) {
+            throw new UnknownHostException(this.server.getAddress());
+        }
+        final SocketChannel channel = SocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            // lines are already gathered into few writes, don't hold back the rest
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.connect(address);
+        } catch (final IOException ex) {
+            channel.close();
+            throw ex;
+        }
+        final IRCSession session = new IRCSession(this, channel);
+        this.session = session;
+        this.isupport = new IRCISupport();
+        this.capabilities = new IRCCapabilities();
+        this.state.setCaseMapping(this.isupport.getCaseMapping());
+        this.parser.reset();
+        this.nickAttempt = 0;
+        this.out = new IRCOutput(this, session);
+        this.in = null;
+        session.setOutput(this.out);
+        // queued until connected, then written together
+        this.sendRegistration(true);
+        try {
+            eventLoop.register(session);
+        } catch (final IOException ex) {
+            this.session = null;
+            channel.close();
+            throw ex;
+        }
+        return session;
+    }
+
+    /**
+     * Sends all lines needed to register with the server, without waiting
+     * for replies in between.
+     *
+     * @param full False to only send the nickname, when reusing a socket.
+     * @throws IOException If anything goes wrong while sending.
+     */
+    private void sendRegistration(final boolean full) throws IOException {
+        if (full) {
+            // the server holds registration until CAP END
+            this.capabilities.start(this);
+            // send password if given
+            if (this.server.getPassword() != null) {
+                this.out.sendNowEx(IRCPacketFactory.createPASS(this.server.getPassword()));
+            }
+            this.out.sendNowEx(IRCPacketFactory.createUSER(this.state.getClient().getUserName(),
+                    this.state.getClient().getNick()));
+        }
+        this.out.sendNowEx(IRCPacketFactory.createNICK(this.state.getClient().getNick()));
+    }
+
+    /**
+     * Handles a line received while registering with the server.
+     *
+     * @param line The raw line.
+     * @return True once the server accepted our registration.
+     * @throws IRCNickNameException If the given nickname is already in use or invalid.
+     * @throws IRCPasswordException If the server password is incorrect.
+     */
+    protected boolean handshake(final String line) throws IRCNickNameException, IRCPasswordException {
+        IRCDebug.log(line);
+        final IRCPacket decoder = new IRCPacket(line, this);
+        if (decoder.isCommand("CAP")) {
+            this.capabilities.parse(this, decoder);
+            return false;
+        }
+        if (decoder.isCommand("AUTHENTICATE")) {
+            this.capabilities.authenticate(this, decoder);
+            return false;
+        }
+        if (decoder.isNumeric()) {
+            final int command = decoder.getNumericCommand();
+            switch (command) {
+                case 1:
+                case 2:
+                case 3: {
+                    final String nick = decoder.getArgumentsArray()[0];
+                    if (!this.state.getClient().getNick().equals(nick))
+                        this.setNick(nick);
+                }
+                break;
+                case 4: // login OK
+                    return true;
+                case 432:
+                case 433: {
+                    // bad/in-use nickname nickname, try the next one right away
+                    final String[] alternatives = this.alternativeNicks;
+                    if (this.nickAttempt >= alternatives.length) {
+                        throw new IRCNickNameException("Nickname " + this.state.getClient().getNick() + " already in use or not allowed!");
+                    }
+                    final String nick = alternatives[this.nickAttempt++];
+                    this.state.getClient().setNick(nick);
+                    this.out.sendNow(IRCPacketFactory.createNICK(nick));
+                }
+                break;
+                case IRCPacket.RPL_LOGGEDIN:
+                case IRCPacket.ERR_NICKLOCKED:
+                case IRCPacket.RPL_SASLSUCCESS:
+                case IRCPacket.ERR_SASLFAIL:
+                case IRCPacket.ERR_SASLTOOLONG:
+                case IRCPacket.ERR_SASLABORTED:
+                case IRCPacket.ERR_SASLALREADY:
+                    this.capabilities.authenticated(this, decoder);
+                    break;
+                case IRCPacket.ERR_UNKNOWNCOMMAND:
+                    // servers without capabilities register right away
+                    if ((decoder.getArgumentsArray() != null) && (decoder.getArgumentsArray().length >= 2)
+                            && "CAP".equalsIgnoreCase(decoder.getArgumentsArray()[1])) {
+                        this.capabilities.abort();
+                    }
+                    break;
+                case 464: {
+                    // wrong password, the event loop closes the session itself
+                    if (this.session == null) {
+                        this.disconnect();
+                    }
+                    throw new IRCPasswordException("Invalid password");
+                }
+            }
+        }
+        if (line.startsWith("PING ")) {
+            this.out.pong(line.substring(5));
+        }
+        return false;
+    }
+
     /**
      * Creates a {@link IRCChannel} object with given channel name. Note that this
      * method does not actually create a channel on the IRC server, it just
@@ -344,7 +729,7 @@ public class IRCConnection {
      * @see IRCChannel#isGlobal()
      */
     public IRCChannel createChannel(String name) {
-        if (IRCChannel.CHANNEL_PREFIX.indexOf(name.charAt(0)) < 0) {
+        if (!this.isupport.isChannel(name)) {
             name = "#" + name;
         }
         if (this.getState().hasChannel(name)) {
@@ -355,15 +740,18 @@ public class IRCConnection {
     }
 
     /**
-     * Creates a {@link IRCUser} object with given nickname. This will create a
-     * {@link IRCUser} object without any information about modes.
+     * Creates a {@link IRCUser} object with given nickname. If the user shares
+     * a channel with us, the shared {@link IRCUser} object is returned.
+     * Otherwise this will create a {@link IRCUser} object without any
+     * information about modes.
      *
      * @param nick The nickname.
      * @return A {@code IRCUser} object representing given user.
      * @see IRCUser#IRCUser(String, IRCConnection)
      */
     public IRCUser createUser(final String nick) {
-        return new IRCUser(nick, this);
+        final IRCUser shared = this.state.getUser(nick);
+        return shared != null ? shared : new IRCUser(nick, this);
     }
 
     /**
@@ -378,12 +766,9 @@ public class IRCConnection {
      */
     public IRCUser createUser(final String nick, final String channel) {
         final IRCUser empty = this.createUser(nick);
-        if (this.getState().hasChannel(channel)
-                && this.getState().getChannel(channel).hasUser(nick)) {
-            return this.getState().getChannel(channel).getUser(nick);
-        } else {
-            return empty;
-        }
+        final IRCChannel shared = this.getState().getChannel(channel);
+        final IRCUser user = (shared != null) && shared.isGlobal() ? shared.getUser(nick) : null;
+        return user != null ? user : empty;
     }
 
     /**
@@ -451,6 +836,44 @@ public class IRCConnection {
         return this.state.getClient();
     }
 
+    /**
+     * Returns the event loop servicing this connection.
+     *
+     * @return The event loop, or {@code null} if blocking input and
+     * output threads are used.
+     */
+    public IRCEventLoop getEventLoop() {
+        return this.eventLoop;
+    }
+
+    /**
+     * Sets the event loop to service this connection with. Connections
+     * sharing an event loop do not need threads of their own, which
+     * makes it the preferred choice for many simultaneous connections.
+     * Use {@code null} (the default) for dedicated blocking input and
+     * output threads. This property can only be changed while sIRC is
+     * not connected to an IRC server.
+     *
+     * @param eventLoop The event loop to use, or {@code null}.
+     * @see IRCEventLoop#getDefault()
+     */
+    public void setEventLoop(final IRCEventLoop eventLoop) {
+        if (!this.isConnected()) {
+            this.eventLoop = eventLoop;
+        }
+    }
+
+    /**
+     * Returns the features announced by the IRC server, like the
+     * privilege prefixes and channel modes it uses. Features not
+     * announced (yet) have their RFC defaults.
+     *
+     * @return The server features.
+     */
+    public IRCISupport getISupport() {
+        return this.isupport;
+    }
+
     /**
      * Returns the outgoing message delay in milliseconds.
      *
@@ -463,7 +886,9 @@ public class IRCConnection {
     /**
      * Sets the outgoing message delay in milliseconds. Note that sending a lot
      * of messages in a short period of time might cause the server to
-     * disconnect you. The default is 1 message each 100ms.
+     * disconnect you. The default is 1 message each 100ms. The delay is
+     * only used if no rate limiter was set; a delay of 0 sends messages
+     * immediately, without using the message queue.
      *
      * @param messageDelay The outgoing message delay in milliseconds.
      */
@@ -476,6 +901,113 @@ public class IRCConnection {
     }
 
 
+    /**
+     * Returns the rule recognising queued messages with the same effect.
+     *
+     * @return The coalescing rule, or {@code null} if all messages are
+     * queued.
+     */
+    public IRCCoalescingRule getCoalescingRule() {
+        return this.coalescingRule;
+    }
+
+    /**
+     * Sets the rule recognising queued messages with the same effect.
+     * Messages are not queued while one with the same effect is waiting.
+     * Can be changed at any time.
+     *
+     * @param coalescingRule The coalescing rule, or {@code null} to queue
+     *                       all messages.
+     * @see IRCQueryCoalescingRule
+     */
+    public void setCoalescingRule(final IRCCoalescingRule coalescingRule) {
+        this.coalescingRule = coalescingRule;
+    }
+
+    /**
+     * Returns the custom rate limiter deciding when queued messages are
+     * sent.
+     *
+     * @return The rate limiter, or {@code null} if the message delay is
+     * used.
+     * @see #getMessageDelay()
+     */
+    public IRCRateLimiter getRateLimiter() {
+        return this.rateLimiter;
+    }
+
+    /**
+     * Sets a custom rate limiter deciding when queued messages are sent,
+     * replacing the fixed message delay. Can be changed at any time.
+     *
+     * @param rateLimiter The rate limiter, or {@code null} to use the
+     *                    message delay.
+     * @see IRCTokenBucketLimiter
+     * @see IRCPenaltyLimiter
+     * @see IRCAdaptiveLimiter
+     */
+    public void setRateLimiter(final IRCRateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    /**
+     * Returns the maximum number of messages in the outgoing message
+     * queue.
+     *
+     * @return The queue capacity.
+     */
+    public int getQueueCapacity() {
+        return this.queueCapacity;
+    }
+
+    /**
+     * Sets the maximum number of messages in the outgoing message queue.
+     * The default is 1000.
+     *
+     * @param queueCapacity The queue capacity.
+     * @see #setOverflowPolicy(IRCOverflowPolicy)
+     */
+    public void setQueueCapacity(final int queueCapacity) {
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("Queue capacity must be positive!");
+        }
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Returns what happens when sending while the outgoing message queue
+     * is full.
+     *
+     * @return The overflow policy.
+     */
+    public IRCOverflowPolicy getOverflowPolicy() {
+        return this.overflowPolicy;
+    }
+
+    /**
+     * Sets what happens when sending while the outgoing message queue is
+     * full. The default is {@link IRCOverflowPolicy#BLOCK}.
+     *
+     * @param overflowPolicy The overflow policy.
+     */
+    public void setOverflowPolicy(final IRCOverflowPolicy overflowPolicy) {
+        if (overflowPolicy == null) {
+            throw new IllegalArgumentException("Overflow policy can't be null!");
+        }
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Creates a snapshot of the outgoing traffic since connecting:
+     * throughput, latency of queued messages and flood complaints.
+     *
+     * @return The statistics, or {@code null} if never connected.
+     */
+    public IRCOutputStatistics getOutputStatistics() {
+        final IRCOutput output = this.out;
+        return output != null ? output.getStatistics() : null;
+    }
+
     /**
      * Returns the output thread used for sending messages through this
      * {@code IRCConnection}.
@@ -486,6 +1018,16 @@ public class IRCConnection {
         return this.out;
     }
 
+    /**
+     * Returns the parser handling lines received by this
+     * {@code IRCConnection}.
+     *
+     * @return The parser.
+     */
+    protected IRCParser getParser() {
+        return this.parser;
+    }
+
     /**
      * Returns the server this {@code IRCConnection} connects to.
      *
@@ -603,6 +1145,381 @@ public class IRCConnection {
         this.bounceAllowed = bounceAllowed;
     }
 
+    /**
+     * Returns whether join and quit events are fired for each user in a
+     * netsplit.
+     *
+     * @return {@code true} if they are fired, {@code false} if only the
+     * netsplit and netjoin events are.
+     */
+    public boolean isNetSplitUserEvents() {
+        return this.netSplitUserEvents;
+    }
+
+    /**
+     * Sets whether join and quit events are fired for each user in a
+     * netsplit. A {@link net.d4rkfly3r.irc.azmate.plugins.events.NetSplitEvent}
+     * and {@link net.d4rkfly3r.irc.azmate.plugins.events.NetJoinEvent} are
+     * always fired, listing all users at once.
+     *
+     * @param netSplitUserEvents {@code true} to fire them, {@code false}
+     *                           otherwise.
+     */
+    public void setNetSplitUserEvents(final boolean netSplitUserEvents) {
+        this.netSplitUserEvents = netSplitUserEvents;
+    }
+
+    /**
+     * Returns how much channels keep track of their members, unless set
+     * for a single channel.
+     *
+     * @return The tracking policy.
+     */
+    public IRCTrackingPolicy getTrackingPolicy() {
+        return this.trackingPolicy;
+    }
+
+    /**
+     * Sets how much channels joined from now on keep track of their
+     * members, unless set for a single channel.
+     *
+     * @param trackingPolicy The tracking policy.
+     */
+    public void setTrackingPolicy(final IRCTrackingPolicy trackingPolicy) {
+        if (trackingPolicy == null) {
+            throw new IllegalArgumentException("Tracking policy can't be null!");
+        }
+        this.trackingPolicy = trackingPolicy;
+    }
+
+    /**
+     * Returns how much a channel keeps track of its members.
+     *
+     * @param channel The channel name.
+     * @return The tracking policy of the channel.
+     */
+    public IRCTrackingPolicy getTrackingPolicy(final String channel) {
+        final IRCTrackingPolicy trackingPolicy = channel != null ? this.getTrackingPolicies().get(channel) : null;
+        return trackingPolicy != null ? trackingPolicy : this.trackingPolicy;
+    }
+
+    /**
+     * Gives the tracking policies of single channels, rehashed if the
+     * server announced another case mapping since they were stored.
+     *
+     * @return The tracking policies by channel name.
+     */
+    private IRCNameMap<IRCTrackingPolicy> getTrackingPolicies() {
+        final IRCCaseMapping caseMapping = this.getState().getCaseMapping();
+        if (this.trackingPolicies.getCaseMapping() != caseMapping) {
+            synchronized (this.trackingPolicies) {
+                this.trackingPolicies.setCaseMapping(caseMapping);
+            }
+        }
+        return this.trackingPolicies;
+    }
+
+    /**
+     * Sets how much a channel keeps track of its members, also if the
+     * channel is joined later.
+     *
+     * @param channel        The channel name.
+     * @param trackingPolicy The tracking policy, or {@code null} to use
+     *                       the default again.
+     * @see IRCChannel#setTrackingPolicy(IRCTrackingPolicy)
+     */
+    public void setTrackingPolicy(final String channel, final IRCTrackingPolicy trackingPolicy) {
+        if (channel == null) {
+            throw new IllegalArgumentException("Channel name can't be null!");
+        }
+        final IRCNameMap<IRCTrackingPolicy> trackingPolicies = this.getTrackingPolicies();
+        synchronized (trackingPolicies) {
+            if (trackingPolicy == null) {
+                trackingPolicies.remove(channel);
+            } else {
+                trackingPolicies.put(channel, trackingPolicy);
+            }
+        }
+        final IRCChannel ircChannel = this.getState().getChannel(channel);
+        if (ircChannel != null) {
+            ircChannel.setTrackingPolicy(this.getTrackingPolicy(channel));
+        }
+    }
+
+    /**
+     * Returns how long a channel may go unused before its members are
+     * dropped.
+     *
+     * @return The idle time in milliseconds, or 0 if members are kept.
+     */
+    public long getChannelIdleTime() {
+        return this.channelIdleTime;
+    }
+
+    /**
+     * Sets how long a channel may go unused before its members are
+     * dropped. A channel is used when its members are asked for; they
+     * are requested from the server again the next time they are. The
+     * count of a channel that only counts its members is refreshed after
+     * this time too.
+     *
+     * @param channelIdleTime The idle time in milliseconds, or 0 to keep
+     *                        members.
+     */
+    public void setChannelIdleTime(final long channelIdleTime) {
+        if (channelIdleTime < 0) {
+            throw new IllegalArgumentException("Channel idle time can't be negative!");
+        }
+        this.channelIdleTime = channelIdleTime;
+    }
+
+    /**
+     * Returns the estimated heap available to member tables.
+     *
+     * @return The budget in bytes, or 0 for no limit.
+     * @see IRCClientState#getMemoryEstimate()
+     */
+    public long getMemberBudget() {
+        return this.memberBudget;
+    }
+
+    /**
+     * Sets the estimated heap available to member tables. Above it, the
+     * members of the least recently used channels are dropped until the
+     * estimate fits, and requested from the server again when needed.
+     *
+     * @param memberBudget The budget in bytes, or 0 for no limit.
+     * @see IRCClientState#getMemoryEstimate()
+     */
+    public void setMemberBudget(final long memberBudget) {
+        if (memberBudget < 0) {
+            throw new IllegalArgumentException("Member budget can't be negative!");
+        }
+        this.memberBudget = memberBudget;
+    }
+
+    /**
+     * Gives the nicknames tried when the nickname is in use or invalid
+     * while registering.
+     *
+     * @return A copy of the alternative nicknames, in order.
+     */
+    public String[] getAlternativeNicks() {
+        return this.alternativeNicks.clone();
+    }
+
+    /**
+     * Sets the nicknames to try, in order, when the nickname is in use or
+     * invalid while registering. Each is sent as soon as the previous one
+     * was refused, without connecting again; only when all were refused
+     * does connecting fail with an {@link IRCNickNameException}.
+     *
+     * @param nicks The alternative nicknames, possibly none.
+     */
+    public void setAlternativeNicks(final String... nicks) {
+        for (final String nick : nicks) {
+            if ((nick == null) || nick.trim().isEmpty() || (nick.indexOf(' ') >= 0)) {
+                throw new IllegalArgumentException("Invalid alternative nickname: " + nick);
+            }
+        }
+        this.alternativeNicks = nicks.clone();
+    }
+
+    /**
+     * Gives the SASL mechanism used to authenticate while registering.
+     *
+     * @return {@code PLAIN}, {@code EXTERNAL}, or {@code null} if SASL is
+     * not used.
+     */
+    public String getSaslMechanism() {
+        return this.saslMechanism;
+    }
+
+    /**
+     * Authenticates with an account and password using SASL PLAIN while
+     * registering, from the next connection on. The SASL requests are
+     * sent along with the rest of the registration; if the server refuses
+     * them, the connection registers without being logged in.
+     *
+     * @param account  The account name, or {@code null} to not use SASL.
+     * @param password The account password.
+     * @see IRCCapabilities#isSaslAuthenticated()
+     */
+    public void setSaslPlain(final String account, final String password) {
+        if (account == null) {
+            this.saslMechanism = null;
+            this.saslAccount = null;
+            this.saslPassword = null;
+            return;
+        }
+        if (password == null) {
+            throw new IllegalArgumentException("SASL PLAIN needs a password!");
+        }
+        this.saslAccount = account;
+        this.saslPassword = password;
+        this.saslMechanism = "PLAIN";
+    }
+
+    /**
+     * Authenticates with the client certificate using SASL EXTERNAL while
+     * registering, from the next connection on.
+     *
+     * @see IRCCapabilities#isSaslAuthenticated()
+     */
+    public void setSaslExternal() {
+        this.saslAccount = null;
+        this.saslPassword = null;
+        this.saslMechanism = "EXTERNAL";
+    }
+
+    /**
+     * Gives the account to authenticate as with SASL PLAIN.
+     *
+     * @return The account, or {@code null}.
+     */
+    protected String getSaslAccount() {
+        return this.saslAccount;
+    }
+
+    /**
+     * Gives the password to authenticate with using SASL PLAIN.
+     *
+     * @return The password, or {@code null}.
+     */
+    protected String getSaslPassword() {
+        return this.saslPassword;
+    }
+
+    /**
+     * Gives the IRCv3 capabilities offered by the server and enabled for
+     * the current connection.
+     *
+     * @return The capabilities.
+     */
+    public IRCCapabilities getCapabilities() {
+        return this.capabilities;
+    }
+
+    /**
+     * Checks whether an IRCv3 capability is requested when the server
+     * offers it.
+     *
+     * @param capability The capability name.
+     * @return True if the capability is requested.
+     */
+    public boolean isCapabilityWanted(final String capability) {
+        return this.wantedCapabilities.contains(capability.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Sets whether an IRCv3 capability is requested when the server
+     * offers it, from the next connection on. Capabilities understood by
+     * sIRC are requested by default; {@code echo-message} is not, since
+     * plugins would receive the messages they sent themselves.
+     *
+     * @param capability The capability name, like {@code away-notify}.
+     * @param wanted     {@code true} to request it, {@code false}
+     *                   otherwise.
+     */
+    public void setCapabilityWanted(final String capability, final boolean wanted) {
+        if (wanted) {
+            this.wantedCapabilities.add(capability.toLowerCase(Locale.ROOT));
+        } else {
+            this.wantedCapabilities.remove(capability.toLowerCase(Locale.ROOT));
+        }
+    }
+
+    /**
+     * Checks whether the server keeps user information up to date with
+     * notifications, so it never needs to be asked for again once known.
+     *
+     * @param info The kind of information.
+     * @return True if the enabled capabilities report all changes.
+     */
+    protected boolean isUserInfoLive(final IRCUserInfo info) {
+        final IRCCapabilities capabilities = this.capabilities;
+        switch (info) {
+            case HOST:
+                return capabilities.isEnabled("chghost");
+            case ACCOUNT:
+                return capabilities.isEnabled("account-notify") && capabilities.isEnabled("extended-join");
+            case AWAY:
+                return capabilities.isEnabled("away-notify");
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Returns whether the usernames, hostnames, accounts and away states
+     * of channel members are filled in with WHO requests.
+     *
+     * @return {@code true} if channels are swept, {@code false}
+     * otherwise.
+     */
+    public boolean isWhoSweep() {
+        return this.whoSweep;
+    }
+
+    /**
+     * Sets whether the usernames, hostnames, accounts and away states of
+     * channel members are filled in with WHO requests. Each channel is
+     * swept with a single request after joining and again when the
+     * information expired, one channel at a time.
+     *
+     * @param whoSweep {@code true} to sweep channels, {@code false}
+     *                 otherwise.
+     * @see IRCUser#isInfoKnown(IRCUserInfo)
+     */
+    public void setWhoSweep(final boolean whoSweep) {
+        this.whoSweep = whoSweep;
+    }
+
+    /**
+     * Returns how long user information is considered fresh.
+     *
+     * @param info The kind of information.
+     * @return The time to live in milliseconds, or 0 if it never expires.
+     */
+    public long getUserInfoTtl(final IRCUserInfo info) {
+        return this.userInfoTtls.get(info.ordinal());
+    }
+
+    /**
+     * Sets how long user information is considered fresh. Channels with
+     * members whose information expired are swept again.
+     *
+     * @param info The kind of information.
+     * @param ttl  The time to live in milliseconds, or 0 if it never
+     *             expires.
+     */
+    public void setUserInfoTtl(final IRCUserInfo info, final long ttl) {
+        if (ttl < 0) {
+            throw new IllegalArgumentException("Time to live can't be negative!");
+        }
+        this.userInfoTtls.set(info.ordinal(), ttl);
+    }
+
+    /**
+     * Drops the members of idle channels and of the least recently used
+     * channels over the member budget.
+     */
+    protected void evictChannels() {
+        this.lastEviction = System.currentTimeMillis();
+        this.getState().evictChannels(this.channelIdleTime, this.memberBudget);
+    }
+
+    /**
+     * Drops members like {@link #evictChannels()}, unless that was done
+     * less than a second ago. Joining many channels would otherwise walk
+     * all channels after every NAMES reply.
+     */
+    protected void evictChannelsThrottled() {
+        if ((System.currentTimeMillis() - this.lastEviction) >= IRCConnection.EVICTION_INTERVAL) {
+            this.evictChannels();
+        }
+    }
+
     /**
      * Checks whether the client is still connected.
      *
@@ -0,0 +1,311 @@
+package net.d4rkfly3r.irc.azmate.lib;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking I/O engine shared by any number of {@link IRCConnection}s.
+ * <p>
+ * Instead of one input and one output thread per connection, an
+ * {@code IRCEventLoop} services all connections registered with it
+ * from a small, fixed number of selector threads. Connections opt in
+ * through {@link IRCConnection#setEventLoop(IRCEventLoop)}; without an
+ * event loop the classic blocking threads are used.
+ * </p>
+ * <p>
+ * Selector threads are daemon threads: the program may exit while
+ * connections are still open, so it must keep a thread of its own
+ * running for as long as it wants to stay connected.
+ * </p>
+ * <p>
+ * <pre>
+ * IRCEventLoop loop = new IRCEventLoop(2);
+ * for (IRCConnection irc : connections) {
+ * 	irc.setEventLoop(loop);
+ * 	irc.connect();
+ * }
+ * </pre>
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public final class IRCEventLoop {
+
+    /**
+     * Shared default event loop, created on first use.
+     */
+    private static IRCEventLoop defaultLoop = null;
+    /**
+     * The selector threads.
+     */
+    private final Worker[] workers;
+    /**
+     * Round-robin counter used to spread sessions over the workers.
+     */
+    private final AtomicInteger next = new AtomicInteger();
+    /**
+     * Whether this event loop was shut down.
+     */
+    private volatile boolean shutdown = false;
+
+    /**
+     * Creates a new event loop with one thread per two available
+     * processors.
+     *
+     * @throws IOException If a selector could not be opened.
+     */
+    public IRCEventLoop() throws IOException {
+        this(Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    }
+
+    /**
+     * Creates a new event loop using given number of threads.
+     *
+     * @param threads The number of selector threads.
+     * @throws IOException If a selector could not be opened.
+     */
+    public IRCEventLoop(final int threads) throws IOException {
+        if (threads < 1) {
+            throw new IllegalArgumentException("An event loop needs at least one thread!");
+        }
+        this.workers = new Worker[threads];
+        for (int i = 0; i < threads; i++) {
+            this.workers[i] = new Worker(i, Selector.open());
+            this.workers[i].start();
+        }
+    }
+
+    /**
+     * Returns the shared default event loop, creating it if needed. Its
+     * threads are daemon threads, so it does not need to be shut down
+     * for the program to exit.
+     *
+     * @return The default event loop.
+     * @throws IOException If a selector could not be opened.
+     */
+    public static synchronized IRCEventLoop getDefault() throws IOException {
+        if (IRCEventLoop.defaultLoop == null || IRCEventLoop.defaultLoop.isShutdown()) {
+            IRCEventLoop.defaultLoop = new IRCEventLoop();
+        }
+        return IRCEventLoop.defaultLoop;
+    }
+
+    /**
+     * Gives the number of selector threads used by this event loop.
+     *
+     * @return The number of threads.
+     */
+    public int getThreadCount() {
+        return this.workers.length;
+    }
+
+    /**
+     * Checks whether this event loop was shut down.
+     *
+     * @return True if this event loop no longer accepts connections.
+     */
+    public boolean isShutdown() {
+        return this.shutdown;
+    }
+
+    /**
+     * Stops all selector threads. Connections still registered with
+     * this event loop are closed.
+     */
+    public void shutdown() {
+        this.shutdown = true;
+        for (final Worker worker : this.workers) {
+            worker.interrupt();
+            worker.selector.wakeup();
+        }
+    }
+
+    /**
+     * Assigns a session to one of the selector threads.
+     *
+     * @param session The session to register.
+     * @throws IOException If this event loop was shut down.
+     */
+    protected void register(final IRCSession session) throws IOException {
+        if (this.shutdown) {
+            throw new IOException("Event loop has been shut down!");
+        }
+        final Worker worker = this.workers[Math.abs(this.next.getAndIncrement() % this.workers.length)];
+        session.setWorker(worker);
+        worker.execute(() -> {
+            try {
+                // lines written while connecting are sent once connected
+                final boolean connecting = session.getChannel().isConnectionPending();
+                session.setKey(session.getChannel().register(worker.selector,
+                        connecting ? SelectionKey.OP_CONNECT : SelectionKey.OP_READ, session));
+                if (!connecting) {
+                    session.flush();
+                }
+            } catch (final ClosedChannelException ex) {
+                session.close();
+            }
+        });
+    }
+
+    /**
+     * A single selector thread.
+     */
+    protected final class Worker extends Thread {
+
+        /**
+         * The selector for all sessions on this thread.
+         */
+        private final Selector selector;
+        /**
+         * Tasks to run on this thread.
+         */
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        /**
+         * Sessions with queued outgoing messages.
+         */
+        private final LinkedHashSet<IRCSession> pending = new LinkedHashSet<>();
+
+        /**
+         * Creates a new selector thread.
+         *
+         * @param index    The index of this thread.
+         * @param selector The selector to use.
+         */
+        private Worker(final int index, final Selector selector) {
+            this.setName("sIRC-LOOP:" + index);
+            this.setPriority(Thread.NORM_PRIORITY);
+            // an unused loop, like the default one, never keeps the program alive
+            this.setDaemon(true);
+            this.selector = selector;
+        }
+
+        /**
+         * Runs given task on this thread.
+         *
+         * @param task The task to run.
+         */
+        protected void execute(final Runnable task) {
+            this.tasks.add(task);
+            if (Thread.currentThread() != this) {
+                this.selector.wakeup();
+            }
+        }
+
+        /**
+         * Checks whether the calling thread is this selector thread.
+         *
+         * @return True if called from this thread.
+         */
+        protected boolean inLoop() {
+            return Thread.currentThread() == this;
+        }
+
+        /**
+         * Marks a session as having queued outgoing messages.
+         *
+         * @param session The session with queued messages.
+         */
+        protected void outputPending(final IRCSession session) {
+            this.execute(() -> this.pending.add(session));
+        }
+
+        /**
+         * Runs all queued tasks.
+         */
+        private void runTasks() {
+            Runnable task;
+            while ((task = this.tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (final Exception ex) {
+                    IRCDebug.log("Exception " + ex + " in event loop task");
+                }
+            }
+        }
+
+        /**
+         * Sends queued messages for all sessions that have any.
+         *
+         * @return Milliseconds until a queued message may be sent, or 0
+         * if no messages are waiting.
+         */
+        private long drainOutput() {
+            long timeout = 0;
+            final long now = System.currentTimeMillis();
+            for (final Iterator<IRCSession> it = this.pending.iterator(); it.hasNext(); ) {
+                final IRCSession session = it.next();
+                long wait;
+                try {
+                    wait = session.drain(now);
+                } catch (final RuntimeException ex) {
+                    // e.g. from a rate limiter, only this session is lost
+                    IRCDebug.log("Exception " + ex + " while sending, closing session");
+                    session.close();
+                    wait = -1;
+                }
+                if (wait < 0) {
+                    it.remove();
+                } else if ((timeout == 0) || (wait < timeout)) {
+                    timeout = Math.max(1, wait);
+                }
+            }
+            return timeout;
+        }
+
+        /**
+         * Selects ready sessions and handles their I/O.
+         */
+        @Override
+        public void run() {
+            try {
+                while (!IRCEventLoop.this.shutdown) {
+                    this.runTasks();
+                    this.selector.select(this.drainOutput());
+                    for (final Iterator<SelectionKey> it = this.selector.selectedKeys().iterator(); it.hasNext(); ) {
+                        final SelectionKey key = it.next();
+                        it.remove();
+                        final IRCSession session = (IRCSession) key.attachment();
+                        try {
+                            if (!key.isValid()) {
+                                session.close();
+                                continue;
+                            }
+                            if (key.isConnectable()) {
+                                session.finishConnect();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                session.flush();
+                            }
+                            if (key.isValid() && key.isReadable()) {
+                                session.read();
+                            }
+                        } catch (final CancelledKeyException ex) {
+                            // closed from another thread meanwhile
+                            session.close();
+                        } catch (final RuntimeException ex) {
+                            // never let one session stop the others on this thread
+                            IRCDebug.log("Exception " + ex + " in event loop, closing session");
+                            session.close();
+                        }
+                    }
+                }
+            } catch (final IOException ex) {
+                IRCDebug.log("Exception " + ex + " in event loop");
+            }
+            // close all sessions left on this thread
+            for (final SelectionKey key : this.selector.keys()) {
+                ((IRCSession) key.attachment()).close();
+            }
+            try {
+                this.selector.close();
+            } catch (final IOException ex) {
+                // ignore
+            }
+        }
+    }
+}
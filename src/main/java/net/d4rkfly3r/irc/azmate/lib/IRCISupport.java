@@ -0,0 +1,633 @@
+package net.d4rkfly3r.irc.azmate.lib;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Features announced by the IRC server with RPL_ISUPPORT (005).
+ * <p>
+ * Until the server announces otherwise, the defaults of RFC 1459 and
+ * RFC 2811 are assumed, with the founder, admin and halfop privileges
+ * known to sIRC.
+ * </p>
+ * <p>
+ * Character lookups used while parsing, like whether a name is a
+ * channel or which type a mode has, use tables built whenever a feature
+ * changes, and take constant time.
+ * </p>
+ *
+ * @see IRCConnection#getISupport()
+ */
+@SuppressWarnings("unused")
+public final class IRCISupport {
+
+    /**
+     * Default privilege modes, highest first.
+     */
+    private static final String DEFAULT_PREFIX_MODES = "qaohv";
+    /**
+     * Default privilege prefixes, in the same order as the modes.
+     */
+    private static final String DEFAULT_PREFIX_CHARS = "~&@%+";
+    /**
+     * Default modes that add to or remove from a list.
+     */
+    private static final String DEFAULT_LIST_MODES = "beI";
+    /**
+     * Default modes that always take a parameter.
+     */
+    private static final String DEFAULT_PARAMETER_MODES = "k";
+    /**
+     * Default modes that take a parameter only when set.
+     */
+    private static final String DEFAULT_SET_PARAMETER_MODES = "l";
+    /**
+     * Default modes that never take a parameter.
+     */
+    private static final String DEFAULT_FLAG_MODES = "imnpst";
+    /**
+     * Default case mapping.
+     */
+    private static final IRCCaseMapping DEFAULT_CASE_MAPPING = IRCCaseMapping.RFC1459;
+    /**
+     * Default number of modes with a parameter per MODE command.
+     */
+    private static final int DEFAULT_MODES = 3;
+    /**
+     * Default maximum nickname length.
+     */
+    private static final int DEFAULT_NICK_LENGTH = 9;
+    /**
+     * Default maximum line length in bytes, including CR-LF.
+     */
+    private static final int DEFAULT_LINE_LENGTH = 512;
+    /**
+     * Size of the character lookup tables. Characters outside the tables
+     * never have a special meaning.
+     */
+    private static final int TABLE_SIZE = 128;
+    /**
+     * Mode type for modes that add to or remove from a list.
+     */
+    private static final byte TYPE_LIST = 1;
+    /**
+     * Mode type for modes that always take a parameter.
+     */
+    private static final byte TYPE_PARAMETER = 2;
+    /**
+     * Mode type for modes that take a parameter only when set.
+     */
+    private static final byte TYPE_SET_PARAMETER = 3;
+    /**
+     * Mode type for modes that never take a parameter.
+     */
+    private static final byte TYPE_FLAG = 4;
+    /**
+     * Mode type for privilege modes.
+     */
+    private static final byte TYPE_PREFIX = 5;
+    /**
+     * Channel name prefixes.
+     */
+    private volatile String channelTypes = IRCChannel.CHANNEL_PREFIX;
+    /**
+     * Whether a character starts a channel name, by character.
+     */
+    private volatile boolean[] channelTable = IRCISupport.channelTable(IRCChannel.CHANNEL_PREFIX);
+    /**
+     * Privilege modes and their prefixes, highest first, as
+     * {@code {modes, prefixes}}.
+     */
+    private volatile String[] prefix = {IRCISupport.DEFAULT_PREFIX_MODES, IRCISupport.DEFAULT_PREFIX_CHARS};
+    /**
+     * Rank of privilege modes by mode character, or -1.
+     */
+    private volatile byte[] prefixModeRanks = IRCISupport.rankTable(IRCISupport.DEFAULT_PREFIX_MODES);
+    /**
+     * Rank of privilege prefixes by prefix character, or -1.
+     */
+    private volatile byte[] prefixCharRanks = IRCISupport.rankTable(IRCISupport.DEFAULT_PREFIX_CHARS);
+    /**
+     * Channel mode types A to D, as {@code {list, parameter,
+     * set parameter, flag}}.
+     */
+    private volatile String[] channelModes = {IRCISupport.DEFAULT_LIST_MODES, IRCISupport.DEFAULT_PARAMETER_MODES,
+            IRCISupport.DEFAULT_SET_PARAMETER_MODES, IRCISupport.DEFAULT_FLAG_MODES};
+    /**
+     * Type of channel modes by mode character, or 0 if unknown.
+     */
+    private volatile byte[] modeTypes = IRCISupport.typeTable(this.channelModes, IRCISupport.DEFAULT_PREFIX_MODES);
+    /**
+     * Case mapping used to compare names.
+     */
+    private volatile IRCCaseMapping caseMapping = IRCISupport.DEFAULT_CASE_MAPPING;
+    /**
+     * Number of modes with a parameter per MODE command.
+     */
+    private volatile int modes = IRCISupport.DEFAULT_MODES;
+    /**
+     * Maximum nickname length.
+     */
+    private volatile int nickLength = IRCISupport.DEFAULT_NICK_LENGTH;
+    /**
+     * Maximum line length in bytes, including CR-LF.
+     */
+    private volatile int lineLength = IRCISupport.DEFAULT_LINE_LENGTH;
+    /**
+     * Maximum number of targets by command, {@code Integer.MAX_VALUE}
+     * for no limit.
+     */
+    private volatile Map<String, Integer> targetMax = Collections.emptyMap();
+    /**
+     * Maximum number of list entries by list mode.
+     */
+    private volatile Map<Character, Integer> maxList = Collections.emptyMap();
+    /**
+     * Whether WHO accepts a list of fields to reply with.
+     */
+    private volatile boolean whox = false;
+
+    /**
+     * Builds a table telling which characters start a channel name.
+     *
+     * @param types The channel name prefixes.
+     * @return The table.
+     */
+    private static boolean[] channelTable(final String types) {
+        final boolean[] table = new boolean[IRCISupport.TABLE_SIZE];
+        for (int i = 0; i < types.length(); i++) {
+            if (types.charAt(i) < IRCISupport.TABLE_SIZE) {
+                table[types.charAt(i)] = true;
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Builds a table giving the position of characters in a string.
+     *
+     * @param chars The characters, highest rank first.
+     * @return The table, -1 for characters not in the string.
+     */
+    private static byte[] rankTable(final String chars) {
+        final byte[] table = new byte[IRCISupport.TABLE_SIZE];
+        Arrays.fill(table, (byte) -1);
+        for (int i = chars.length() - 1; i >= 0; i--) {
+            if (chars.charAt(i) < IRCISupport.TABLE_SIZE) {
+                table[chars.charAt(i)] = (byte) Math.min(i, Byte.MAX_VALUE);
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Builds a table giving the type of channel modes.
+     *
+     * @param types       The channel mode types A to D.
+     * @param prefixModes The privilege modes.
+     * @return The table, 0 for unknown modes.
+     */
+    private static byte[] typeTable(final String[] types, final String prefixModes) {
+        final byte[] table = new byte[IRCISupport.TABLE_SIZE];
+        for (byte type = IRCISupport.TYPE_FLAG; type >= IRCISupport.TYPE_LIST; type--) {
+            final String modes = types[type - 1];
+            for (int i = 0; i < modes.length(); i++) {
+                if (modes.charAt(i) < IRCISupport.TABLE_SIZE) {
+                    table[modes.charAt(i)] = type;
+                }
+            }
+        }
+        // privileges take precedence
+        for (int i = 0; i < prefixModes.length(); i++) {
+            if (prefixModes.charAt(i) < IRCISupport.TABLE_SIZE) {
+                table[prefixModes.charAt(i)] = IRCISupport.TYPE_PREFIX;
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Looks up a character in a table.
+     *
+     * @param table The table.
+     * @param c     The character.
+     * @return The table entry, or -1 if the character is outside the
+     * table.
+     */
+    private static int lookup(final byte[] table, final char c) {
+        return c < table.length ? table[c] : -1;
+    }
+
+    /**
+     * Decodes the escapes allowed in feature values, like {@code \x20}.
+     *
+     * @param value The raw value.
+     * @return The decoded value.
+     */
+    private static String unescape(final String value) {
+        if (value.indexOf('\\') < 0) {
+            return value;
+        }
+        final StringBuilder result = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if ((c == '\\') && (i + 3 < value.length()) && (value.charAt(i + 1) == 'x')) {
+                try {
+                    result.append((char) Integer.parseInt(value.substring(i + 2, i + 4), 16));
+                    i += 3;
+                    continue;
+                } catch (final NumberFormatException ex) {
+                    // not an escape
+                }
+            }
+            result.append(c);
+        }
+        return result.toString();
+    }
+
+    /**
+     * Parses a number, using a default if the value is empty or invalid.
+     *
+     * @param value        The value, or {@code null}.
+     * @param defaultValue The default.
+     * @return The number.
+     */
+    private static int parseNumber(final String value, final int defaultValue) {
+        if ((value == null) || value.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            final int number = Integer.parseInt(value);
+            return number > 0 ? number : defaultValue;
+        } catch (final NumberFormatException ex) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Parses the {@code PREFIX} value, like {@code (ov)@+}.
+     *
+     * @param value The value, or {@code null} for the default.
+     * @return The modes and prefixes, or {@code null} if the value is
+     * invalid.
+     */
+    private static String[] parsePrefix(final String value) {
+        if (value == null) {
+            return new String[]{IRCISupport.DEFAULT_PREFIX_MODES, IRCISupport.DEFAULT_PREFIX_CHARS};
+        }
+        if (value.isEmpty()) {
+            return new String[]{"", ""};
+        }
+        final int end = value.indexOf(')');
+        if (!value.startsWith("(") || (end < 0)) {
+            return null;
+        }
+        final String modes = value.substring(1, end);
+        final String chars = value.substring(end + 1);
+        return modes.length() == chars.length() ? new String[]{modes, chars} : null;
+    }
+
+    /**
+     * Parses the {@code CHANMODES} value, like {@code b,k,l,imnpst}.
+     *
+     * @param value The value, or {@code null} for the default.
+     * @return The mode types A to D.
+     */
+    private static String[] parseChannelModes(final String value) {
+        if (value == null) {
+            return new String[]{IRCISupport.DEFAULT_LIST_MODES, IRCISupport.DEFAULT_PARAMETER_MODES,
+                    IRCISupport.DEFAULT_SET_PARAMETER_MODES, IRCISupport.DEFAULT_FLAG_MODES};
+        }
+        final String[] types = {"", "", "", ""};
+        final String[] values = value.split(",", -1);
+        // types after D are unknown, so they can not be parsed
+        System.arraycopy(values, 0, types, 0, Math.min(values.length, types.length));
+        return types;
+    }
+
+    /**
+     * Parses the {@code TARGMAX} value, like {@code PRIVMSG:4,JOIN:}.
+     *
+     * @param value The value, or {@code null}.
+     * @return The maximum number of targets by upper case command.
+     */
+    private static Map<String, Integer> parseTargetMax(final String value) {
+        if ((value == null) || value.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        final Map<String, Integer> result = new HashMap<>();
+        for (final String entry : value.split(",")) {
+            final int split = entry.indexOf(':');
+            if (split > 0) {
+                result.put(entry.substring(0, split).toUpperCase(Locale.ROOT),
+                        IRCISupport.parseNumber(entry.substring(split + 1), Integer.MAX_VALUE));
+            }
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * Parses the {@code MAXLIST} value, like {@code beI:100}.
+     *
+     * @param value The value, or {@code null}.
+     * @return The maximum number of entries by list mode.
+     */
+    private static Map<Character, Integer> parseMaxList(final String value) {
+        if ((value == null) || value.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        final Map<Character, Integer> result = new HashMap<>();
+        for (final String entry : value.split(",")) {
+            final int split = entry.indexOf(':');
+            if (split > 0) {
+                final int limit = IRCISupport.parseNumber(entry.substring(split + 1), Integer.MAX_VALUE);
+                for (int i = 0; i < split; i++) {
+                    result.put(entry.charAt(i), limit);
+                }
+            }
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * Gives the case mapping the server uses to compare nicknames and
+     * channel names.
+     *
+     * @return The case mapping.
+     */
+    public IRCCaseMapping getCaseMapping() {
+        return this.caseMapping;
+    }
+
+    /**
+     * Gives the characters channel names start with.
+     *
+     * @return The channel prefixes, like {@code #&}.
+     */
+    public String getChannelTypes() {
+        return this.channelTypes;
+    }
+
+    /**
+     * Gives the modes that never take a parameter, like moderated.
+     * (Type D)
+     *
+     * @return The mode characters.
+     */
+    public String getFlagModes() {
+        return this.channelModes[3];
+    }
+
+    /**
+     * Gives the maximum length of a line sent to the server.
+     *
+     * @return The length in bytes, including CR-LF.
+     */
+    public int getLineLength() {
+        return this.lineLength;
+    }
+
+    /**
+     * Gives the modes that add to or remove from a list, like bans.
+     * These always take a parameter. (Type A)
+     *
+     * @return The mode characters.
+     */
+    public String getListModes() {
+        return this.channelModes[0];
+    }
+
+    /**
+     * Gives the maximum number of entries in a channel list.
+     *
+     * @param mode The list mode, like {@code b}.
+     * @return The maximum, or {@code Integer.MAX_VALUE} if unknown.
+     */
+    public int getMaxList(final char mode) {
+        final Integer limit = this.maxList.get(mode);
+        return limit != null ? limit : Integer.MAX_VALUE;
+    }
+
+    /**
+     * Gives the number of modes with a parameter that may be changed with
+     * a single MODE command.
+     *
+     * @return The number of modes.
+     */
+    public int getModes() {
+        return this.modes;
+    }
+
+    /**
+     * Gives the maximum length of a nickname.
+     *
+     * @return The length in characters.
+     */
+    public int getNickLength() {
+        return this.nickLength;
+    }
+
+    /**
+     * Gives the modes that always take a parameter, like the channel key.
+     * (Type B)
+     *
+     * @return The mode characters.
+     */
+    public String getParameterModes() {
+        return this.channelModes[1];
+    }
+
+    /**
+     * Gives the prefixes of privileged users in a channel, highest first.
+     *
+     * @return The prefix characters, like {@code @+}.
+     */
+    public String getPrefixChars() {
+        return this.prefix[1];
+    }
+
+    /**
+     * Gives the rank of a privilege prefix.
+     *
+     * @param prefix The prefix character, like {@code @}.
+     * @return The rank, 0 being the highest, or -1 if this is not a
+     * prefix.
+     */
+    protected int getPrefixCharRank(final char prefix) {
+        return IRCISupport.lookup(this.prefixCharRanks, prefix);
+    }
+
+    /**
+     * Gives the modes giving privileges in a channel, highest first.
+     *
+     * @return The mode characters, like {@code ov}.
+     */
+    public String getPrefixModes() {
+        return this.prefix[0];
+    }
+
+    /**
+     * Gives the rank of a privilege mode.
+     *
+     * @param mode The mode character, like {@code o}.
+     * @return The rank, 0 being the highest, or -1 if this mode does not
+     * give privileges.
+     */
+    protected int getPrefixRank(final char mode) {
+        return IRCISupport.lookup(this.prefixModeRanks, mode);
+    }
+
+    /**
+     * Gives the modes that take a parameter only when set, like the user
+     * limit. (Type C)
+     *
+     * @return The mode characters.
+     */
+    public String getSetParameterModes() {
+        return this.channelModes[2];
+    }
+
+    /**
+     * Gives the maximum number of targets of a command, like the number
+     * of channels a single PRIVMSG may be sent to.
+     *
+     * @param command The command, like {@code PRIVMSG}.
+     * @return The maximum, or {@code Integer.MAX_VALUE} if there is no
+     * limit or it is unknown.
+     */
+    public int getTargetMax(final String command) {
+        final Integer limit = this.targetMax.get(command.toUpperCase(Locale.ROOT));
+        return limit != null ? limit : Integer.MAX_VALUE;
+    }
+
+    /**
+     * Checks whether WHO requests may ask for the fields to reply with
+     * ({@code WHOX}), like the account of users.
+     *
+     * @return True if WHOX is supported.
+     */
+    public boolean hasWhox() {
+        return this.whox;
+    }
+
+    /**
+     * Checks whether a channel mode takes a parameter. Unknown modes are
+     * assumed not to.
+     *
+     * @param mode   The mode character.
+     * @param adding Whether the mode is set, rather than unset.
+     * @return True if the mode takes a parameter.
+     */
+    protected boolean hasParameter(final char mode, final boolean adding) {
+        switch (IRCISupport.lookup(this.modeTypes, mode)) {
+            case IRCISupport.TYPE_PREFIX:
+            case IRCISupport.TYPE_LIST:
+            case IRCISupport.TYPE_PARAMETER:
+                return true;
+            case IRCISupport.TYPE_SET_PARAMETER:
+                return adding;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Checks whether a name is a channel name.
+     *
+     * @param name The name.
+     * @return True if the name starts with a channel prefix.
+     */
+    public boolean isChannel(final CharSequence name) {
+        if ((name == null) || (name.length() == 0)) {
+            return false;
+        }
+        final char c = name.charAt(0);
+        return (c < IRCISupport.TABLE_SIZE) && this.channelTable[c];
+    }
+
+    /**
+     * Parses the features of an RPL_ISUPPORT reply.
+     *
+     * @param tokens The arguments of the reply, starting with our
+     *               nickname.
+     */
+    protected void parse(final String[] tokens) {
+        for (int i = 1; i < tokens.length; i++) {
+            final String token = tokens[i];
+            if (token.startsWith("-")) {
+                this.set(token.substring(1), null);
+                continue;
+            }
+            final int split = token.indexOf('=');
+            if (split < 0) {
+                this.set(token, "");
+            } else {
+                this.set(token.substring(0, split), IRCISupport.unescape(token.substring(split + 1)));
+            }
+        }
+    }
+
+    /**
+     * Changes a single feature, and rebuilds the tables depending on it.
+     *
+     * @param key   The name of the feature, like {@code PREFIX}.
+     * @param value The value, or {@code null} to restore the default.
+     */
+    private synchronized void set(final String key, final String value) {
+        switch (key) {
+            case "PREFIX": {
+                final String[] prefix = IRCISupport.parsePrefix(value);
+                if (prefix != null) {
+                    this.prefix = prefix;
+                    this.prefixModeRanks = IRCISupport.rankTable(prefix[0]);
+                    this.prefixCharRanks = IRCISupport.rankTable(prefix[1]);
+                    this.modeTypes = IRCISupport.typeTable(this.channelModes, prefix[0]);
+                }
+            }
+            break;
+            case "CHANMODES":
+                this.channelModes = IRCISupport.parseChannelModes(value);
+                this.modeTypes = IRCISupport.typeTable(this.channelModes, this.prefix[0]);
+                break;
+            case "CHANTYPES": {
+                final String types = value != null ? value : IRCChannel.CHANNEL_PREFIX;
+                this.channelTypes = types;
+                this.channelTable = IRCISupport.channelTable(types);
+            }
+            break;
+            case "CASEMAPPING":
+                this.caseMapping = (value != null) && !value.isEmpty() ? IRCCaseMapping.forName(value) : IRCISupport.DEFAULT_CASE_MAPPING;
+                break;
+            case "MODES":
+                // no value means no limit
+                this.modes = value == null ? IRCISupport.DEFAULT_MODES : IRCISupport.parseNumber(value, Integer.MAX_VALUE);
+                break;
+            case "TARGMAX":
+                this.targetMax = IRCISupport.parseTargetMax(value);
+                break;
+            case "NICKLEN":
+                this.nickLength = IRCISupport.parseNumber(value, IRCISupport.DEFAULT_NICK_LENGTH);
+                break;
+            case "MAXLIST":
+                this.maxList = IRCISupport.parseMaxList(value);
+                break;
+            case "LINELEN":
+                this.lineLength = Math.max(IRCISupport.DEFAULT_LINE_LENGTH, IRCISupport.parseNumber(value, IRCISupport.DEFAULT_LINE_LENGTH));
+                break;
+            case "WHOX":
+                this.whox = value != null;
+                break;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PREFIX=(" + this.getPrefixModes() + ")" + this.getPrefixChars() + " CHANTYPES=" + this.channelTypes
+                + " CHANMODES=" + this.getListModes() + "," + this.getParameterModes() + "," + this.getSetParameterModes()
+                + "," + this.getFlagModes() + " CASEMAPPING=" + this.caseMapping + " MODES=" + this.modes
+                + " NICKLEN=" + this.nickLength + " LINELEN=" + this.lineLength + (this.whox ? " WHOX" : "");
+    }
+}
@@ -1,9 +1,8 @@
 package net.d4rkfly3r.irc.azmate.lib;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.Reader;
-import java.net.SocketException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
 
 /**
  * Input Thread.
@@ -13,25 +12,29 @@ final class IRCInput extends Thread {
     /**
      * Stream used to read from the IRC server.
      */
-    private final BufferedReader bufferedReader;
+    private final InputStream in;
+    /**
+     * Splits the stream into lines.
+     */
+    private final IRCLineFramer framer;
     /**
      * The IRCConnection.
      */
     private final IRCConnection ircConnection;
 
-    private final IRCParser parser = new IRCParser();
-
     /**
      * Creates a new input thread.
      *
-     * @param ircConnection  The IRCConnection using this output thread.
-     * @param bufferedReader The stream to use for communication.
+     * @param ircConnection The IRCConnection using this output thread.
+     * @param in            The stream to use for communication.
+     * @param charset       The character set used to decode lines.
      */
-    protected IRCInput(final IRCConnection ircConnection, final Reader bufferedReader) {
+    protected IRCInput(final IRCConnection ircConnection, final InputStream in, final Charset charset) {
         this.setName("sIRC-IN:" + ircConnection.getServerAddress() + "-" + ircConnection.getClient().getUserName());
         this.setPriority(Thread.NORM_PRIORITY);
         this.setDaemon(false);
-        this.bufferedReader = new BufferedReader(bufferedReader);
+        this.in = in;
+        this.framer = new IRCLineFramer(charset);
         this.ircConnection = ircConnection;
     }
 
@@ -42,33 +45,33 @@ final class IRCInput extends Thread {
      * @see IRCConnection#disconnect()
      */
     protected void close() throws IOException {
-        this.bufferedReader.close();
+        this.in.close();
     }
 
     /**
-     * Returns the reader used bufferedReader this input thread.
+     * Advances the framer to the next line, reading from the stream if
+     * needed.
      *
-     * @return the reader.
+     * @return True if a line is available, false at the end of the stream.
+     * @throws IOException If reading fails.
      */
-    protected BufferedReader getReader() {
-        return this.bufferedReader;
+    private boolean nextLine() throws IOException {
+        while (!this.framer.next()) {
+            if (this.framer.read(this.in) < 0) {
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
-     * Handles a line received by the IRC server.
+     * Reads and decodes the next line from the stream.
      *
-     * @param line The line to handle.
+     * @return The next line, or {@code null} at the end of the stream.
+     * @throws IOException If reading fails.
      */
-    private void handleLine(final String line) {
-        // transform the raw line into an easier format
-        final IRCPacket parser = new IRCPacket(line, this.ircConnection);
-        // Handle numeric server replies.
-        if (parser.isNumeric()) {
-            this.parser.parseNumeric(this.ircConnection, parser);
-            return;
-        }
-        // Handle different commands
-        this.parser.parseCommand(this.ircConnection, parser);
+    protected String readLine() throws IOException {
+        return this.nextLine() ? this.framer.line() : null;
     }
 
     /**
@@ -76,22 +79,18 @@ final class IRCInput extends Thread {
      */
     @Override
     public void run() {
-        String line = null;
         try {
-            // wait for lines to come bufferedReader
-            while ((line = this.bufferedReader.readLine()) != null) {
-                IRCDebug.log("<<< " + line);
-                // always respond to PING
-                if (line.startsWith("PING ")) {
-                    this.ircConnection.out.pong(line.substring(5));
-                } else {
-                    this.handleLine(line);
+            // wait for lines to come in
+            while (this.nextLine()) {
+                if (IRCDebug.isEnabled()) {
+                    IRCDebug.log("<<< " + this.framer.line());
                 }
+                this.ircConnection.getParser().parseLine(this.ircConnection, this.framer);
             }
         } catch (final IOException ex) {
             this.ircConnection.setConnected(false);
         } catch (final Exception ex) {
-            IRCDebug.log("Exception " + ex + " on: " + line);
+            IRCDebug.log("Exception " + ex + " on: " + this.framer.line());
             ex.printStackTrace();
         }
         // when reaching this, we are disconnected
@@ -0,0 +1,385 @@
+package net.d4rkfly3r.irc.azmate.lib;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Splits the raw input stream into IRC lines without decoding it.
+ * <p>
+ * Received bytes are kept in a single reusable buffer and lines are
+ * found by scanning for {@code \n} (an optional preceding {@code \r}
+ * is dropped). The current line is exposed as a slice of that buffer,
+ * and only the parts a consumer asks for are decoded using the
+ * connection character set.
+ * </p>
+ * <p>
+ * Lines longer than the maximum line length are truncated to that
+ * length; the remainder is discarded up to the next line terminator.
+ * </p>
+ * <p>
+ * <pre>
+ * [@&lt;tags&gt; ][:&lt;prefix&gt; ]&lt;command&gt; [&lt;target&gt; ...] [:&lt;trailing&gt;]
+ * </pre>
+ */
+final class IRCLineFramer {
+
+    /**
+     * Maximum length of the message tags of a line in bytes, including
+     * the leading {@code @} and the space after them. ({@code message-tags})
+     */
+    protected static final int MAX_TAGS_LENGTH = 8191;
+    /**
+     * Default maximum line length in bytes, excluding CR-LF. Tags do not
+     * count towards the 512 bytes of the rest of the line.
+     */
+    protected static final int MAX_LINE_LENGTH = IRCLineFramer.MAX_TAGS_LENGTH + IRCOutput.MAX_LINE_LENGTH - 2;
+    /**
+     * The receive buffer.
+     */
+    private final byte[] buffer;
+    /**
+     * The receive buffer, wrapped for channel reads.
+     */
+    private final ByteBuffer wrapped;
+    /**
+     * Character set used to decode slices.
+     */
+    private final Charset charset;
+    /**
+     * Maximum number of bytes in a line.
+     */
+    private final int maxLength;
+    /**
+     * Start of unhandled data in the buffer.
+     */
+    private int start = 0;
+    /**
+     * End of received data in the buffer.
+     */
+    private int limit = 0;
+    /**
+     * Position up to where the unhandled data was scanned for a line
+     * terminator.
+     */
+    private int scanned = 0;
+    /**
+     * Whether received data is discarded until the next line terminator.
+     */
+    private boolean discarding = false;
+    /**
+     * Start of the current line.
+     */
+    private int lineStart = 0;
+    /**
+     * End of the current line.
+     */
+    private int lineEnd = 0;
+    /**
+     * Start of the command in the current line, or -1 if not located yet.
+     */
+    private int commandStart = -1;
+    /**
+     * End of the command in the current line.
+     */
+    private int commandEnd = 0;
+
+    /**
+     * Creates a new framer using the default maximum line length.
+     *
+     * @param charset The character set used to decode slices.
+     */
+    protected IRCLineFramer(final Charset charset) {
+        this(charset, IRCLineFramer.MAX_LINE_LENGTH);
+    }
+
+    /**
+     * Creates a new framer.
+     *
+     * @param charset   The character set used to decode slices.
+     * @param maxLength Maximum number of bytes in a line, excluding CR-LF.
+     */
+    protected IRCLineFramer(final Charset charset, final int maxLength) {
+        this.charset = charset;
+        this.maxLength = maxLength;
+        this.buffer = new byte[Math.max(4096, (maxLength + 2) * 2)];
+        this.wrapped = ByteBuffer.wrap(this.buffer);
+    }
+
+    /**
+     * Moves unhandled data to the front of the buffer. Invalidates the
+     * current line.
+     */
+    private void compact() {
+        if (this.start > 0) {
+            final int length = this.limit - this.start;
+            System.arraycopy(this.buffer, this.start, this.buffer, 0, length);
+            this.scanned -= this.start;
+            this.limit = length;
+            this.start = 0;
+        }
+    }
+
+    /**
+     * Decodes a slice of the buffer.
+     *
+     * @param from Start of the slice.
+     * @param to   End of the slice.
+     * @return The decoded slice.
+     */
+    protected String decode(final int from, final int to) {
+        return new String(this.buffer, from, to - from, this.charset);
+    }
+
+    /**
+     * Gives the buffer holding the current line.
+     *
+     * @return The receive buffer.
+     */
+    protected byte[] getBuffer() {
+        return this.buffer;
+    }
+
+    /**
+     * Gives the start of the current line in the buffer.
+     *
+     * @return Start offset of the current line.
+     */
+    protected int getLineStart() {
+        return this.lineStart;
+    }
+
+    /**
+     * Gives the end of the current line in the buffer.
+     *
+     * @return End offset (exclusive) of the current line.
+     */
+    protected int getLineEnd() {
+        return this.lineEnd;
+    }
+
+    /**
+     * Gives the character set used to decode slices.
+     *
+     * @return The character set.
+     */
+    protected Charset getCharset() {
+        return this.charset;
+    }
+
+    /**
+     * Checks whether the current line is a PING from the server.
+     *
+     * @return True if the current line starts with {@code PING}.
+     */
+    protected boolean isPing() {
+        final int i = this.lineStart;
+        return ((this.lineEnd - i) >= 5)
+                && (this.buffer[i] == 'P') && (this.buffer[i + 1] == 'I')
+                && (this.buffer[i + 2] == 'N') && (this.buffer[i + 3] == 'G')
+                && (this.buffer[i + 4] == ' ');
+    }
+
+    /**
+     * Decodes the complete current line.
+     *
+     * @return The current line.
+     */
+    protected String line() {
+        return this.decode(this.lineStart, this.lineEnd);
+    }
+
+    /**
+     * Locates the command in the current line.
+     */
+    private void locateCommand() {
+        if (this.commandStart >= 0) {
+            return;
+        }
+        int i = this.lineStart;
+        // skip message tags and prefix
+        if ((i < this.lineEnd) && (this.buffer[i] == '@')) {
+            i = this.skipWord(i) + 1;
+        }
+        if ((i < this.lineEnd) && (this.buffer[i] == ':')) {
+            i = this.skipWord(i) + 1;
+        }
+        this.commandStart = Math.min(i, this.lineEnd);
+        this.commandEnd = this.skipWord(this.commandStart);
+    }
+
+    /**
+     * Decodes the command of the current line.
+     *
+     * @return The command.
+     */
+    protected String command() {
+        this.locateCommand();
+        return this.decode(this.commandStart, this.commandEnd);
+    }
+
+    /**
+     * Classifies the command of the current line without decoding it.
+     *
+     * @return The numeric reply code, or -1 if the command is not a
+     * three digit numeric reply.
+     */
+    protected int numeric() {
+        this.locateCommand();
+        if ((this.commandEnd - this.commandStart) != 3) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = this.commandStart; i < this.commandEnd; i++) {
+            final int digit = this.buffer[i] - '0';
+            if ((digit < 0) || (digit > 9)) {
+                return -1;
+            }
+            value = (value * 10) + digit;
+        }
+        return value;
+    }
+
+    /**
+     * Decodes the first parameter after the command of the current line.
+     *
+     * @return The target, or {@code null} if there is none.
+     */
+    protected String target() {
+        this.locateCommand();
+        final int from = this.commandEnd + 1;
+        if ((from >= this.lineEnd) || (this.buffer[from] == ':')) {
+            return null;
+        }
+        return this.decode(from, this.skipWord(from));
+    }
+
+    /**
+     * Gives the start of the trailing parameter of the current line.
+     *
+     * @return Start offset of the trailing parameter (after the colon),
+     * or -1 if there is none.
+     */
+    protected int trailingStart() {
+        this.locateCommand();
+        for (int i = this.commandEnd; i < (this.lineEnd - 1); i++) {
+            if ((this.buffer[i] == ' ') && (this.buffer[i + 1] == ':')) {
+                return i + 2;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Decodes the trailing parameter of the current line.
+     *
+     * @return The trailing parameter, or {@code null} if there is none.
+     */
+    protected String trailing() {
+        final int from = this.trailingStart();
+        return from < 0 ? null : this.decode(from, this.lineEnd);
+    }
+
+    /**
+     * Finds the end of the space separated word starting at given offset.
+     *
+     * @param from Start of the word.
+     * @return Offset of the space after the word, or the line end.
+     */
+    private int skipWord(final int from) {
+        for (int i = from; i < this.lineEnd; i++) {
+            if (this.buffer[i] == ' ') {
+                return i;
+            }
+        }
+        return this.lineEnd;
+    }
+
+    /**
+     * Advances to the next complete line in the buffer. The previous
+     * line must no longer be used after calling this method.
+     *
+     * @return True if a line is available, false if more data needs to
+     * be read first.
+     */
+    protected boolean next() {
+        while (this.scanned < this.limit) {
+            if (this.buffer[this.scanned++] != '\n') {
+                continue;
+            }
+            final int end = this.scanned - 1;
+            final int from = this.start;
+            this.start = this.scanned;
+            if (this.discarding) {
+                // end of an overlong line that was already handled
+                this.discarding = false;
+                continue;
+            }
+            if ((end > from) && (this.buffer[end - 1] == '\r')) {
+                this.setLine(from, end - 1);
+            } else {
+                this.setLine(from, end);
+            }
+            return true;
+        }
+        if (!this.discarding && ((this.limit - this.start) > this.maxLength + 1)) {
+            // no line terminator within the line limit, truncate
+            this.setLine(this.start, this.start + this.maxLength);
+            this.start = this.limit;
+            this.scanned = this.limit;
+            this.discarding = true;
+            return true;
+        }
+        if (this.discarding) {
+            this.start = this.limit;
+        }
+        return false;
+    }
+
+    /**
+     * Reads more data from given stream, blocking until some is available.
+     *
+     * @param in The stream to read from.
+     * @return The number of bytes read, or -1 at the end of the stream.
+     * @throws IOException If reading fails.
+     */
+    protected int read(final InputStream in) throws IOException {
+        this.compact();
+        final int read = in.read(this.buffer, this.limit, this.buffer.length - this.limit);
+        if (read > 0) {
+            this.limit += read;
+        }
+        return read;
+    }
+
+    /**
+     * Reads available data from given channel.
+     *
+     * @param channel The channel to read from.
+     * @return The number of bytes read, or -1 at the end of the stream.
+     * @throws IOException If reading fails.
+     */
+    protected int read(final ReadableByteChannel channel) throws IOException {
+        this.compact();
+        this.wrapped.limit(this.buffer.length).position(this.limit);
+        final int read = channel.read(this.wrapped);
+        if (read > 0) {
+            this.limit += read;
+        }
+        return read;
+    }
+
+    /**
+     * Sets the current line.
+     *
+     * @param from Start of the line.
+     * @param to   End of the line.
+     */
+    private void setLine(final int from, final int to) {
+        this.lineStart = from;
+        this.lineEnd = Math.min(to, from + this.maxLength);
+        this.commandStart = -1;
+    }
+}
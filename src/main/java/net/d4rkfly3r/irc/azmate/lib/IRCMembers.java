@@ -0,0 +1,403 @@
+package net.d4rkfly3r.irc.azmate.lib;
+
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * The members of a channel and their privileges.
+ * <p>
+ * Members are stored by the id of their shared user object, in an open
+ * addressing table of two {@code int} arrays. Nickname changes do not
+ * touch this table. A membership costs about twelve bytes in a table
+ * sized from a NAMES reply, and up to twenty-two bytes as it grows,
+ * instead of the entries, keys and boxed privileges of hash maps.
+ * </p>
+ * <p>
+ * Reads are optimistic: they run without locking and are retried if a
+ * change happened meanwhile, so readers never hold up the input thread.
+ * Changes are still exclusive, since a removal moves entries around.
+ * </p>
+ *
+ * @see IRCClientState#getUser(int)
+ */
+final class IRCMembers {
+
+    /**
+     * Marks a free slot. User ids start at 1.
+     */
+    private static final int FREE = 0;
+    /**
+     * Estimated size of an object header, in bytes.
+     */
+    private static final int HEADER = 16;
+    /**
+     * User ids, or {@link #FREE}.
+     */
+    private int[] ids;
+    /**
+     * Privileges as bits by rank, in the same slot as the user id.
+     */
+    private int[] privileges;
+    /**
+     * Number of members.
+     */
+    private volatile int size = 0;
+    /**
+     * Number of members per privilege rank.
+     */
+    private final int[] counts = new int[Integer.SIZE];
+    /**
+     * Validates optimistic reads and serializes changes.
+     */
+    private final StampedLock lock = new StampedLock();
+
+    /**
+     * Creates a new, empty table. Its slots are not rounded up to a power
+     * of two, so a table sized from a NAMES reply is two thirds full.
+     *
+     * @param capacity The expected number of members.
+     */
+    protected IRCMembers(final int capacity) {
+        final int length = Math.max(4, capacity + (capacity >> 1));
+        this.ids = new int[length];
+        this.privileges = new int[length];
+    }
+
+    /**
+     * Gives the preferred slot of a user id. Multiplying by an odd
+     * constant spreads consecutive ids, and the high bits of the product
+     * are scaled to the number of slots.
+     *
+     * @param id     The user id.
+     * @param length The number of slots.
+     * @return The slot.
+     */
+    private static int home(final int id, final int length) {
+        return (int) ((((id * 0x9E3779B9) & 0xFFFFFFFFL) * length) >>> 32);
+    }
+
+    /**
+     * Finds the slot of a user id.
+     *
+     * @param ids The user ids.
+     * @param id  The user id.
+     * @return The slot holding the id, or the free slot where it would be
+     * stored.
+     */
+    private static int slot(final int[] ids, final int id) {
+        int slot = IRCMembers.home(id, ids.length);
+        // bounded, since an optimistic read may see a table without free slots
+        for (int i = 0; (i < ids.length) && (ids[slot] != IRCMembers.FREE) && (ids[slot] != id); i++) {
+            slot = IRCMembers.after(slot, ids.length);
+        }
+        return slot;
+    }
+
+    /**
+     * Reads the privileges of a member without locking.
+     *
+     * @param id The user id.
+     * @return The privileges, or -1 if the user is not a member. The
+     * result is only meaningful if the read is validated afterwards.
+     */
+    private int find(final int id) {
+        final int[] ids = this.ids;
+        final int[] privileges = this.privileges;
+        final int slot = IRCMembers.slot(ids, id);
+        return (ids[slot] == id) && (slot < privileges.length) ? privileges[slot] : -1;
+    }
+
+    /**
+     * Reads the privileges of a member, retrying under a read lock if a
+     * change happened meanwhile.
+     *
+     * @param id The user id.
+     * @return The privileges, or -1 if the user is not a member.
+     */
+    private int read(final int id) {
+        if (id == IRCMembers.FREE) {
+            return -1;
+        }
+        final long stamp = this.lock.tryOptimisticRead();
+        final int privileges = this.find(id);
+        if (this.lock.validate(stamp)) {
+            return privileges;
+        }
+        final long read = this.lock.readLock();
+        try {
+            return this.find(id);
+        } finally {
+            this.lock.unlockRead(read);
+        }
+    }
+
+    /**
+     * Adds a member, or adds privileges to an existing member.
+     *
+     * @param id         The user id.
+     * @param privileges The privileges, as bits by rank.
+     * @return True if the user was not a member yet.
+     */
+    protected boolean add(final int id, final int privileges) {
+        final long stamp = this.lock.writeLock();
+        try {
+            return this.load(id, privileges);
+        } finally {
+            this.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Adds a member without locking, while filling a table no other
+     * thread can see yet.
+     *
+     * @param id         The user id.
+     * @param privileges The privileges, as bits by rank.
+     * @return True if the user was not a member yet.
+     * @see #add(int, int)
+     */
+    protected boolean load(final int id, final int privileges) {
+        int slot = IRCMembers.slot(this.ids, id);
+        if (this.ids[slot] == id) {
+            this.update(slot, this.privileges[slot] | privileges);
+            return false;
+        }
+        if (((this.size + 1) * 4) > (this.ids.length * 3)) {
+            this.resize();
+            slot = IRCMembers.slot(this.ids, id);
+        }
+        this.ids[slot] = id;
+        this.privileges[slot] = 0;
+        this.size++;
+        this.update(slot, privileges);
+        return true;
+    }
+
+    /**
+     * Checks whether a user is a member.
+     *
+     * @param id The user id.
+     * @return True if the user is a member.
+     */
+    protected boolean contains(final int id) {
+        return this.read(id) >= 0;
+    }
+
+    /**
+     * Gives the number of members with a privilege.
+     *
+     * @param rank The rank of the privilege.
+     * @return The number of members.
+     */
+    protected int count(final int rank) {
+        // a single int is read atomically
+        return (rank >= 0) && (rank < Integer.SIZE) ? this.counts[rank] : 0;
+    }
+
+    /**
+     * Gives the privileges of a member.
+     *
+     * @param id The user id.
+     * @return The privileges, as bits by rank, or 0 if the user is not a
+     * member.
+     */
+    protected int getPrivileges(final int id) {
+        return Math.max(this.read(id), 0);
+    }
+
+    /**
+     * Gives an estimate of the heap used by this table.
+     *
+     * @return The estimated size in bytes.
+     */
+    protected long getMemoryEstimate() {
+        return IRCMembers.HEADER + 24 + (2L * (IRCMembers.HEADER + (4L * this.ids.length)))
+                + IRCMembers.HEADER + (4L * this.counts.length) + IRCMembers.HEADER + 16;
+    }
+
+    /**
+     * Copies the ids of all members.
+     *
+     * @return The user ids.
+     */
+    protected int[] ids() {
+        final long stamp = this.lock.tryOptimisticRead();
+        final int[] ids = this.copy();
+        if (this.lock.validate(stamp)) {
+            return ids;
+        }
+        final long read = this.lock.readLock();
+        try {
+            return this.copy();
+        } finally {
+            this.lock.unlockRead(read);
+        }
+    }
+
+    /**
+     * Copies the ids of all members without locking.
+     *
+     * @return The user ids. The result is only meaningful if the read is
+     * validated afterwards.
+     */
+    private int[] copy() {
+        final int[] ids = this.ids;
+        final int[] result = new int[this.size];
+        int i = 0;
+        for (int slot = 0; (slot < ids.length) && (i < result.length); slot++) {
+            if (ids[slot] != IRCMembers.FREE) {
+                result[i++] = ids[slot];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Removes a member.
+     *
+     * @param id The user id.
+     * @return True if the user was a member.
+     */
+    protected boolean remove(final int id) {
+        if (id == IRCMembers.FREE) {
+            return false;
+        }
+        final long stamp = this.lock.writeLock();
+        try {
+            return this.delete(id);
+        } finally {
+            this.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Removes a member while holding the write lock.
+     *
+     * @param id The user id.
+     * @return True if the user was a member.
+     */
+    private boolean delete(final int id) {
+        int slot = IRCMembers.slot(this.ids, id);
+        if (this.ids[slot] != id) {
+            return false;
+        }
+        this.update(slot, 0);
+        this.ids[slot] = IRCMembers.FREE;
+        this.size--;
+        // move back entries that probed past the freed slot
+        final int length = this.ids.length;
+        for (int next = IRCMembers.after(slot, length); this.ids[next] != IRCMembers.FREE;
+             next = IRCMembers.after(next, length)) {
+            final int home = IRCMembers.home(this.ids[next], length);
+            if (Math.floorMod(next - home, length) >= Math.floorMod(next - slot, length)) {
+                this.ids[slot] = this.ids[next];
+                this.privileges[slot] = this.privileges[next];
+                this.ids[next] = IRCMembers.FREE;
+                this.privileges[next] = 0;
+                slot = next;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gives the slot probed after a slot.
+     *
+     * @param slot   The slot.
+     * @param length The number of slots.
+     * @return The next slot, wrapping around.
+     */
+    private static int after(final int slot, final int length) {
+        return slot + 1 < length ? slot + 1 : 0;
+    }
+
+    /**
+     * Doubles the number of slots.
+     */
+    private void resize() {
+        final int[] ids = this.ids;
+        final int[] privileges = this.privileges;
+        this.ids = new int[ids.length * 2];
+        this.privileges = new int[ids.length * 2];
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] != IRCMembers.FREE) {
+                final int slot = IRCMembers.slot(this.ids, ids[i]);
+                this.ids[slot] = ids[i];
+                this.privileges[slot] = privileges[i];
+            }
+        }
+    }
+
+    /**
+     * Gives or takes a privilege of a member.
+     *
+     * @param id     The user id.
+     * @param rank   The rank of the privilege.
+     * @param enable True to give the privilege, false to take it.
+     * @return False if the user is not a member.
+     */
+    protected boolean setPrivilege(final int id, final int rank, final boolean enable) {
+        if ((id == IRCMembers.FREE) || (rank < 0) || (rank >= Integer.SIZE)) {
+            return false;
+        }
+        final long stamp = this.lock.writeLock();
+        try {
+            final int slot = IRCMembers.slot(this.ids, id);
+            if (this.ids[slot] != id) {
+                return false;
+            }
+            this.update(slot, enable ? this.privileges[slot] | (1 << rank) : this.privileges[slot] & ~(1 << rank));
+            return true;
+        } finally {
+            this.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Replaces the privileges of a member.
+     *
+     * @param id         The user id.
+     * @param privileges The privileges, as bits by rank.
+     * @return False if the user is not a member.
+     */
+    protected boolean setPrivileges(final int id, final int privileges) {
+        if (id == IRCMembers.FREE) {
+            return false;
+        }
+        final long stamp = this.lock.writeLock();
+        try {
+            final int slot = IRCMembers.slot(this.ids, id);
+            if (this.ids[slot] != id) {
+                return false;
+            }
+            this.update(slot, privileges);
+            return true;
+        } finally {
+            this.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Gives the number of members.
+     *
+     * @return The number of members.
+     */
+    protected int size() {
+        return this.size;
+    }
+
+    /**
+     * Stores the privileges of a slot and updates the counts.
+     *
+     * @param slot       The slot.
+     * @param privileges The new privileges.
+     */
+    private void update(final int slot, final int privileges) {
+        int changed = this.privileges[slot] ^ privileges;
+        while (changed != 0) {
+            final int rank = Integer.numberOfTrailingZeros(changed);
+            this.counts[rank] += (privileges & (1 << rank)) != 0 ? 1 : -1;
+            changed &= changed - 1;
+        }
+        this.privileges[slot] = privileges;
+    }
+}
@@ -0,0 +1,42 @@
+package net.d4rkfly3r.irc.azmate.lib;
+
+/**
+ * Default rate limiter, keeping at least the message delay of an
+ * {@link IRCConnection} between two messages. Unlike sleeping before
+ * every message, a message sent after an idle period goes out at once.
+ */
+final class IRCMessageDelayLimiter implements IRCRateLimiter {
+
+    /**
+     * The IRCConnection providing the message delay.
+     */
+    private final IRCConnection irc;
+    /**
+     * Time the last message was sent, in milliseconds.
+     */
+    private long lastSent = 0;
+
+    /**
+     * Creates a new limiter.
+     *
+     * @param irc The IRCConnection providing the message delay.
+     */
+    protected IRCMessageDelayLimiter(final IRCConnection irc) {
+        this.irc = irc;
+    }
+
+    @Override
+    public synchronized long delay(final long now, final int length) {
+        return Math.max(0, (this.lastSent + this.irc.getMessageDelay()) - now);
+    }
+
+    @Override
+    public synchronized void sent(final long now, final int length) {
+        this.lastSent = now;
+    }
+
+    @Override
+    public String toString() {
+        return "delay(" + this.irc.getMessageDelay() + "ms)";
+    }
+}
@@ -0,0 +1,400 @@
+package net.d4rkfly3r.irc.azmate.lib;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Hash map keyed by nicknames or channel names that ignores case
+ * according to an {@link IRCCaseMapping}.
+ * <p>
+ * Keys are folded character by character while hashing and comparing,
+ * so lookups never create a lowercase copy of the name. Lookups can
+ * also be done with any {@link CharSequence} or directly with the raw
+ * bytes of a received line.
+ * </p>
+ * <p>
+ * Lookups never lock and may run while another thread changes the map.
+ * Changes must not run concurrently: entries never change, chains are
+ * replaced from the changed entry to the front of the bucket, and the
+ * table is rebuilt when resized, so a lookup always walks a complete
+ * chain. Changes to the client state are serialized by
+ * {@link IRCClientState}.
+ * </p>
+ *
+ * @param <V> The type of the values.
+ */
+final class IRCNameMap<V> implements Iterable<V> {
+
+    /**
+     * The buckets and the rules used to hash their entries.
+     */
+    private volatile Table<V> table;
+    /**
+     * Number of entries. Only changed by the writing thread, so readers
+     * may see a slightly stale count.
+     */
+    private int size = 0;
+
+    /**
+     * Creates a new, empty map using the default case mapping.
+     */
+    protected IRCNameMap() {
+        this(16);
+    }
+
+    /**
+     * Creates a new, empty map using the default case mapping.
+     *
+     * @param capacity The expected number of entries.
+     */
+    protected IRCNameMap(final int capacity) {
+        this(capacity, IRCCaseMapping.RFC1459);
+    }
+
+    /**
+     * Creates a new, empty map.
+     *
+     * @param capacity    The expected number of entries.
+     * @param caseMapping The rules used to compare names.
+     */
+    protected IRCNameMap(final int capacity, final IRCCaseMapping caseMapping) {
+        this.table = new Table<>(IRCNameMap.tableSize(capacity), caseMapping);
+    }
+
+    /**
+     * Computes the table size for a number of entries.
+     *
+     * @param capacity The expected number of entries.
+     * @return A power of two.
+     */
+    private static int tableSize(final int capacity) {
+        int size = 4;
+        while ((size * 3) / 4 < capacity) {
+            size *= 2;
+        }
+        return size;
+    }
+
+    /**
+     * Removes all entries.
+     */
+    protected void clear() {
+        final Table<V> table = this.table;
+        this.table = new Table<>(table.buckets.length(), table.caseMapping);
+        this.size = 0;
+    }
+
+    /**
+     * Checks whether a name is in this map.
+     *
+     * @param name The name.
+     * @return True if there is a value for given name.
+     */
+    protected boolean containsKey(final CharSequence name) {
+        return this.get(name) != null;
+    }
+
+    /**
+     * Retrieves the value for a name.
+     *
+     * @param name The name.
+     * @return The value, or {@code null} if there is none.
+     */
+    protected V get(final CharSequence name) {
+        final Table<V> table = this.table;
+        final int hash = table.caseMapping.hash(name);
+        for (Entry<V> e = table.bucket(hash); e != null; e = e.next) {
+            if ((e.hash == hash) && table.caseMapping.matches(e.key, name)) {
+                return e.value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Retrieves the value for a name given as raw bytes. The name must
+     * only contain ASCII characters.
+     *
+     * @param buffer The raw bytes.
+     * @param from   Start of the name.
+     * @param to     End of the name.
+     * @return The value, or {@code null} if there is none.
+     */
+    protected V get(final byte[] buffer, final int from, final int to) {
+        final Table<V> table = this.table;
+        final int hash = table.caseMapping.hash(buffer, from, to);
+        for (Entry<V> e = table.bucket(hash); e != null; e = e.next) {
+            if ((e.hash == hash) && table.caseMapping.matches(e.key, buffer, from, to)) {
+                return e.value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gives the rules used to compare names.
+     *
+     * @return The case mapping.
+     */
+    protected IRCCaseMapping getCaseMapping() {
+        return this.table.caseMapping;
+    }
+
+    /**
+     * Changes the rules used to compare names and rehashes all entries.
+     * Names that become equal are merged, keeping the value stored last.
+     *
+     * @param caseMapping The new case mapping.
+     */
+    protected void setCaseMapping(final IRCCaseMapping caseMapping) {
+        final Table<V> old = this.table;
+        if (caseMapping == old.caseMapping) {
+            return;
+        }
+        final Table<V> table = new Table<>(old.buckets.length(), caseMapping);
+        int size = 0;
+        for (int i = 0; i < old.buckets.length(); i++) {
+            for (Entry<V> e = old.buckets.get(i); e != null; e = e.next) {
+                if (table.put(e.key, e.value) == null) {
+                    size++;
+                }
+            }
+        }
+        this.table = table;
+        this.size = size;
+    }
+
+    /**
+     * Checks whether this map is empty.
+     *
+     * @return True if there are no entries.
+     */
+    protected boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    /**
+     * Creates an iterator through a copy of all values, which stays
+     * valid when the map is modified.
+     *
+     * @return An iterator through all values.
+     */
+    @Override
+    public Iterator<V> iterator() {
+        return this.values().iterator();
+    }
+
+    /**
+     * Stores a value, replacing any value stored for the same name.
+     *
+     * @param name  The name.
+     * @param value The value.
+     * @return The previous value, or {@code null} if there was none.
+     */
+    protected V put(final String name, final V value) {
+        final Table<V> table = this.table;
+        final V old = table.put(name, value);
+        if ((old == null) && (++this.size > (table.buckets.length() * 3) / 4)) {
+            this.table = table.resize();
+        }
+        return old;
+    }
+
+    /**
+     * Stores a value only if no value is stored for the same name.
+     *
+     * @param name  The name.
+     * @param value The value.
+     * @return The value already stored, or {@code null} if given value
+     * was stored.
+     */
+    protected V putIfAbsent(final String name, final V value) {
+        final V old = this.get(name);
+        if (old == null) {
+            this.put(name, value);
+        }
+        return old;
+    }
+
+    /**
+     * Removes the value for a name.
+     *
+     * @param name The name.
+     * @return The removed value, or {@code null} if there was none.
+     */
+    protected V remove(final CharSequence name) {
+        final Table<V> table = this.table;
+        final int hash = table.caseMapping.hash(name);
+        final int index = hash & (table.buckets.length() - 1);
+        final Entry<V> first = table.buckets.get(index);
+        for (Entry<V> e = first; e != null; e = e.next) {
+            if ((e.hash == hash) && table.caseMapping.matches(e.key, name)) {
+                table.buckets.lazySet(index, Table.replace(first, e, e.next));
+                this.size--;
+                return e.value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gives the number of entries.
+     *
+     * @return The number of entries.
+     */
+    protected int size() {
+        return this.size;
+    }
+
+    /**
+     * Copies all values into a list.
+     *
+     * @return A list of all values.
+     */
+    protected List<V> values() {
+        final Table<V> table = this.table;
+        final List<V> values = new ArrayList<>(this.size);
+        for (int i = 0; i < table.buckets.length(); i++) {
+            for (Entry<V> e = table.buckets.get(i); e != null; e = e.next) {
+                values.add(e.value);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * The buckets of a map, hashed with one case mapping.
+     *
+     * @param <V> The type of the values.
+     */
+    private static final class Table<V> {
+
+        /**
+         * The hash buckets.
+         */
+        private final AtomicReferenceArray<Entry<V>> buckets;
+        /**
+         * The rules used to compare names.
+         */
+        private final IRCCaseMapping caseMapping;
+
+        /**
+         * Creates a new, empty table.
+         *
+         * @param size        The number of buckets, a power of two.
+         * @param caseMapping The rules used to compare names.
+         */
+        private Table(final int size, final IRCCaseMapping caseMapping) {
+            this.buckets = new AtomicReferenceArray<>(size);
+            this.caseMapping = caseMapping;
+        }
+
+        /**
+         * Replaces an entry in a chain by copying the entries in front of
+         * it, so readers walking the old chain are not disturbed.
+         *
+         * @param first       The first entry of the chain.
+         * @param entry       The entry to replace.
+         * @param replacement The chain to link in its place.
+         * @param <V>         The type of the values.
+         * @return The first entry of the new chain.
+         */
+        private static <V> Entry<V> replace(final Entry<V> first, final Entry<V> entry, final Entry<V> replacement) {
+            Entry<V> head = replacement;
+            for (Entry<V> e = first; e != entry; e = e.next) {
+                head = new Entry<>(e.key, e.hash, e.value, head);
+            }
+            return head;
+        }
+
+        /**
+         * Gives the first entry of the bucket for a hash.
+         *
+         * @param hash The hash.
+         * @return The first entry, or {@code null}.
+         */
+        private Entry<V> bucket(final int hash) {
+            return this.buckets.get(hash & (this.buckets.length() - 1));
+        }
+
+        /**
+         * Stores a value, replacing any value stored for the same name.
+         *
+         * @param name  The name.
+         * @param value The value.
+         * @return The previous value, or {@code null} if there was none.
+         */
+        private V put(final String name, final V value) {
+            final int hash = this.caseMapping.hash(name);
+            final int index = hash & (this.buckets.length() - 1);
+            final Entry<V> first = this.buckets.get(index);
+            for (Entry<V> e = first; e != null; e = e.next) {
+                if ((e.hash == hash) && this.caseMapping.matches(e.key, name)) {
+                    this.buckets.lazySet(index, Table.replace(first, e, new Entry<>(name, hash, value, e.next)));
+                    return e.value;
+                }
+            }
+            // entries are immutable, so publishing in order is enough
+            this.buckets.lazySet(index, new Entry<>(name, hash, value, first));
+            return null;
+        }
+
+        /**
+         * Copies all entries into a table with twice as many buckets.
+         *
+         * @return The new table.
+         */
+        private Table<V> resize() {
+            final Table<V> table = new Table<>(this.buckets.length() * 2, this.caseMapping);
+            for (int i = 0; i < this.buckets.length(); i++) {
+                for (Entry<V> e = this.buckets.get(i); e != null; e = e.next) {
+                    final int index = e.hash & (table.buckets.length() - 1);
+                    table.buckets.lazySet(index, new Entry<>(e.key, e.hash, e.value, table.buckets.get(index)));
+                }
+            }
+            return table;
+        }
+    }
+
+    /**
+     * A single entry. Entries never change.
+     *
+     * @param <V> The type of the value.
+     */
+    private static final class Entry<V> {
+
+        /**
+         * Cached case insensitive hash of the key.
+         */
+        private final int hash;
+        /**
+         * The name, as last stored.
+         */
+        private final String key;
+        /**
+         * The value.
+         */
+        private final V value;
+        /**
+         * Next entry in the same bucket.
+         */
+        private final Entry<V> next;
+
+        /**
+         * Creates a new entry.
+         *
+         * @param key   The name.
+         * @param hash  The hash of the name.
+         * @param value The value.
+         * @param next  Next entry in the same bucket.
+         */
+        private Entry(final String key, final int hash, final V value, final Entry<V> next) {
+            this.key = key;
+            this.hash = hash;
+            this.value = value;
+            this.next = next;
+        }
+    }
+}
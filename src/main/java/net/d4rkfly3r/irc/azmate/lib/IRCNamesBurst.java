@@ -0,0 +1,119 @@
+package net.d4rkfly3r.irc.azmate.lib;
+
+import java.util.Arrays;
+
+/**
+ * Members of a channel collected from {@code RPL_NAMREPLY} lines until
+ * the server sends {@code RPL_ENDOFNAMES}. The channel keeps its old
+ * member list until the whole burst is received and then swaps it at
+ * once.
+ *
+ * @see IRCChannel#setMembers(IRCNamesBurst)
+ */
+final class IRCNamesBurst {
+
+    /**
+     * The channel the members belong to.
+     */
+    private final IRCChannel channel;
+    /**
+     * The members received so far.
+     */
+    private IRCUser[] users;
+    /**
+     * Privileges of the members, as bits by rank.
+     */
+    private int[] privileges;
+    /**
+     * Number of members received so far.
+     */
+    private int size = 0;
+    /**
+     * Number of members only counted so far.
+     */
+    private int counted = 0;
+
+    /**
+     * Creates a new, empty burst.
+     *
+     * @param channel  The channel the members belong to.
+     * @param capacity The expected number of members.
+     */
+    protected IRCNamesBurst(final IRCChannel channel, final int capacity) {
+        this.channel = channel;
+        this.users = new IRCUser[Math.max(capacity, 16)];
+        this.privileges = new int[this.users.length];
+    }
+
+    /**
+     * Adds a member.
+     *
+     * @param user       The shared user object.
+     * @param privileges The privileges, as bits by rank.
+     */
+    protected void add(final IRCUser user, final int privileges) {
+        if (this.size == this.users.length) {
+            this.users = Arrays.copyOf(this.users, this.size * 2);
+            this.privileges = Arrays.copyOf(this.privileges, this.size * 2);
+        }
+        this.users[this.size] = user;
+        this.privileges[this.size] = privileges;
+        this.size++;
+    }
+
+    /**
+     * Counts members that are not kept.
+     *
+     * @param count The number of members.
+     */
+    protected void addCount(final int count) {
+        this.counted += count;
+    }
+
+    /**
+     * Gives the number of members received so far, kept or only counted.
+     *
+     * @return The number of members.
+     */
+    protected int getCount() {
+        return this.size + this.counted;
+    }
+
+    /**
+     * Gives the channel the members belong to.
+     *
+     * @return The channel.
+     */
+    protected IRCChannel getChannel() {
+        return this.channel;
+    }
+
+    /**
+     * Gives the privileges of a member.
+     *
+     * @param index The index of the member.
+     * @return The privileges, as bits by rank.
+     */
+    protected int getPrivileges(final int index) {
+        return this.privileges[index];
+    }
+
+    /**
+     * Gives a member.
+     *
+     * @param index The index of the member.
+     * @return The shared user object.
+     */
+    protected IRCUser getUser(final int index) {
+        return this.users[index];
+    }
+
+    /**
+     * Gives the number of members received so far.
+     *
+     * @return The number of members.
+     */
+    protected int size() {
+        return this.size;
+    }
+}
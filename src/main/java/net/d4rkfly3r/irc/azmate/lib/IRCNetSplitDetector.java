@@ -0,0 +1,355 @@
+package net.d4rkfly3r.irc.azmate.lib;
+
+import net.d4rkfly3r.irc.azmate.plugins.PluginBus;
+import net.d4rkfly3r.irc.azmate.plugins.events.NetJoinEvent;
+import net.d4rkfly3r.irc.azmate.plugins.events.NetSplitEvent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Recognizes netsplits and netjoins in the received lines and reports
+ * each of them with a single event.
+ * <p>
+ * A split is recognized by quit messages like {@code hub.net leaf.net},
+ * or by an IRCv3 {@code netsplit} batch. Users who quit in a split are
+ * remembered for a while, so their joins after the servers relinked are
+ * reported as a netjoin. The lines of a split or netjoin arrive
+ * together; the event is fired as soon as a line arrives that is not
+ * part of it.
+ * </p>
+ *
+ * @see IRCConnection#setNetSplitUserEvents(boolean)
+ */
+final class IRCNetSplitDetector {
+
+    /**
+     * How long users who split off are expected to rejoin, in
+     * milliseconds.
+     */
+    private static final long SPLIT_TIMEOUT = 30 * 60 * 1000L;
+    /**
+     * The split being received.
+     */
+    private Split split = null;
+    /**
+     * The netjoin being received.
+     */
+    private Split join = null;
+    /**
+     * The split a user quit in, by nickname.
+     */
+    private final IRCNameMap<Split> splitUsers = new IRCNameMap<>();
+    /**
+     * Splits whose users may still rejoin, oldest first.
+     */
+    private final List<Split> recent = new ArrayList<>();
+
+    /**
+     * Checks whether a quit message looks like a netsplit: two server
+     * names separated by a single space, like {@code *.net *.split}.
+     *
+     * @param message The quit message.
+     * @return True if the message names two servers.
+     */
+    protected static boolean isSplitMessage(final String message) {
+        if (message == null) {
+            return false;
+        }
+        final int space = message.indexOf(' ');
+        return (space > 0) && (message.indexOf(' ', space + 1) < 0)
+                && IRCNetSplitDetector.isServerName(message, 0, space)
+                && IRCNetSplitDetector.isServerName(message, space + 1, message.length())
+                && !message.regionMatches(0, message, space + 1, space);
+    }
+
+    /**
+     * Checks whether a part of a string looks like a server name.
+     *
+     * @param text The text.
+     * @param from Start of the name.
+     * @param to   End of the name.
+     * @return True if the name has an inner dot and only host name
+     * characters or wildcards.
+     */
+    private static boolean isServerName(final String text, final int from, final int to) {
+        final int dot = text.indexOf('.', from);
+        if ((dot <= from) || (dot >= to - 1) || (text.charAt(to - 1) == '.')) {
+            return false;
+        }
+        for (int i = from; i < to; i++) {
+            final char c = text.charAt(i);
+            if (!(((c >= 'a') && (c <= 'z')) || ((c >= 'A') && (c <= 'Z')) || ((c >= '0') && (c <= '9'))
+                    || (c == '.') || (c == '-') || (c == '*') || (c == '_'))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Handles the start or end of an IRCv3 batch. Only {@code netsplit}
+     * and {@code netjoin} batches are tracked.
+     *
+     * @param ircConnection The connection.
+     * @param packet        The BATCH line.
+     */
+    protected void batch(final IRCConnection ircConnection, final IRCPacket packet) {
+        final String[] arguments = packet.getArgumentsArray();
+        if ((arguments == null) || (arguments[0].length() < 2)) {
+            return;
+        }
+        final String reference = arguments[0].substring(1);
+        if (arguments[0].charAt(0) == '-') {
+            if (((this.split != null) && reference.equals(this.split.batch))
+                    || ((this.join != null) && reference.equals(this.join.batch))) {
+                this.flush(ircConnection);
+            }
+        } else if ((arguments[0].charAt(0) == '+') && (arguments.length >= 2)) {
+            final String server = arguments.length >= 3 ? arguments[2] : null;
+            final String splitServer = arguments.length >= 4 ? arguments[3] : null;
+            if ("netsplit".equalsIgnoreCase(arguments[1])) {
+                this.flush(ircConnection);
+                this.expire();
+                this.split = new Split(server, splitServer, reference);
+            } else if ("netjoin".equalsIgnoreCase(arguments[1])) {
+                this.flush(ircConnection);
+                this.join = new Split(server, splitServer, reference);
+            }
+        }
+    }
+
+    /**
+     * Checks whether a line is part of the split or netjoin being
+     * received.
+     *
+     * @param packet The line.
+     * @return True if the line belongs to it.
+     */
+    protected boolean belongs(final IRCPacket packet) {
+        if ((this.split != null) && packet.isCommand("QUIT")) {
+            return this.split.contains(packet);
+        }
+        if ((this.join != null) && packet.isCommand("JOIN")) {
+            if (this.join.batch != null) {
+                return this.join.batch.equals(packet.getTag("batch"));
+            }
+            final IRCUser sender = packet.getSender();
+            return (sender != null) && (sender.getNick() != null) && (this.splitUsers.get(sender.getNick()) != null);
+        }
+        return false;
+    }
+
+    /**
+     * Forgets all splits, for a new connection.
+     */
+    protected void clear() {
+        this.split = null;
+        this.join = null;
+        this.splitUsers.clear();
+        this.recent.clear();
+    }
+
+    /**
+     * Fires the events for the split or netjoin being received.
+     *
+     * @param ircConnection The connection.
+     */
+    protected void flush(final IRCConnection ircConnection) {
+        if (this.split != null) {
+            final Split split = this.split;
+            this.split = null;
+            if (!split.users.isEmpty()) {
+                this.recent.add(split);
+                PluginBus.getInstance().fireEvent(new NetSplitEvent(ircConnection, split.server, split.splitServer,
+                        split.users));
+            }
+        }
+        if (this.join != null) {
+            final Split join = this.join;
+            this.join = null;
+            if (!join.users.isEmpty()) {
+                for (final IRCUser user : join.users) {
+                    this.splitUsers.remove(user.getNick());
+                }
+                PluginBus.getInstance().fireEvent(new NetJoinEvent(ircConnection, join.server, join.splitServer,
+                        join.users));
+            }
+        }
+    }
+
+    /**
+     * Checks whether anything is being received.
+     *
+     * @return True if a split or netjoin is waiting to be reported.
+     */
+    protected boolean isPending() {
+        return (this.split != null) || (this.join != null);
+    }
+
+    /**
+     * Handles a user joining a channel.
+     *
+     * @param ircConnection The connection.
+     * @param packet        The JOIN line.
+     * @param user          The shared user object.
+     * @return True if the user rejoined after a split.
+     */
+    protected boolean join(final IRCConnection ircConnection, final IRCPacket packet, final IRCUser user) {
+        if ((this.join != null) && (this.join.batch != null) && this.join.batch.equals(packet.getTag("batch"))) {
+            this.join.add(user);
+            return true;
+        }
+        if (this.splitUsers.isEmpty() || (user.getNick() == null)) {
+            return false;
+        }
+        this.expire();
+        final Split split = this.splitUsers.get(user.getNick());
+        if ((split == null) || ((System.currentTimeMillis() - split.time) >= IRCNetSplitDetector.SPLIT_TIMEOUT)) {
+            return false;
+        }
+        if ((this.join == null) || !this.join.sameServers(split)) {
+            this.flush(ircConnection);
+            this.join = new Split(split.server, split.splitServer, null);
+        }
+        this.join.add(user);
+        return true;
+    }
+
+    /**
+     * Handles a user quitting.
+     *
+     * @param ircConnection The connection.
+     * @param packet        The QUIT line.
+     * @param user          The user.
+     * @return True if the user quit in a split.
+     */
+    protected boolean quit(final IRCConnection ircConnection, final IRCPacket packet, final IRCUser user) {
+        if ((this.split == null) || !this.split.contains(packet)) {
+            final String message = packet.getMessage();
+            if (!IRCNetSplitDetector.isSplitMessage(message)) {
+                return false;
+            }
+            this.flush(ircConnection);
+            this.expire();
+            final int space = message.indexOf(' ');
+            this.split = new Split(message.substring(0, space), message.substring(space + 1), null);
+        }
+        this.split.add(user);
+        if (user.getNick() != null) {
+            this.splitUsers.put(user.getNick(), this.split);
+        }
+        return true;
+    }
+
+    /**
+     * Forgets users of splits too old to expect them back. Called for
+     * every split, rejoin and server ping, so splits are forgotten even
+     * if no other split follows.
+     */
+    protected void expire() {
+        final long now = System.currentTimeMillis();
+        for (final Iterator<Split> it = this.recent.iterator(); it.hasNext(); ) {
+            final Split split = it.next();
+            if ((now - split.time) < IRCNetSplitDetector.SPLIT_TIMEOUT) {
+                break;
+            }
+            for (final IRCUser user : split.users) {
+                if ((user.getNick() != null) && (this.splitUsers.get(user.getNick()) == split)) {
+                    this.splitUsers.remove(user.getNick());
+                }
+            }
+            it.remove();
+        }
+    }
+
+    /**
+     * A split or netjoin between two servers.
+     */
+    private static final class Split {
+
+        /**
+         * The server that stayed connected, if known.
+         */
+        private final String server;
+        /**
+         * The server that split off, if known.
+         */
+        private final String splitServer;
+        /**
+         * Reference of the IRCv3 batch, or {@code null}.
+         */
+        private final String batch;
+        /**
+         * When this split started.
+         */
+        private final long time = System.currentTimeMillis();
+        /**
+         * The users, in order.
+         */
+        private final List<IRCUser> users = new ArrayList<>();
+        /**
+         * The same users, to skip duplicates. Users are compared by
+         * identity, since a nickname may be reused.
+         */
+        private final Set<IRCUser> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        /**
+         * Creates a new split.
+         *
+         * @param server      The server that stayed connected.
+         * @param splitServer The server that split off.
+         * @param batch       Reference of the IRCv3 batch, or
+         *                    {@code null}.
+         */
+        private Split(final String server, final String splitServer, final String batch) {
+            this.server = server;
+            this.splitServer = splitServer;
+            this.batch = batch;
+        }
+
+        /**
+         * Adds a user unless it is already listed.
+         *
+         * @param user The user.
+         */
+        private void add(final IRCUser user) {
+            if (this.seen.add(user)) {
+                this.users.add(user);
+            }
+        }
+
+        /**
+         * Checks whether a QUIT line belongs to this split.
+         *
+         * @param packet The QUIT line.
+         * @return True if the line is tagged with the batch of this split,
+         * or names the same servers.
+         */
+        private boolean contains(final IRCPacket packet) {
+            if (this.batch != null) {
+                return this.batch.equals(packet.getTag("batch"));
+            }
+            final String message = packet.getMessage();
+            return (message != null) && (this.server != null) && (this.splitServer != null)
+                    && (message.length() == (this.server.length() + 1 + this.splitServer.length()))
+                    && message.startsWith(this.server) && message.endsWith(this.splitServer)
+                    && (message.charAt(this.server.length()) == ' ');
+        }
+
+        /**
+         * Checks whether another split is between the same servers.
+         *
+         * @param other The other split.
+         * @return True if both name the same servers.
+         */
+        private boolean sameServers(final Split other) {
+            return (this.server != null) && this.server.equals(other.server)
+                    && (this.splitServer != null) && this.splitServer.equals(other.splitServer);
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package net.d4rkfly3r.irc.azmate.lib;
+
+/**
+ * A raw line waiting in the outgoing message queue. The line is either
+ * a complete raw line, or a part of a text sent after a pre-encoded
+ * {@link IRCOutboundPrefix}.
+ */
+final class IRCOutboundLine {
+
+    /**
+     * The pre-encoded prefix, or {@code null} for a complete raw line.
+     */
+    private final IRCOutboundPrefix prefix;
+    /**
+     * The raw line without CR-LF, or the text following the prefix.
+     */
+    private final String text;
+    /**
+     * Start of the part of the text in this line.
+     */
+    private final int from;
+    /**
+     * End of the part of the text in this line.
+     */
+    private final int to;
+    /**
+     * Number of bytes this line takes on the wire, including CR-LF.
+     */
+    private final int length;
+    /**
+     * The priority of this line.
+     */
+    private final IRCPriority priority;
+    /**
+     * The channel or nickname this line is sent to, or an empty string.
+     */
+    private final String target;
+    /**
+     * Time this line was queued, in milliseconds.
+     */
+    private final long queued;
+    /**
+     * Key of lines with the same effect, or {@code null}.
+     */
+    private String key = null;
+
+    /**
+     * Creates a new queued line.
+     *
+     * @param line     The raw line, without CR-LF.
+     * @param length   Number of bytes the line takes, including CR-LF.
+     * @param priority The priority of this line.
+     * @param queued   Time this line was queued, in milliseconds.
+     */
+    protected IRCOutboundLine(final String line, final int length, final IRCPriority priority, final long queued) {
+        this.prefix = null;
+        this.text = line;
+        this.from = 0;
+        this.to = line.length();
+        this.length = length;
+        this.priority = priority;
+        this.queued = queued;
+        this.target = IRCOutboundLine.target(line);
+    }
+
+    /**
+     * Creates a new queued line from a pre-encoded prefix and a part of
+     * a text.
+     *
+     * @param prefix   The pre-encoded prefix.
+     * @param text     The text following the prefix.
+     * @param from     Start of the part of the text in this line.
+     * @param to       End of the part of the text in this line.
+     * @param length   Number of bytes the line takes, including CR-LF.
+     * @param priority The priority of this line.
+     * @param queued   Time this line was queued, in milliseconds.
+     */
+    protected IRCOutboundLine(final IRCOutboundPrefix prefix, final String text, final int from, final int to,
+                              final int length, final IRCPriority priority, final long queued) {
+        this.prefix = prefix;
+        this.text = text;
+        this.from = from;
+        this.to = to;
+        this.length = length;
+        this.priority = priority;
+        this.queued = queued;
+        this.target = prefix.getTarget();
+    }
+
+    /**
+     * Extracts the target of a raw line: the first parameter after the
+     * command, like the channel of a {@code PRIVMSG}.
+     *
+     * @param line The raw line.
+     * @return The target, or an empty string if the line has none.
+     */
+    protected static String target(final String line) {
+        final int from = line.indexOf(' ') + 1;
+        if ((from == 0) || (from >= line.length()) || (line.charAt(from) == ':')) {
+            return "";
+        }
+        final int to = line.indexOf(' ', from);
+        return to < 0 ? line.substring(from) : line.substring(from, to);
+    }
+
+    /**
+     * Gives the start of the part of the text in this line.
+     *
+     * @return The index of the first character.
+     */
+    protected int getFrom() {
+        return this.from;
+    }
+
+    /**
+     * Gives the key of lines with the same effect as this line.
+     *
+     * @return The key, or {@code null} if this line must always be sent.
+     * @see IRCCoalescingRule
+     */
+    protected String getKey() {
+        return this.key;
+    }
+
+    /**
+     * Gives the raw line. Lines with a prefix are built on every call,
+     * so this should only be used for logging.
+     *
+     * @return The raw line, without CR-LF.
+     */
+    protected String getLine() {
+        if (this.prefix == null) {
+            return this.text;
+        }
+        return this.prefix + this.text.substring(this.from, this.to);
+    }
+
+    /**
+     * Gives the pre-encoded prefix of this line.
+     *
+     * @return The prefix, or {@code null} for a complete raw line.
+     */
+    protected IRCOutboundPrefix getPrefix() {
+        return this.prefix;
+    }
+
+    /**
+     * Gives the priority of this line.
+     *
+     * @return The priority.
+     */
+    protected IRCPriority getPriority() {
+        return this.priority;
+    }
+
+    /**
+     * Gives the target of this line.
+     *
+     * @return The channel or nickname, or an empty string if the line has
+     * no target.
+     */
+    protected String getTarget() {
+        return this.target;
+    }
+
+    /**
+     * Gives the raw line, or the text following the prefix.
+     *
+     * @return The text, which may be longer than this line.
+     * @see #getFrom()
+     * @see #getTo()
+     */
+    protected String getText() {
+        return this.text;
+    }
+
+    /**
+     * Sets the key of lines with the same effect as this line.
+     *
+     * @param key The key, or {@code null}.
+     */
+    protected void setKey(final String key) {
+        this.key = key;
+    }
+
+    /**
+     * Gives the end of the part of the text in this line.
+     *
+     * @return The index after the last character.
+     */
+    protected int getTo() {
+        return this.to;
+    }
+
+    /**
+     * Gives the time this line was queued.
+     *
+     * @return Time in milliseconds.
+     */
+    protected long getQueued() {
+        return this.queued;
+    }
+
+    /**
+     * Estimates the number of bytes this line takes on the wire.
+     *
+     * @return The length including CR-LF, capped at the maximum line
+     * length.
+     */
+    protected int length() {
+        return this.length;
+    }
+
+    @Override
+    public String toString() {
+        return this.getLine();
+    }
+}
@@ -0,0 +1,80 @@
+package net.d4rkfly3r.irc.azmate.lib;
+
+import java.nio.charset.Charset;
+
+/**
+ * Pre-encoded start of a line sent to a fixed target, like
+ * {@code PRIVMSG #channel :}. Channels and users keep one per command,
+ * so sending a message only needs to encode the text itself.
+ *
+ * @see IRCOutput#prefix(IRCOutboundPrefix, String, String)
+ */
+final class IRCOutboundPrefix {
+
+    /**
+     * The command, like {@code PRIVMSG}.
+     */
+    private final String command;
+    /**
+     * The channel or nickname.
+     */
+    private final String target;
+    /**
+     * The character set the prefix was encoded with.
+     */
+    private final Charset charset;
+    /**
+     * The encoded prefix, including the colon of the trailing parameter.
+     */
+    private final byte[] bytes;
+
+    /**
+     * Creates and encodes a new prefix.
+     *
+     * @param command The command, like {@code PRIVMSG}.
+     * @param target  The channel or nickname.
+     * @param charset The character set to encode with.
+     */
+    protected IRCOutboundPrefix(final String command, final String target, final Charset charset) {
+        this.command = command;
+        this.target = target;
+        this.charset = charset;
+        this.bytes = (command + " " + target + " :").getBytes(charset);
+    }
+
+    /**
+     * Gives the encoded prefix.
+     *
+     * @return The encoded bytes. Must not be modified.
+     */
+    protected byte[] getBytes() {
+        return this.bytes;
+    }
+
+    /**
+     * Gives the target of this prefix.
+     *
+     * @return The channel or nickname.
+     */
+    protected String getTarget() {
+        return this.target;
+    }
+
+    /**
+     * Checks whether this prefix can be used for given command and
+     * target.
+     *
+     * @param command The command.
+     * @param target  The channel or nickname.
+     * @param charset The character set of the connection.
+     * @return True if this prefix is still valid.
+     */
+    protected boolean matches(final String command, final String target, final Charset charset) {
+        return this.command.equals(command) && this.target.equals(target) && this.charset.equals(charset);
+    }
+
+    @Override
+    public String toString() {
+        return this.command + " " + this.target + " :";
+    }
+}
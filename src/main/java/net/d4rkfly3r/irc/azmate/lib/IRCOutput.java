@@ -1,30 +1,110 @@
 package net.d4rkfly3r.irc.azmate.lib;
 
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.Writer;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.CodingErrorAction;
 
 /**
  * Output thread, and manages the outgoing message queue.
+ * <p>
+ * Every line the rate limiter allows is encoded into a single reused
+ * buffer, which is written to the server at once. A burst of queued
+ * lines therefore costs one write instead of one per line.
+ * </p>
  */
 class IRCOutput extends Thread {
 
     /**
-     * Maximum line length.
+     * Maximum line length of RFC 1459, used unless the server announces
+     * a longer one.
+     *
+     * @see IRCISupport#getLineLength()
      */
     protected static final int MAX_LINE_LENGTH = 512;
+    /**
+     * Size of the buffer lines are encoded into before writing.
+     */
+    private static final int BATCH_SIZE = 16384;
+    /**
+     * Room left for the source the server puts in front of relayed
+     * lines while our own {@code nick!user@host} is unknown.
+     */
+    private static final int SOURCE_MARGIN = 100;
     /**
      * The IRCConnection.
      */
     private final IRCConnection irc;
     /**
-     * Stream used to write to the IRC server.
+     * Stream used to write to the IRC server, or {@code null} if a
+     * session is used.
+     */
+    private final OutputStream out;
+    /**
+     * Encodes lines into the batch buffer.
+     */
+    private final CharsetEncoder encoder;
+    /**
+     * Encoded lines waiting to be written, reused for every batch.
+     */
+    private final ByteBuffer batch;
+    /**
+     * Whether lines are encoded as UTF-8.
+     */
+    private final boolean utf8;
+    /**
+     * Maximum number of bytes a character takes, if not UTF-8.
      */
-    private final BufferedWriter out;
+    private final int bytesPerChar;
     /**
      * The outgoing message queue.
      */
     private final IRCQueue queue;
+    /**
+     * The event loop session driving this output, or {@code null} if
+     * this output runs as its own thread.
+     */
+    private final IRCSession session;
+    /**
+     * Rate limiter used unless the connection has its own.
+     */
+    private final IRCRateLimiter defaultLimiter;
+    /**
+     * Time this output was created, in milliseconds.
+     */
+    private final long created = System.currentTimeMillis();
+    /**
+     * Number of lines written.
+     */
+    private long lines = 0;
+    /**
+     * Number of bytes written.
+     */
+    private long bytes = 0;
+    /**
+     * Number of writes to the stream.
+     */
+    private long writes = 0;
+    /**
+     * Number of lines sent through the message queue.
+     */
+    private long queuedLines = 0;
+    /**
+     * Total time queued lines waited, in milliseconds.
+     */
+    private long totalLatency = 0;
+    /**
+     * Longest time a queued line waited, in milliseconds.
+     */
+    private long maxLatency = 0;
+    /**
+     * Number of times the server complained about flooding.
+     */
+    private int floods = 0;
 
     /**
      * Creates a new output thread.
@@ -32,13 +112,44 @@ class IRCOutput extends Thread {
      * @param irc The IRCConnection using this output thread.
      * @param out The stream to use for communication.
      */
-    protected IRCOutput(final IRCConnection irc, final Writer out) {
+    protected IRCOutput(final IRCConnection irc, final OutputStream out) {
+        this(irc, out, null);
+    }
+
+    /**
+     * Creates a new output queue drained by the event loop of given
+     * session. This thread should not be started.
+     *
+     * @param irc     The IRCConnection using this output queue.
+     * @param session The event loop session.
+     */
+    protected IRCOutput(final IRCConnection irc, final IRCSession session) {
+        this(irc, null, session);
+    }
+
+    /**
+     * Creates a new output queue.
+     *
+     * @param irc     The IRCConnection using this output thread.
+     * @param out     The stream to use for communication, or {@code null}.
+     * @param session The event loop session, or {@code null}.
+     */
+    private IRCOutput(final IRCConnection irc, final OutputStream out, final IRCSession session) {
         this.setName("sIRC-OUT:" + irc.getServerAddress() + "-" + irc.getClient().getUserName());
         this.setPriority(Thread.MIN_PRIORITY);
         this.setDaemon(true);
         this.irc = irc;
         this.queue = new IRCQueue();
-        this.out = new BufferedWriter(out);
+        this.out = out;
+        this.session = session;
+        this.encoder = irc.getCharset().newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.utf8 = StandardCharsets.UTF_8.equals(this.encoder.charset());
+        this.bytesPerChar = (int) Math.ceil(this.encoder.maxBytesPerChar());
+        // the channel copies heap buffers into a direct one anyway
+        this.batch = session != null ? ByteBuffer.allocateDirect(IRCOutput.BATCH_SIZE) : ByteBuffer.allocate(IRCOutput.BATCH_SIZE);
+        this.defaultLimiter = new IRCMessageDelayLimiter(irc);
     }
 
     /**
@@ -48,8 +159,12 @@ class IRCOutput extends Thread {
      * @see IRCConnection#disconnect()
      */
     protected void close() throws IOException {
-        this.out.flush();
-        this.out.close();
+        this.queue.close();
+        if (this.out != null) {
+            synchronized (this) {
+                this.out.close();
+            }
+        }
     }
 
     /**
@@ -58,15 +173,11 @@ class IRCOutput extends Thread {
     @Override
     public void run() {
         try {
-            boolean running = true;
-            String line;
-            while (running) {
-                Thread.sleep(this.irc.getMessageDelay());
-                line = this.queue.take();
-                if (line != null) {
-                    this.sendNow(line);
-                } else {
-                    running = false;
+            while (this.queue.await()) {
+                final long wait = this.drain(System.currentTimeMillis());
+                if (wait > 0) {
+                    // check the queue again afterwards, the limiter may have changed
+                    Thread.sleep(wait);
                 }
             }
         } catch (final InterruptedException e) {
@@ -81,16 +192,319 @@ class IRCOutput extends Thread {
     }
 
     /**
-     * Sends {@link IRCPacket} to the IRC server, using the message queue.
+     * Sends all queued messages whose delay has passed, in a single
+     * write. Used by the event loop, and by {@link #run()}.
      *
-     * @param packet The data to send.
+     * @param now The current time in milliseconds.
+     * @return Milliseconds until the next queued message may be sent, or
+     * -1 if the queue is empty.
      */
-    protected synchronized void send(final IRCPacket packet) {
-        if (this.irc.getMessageDelay() == 0) {
-            this.sendNow(packet.getRaw());
+    protected synchronized long drain(final long now) {
+        final IRCRateLimiter limiter = this.getRateLimiter();
+        try {
+            IRCOutboundLine line;
+            while ((line = this.queue.poll(now, limiter)) != null) {
+                final long latency = Math.max(0, now - line.getQueued());
+                this.queuedLines++;
+                this.totalLatency += latency;
+                this.maxLatency = Math.max(this.maxLatency, latency);
+                this.encode(line, now);
+            }
+            this.write();
+        } catch (final IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        return this.queue.getDelay();
+    }
+
+    /**
+     * Encodes a line into the batch buffer, writing the buffer first if
+     * it might not fit. Lines longer than the maximum line length are cut
+     * at a character boundary.
+     *
+     * @param line The line to encode.
+     * @param now  The current time in milliseconds.
+     * @throws IOException If the buffer could not be written.
+     */
+    private void encode(final IRCOutboundLine line, final long now) throws IOException {
+        if (IRCDebug.isEnabled()) {
+            IRCDebug.log(">>> " + line.getLine());
+        }
+        final int lineLength = this.getLineLength();
+        if (this.batch.remaining() < lineLength) {
+            this.write();
+        }
+        final int start = this.batch.position();
+        final int limit = this.batch.limit();
+        // leave room for CR-LF
+        this.batch.limit(start + lineLength - 2);
+        final IRCOutboundPrefix prefix = line.getPrefix();
+        if (prefix != null) {
+            this.batch.put(prefix.getBytes(), 0, Math.min(prefix.getBytes().length, this.batch.remaining()));
+        }
+        this.encoder.reset();
+        this.encoder.encode(CharBuffer.wrap(line.getText(), line.getFrom(), line.getTo()), this.batch, true);
+        this.encoder.flush(this.batch);
+        this.batch.limit(limit);
+        this.batch.put((byte) '\r').put((byte) '\n');
+        final int length = this.batch.position() - start;
+        this.lines++;
+        this.bytes += length;
+        this.getRateLimiter().sent(now, length);
+    }
+
+    /**
+     * Writes the encoded lines in the batch buffer, and clears it.
+     *
+     * @throws IOException If anything goes wrong while writing.
+     */
+    private void write() throws IOException {
+        if (this.batch.position() == 0) {
             return;
         }
-        this.queue.add(packet.getRaw());
+        this.batch.flip();
+        try {
+            if (this.session != null) {
+                this.session.write(this.batch);
+            } else {
+                this.out.write(this.batch.array(), this.batch.arrayOffset(), this.batch.limit());
+                this.out.flush();
+                this.writes++;
+            }
+        } finally {
+            this.batch.clear();
+        }
+    }
+
+    /**
+     * Adds a line to the message queue, unless a line with the same
+     * effect is waiting.
+     *
+     * @param line   The line to queue.
+     * @param policy What to do if the queue is full, or {@code null} to
+     *               reject the line.
+     * @return True if the line was queued.
+     */
+    private boolean enqueue(final IRCOutboundLine line, IRCOverflowPolicy policy) {
+        if ((policy == IRCOverflowPolicy.BLOCK) && (this.session != null) && this.session.inLoop()) {
+            // never block the thread that drains the queue
+            policy = IRCOverflowPolicy.DROP_NEWEST;
+        }
+        final IRCCoalescingRule rule = this.irc.getCoalescingRule();
+        if ((rule != null) && (line.getPrefix() == null)) {
+            line.setKey(rule.key(line.getText(), this.irc.getState().getCaseMapping()));
+        }
+        final boolean queued = this.queue.add(line, this.irc.getQueueCapacity(), policy);
+        if (queued && (this.session != null)) {
+            this.session.outputPending();
+        }
+        return queued;
+    }
+
+    /**
+     * Tells the rate limiter the server complained about flooding.
+     */
+    protected void flooded() {
+        synchronized (this) {
+            this.floods++;
+        }
+        this.getRateLimiter().flooded(System.currentTimeMillis());
+    }
+
+    /**
+     * Gives the maximum length of a line, as announced by the server.
+     *
+     * @return The length in bytes, including CR-LF, at most the size of
+     * the batch buffer.
+     */
+    private int getLineLength() {
+        return Math.min(this.irc.getISupport().getLineLength(), IRCOutput.BATCH_SIZE);
+    }
+
+    /**
+     * Gives the rate limiter deciding when queued messages are sent.
+     *
+     * @return The rate limiter of the connection, or the default one
+     * using the message delay.
+     */
+    protected IRCRateLimiter getRateLimiter() {
+        final IRCRateLimiter limiter = this.irc.getRateLimiter();
+        return limiter != null ? limiter : this.defaultLimiter;
+    }
+
+    /**
+     * Creates a snapshot of the outgoing traffic.
+     *
+     * @return The statistics.
+     */
+    protected synchronized IRCOutputStatistics getStatistics() {
+        final int[] pending = new int[IRCPriority.values().length];
+        for (final IRCPriority priority : IRCPriority.values()) {
+            pending[priority.ordinal()] = this.queue.size(priority);
+        }
+        final long now = System.currentTimeMillis();
+        final long writes = this.session != null ? this.session.getWrites() : this.writes;
+        return new IRCOutputStatistics(this.getRateLimiter().toString(), this.lines, this.bytes, writes, this.queuedLines,
+                this.totalLatency, this.maxLatency, pending, this.queue.targets(now), this.irc.getQueueCapacity(),
+                this.queue.getHighWater(), this.queue.getDropped(), this.queue.getSuppressed(), this.floods, now - this.created);
+    }
+
+    /**
+     * Gives a pre-encoded prefix for given command and target, reusing
+     * a cached one if it is still valid.
+     *
+     * @param cached  The prefix used before, or {@code null}.
+     * @param command The command, like {@code PRIVMSG}.
+     * @param target  The channel or nickname.
+     * @return The cached prefix, or a new one.
+     */
+    protected IRCOutboundPrefix prefix(final IRCOutboundPrefix cached, final String command, final String target) {
+        final Charset charset = this.encoder.charset();
+        if ((cached != null) && cached.matches(command, target, charset)) {
+            return cached;
+        }
+        return new IRCOutboundPrefix(command, target, charset);
+    }
+
+    /**
+     * Gives the number of characters starting at given index that
+     * belong to one code point.
+     *
+     * @param text  The text.
+     * @param index The index of the first character.
+     * @return 2 for a surrogate pair, 1 otherwise.
+     */
+    private static int chars(final String text, final int index) {
+        return Character.isHighSurrogate(text.charAt(index)) && (index + 1 < text.length())
+                && Character.isLowSurrogate(text.charAt(index + 1)) ? 2 : 1;
+    }
+
+    /**
+     * Gives the number of bytes a code point takes when encoded.
+     *
+     * @param text  The text.
+     * @param index The index of the code point.
+     * @param chars The number of characters of the code point.
+     * @return The number of bytes, or an upper limit if not UTF-8.
+     */
+    private int width(final String text, final int index, final int chars) {
+        if (!this.utf8) {
+            return chars * this.bytesPerChar;
+        }
+        final char c = text.charAt(index);
+        return c < 0x80 ? 1 : c < 0x800 ? 2 : chars == 2 ? 4 : 3;
+    }
+
+    /**
+     * Gives the number of bytes a part of a text takes when encoded.
+     *
+     * @param text The text.
+     * @param from Start of the part.
+     * @param to   End of the part.
+     * @return The number of bytes, or an upper limit if not UTF-8.
+     */
+    private int measure(final String text, final int from, final int to) {
+        int bytes = 0;
+        for (int i = from; i < to; ) {
+            final int chars = IRCOutput.chars(text, i);
+            bytes += this.width(text, i, chars);
+            i += chars;
+        }
+        return bytes;
+    }
+
+    /**
+     * Creates a queued raw line, measuring it in the charset of the
+     * connection.
+     *
+     * @param line     The raw line, without CR-LF.
+     * @param priority The priority of the line.
+     * @param queued   Time the line was queued, in milliseconds.
+     * @return The queued line.
+     */
+    private IRCOutboundLine line(final String line, final IRCPriority priority, final long queued) {
+        final int length = Math.min(this.measure(line, 0, line.length()) + 2, IRCOutput.MAX_LINE_LENGTH);
+        return new IRCOutboundLine(line, length, priority, queued);
+    }
+
+    /**
+     * Finds where a part of a text must end to fit in given number of
+     * bytes, never splitting a character. The part contains at least
+     * one character.
+     *
+     * @param text The text.
+     * @param from Start of the part.
+     * @param room The number of bytes available.
+     * @return The end of the part.
+     */
+    private int split(final String text, final int from, final int room) {
+        int bytes = 0;
+        int i = from;
+        while (i < text.length()) {
+            final int chars = IRCOutput.chars(text, i);
+            final int width = this.width(text, i, chars);
+            if ((bytes + width > room) && (i > from)) {
+                break;
+            }
+            bytes += width;
+            i += chars;
+        }
+        return i;
+    }
+
+    /**
+     * Gives the number of bytes available for a text after given prefix,
+     * so the line still fits once the server relays it with our source
+     * ({@code :nick!user@host }) in front.
+     *
+     * @param prefix The pre-encoded prefix.
+     * @return The number of bytes available for the text.
+     */
+    private int room(final IRCOutboundPrefix prefix) {
+        final IRCUser client = this.irc.getState().getClient();
+        int source = IRCOutput.SOURCE_MARGIN;
+        if ((client != null) && (client.getNick() != null) && (client.getUserName() != null)
+                && (client.getHostName() != null)) {
+            // ':' + nick + '!' + user + '@' + host + ' '
+            source = this.measure(client.getNick(), 0, client.getNick().length())
+                    + this.measure(client.getUserName(), 0, client.getUserName().length())
+                    + this.measure(client.getHostName(), 0, client.getHostName().length()) + 4;
+        }
+        return Math.max(1, this.getLineLength() - 2 - prefix.getBytes().length - source);
+    }
+
+    /**
+     * Wraps a CTCP command in CTCP marks, cutting the command off so the
+     * closing mark always fits on the line after given prefix.
+     *
+     * @param prefix  The pre-encoded prefix.
+     * @param command The CTCP command, like {@code ACTION waves}.
+     * @return The CTCP message.
+     */
+    protected String ctcp(final IRCOutboundPrefix prefix, final String command) {
+        final String text = String.valueOf(command);
+        // both marks are a single byte
+        final int end = this.split(text, 0, this.room(prefix) - 2);
+        return IRCPacket.CTCP + text.substring(0, end) + IRCPacket.CTCP;
+    }
+
+    /**
+     * Checks whether lines bypass the message queue. This is the case
+     * when the default rate limiter is used with a delay of 0.
+     *
+     * @return True if lines are written directly.
+     */
+    private boolean isDirect() {
+        return (this.irc.getRateLimiter() == null) && (this.irc.getMessageDelay() == 0);
+    }
+
+    /**
+     * Sends {@link IRCPacket} to the IRC server, using the message queue.
+     *
+     * @param packet The data to send.
+     */
+    protected void send(final IRCPacket packet) {
+        this.send(packet.getRaw(), IRCPriority.NORMAL);
     }
 
     /**
@@ -100,13 +514,83 @@ class IRCOutput extends Thread {
      * @deprecated Use {@link #send(IRCPacket)} instead.
      */
     @Deprecated
-    protected synchronized void send(final String line) {
+    protected void send(final String line) {
         //TODO: Remove in a future release.
-        if (this.irc.getMessageDelay() == 0) {
+        this.send(line, IRCPriority.NORMAL);
+    }
+
+    /**
+     * Sends raw line to the IRC server, using the message queue. If the
+     * queue is full, the overflow policy of the connection applies.
+     *
+     * @param line     The raw line to send.
+     * @param priority The priority of the line.
+     * @return True if the line was sent or queued, false if it was
+     * dropped.
+     */
+    protected boolean send(final String line, final IRCPriority priority) {
+        return this.send(this.line(line, priority, System.currentTimeMillis()), this.irc.getOverflowPolicy());
+    }
+
+    /**
+     * Sends a text after a pre-encoded prefix, using the message queue.
+     * If the queue is full, the overflow policy of the connection
+     * applies.
+     *
+     * @param prefix   The pre-encoded prefix, like {@code PRIVMSG #channel :}.
+     * @param text     The text to send.
+     * @param priority The priority of the lines.
+     * @param split    Whether a text too long for one line is sent as
+     *                 several lines, split at character boundaries. If
+     *                 not, the text is cut off.
+     * @return True if all lines were sent or queued, false if any was
+     * dropped.
+     */
+    protected boolean send(final IRCOutboundPrefix prefix, final String text, final IRCPriority priority,
+                           final boolean split) {
+        final String message = String.valueOf(text);
+        final int room = this.room(prefix);
+        final long now = System.currentTimeMillis();
+        boolean sent = true;
+        int from = 0;
+        do {
+            final int to = split ? this.split(message, from, room) : message.length();
+            final int length = prefix.getBytes().length + this.measure(message, from, to) + 2;
+            sent &= this.send(new IRCOutboundLine(prefix, message, from, to, length, priority, now),
+                    this.irc.getOverflowPolicy());
+            from = to;
+        } while (from < message.length());
+        return sent;
+    }
+
+    /**
+     * Sends a line, using the message queue unless lines are written
+     * directly.
+     *
+     * @param line   The line to send.
+     * @param policy What to do if the queue is full, or {@code null} to
+     *               reject the line.
+     * @return True if the line was sent or queued.
+     */
+    private boolean send(final IRCOutboundLine line, final IRCOverflowPolicy policy) {
+        if (this.isDirect()) {
             this.sendNow(line);
-            return;
+            return true;
         }
-        this.queue.add(line);
+        return this.enqueue(line, policy);
+    }
+
+    /**
+     * Sends raw line to the IRC server, using the message queue, unless
+     * the queue is full. Never waits and never drops other lines.
+     *
+     * @param line     The raw line to send.
+     * @param priority The priority of the line.
+     * @return True if the line was sent or queued, false if the queue is
+     * full.
+     */
+    protected boolean trySend(final String line, final IRCPriority priority) {
+        return this.send(this.line(line, priority, System.currentTimeMillis()), null);
     }
 
     /**
@@ -142,6 +626,34 @@ class IRCOutput extends Thread {
         }
     }
 
+    /**
+     * Sends a text after a pre-encoded prefix, without using the message
+     * queue. Texts too long for one line are cut off.
+     *
+     * @param prefix The pre-encoded prefix.
+     * @param text   The text to send.
+     */
+    protected void sendNow(final IRCOutboundPrefix prefix, final String text) {
+        final String message = String.valueOf(text);
+        this.sendNow(new IRCOutboundLine(prefix, message, 0, message.length(),
+                prefix.getBytes().length + this.measure(message, 0, message.length()) + 2,
+                IRCPriority.CONTROL, System.currentTimeMillis()));
+    }
+
+    /**
+     * Writes a line, without using the message queue.
+     *
+     * @param line The line to send.
+     */
+    private synchronized void sendNow(final IRCOutboundLine line) {
+        try {
+            this.encode(line, System.currentTimeMillis());
+            this.write();
+        } catch (final IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
     /**
      * Sends {@link IRCPacket} to the IRC server, without using the message
      * queue.
@@ -162,13 +674,10 @@ class IRCOutput extends Thread {
      * @throws IOException If anything goes wrong while sending this
      *                     message.
      */
-    private synchronized void sendNowEx(String line) throws IOException {
-        if (line.length() > (IRCOutput.MAX_LINE_LENGTH - 2)) {
-            line = line.substring(0, IRCOutput.MAX_LINE_LENGTH - 2);
-        }
-        IRCDebug.log(">>> " + line);
-        this.out.write(line + IRCConnection.ENDLINE);
-        this.out.flush();
+    private synchronized void sendNowEx(final String line) throws IOException {
+        final long now = System.currentTimeMillis();
+        this.encode(this.line(line, IRCPriority.CONTROL, now), now);
+        this.write();
     }
 
     /**
@@ -0,0 +1,308 @@
+package net.d4rkfly3r.irc.azmate.lib;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Snapshot of the outgoing traffic of an {@link IRCConnection}.
+ *
+ * @see IRCConnection#getOutputStatistics()
+ */
+@SuppressWarnings("unused")
+public final class IRCOutputStatistics {
+
+    /**
+     * Description of the rate limiter in use.
+     */
+    private final String rateLimiter;
+    /**
+     * Number of lines written.
+     */
+    private final long lines;
+    /**
+     * Number of bytes written.
+     */
+    private final long bytes;
+    /**
+     * Number of writes to the connection.
+     */
+    private final long writes;
+    /**
+     * Number of lines sent through the message queue.
+     */
+    private final long queuedLines;
+    /**
+     * Total time queued lines waited, in milliseconds.
+     */
+    private final long totalLatency;
+    /**
+     * Longest time a queued line waited, in milliseconds.
+     */
+    private final long maxLatency;
+    /**
+     * Number of lines currently waiting, per priority.
+     */
+    private final int[] pending;
+    /**
+     * Lines waiting per target.
+     */
+    private final List<IRCTargetStatistics> targets;
+    /**
+     * Maximum number of waiting lines.
+     */
+    private final int capacity;
+    /**
+     * Highest number of lines ever waiting.
+     */
+    private final int highWater;
+    /**
+     * Number of lines dropped because the queue was full.
+     */
+    private final long dropped;
+    /**
+     * Number of lines not queued because the same line was waiting.
+     */
+    private final long suppressed;
+    /**
+     * Number of times the server complained about flooding.
+     */
+    private final int floods;
+    /**
+     * Milliseconds covered by this snapshot.
+     */
+    private final long elapsed;
+
+    /**
+     * Creates a new snapshot.
+     *
+     * @param rateLimiter  Description of the rate limiter in use.
+     * @param lines        Number of lines written.
+     * @param bytes        Number of bytes written.
+     * @param writes       Number of writes to the connection.
+     * @param queuedLines  Number of lines sent through the message queue.
+     * @param totalLatency Total time queued lines waited.
+     * @param maxLatency   Longest time a queued line waited.
+     * @param pending      Number of lines currently waiting, per priority.
+     * @param targets      Lines currently waiting, per target.
+     * @param capacity     Maximum number of waiting lines.
+     * @param highWater    Highest number of lines ever waiting.
+     * @param dropped      Number of lines dropped because the queue was
+     *                     full.
+     * @param suppressed   Number of lines not queued because a line with
+     *                     the same effect was waiting.
+     * @param floods       Number of flood complaints.
+     * @param elapsed      Milliseconds covered by this snapshot.
+     */
+    protected IRCOutputStatistics(final String rateLimiter, final long lines, final long bytes, final long writes,
+                                  final long queuedLines,
+                                  final long totalLatency, final long maxLatency, final int[] pending,
+                                  final List<IRCTargetStatistics> targets, final int capacity, final int highWater,
+                                  final long dropped, final long suppressed, final int floods,
+                                  final long elapsed) {
+        this.rateLimiter = rateLimiter;
+        this.lines = lines;
+        this.bytes = bytes;
+        this.writes = writes;
+        this.queuedLines = queuedLines;
+        this.totalLatency = totalLatency;
+        this.maxLatency = maxLatency;
+        this.pending = pending;
+        this.targets = Collections.unmodifiableList(targets);
+        this.capacity = capacity;
+        this.highWater = highWater;
+        this.dropped = dropped;
+        this.suppressed = suppressed;
+        this.floods = floods;
+        this.elapsed = elapsed;
+    }
+
+    /**
+     * Gives the average time a queued line waited before being sent.
+     *
+     * @return The average latency in milliseconds.
+     */
+    public double getAverageLatency() {
+        return this.queuedLines == 0 ? 0 : (double) this.totalLatency / this.queuedLines;
+    }
+
+    /**
+     * Gives the number of bytes written.
+     *
+     * @return The number of bytes.
+     */
+    public long getBytes() {
+        return this.bytes;
+    }
+
+    /**
+     * Gives the average number of bytes written per second.
+     *
+     * @return Bytes per second.
+     */
+    public double getBytesPerSecond() {
+        return this.elapsed <= 0 ? 0 : (this.bytes * 1000d) / this.elapsed;
+    }
+
+    /**
+     * Gives the maximum number of lines waiting in the queue.
+     *
+     * @return The queue capacity.
+     */
+    public int getCapacity() {
+        return this.capacity;
+    }
+
+    /**
+     * Gives the number of lines dropped because the queue was full.
+     *
+     * @return The number of dropped lines.
+     */
+    public long getDropped() {
+        return this.dropped;
+    }
+
+    /**
+     * Gives the time covered by this snapshot, since the output was
+     * created.
+     *
+     * @return The elapsed time in milliseconds.
+     */
+    public long getElapsed() {
+        return this.elapsed;
+    }
+
+    /**
+     * Gives the number of times the server complained about flooding.
+     *
+     * @return The number of complaints.
+     */
+    public int getFloods() {
+        return this.floods;
+    }
+
+    /**
+     * Gives the highest number of lines ever waiting in the queue.
+     *
+     * @return The high-water mark.
+     */
+    public int getHighWater() {
+        return this.highWater;
+    }
+
+    /**
+     * Gives the number of lines written.
+     *
+     * @return The number of lines.
+     */
+    public long getLines() {
+        return this.lines;
+    }
+
+    /**
+     * Gives the average number of lines written per second.
+     *
+     * @return Lines per second.
+     */
+    public double getLinesPerSecond() {
+        return this.elapsed <= 0 ? 0 : (this.lines * 1000d) / this.elapsed;
+    }
+
+    /**
+     * Gives the average number of lines written at once.
+     *
+     * @return Lines per write.
+     */
+    public double getLinesPerWrite() {
+        return this.writes == 0 ? 0 : (double) this.lines / this.writes;
+    }
+
+    /**
+     * Gives the longest time a queued line waited before being sent.
+     *
+     * @return The maximum latency in milliseconds.
+     */
+    public long getMaxLatency() {
+        return this.maxLatency;
+    }
+
+    /**
+     * Gives the number of lines currently waiting in the queue.
+     *
+     * @return The number of waiting lines.
+     */
+    public int getPending() {
+        int pending = 0;
+        for (final int lane : this.pending) {
+            pending += lane;
+        }
+        return pending;
+    }
+
+    /**
+     * Gives the number of lines with given priority currently waiting in
+     * the queue.
+     *
+     * @param priority The priority.
+     * @return The number of waiting lines.
+     */
+    public int getPending(final IRCPriority priority) {
+        return this.pending[priority.ordinal()];
+    }
+
+    /**
+     * Gives the lines currently waiting for each channel or user. Only
+     * targets with waiting lines are included.
+     *
+     * @return The statistics per target.
+     */
+    public List<IRCTargetStatistics> getTargets() {
+        return this.targets;
+    }
+
+    /**
+     * Gives the number of lines sent through the message queue.
+     *
+     * @return The number of queued lines.
+     */
+    public long getQueuedLines() {
+        return this.queuedLines;
+    }
+
+    /**
+     * Gives a description of the rate limiter in use.
+     *
+     * @return The rate limiter description.
+     */
+    public String getRateLimiter() {
+        return this.rateLimiter;
+    }
+
+    /**
+     * Gives the number of lines not queued because a line with the same
+     * effect was still waiting.
+     *
+     * @return The number of suppressed lines.
+     * @see IRCCoalescingRule
+     */
+    public long getSuppressed() {
+        return this.suppressed;
+    }
+
+    /**
+     * Gives the number of writes to the connection. Lines sent together
+     * are written at once, so this is usually lower than the number of
+     * lines.
+     *
+     * @return The number of writes.
+     */
+    public long getWrites() {
+        return this.writes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d lines, %d bytes, %d writes, %.1f lines/s, latency avg %.1fms max %dms, %d/%d pending (max %d), %d dropped, %d suppressed, %d floods",
+                this.rateLimiter, this.lines, this.bytes, this.writes, this.getLinesPerSecond(), this.getAverageLatency(),
+                this.maxLatency, this.getPending(), this.capacity, this.highWater, this.dropped, this.suppressed, this.floods);
+    }
+}
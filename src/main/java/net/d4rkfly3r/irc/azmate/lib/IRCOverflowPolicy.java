@@ -0,0 +1,32 @@
+package net.d4rkfly3r.irc.azmate.lib;
+
+/**
+ * What happens when a message is sent while the outgoing message queue
+ * is full.
+ *
+ * @see IRCConnection#setOverflowPolicy(IRCOverflowPolicy)
+ * @see IRCConnection#setQueueCapacity(int)
+ */
+public enum IRCOverflowPolicy {
+
+    /**
+     * Wait until there is room in the queue. (Default) Messages sent
+     * from an event loop thread are dropped instead, as waiting there
+     * would stop the queue from being drained.
+     */
+    BLOCK,
+    /**
+     * Drop the oldest waiting message with the lowest priority.
+     */
+    DROP_OLDEST,
+    /**
+     * Drop the new message.
+     */
+    DROP_NEWEST,
+    /**
+     * Drop the oldest waiting message for the same channel or user as the
+     * new message. If there is none, the oldest waiting message with the
+     * lowest priority is dropped.
+     */
+    COALESCE_TARGET
+}
@@ -1,11 +1,20 @@
 package net.d4rkfly3r.irc.azmate.lib;
 
+import java.nio.charset.Charset;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+
 /**
  * Parses a raw server response into a more readable format.
  * <p>
  * <pre>
  * :&lt;prefix&gt; &lt;command&gt; &lt;receiver&gt; [&lt;arguments&gt;] [:&lt;message&gt;]
  * </pre>
+ * <p>
+ * Packets received from the server only record where each field is
+ * located in the raw line; fields are decoded the first time they are
+ * requested.
+ * </p>
  */
 public final class IRCPacket {
 
@@ -33,10 +42,69 @@ public final class IRCPacket {
      * Reply to NAMES (See RFC).
      */
     protected static final int RPL_NAMREPLY = 353;
+    /**
+     * Reply to WHO, one line per user.
+     */
+    protected static final int RPL_WHOREPLY = 352;
+    /**
+     * Termination of an RPL_WHOREPLY or RPL_WHOSPCRPL list.
+     */
+    protected static final int RPL_ENDOFWHO = 315;
+    /**
+     * Reply to WHO with the fields asked for. (WHOX, not supported by
+     * RFC!)
+     */
+    protected static final int RPL_WHOSPCRPL = 354;
     /**
      * Sent to the client to redirect it to another server.
      */
     protected static final int RPL_BOUNCE = 10;
+    /**
+     * Features supported by the server. (Not supported by RFC!)
+     */
+    protected static final int RPL_ISUPPORT = 5;
+    /**
+     * Server dropped a command because it is too busy.
+     */
+    protected static final int RPL_TRYAGAIN = 263;
+    /**
+     * Target change too fast. (Not supported by RFC!)
+     */
+    protected static final int ERR_TARGETTOOFAST = 439;
+    /**
+     * Too many target changes. (Not supported by RFC!)
+     */
+    protected static final int ERR_TARGCHANGE = 707;
+    /**
+     * Logged in to an account, with the account name. (SASL, not
+     * supported by RFC!)
+     */
+    protected static final int RPL_LOGGEDIN = 900;
+    /**
+     * Authentication failed because the account is locked. (SASL, not
+     * supported by RFC!)
+     */
+    protected static final int ERR_NICKLOCKED = 902;
+    /**
+     * Authentication succeeded. (SASL, not supported by RFC!)
+     */
+    protected static final int RPL_SASLSUCCESS = 903;
+    /**
+     * Authentication failed. (SASL, not supported by RFC!)
+     */
+    protected static final int ERR_SASLFAIL = 904;
+    /**
+     * Authentication data too long. (SASL, not supported by RFC!)
+     */
+    protected static final int ERR_SASLTOOLONG = 905;
+    /**
+     * Authentication aborted. (SASL, not supported by RFC!)
+     */
+    protected static final int ERR_SASLABORTED = 906;
+    /**
+     * Already authenticated. (SASL, not supported by RFC!)
+     */
+    protected static final int ERR_SASLALREADY = 907;
     /**
      * CTCP message mark.
      */
@@ -45,6 +113,10 @@ public final class IRCPacket {
      * Arguments separated by a space
      */
     private String arguments = null;
+    /**
+     * Cached arguments array.
+     */
+    private String[] argumentsArray = null;
     /**
      * The numeric server reply.
      */
@@ -73,6 +145,49 @@ public final class IRCPacket {
      * The sender user object.
      */
     private IRCUser sender = null;
+    /**
+     * The message tags, without the leading {@code @}.
+     */
+    private String tags = null;
+    /**
+     * Raw line this packet is a view of, or {@code null} if all fields
+     * are materialized.
+     */
+    private byte[] buffer = null;
+    /**
+     * Character set used to decode the raw line.
+     */
+    private Charset charset = null;
+    /**
+     * The IRCConnection that received this packet.
+     */
+    private IRCConnection irc = null;
+    /**
+     * Location of the message tags in the raw line, or -1 if there are
+     * none.
+     */
+    private int tagsStart = -1;
+    private int tagsEnd = 0;
+    /**
+     * Location of the prefix in the raw line, or -1 if there is none.
+     */
+    private int prefixStart = -1;
+    private int prefixEnd = 0;
+    /**
+     * Location of the command in the raw line.
+     */
+    private int commandStart = 0;
+    private int commandEnd = 0;
+    /**
+     * Location of the arguments in the raw line, or -1 if there are none.
+     */
+    private int argumentsStart = -1;
+    private int argumentsEnd = 0;
+    /**
+     * Location of the message in the raw line, or -1 if there is none.
+     */
+    private int messageStart = -1;
+    private int messageEnd = 0;
 
     /**
      * Creates a new IRCPacket using the data from given raw IRC data.
@@ -80,61 +195,17 @@ public final class IRCPacket {
      * @param line Raw data from the server.
      * @param irc  The IRCConnection used to send messages.
      */
-    public IRCPacket(String line, final IRCConnection irc) {
-        line = IRCColors.remove(line);
-        final int locLineStart = line.indexOf(':') + 1;
-        int locCommand;
-        // some messages don't have a prefix
-        if ((locLineStart > 1) || (locLineStart < 0)) {
-            locCommand = 0;
-            this.prefix = null;
-        } else {
-            // space between sender and command
-            locCommand = line.indexOf(' ', locLineStart + 1);
-            // retrieve sender
-            this.prefix = line.substring(locLineStart, locCommand);
-        }
-        // space between command and receiver
-        final int locArgs = line.indexOf(' ', locCommand + 1);
-        // retrieve command
-        this.command = line.substring(locCommand + 1, locArgs);
-        // colon between arguments and message
-        final int locMsg = line.indexOf(':', locArgs);
-        // if there are arguments, save them
-        if ((locMsg - locArgs) > 1) {
-            this.arguments = line.substring(locArgs + 1, locMsg - 1);
-        } else if (locMsg < 0) {
-            // there is no message, so arguments go to the end
-            this.arguments = line.substring(locArgs + 1);
-        }
-        // If there is a message, save it
-        if (locMsg > 0) {
-            this.message = line.substring(locMsg + 1);
-            // check if this message is a CTCP request
-            if (this.message.startsWith(IRCPacket.CTCP)
-                    && this.message.endsWith(IRCPacket.CTCP)) {
-                this.ctcp = true;
-                this.message = this.message.substring(1,
-                        this.message.length() - 1);
-            }
-        }
-        // check if the command is a server reply
-        this.cmdNumeric = this.getInteger(this.command);
-        if (this.cmdNumeric != -1) {
-            // numeric server response
-            this.numeric = true;
-        }
-        // if possible, parse the sender into a user object
-        // TODO: Get this out of here, this shouldn't be in IRCPacket..
-        if ((this.prefix != null) && (this.prefix.indexOf('!') > 0)) {
-            final String[] stuff = this.prefix.split("@|!");
-            if (stuff.length == 3) {
-                this.sender = new IRCUser(stuff[0], stuff[1], stuff[2], null, irc);
-            } else if (stuff.length == 1)
-                this.sender = new IRCUser(stuff[0], irc);
-        } else if (prefix != null) {
-            this.sender = new IRCUser(this.prefix, irc);
-        }
+    public IRCPacket(final String line, final IRCConnection irc) {
+        final Charset charset = irc != null ? irc.getCharset() : Charset.defaultCharset();
+        final byte[] raw = line.getBytes(charset);
+        this.reset(raw, 0, raw.length, charset, irc);
+    }
+
+    /**
+     * Creates a new, empty IRCPacket to be used as a reusable view with
+     * {@link #reset(IRCLineFramer, IRCConnection)}.
+     */
+    protected IRCPacket() {
     }
 
     /**
@@ -159,6 +230,9 @@ public final class IRCPacket {
      * @return Arguments string, or {@code null} if there were none.
      */
     public String getArguments() {
+        if ((this.arguments == null) && (this.argumentsStart >= 0)) {
+            this.arguments = this.decode(this.argumentsStart, this.argumentsEnd);
+        }
         return this.arguments;
     }
 
@@ -168,7 +242,10 @@ public final class IRCPacket {
      * @return Arguments array, or {@code null} if there were none.
      */
     public String[] getArgumentsArray() {
-        return this.arguments != null ? this.arguments.split(" ") : null;
+        if ((this.argumentsArray == null) && (this.getArguments() != null)) {
+            this.argumentsArray = this.arguments.split(" ");
+        }
+        return this.argumentsArray;
     }
 
     /**
@@ -177,21 +254,102 @@ public final class IRCPacket {
      * @return The command string.
      */
     public String getCommand() {
+        if ((this.command == null) && (this.buffer != null)) {
+            this.command = this.decode(this.commandStart, this.commandEnd);
+        }
         return this.command;
     }
 
     /**
-     * Tries to parse given string to an integer.
+     * Computes the hash code of the command. For ASCII commands this is
+     * equal to the {@link String#hashCode()} of {@link #getCommand()},
+     * but does not decode the command.
      *
-     * @param parse String to parse.
-     * @return Integer value, or -1 if the string is not an integer.
+     * @return The hash code of the command.
      */
-    private int getInteger(final String parse) {
-        try {
-            return Integer.parseInt(parse);
-        } catch (final NumberFormatException ex) {
+    protected int getCommandHash() {
+        if (this.buffer == null) {
+            return this.command.hashCode();
+        }
+        int hash = 0;
+        for (int i = this.commandStart; i < this.commandEnd; i++) {
+            hash = (31 * hash) + (this.buffer[i] & 0xff);
+        }
+        return hash;
+    }
+
+    /**
+     * Checks whether this packet has given command, without decoding it.
+     *
+     * @param command The ASCII command to compare with.
+     * @return True if the command of this packet equals given command.
+     */
+    protected boolean isCommand(final String command) {
+        if (this.buffer == null) {
+            return command.equals(this.command);
+        }
+        if ((this.commandEnd - this.commandStart) != command.length()) {
+            return false;
+        }
+        for (int i = 0; i < command.length(); i++) {
+            if ((this.buffer[this.commandStart + i] & 0xff) != command.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decodes a slice of the raw line.
+     *
+     * @param from Start of the slice.
+     * @param to   End of the slice.
+     * @return The decoded slice.
+     */
+    private String decode(final int from, final int to) {
+        return new String(this.buffer, from, to - from, this.charset);
+    }
+
+    /**
+     * Creates a copy of this packet that does not depend on the raw
+     * line. Use this before handing a reusable packet to code that
+     * might keep it.
+     *
+     * @return A packet with all fields materialized.
+     */
+    public IRCPacket detach() {
+        if (this.buffer == null) {
+            return this;
+        }
+        final IRCPacket copy = new IRCPacket(this.getPrefix(), this.getCommand(), this.getArguments(), this.getMessage());
+        copy.ctcp = this.ctcp;
+        copy.numeric = this.numeric;
+        copy.cmdNumeric = this.cmdNumeric;
+        copy.sender = this.getSender();
+        copy.tags = this.getTags();
+        return copy;
+    }
+
+    /**
+     * Parses the numeric reply code of the command without throwing
+     * exceptions for non-numeric commands.
+     *
+     * @return The three digit reply code, or -1 if the command is not
+     * numeric.
+     */
+    private int parseNumeric() {
+        if ((this.commandEnd - this.commandStart) != 3) {
             return -1;
         }
+        int value = 0;
+        for (int i = this.commandStart; i < this.commandEnd; i++) {
+            final int digit = this.buffer[i] - '0';
+            if ((digit < 0) || (digit > 9)) {
+                return -1;
+            }
+            value = (value * 10) + digit;
+        }
+        return value;
     }
 
     /**
@@ -200,6 +358,10 @@ public final class IRCPacket {
      * @return Message string, or {@code null} if there was none.
      */
     public String getMessage() {
+        if ((this.message == null) && (this.messageStart >= 0)) {
+            // markup is only stripped from the message
+            this.message = IRCColors.remove(this.decode(this.messageStart, this.messageEnd));
+        }
         return this.message;
     }
 
@@ -219,6 +381,9 @@ public final class IRCPacket {
      * @return The sender string.
      */
     public String getPrefix() {
+        if ((this.prefix == null) && (this.prefixStart >= 0)) {
+            this.prefix = this.decode(this.prefixStart, this.prefixEnd);
+        }
         return this.prefix;
     }
 
@@ -245,21 +410,316 @@ public final class IRCPacket {
 
     /**
      * Returns the {@link IRCUser} that caused the server to send this packet.
+     * Users sharing a channel with us are resolved to their shared
+     * {@link IRCUser} object, whose username and hostname are updated
+     * from the prefix.
      *
      * @return Sender {@link IRCUser}, or {@code null} if the sender was not a
      * user.
      */
     public IRCUser getSender() {
+        if ((this.sender == null) && (this.prefixStart >= 0)) {
+            // parse the sender into a user object
+            int bang = -1;
+            int at = -1;
+            for (int i = this.prefixStart; i < this.prefixEnd; i++) {
+                if ((this.buffer[i] == '!') && (bang < 0)) {
+                    bang = i;
+                } else if ((this.buffer[i] == '@') && (bang >= 0)) {
+                    at = i;
+                    break;
+                }
+            }
+            final int nickEnd = bang > this.prefixStart ? bang : this.prefixEnd;
+            final IRCUser shared = this.findUser(this.prefixStart, nickEnd);
+            if (shared != null) {
+                // our own username is needed to register again
+                if (bang > this.prefixStart && at > bang && shared != this.irc.getState().getClient()) {
+                    if (!this.matches(shared.getUserName(), bang + 1, at)) {
+                        shared.setUserName(this.decode(bang + 1, at));
+                    }
+                    if (!this.matches(shared.getHostName(), at + 1, this.prefixEnd)) {
+                        shared.setHostName(this.decode(at + 1, this.prefixEnd));
+                    } else {
+                        shared.setInfoTime(IRCUserInfo.HOST, System.currentTimeMillis());
+                    }
+                }
+                this.sender = shared;
+            } else if (bang > this.prefixStart && at > bang) {
+                this.sender = new IRCUser(this.decode(this.prefixStart, bang), this.decode(bang + 1, at), this.decode(at + 1, this.prefixEnd), null, this.irc);
+            } else if (bang > this.prefixStart) {
+                this.sender = new IRCUser(this.decode(this.prefixStart, bang), this.irc);
+            } else {
+                this.sender = new IRCUser(this.getPrefix(), this.irc);
+            }
+        }
         return this.sender;
     }
 
+    /**
+     * Looks up the shared channel object for the first argument of the
+     * line, without decoding it if it is plain ASCII.
+     *
+     * @return The shared channel object, or {@code null} if unknown.
+     */
+    protected IRCChannel findChannel() {
+        if ((this.irc == null) || (this.argumentsStart < 0)) {
+            return null;
+        }
+        int to = this.argumentsStart;
+        while ((to < this.argumentsEnd) && (this.buffer[to] != ' ')) {
+            if (this.buffer[to] < 0) {
+                return this.irc.getState().getChannel(this.getArgumentsArray()[0]);
+            }
+            to++;
+        }
+        return this.irc.getState().getChannel(this.buffer, this.argumentsStart, to);
+    }
+
+    /**
+     * Counts the members listed in a {@code RPL_NAMREPLY} line without
+     * decoding them.
+     *
+     * @return The number of members.
+     */
+    protected int countNames() {
+        if (this.messageStart < 0) {
+            return 0;
+        }
+        int count = 0;
+        for (int i = this.messageStart; i < this.messageEnd; i++) {
+            if ((this.buffer[i] != ' ') && ((i == this.messageStart) || (this.buffer[i - 1] == ' '))) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Adds the members listed in a {@code RPL_NAMREPLY} line to a burst.
+     * Nicknames may carry all privilege prefixes of a user
+     * ({@code multi-prefix}) and the username and hostname
+     * ({@code userhost-in-names}). Known users are looked up without
+     * decoding their nickname.
+     *
+     * @param burst The burst to add the members to.
+     */
+    protected void readNames(final IRCNamesBurst burst) {
+        if ((this.irc == null) || (this.messageStart < 0)) {
+            return;
+        }
+        final IRCISupport support = this.irc.getISupport();
+        final IRCUser client = this.irc.getState().getClient();
+        int i = this.messageStart;
+        while (i < this.messageEnd) {
+            if (this.buffer[i] == ' ') {
+                i++;
+                continue;
+            }
+            // collect the privilege prefixes
+            int bits = 0;
+            int rank;
+            while ((i < this.messageEnd) && ((rank = support.getPrefixCharRank((char) (this.buffer[i] & 0xff))) >= 0)) {
+                if (rank < Integer.SIZE) {
+                    bits |= 1 << rank;
+                }
+                i++;
+            }
+            final int nickStart = i;
+            int bang = -1;
+            int at = -1;
+            while ((i < this.messageEnd) && (this.buffer[i] != ' ')) {
+                if ((this.buffer[i] == '!') && (bang < 0)) {
+                    bang = i;
+                } else if ((this.buffer[i] == '@') && (bang >= 0) && (at < 0)) {
+                    at = i;
+                }
+                i++;
+            }
+            final int nickEnd = bang >= 0 ? bang : i;
+            if (nickStart == nickEnd) {
+                continue;
+            }
+            IRCUser user = this.findUser(nickStart, nickEnd);
+            if (user == null) {
+                // privileges are kept per channel, not on the user
+                final String nick = this.decode(nickStart, nickEnd);
+                if (at > bang) {
+                    user = new IRCUser(nick, this.decode(bang + 1, at), this.decode(at + 1, i), null, this.irc);
+                } else {
+                    user = new IRCUser(nick, this.irc);
+                }
+            } else if ((at > bang) && (user != client)) {
+                if (!this.matches(user.getUserName(), bang + 1, at)) {
+                    user.setUserName(this.decode(bang + 1, at));
+                }
+                if (!this.matches(user.getHostName(), at + 1, i)) {
+                    user.setHostName(this.decode(at + 1, i));
+                } else {
+                    user.setInfoTime(IRCUserInfo.HOST, System.currentTimeMillis());
+                }
+            }
+            burst.add(user, bits);
+        }
+    }
+
+    /**
+     * Looks up the shared user object for a nickname in the line,
+     * without decoding it if it is plain ASCII.
+     *
+     * @param from Start of the nickname.
+     * @param to   End of the nickname.
+     * @return The shared user object, or {@code null} if unknown.
+     */
+    private IRCUser findUser(final int from, final int to) {
+        if ((this.irc == null) || (from >= to)) {
+            return null;
+        }
+        for (int i = from; i < to; i++) {
+            if (this.buffer[i] < 0) {
+                return this.irc.getState().getUser(this.decode(from, to));
+            }
+        }
+        return this.irc.getState().getUser(this.buffer, from, to);
+    }
+
+    /**
+     * Compares a string with a slice of the line.
+     *
+     * @param value The string, may be {@code null}.
+     * @param from  Start of the slice.
+     * @param to    End of the slice.
+     * @return True if the string equals the decoded slice.
+     */
+    private boolean matches(final String value, final int from, final int to) {
+        if (value == null) {
+            return false;
+        }
+        if (value.length() != (to - from)) {
+            return value.equals(this.decode(from, to));
+        }
+        for (int i = 0; i < value.length(); i++) {
+            final byte b = this.buffer[from + i];
+            if (b < 0) {
+                // not ASCII, compare decoded
+                return value.equals(this.decode(from, to));
+            } else if (value.charAt(i) != b) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gives the value of a message tag.
+     *
+     * @param key The tag name, like {@code batch} or {@code time}.
+     * @return The unescaped value, an empty string if the tag has no
+     * value, or {@code null} if the line does not have the tag.
+     */
+    public String getTag(final String key) {
+        final String tags = this.getTags();
+        if (tags == null) {
+            return null;
+        }
+        int start = 0;
+        while (start < tags.length()) {
+            int end = tags.indexOf(';', start);
+            if (end < 0) {
+                end = tags.length();
+            }
+            final int equals = tags.indexOf('=', start);
+            final int keyEnd = (equals >= 0) && (equals < end) ? equals : end;
+            if (((keyEnd - start) == key.length()) && tags.startsWith(key, start)) {
+                return keyEnd == end ? "" : IRCPacket.unescapeTag(tags, keyEnd + 1, end);
+            }
+            start = end + 1;
+        }
+        return null;
+    }
+
+    /**
+     * Gives when the server received this line, from the {@code time}
+     * tag. ({@code server-time})
+     *
+     * @return The time in milliseconds, or -1 if the line has no valid
+     * time tag.
+     */
+    public long getServerTime() {
+        final String time = this.getTag("time");
+        if (time == null) {
+            return -1;
+        }
+        try {
+            return Instant.parse(time).toEpochMilli();
+        } catch (final DateTimeParseException ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * Gives the message tags of this line, as received.
+     *
+     * @return The tags without the leading {@code @}, or {@code null} if
+     * there are none.
+     * @see #getTag(String)
+     */
+    public String getTags() {
+        if ((this.tags == null) && (this.tagsStart >= 0)) {
+            this.tags = this.decode(this.tagsStart, this.tagsEnd);
+        }
+        return this.tags;
+    }
+
+    /**
+     * Unescapes a message tag value.
+     *
+     * @param tags  The message tags.
+     * @param start Start of the value.
+     * @param end   End of the value.
+     * @return The unescaped value.
+     */
+    private static String unescapeTag(final String tags, final int start, final int end) {
+        final int escape = tags.indexOf('\\', start);
+        if ((escape < 0) || (escape >= end)) {
+            return tags.substring(start, end);
+        }
+        final StringBuilder value = new StringBuilder(end - start);
+        for (int i = start; i < end; i++) {
+            final char c = tags.charAt(i);
+            if (c != '\\') {
+                value.append(c);
+            } else if (++i < end) {
+                // escaped character, a trailing backslash is dropped
+                switch (tags.charAt(i)) {
+                    case ':':
+                        value.append(';');
+                        break;
+                    case 's':
+                        value.append(' ');
+                        break;
+                    case 'r':
+                        value.append('\r');
+                        break;
+                    case 'n':
+                        value.append('\n');
+                        break;
+                    default:
+                        value.append(tags.charAt(i));
+                        break;
+                }
+            }
+        }
+        return value.toString();
+    }
+
     /**
      * Checks whether this line had arguments.
      *
      * @return True if there were arguments.
      */
     public boolean hasArguments() {
-        return (this.arguments != null) && (this.arguments.length() > 0);
+        return (this.getArguments() != null) && (this.arguments.length() > 0);
     }
 
     /**
@@ -268,7 +728,7 @@ public final class IRCPacket {
      * @return True if there was a message.
      */
     public boolean hasMessage() {
-        return (this.message != null) && (this.message.trim().length() > 0);
+        return (this.getMessage() != null) && (this.message.trim().length() > 0);
     }
 
     /**
@@ -288,4 +748,119 @@ public final class IRCPacket {
     public boolean isNumeric() {
         return this.numeric;
     }
+
+    /**
+     * Makes this packet a view of the current line of given framer.
+     * Fields are only decoded when requested, so the packet and the
+     * values it returns must not be used after the framer advanced.
+     *
+     * @param framer The framer holding the raw line.
+     * @param irc    The IRCConnection that received the line.
+     * @return This packet.
+     * @see #detach()
+     */
+    protected IRCPacket reset(final IRCLineFramer framer, final IRCConnection irc) {
+        return this.reset(framer.getBuffer(), framer.getLineStart(), framer.getLineEnd(), framer.getCharset(), irc);
+    }
+
+    /**
+     * Makes this packet a view of given raw line.
+     *
+     * @param buffer  The buffer holding the raw line.
+     * @param from    Start of the line in the buffer.
+     * @param to      End of the line in the buffer.
+     * @param charset The character set used to decode the line.
+     * @param irc     The IRCConnection that received the line.
+     * @return This packet.
+     */
+    private IRCPacket reset(final byte[] buffer, final int from, final int to, final Charset charset, final IRCConnection irc) {
+        this.buffer = buffer;
+        this.charset = charset;
+        this.irc = irc;
+        this.arguments = null;
+        this.argumentsArray = null;
+        this.command = null;
+        this.message = null;
+        this.prefix = null;
+        this.sender = null;
+        this.tags = null;
+        this.ctcp = false;
+        this.tagsStart = -1;
+        this.prefixStart = -1;
+        this.argumentsStart = -1;
+        this.messageStart = -1;
+        int i = from;
+        // message tags come before the prefix
+        if ((i < to) && (buffer[i] == '@')) {
+            this.tagsStart = i + 1;
+            this.tagsEnd = IRCPacket.skipWord(buffer, i, to);
+            i = this.tagsEnd;
+            while ((i < to) && (buffer[i] == ' ')) {
+                i++;
+            }
+        }
+        // some messages don't have a prefix
+        if ((i < to) && (buffer[i] == ':')) {
+            this.prefixStart = i + 1;
+            this.prefixEnd = IRCPacket.skipWord(buffer, i, to);
+            i = this.prefixEnd + 1;
+        }
+        this.commandStart = Math.min(i, to);
+        this.commandEnd = IRCPacket.skipWord(buffer, this.commandStart, to);
+        // arguments go up to the colon that starts the message
+        i = this.commandEnd;
+        while ((i < to) && (buffer[i] == ' ')) {
+            i++;
+        }
+        int argumentsEnd = to;
+        if ((i < to) && (buffer[i] == ':')) {
+            argumentsEnd = i;
+            this.messageStart = i + 1;
+        } else {
+            for (int j = i; j < (to - 1); j++) {
+                if ((buffer[j] == ' ') && (buffer[j + 1] == ':')) {
+                    argumentsEnd = j;
+                    this.messageStart = j + 2;
+                    break;
+                }
+            }
+        }
+        while ((argumentsEnd > i) && (buffer[argumentsEnd - 1] == ' ')) {
+            argumentsEnd--;
+        }
+        if (argumentsEnd > i) {
+            this.argumentsStart = i;
+            this.argumentsEnd = argumentsEnd;
+        }
+        if (this.messageStart >= 0) {
+            this.messageEnd = to;
+            // check if this message is a CTCP request
+            if (((to - this.messageStart) >= 2) && (buffer[this.messageStart] == 1) && (buffer[to - 1] == 1)) {
+                this.ctcp = true;
+                this.messageStart++;
+                this.messageEnd--;
+            }
+        }
+        // check if the command is a server reply
+        this.cmdNumeric = this.parseNumeric();
+        this.numeric = this.cmdNumeric != -1;
+        return this;
+    }
+
+    /**
+     * Finds the end of the space separated word starting at given offset.
+     *
+     * @param buffer The raw line.
+     * @param from   Start of the word.
+     * @param to     End of the line.
+     * @return Offset of the space after the word, or the line end.
+     */
+    private static int skipWord(final byte[] buffer, final int from, final int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer[i] == ' ') {
+                return i;
+            }
+        }
+        return to;
+    }
 }
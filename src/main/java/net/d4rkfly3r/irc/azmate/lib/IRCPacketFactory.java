@@ -2,10 +2,18 @@ package net.d4rkfly3r.irc.azmate.lib;
 
 public final class IRCPacketFactory {
 
+    protected static IRCPacket createAUTHENTICATE(final String data) {
+        return new IRCPacket(null, "AUTHENTICATE", data, null);
+    }
+
     protected static IRCPacket createAWAY(final String reason) {
         return new IRCPacket(null, "AWAY", null, reason);
     }
 
+    protected static IRCPacket createCAP(final String subcommand, final String capabilities) {
+        return new IRCPacket(null, "CAP", subcommand, capabilities);
+    }
+
     protected static IRCPacket createMOTD() {
         return new IRCPacket(null, "MOTD", null, null);
     }
@@ -0,0 +1,31 @@
+package net.d4rkfly3r.irc.azmate.lib;
+
+/**
+ * Handles packets with a specific command or numeric reply.
+ * <p>
+ * <pre>
+ * irc.addNumericHandler(RPL_WHOISUSER, (connection, packet) -&gt; {
+ * 	String[] args = packet.getArgumentsArray();
+ * 	System.out.println(args[1] + " is " + args[2] + "@" + args[3]);
+ * });
+ * </pre>
+ * <p>
+ * Packets are reused for the next line as soon as all handlers
+ * returned. Use {@link IRCPacket#detach()} to keep a packet around.
+ * </p>
+ *
+ * @see IRCConnection#addCommandHandler(String, IRCPacketHandler)
+ * @see IRCConnection#addNumericHandler(int, IRCPacketHandler)
+ */
+@FunctionalInterface
+public interface IRCPacketHandler {
+
+    /**
+     * Handles a packet received from the server. Called on the input
+     * thread of the connection.
+     *
+     * @param irc    The IRCConnection receiving this packet.
+     * @param packet The received packet.
+     */
+    void handle(IRCConnection irc, IRCPacket packet);
+}
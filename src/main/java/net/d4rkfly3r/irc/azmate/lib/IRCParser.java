@@ -3,314 +3,576 @@ package net.d4rkfly3r.irc.azmate.lib;
 import net.d4rkfly3r.irc.azmate.plugins.PluginBus;
 import net.d4rkfly3r.irc.azmate.plugins.events.*;
 
+import java.util.Arrays;
 import java.util.Date;
-import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Parses incoming messages and calls event handlers.
  */
 final class IRCParser {
 
+    /**
+     * Highest numeric reply code.
+     */
+    private static final int MAX_NUMERIC = 999;
+    /**
+     * Reusable view of the line being parsed.
+     */
+    private final IRCPacket packet = new IRCPacket();
+    /**
+     * Handlers for numeric replies, indexed by reply code.
+     */
+    private final AtomicReferenceArray<IRCPacketHandler[]> numerics = new AtomicReferenceArray<>(IRCParser.MAX_NUMERIC + 1);
+    /**
+     * Handlers for commands.
+     */
+    private volatile CommandTable commands = new CommandTable(32);
     /**
      * Buffer for motd.
      */
     private StringBuffer buffer = null;
+    /**
+     * Groups the quits and joins of netsplits.
+     */
+    private final IRCNetSplitDetector netSplits = new IRCNetSplitDetector();
+    /**
+     * Fills in user information with WHO requests.
+     */
+    private final IRCWhoSweeper whoSweeper = new IRCWhoSweeper();
+
+    /**
+     * Creates a new parser with handlers for all supported commands and
+     * numeric replies.
+     */
+    protected IRCParser() {
+        this.addCommandHandler("PRIVMSG", this::parsePrivmsg);
+        this.addCommandHandler("NOTICE", this::parseNotice);
+        this.addCommandHandler("JOIN", this::parseJoin);
+        this.addCommandHandler("PART", this::parsePart);
+        this.addCommandHandler("QUIT", this::parseQuit);
+        this.addCommandHandler("KICK", this::parseKick);
+        this.addCommandHandler("MODE", this::parseMode);
+        this.addCommandHandler("TOPIC", this::parseTopic);
+        this.addCommandHandler("NICK", this::parseNick);
+        this.addCommandHandler("INVITE", this::parseInvite);
+        this.addCommandHandler("BATCH", this::parseBatch);
+        this.addCommandHandler("CAP", this::parseCap);
+        this.addCommandHandler("ACCOUNT", this::parseAccount);
+        this.addCommandHandler("AWAY", this::parseAway);
+        this.addCommandHandler("CHGHOST", this::parseChangeHost);
+        this.addNumericHandler(IRCPacket.RPL_TOPIC, this::parseTopicReply);
+        this.addNumericHandler(IRCPacket.RPL_NAMREPLY, this::parseNamesReply);
+        this.addNumericHandler(IRCPacket.RPL_ENDOFNAMES, this::parseEndOfNames);
+        this.addNumericHandler(IRCPacket.RPL_MOTD, this::parseMotd);
+        this.addNumericHandler(IRCPacket.RPL_ENDOFMOTD, this::parseEndOfMotd);
+        this.addNumericHandler(IRCPacket.RPL_BOUNCE, this::parseBounce);
+        this.addNumericHandler(IRCPacket.RPL_ISUPPORT, this::parseISupport);
+        this.addNumericHandler(IRCPacket.RPL_WHOREPLY, this::parseWhoReply);
+        this.addNumericHandler(IRCPacket.RPL_WHOSPCRPL, this::parseWhoReply);
+        this.addNumericHandler(IRCPacket.RPL_ENDOFWHO, this::parseEndOfWho);
+        this.addCommandHandler("ERROR", this::parseError);
+        this.addNumericHandler(IRCPacket.RPL_TRYAGAIN, this::parseFlood);
+        this.addNumericHandler(IRCPacket.ERR_TARGETTOOFAST, this::parseFlood);
+        this.addNumericHandler(IRCPacket.ERR_TARGCHANGE, this::parseFlood);
+    }
+
+    /**
+     * Adds a handler to an array of handlers.
+     *
+     * @param handlers The current handlers, or {@code null}.
+     * @param handler  The handler to add.
+     * @return A new array including given handler.
+     */
+    private static IRCPacketHandler[] append(final IRCPacketHandler[] handlers, final IRCPacketHandler handler) {
+        if (handlers == null) {
+            return new IRCPacketHandler[]{handler};
+        }
+        final IRCPacketHandler[] result = Arrays.copyOf(handlers, handlers.length + 1);
+        result[handlers.length] = handler;
+        return result;
+    }
+
+    /**
+     * Removes a handler from an array of handlers.
+     *
+     * @param handlers The current handlers, or {@code null}.
+     * @param handler  The handler to remove.
+     * @return A new array without given handler, or {@code null} if it
+     * would be empty.
+     */
+    private static IRCPacketHandler[] without(final IRCPacketHandler[] handlers, final IRCPacketHandler handler) {
+        if (handlers == null) {
+            return null;
+        }
+        final IRCPacketHandler[] result = Arrays.stream(handlers).filter(h -> h != handler).toArray(IRCPacketHandler[]::new);
+        return result.length == 0 ? null : result;
+    }
+
+    /**
+     * Registers a handler for a command. Handlers run in the order they
+     * were added, after the built-in handling of that command.
+     *
+     * @param command The command, like {@code PRIVMSG}.
+     * @param handler The handler to add.
+     */
+    protected synchronized void addCommandHandler(final String command, final IRCPacketHandler handler) {
+        final String key = command.toUpperCase(Locale.ROOT);
+        this.commands = new CommandTable(this.commands, key, IRCParser.append(this.commands.get(key), handler));
+    }
+
+    /**
+     * Registers a handler for a numeric reply. Handlers run in the order
+     * they were added, after the built-in handling of that reply.
+     *
+     * @param numeric The three digit reply code.
+     * @param handler The handler to add.
+     */
+    protected synchronized void addNumericHandler(final int numeric, final IRCPacketHandler handler) {
+        this.numerics.set(IRCParser.checkNumeric(numeric), IRCParser.append(this.numerics.get(numeric), handler));
+    }
+
+    /**
+     * Unregisters a handler for a command.
+     *
+     * @param command The command, like {@code PRIVMSG}.
+     * @param handler The handler to remove.
+     */
+    protected synchronized void removeCommandHandler(final String command, final IRCPacketHandler handler) {
+        final String key = command.toUpperCase(Locale.ROOT);
+        this.commands = new CommandTable(this.commands, key, IRCParser.without(this.commands.get(key), handler));
+    }
+
+    /**
+     * Unregisters a handler for a numeric reply.
+     *
+     * @param numeric The three digit reply code.
+     * @param handler The handler to remove.
+     */
+    protected synchronized void removeNumericHandler(final int numeric, final IRCPacketHandler handler) {
+        this.numerics.set(IRCParser.checkNumeric(numeric), IRCParser.without(this.numerics.get(numeric), handler));
+    }
+
+    /**
+     * Forgets what was received on a previous connection.
+     */
+    protected void reset() {
+        this.netSplits.clear();
+        this.whoSweeper.clear();
+        this.buffer = null;
+    }
+
+    /**
+     * Validates a numeric reply code.
+     *
+     * @param numeric The reply code.
+     * @return The reply code.
+     */
+    private static int checkNumeric(final int numeric) {
+        if ((numeric < 0) || (numeric > IRCParser.MAX_NUMERIC)) {
+            throw new IllegalArgumentException("Numeric replies range from 000 to 999!");
+        }
+        return numeric;
+    }
+
+    /**
+     * Parses the current line of given framer. PING requests are
+     * answered without decoding the line; everything else is dispatched
+     * to the handlers registered for its command or numeric reply.
+     *
+     * @param ircConnection IRCConnection receiving this line.
+     * @param framer        The framer holding the raw line.
+     */
+    protected void parseLine(final IRCConnection ircConnection, final IRCLineFramer framer) {
+        // always respond to PING
+        if (framer.isPing()) {
+            ircConnection.getOutput().pong(framer.decode(framer.getLineStart() + 5, framer.getLineEnd()));
+            if (this.netSplits.isPending()) {
+                this.netSplits.flush(ircConnection);
+            }
+            this.netSplits.expire();
+            // a quiet moment to drop members of idle channels
+            ircConnection.evictChannels();
+            this.whoSweeper.refresh(ircConnection);
+            return;
+        }
+        final IRCPacket packet = this.packet.reset(framer, ircConnection);
+        // a netsplit is reported once its last line was received
+        if (this.netSplits.isPending() && !this.netSplits.belongs(packet)) {
+            this.netSplits.flush(ircConnection);
+        }
+        final IRCPacketHandler[] handlers;
+        if (packet.isNumeric()) {
+            handlers = this.numerics.get(packet.getNumericCommand());
+        } else {
+            handlers = this.commands.get(packet);
+        }
+        if (handlers == null) {
+            this.parseUnknown(ircConnection, packet);
+            return;
+        }
+        for (final IRCPacketHandler handler : handlers) {
+            handler.handle(ircConnection, packet);
+        }
+    }
 
     /**
-     * Parses normal IRC commands.
+     * Parses private messages and CTCP requests.
      *
      * @param ircConnection IRCConnection receiving this packet.
      * @param packet        The input packet.
      */
-    protected void parseCommand(final IRCConnection ircConnection, final IRCPacket packet) {
-        if (packet.getCommand().equals("PRIVMSG") && (packet.getArguments() != null)) {
-            if (packet.isCtcp()) {
-                // reply to CTCP commands
-                if (packet.getMessage().startsWith("ACTION ")) {
-                    if (IRCChannel.CHANNEL_PREFIX.indexOf(packet.getArguments().charAt(0)) >= 0) {
-                        // to channel
-                        final IRCChannel chan = ircConnection.getState().getChannel(packet.getArguments());
-                        PluginBus.getInstance().fireEvent(new ActionEvent(ircConnection, chan.updateUser(packet.getSender(), true), chan, packet.getMessage().substring(7)));
+    private void parsePrivmsg(final IRCConnection ircConnection, final IRCPacket packet) {
+        if (packet.getArguments() == null) {
+            this.parseUnknown(ircConnection, packet);
+            return;
+        }
+        if (packet.isCtcp()) {
+            // reply to CTCP commands
+            if (packet.getMessage().startsWith("ACTION ")) {
+                if (ircConnection.getISupport().isChannel(packet.getArguments())) {
+                    // to channel
+                    final IRCChannel chan = packet.findChannel();
+                    PluginBus.getInstance().fireEvent(new ActionEvent(ircConnection, chan.updateUser(packet.getSender(), true), chan, packet.getMessage().substring(7)));
 //                        for (final Iterator<MessageListener> it = ircConnection.getMessageListeners(); it.hasNext(); ) {
 //                            it.next().onAction(ircConnection, chan.updateUser(packet.getSender(), true), chan, packet.getMessage().substring(7));
 //                        }
-                    } else {
-                        // to user
-                        PluginBus.getInstance().fireEvent(new ActionEvent(ircConnection, packet.getSender(), packet.getMessage().substring(7)));
+                } else {
+                    // to user
+                    PluginBus.getInstance().fireEvent(new ActionEvent(ircConnection, packet.getSender(), packet.getMessage().substring(7)));
 //                        for (final Iterator<MessageListener> it = ircConnection.getMessageListeners(); it.hasNext(); ) {
 //                            it.next().onAction(ircConnection, packet.getSender(), packet.getMessage().substring(7));
 //                        }
-                    }
-                } else if (packet.getMessage().equals("VERSION") || packet.getMessage().equals("FINGER")) {
-                    // send custom version string
-                    packet.getSender().sendCtcpReply("VERSION " + ircConnection.getVersion());
-                } else if (packet.getMessage().equals("SIRCVERS")) {
-                    // send sIRC version information
-                    packet.getSender().sendCtcpReply("SIRCVERS " + IRCConnection.ABOUT);
-                } else if (packet.getMessage().equals("TIME")) {
-                    // send current date&time
-                    packet.getSender().sendCtcpReply(new Date().toString());
-                } else if (packet.getMessage().startsWith("PING ")) {
-                    // send ping reply
-                    packet.getSender().sendCtcpReply("PING " + packet.getMessage().substring(5), true);
-                } else if (packet.getMessage().startsWith("SOURCE")) {
-                    // send sIRC source
-                    packet.getSender().sendCtcpReply("SOURCE https://github.com/d4rkfly3r/Azmate");
-                } else if (packet.getMessage().equals("CLIENTINFO")) {
-                    // send client info
-                    packet.getSender().sendCtcpReply("CLIENTINFO VERSION TIME PING SOURCE FINGER SIRCVERS");
-                } else {
-                    // send error message
-                    packet.getSender().sendCtcpReply("ERRMSG CTCP Command not supported. Use CLIENTINFO to list supported commands.");
                 }
-            } else if (packet.getArguments().startsWith("#") || packet.getArguments().startsWith("&")) {
-                // to channel
-                final IRCChannel chan = ircConnection.getState().getChannel(packet.getArguments());
-                PluginBus.getInstance().fireEvent(new MessageEvent(ircConnection, chan.updateUser(packet.getSender(), true), chan, packet.getMessage()));
+            } else if (packet.getMessage().equals("VERSION") || packet.getMessage().equals("FINGER")) {
+                // send custom version string
+                packet.getSender().sendCtcpReply("VERSION " + ircConnection.getVersion());
+            } else if (packet.getMessage().equals("SIRCVERS")) {
+                // send sIRC version information
+                packet.getSender().sendCtcpReply("SIRCVERS " + IRCConnection.ABOUT);
+            } else if (packet.getMessage().equals("TIME")) {
+                // send current date&time
+                packet.getSender().sendCtcpReply(new Date().toString());
+            } else if (packet.getMessage().startsWith("PING ")) {
+                // send ping reply
+                packet.getSender().sendCtcpReply("PING " + packet.getMessage().substring(5), true);
+            } else if (packet.getMessage().startsWith("SOURCE")) {
+                // send sIRC source
+                packet.getSender().sendCtcpReply("SOURCE https://github.com/d4rkfly3r/Azmate");
+            } else if (packet.getMessage().equals("CLIENTINFO")) {
+                // send client info
+                packet.getSender().sendCtcpReply("CLIENTINFO VERSION TIME PING SOURCE FINGER SIRCVERS");
+            } else {
+                // send error message
+                packet.getSender().sendCtcpReply("ERRMSG CTCP Command not supported. Use CLIENTINFO to list supported commands.");
+            }
+        } else if (ircConnection.getISupport().isChannel(packet.getArguments())) {
+            // to channel
+            final IRCChannel chan = packet.findChannel();
+            PluginBus.getInstance().fireEvent(new MessageEvent(ircConnection, chan.updateUser(packet.getSender(), true), chan, packet.getMessage()));
 //                for (final Iterator<MessageListener> it = ircConnection.getMessageListeners(); it.hasNext(); ) {
 //                    it.next().onMessage(ircConnection, chan.updateUser(packet.getSender(), true), chan, packet.getMessage());
 //                }
-            } else {
-                // to user
-                PluginBus.getInstance().fireEvent(new MessageEvent(ircConnection, packet.getSender(), packet.getMessage()));
+        } else {
+            // to user
+            PluginBus.getInstance().fireEvent(new MessageEvent(ircConnection, packet.getSender(), packet.getMessage()));
 //                for (final Iterator<MessageListener> it = ircConnection.getMessageListeners(); it.hasNext(); ) {
 //                    it.next().onPrivateMessage(ircConnection, packet.getSender(), packet.getMessage());
 //                }
-            }
-        } else if (packet.getCommand().equals("NOTICE") && (packet.getArguments() != null)) {
-            if (packet.isCtcp()) {
-                // receive CTCP replies.
-                final int cmdPos = packet.getMessage().indexOf(' ');
-                final String command = packet.getMessage().substring(0, cmdPos);
-                final String args = packet.getMessage().substring(cmdPos + 1);
-                if (command.equals("VERSION") || command.equals("PING") || command.equals("CLIENTINFO")) {
-                    PluginBus.getInstance().fireEvent(new CTCPReplyEvent(ircConnection, packet.getSender(), command, args));
+        }
+    }
+
+    /**
+     * Parses notices and CTCP replies.
+     *
+     * @param ircConnection IRCConnection receiving this packet.
+     * @param packet        The input packet.
+     */
+    private void parseNotice(final IRCConnection ircConnection, final IRCPacket packet) {
+        if (packet.getArguments() == null) {
+            this.parseUnknown(ircConnection, packet);
+            return;
+        }
+        if (packet.isCtcp()) {
+            // receive CTCP replies.
+            final int cmdPos = packet.getMessage().indexOf(' ');
+            final String command = packet.getMessage().substring(0, cmdPos);
+            final String args = packet.getMessage().substring(cmdPos + 1);
+            if (command.equals("VERSION") || command.equals("PING") || command.equals("CLIENTINFO")) {
+                PluginBus.getInstance().fireEvent(new CTCPReplyEvent(ircConnection, packet.getSender(), command, args));
 //                    for (final Iterator<MessageListener> it = ircConnection.getMessageListeners(); it.hasNext(); ) {
 //                        it.next().onCtcpReply(ircConnection, packet.getSender(), command, args);
 //                    }
-                }
-            } else if (IRCChannel.CHANNEL_PREFIX.indexOf(packet.getArguments().charAt(0)) >= 0) {
-                // to channel
-                final IRCChannel chan = ircConnection.getState().getChannel(packet.getArguments());
-                PluginBus.getInstance().fireEvent(new NoticeEvent(ircConnection, chan.updateUser(packet.getSender(), true), chan, packet.getMessage()));
+            }
+        } else if (ircConnection.getISupport().isChannel(packet.getArguments())) {
+            // to channel
+            final IRCChannel chan = packet.findChannel();
+            PluginBus.getInstance().fireEvent(new NoticeEvent(ircConnection, chan.updateUser(packet.getSender(), true), chan, packet.getMessage()));
 //                for (final Iterator<MessageListener> it = ircConnection.getMessageListeners(); it.hasNext(); ) {
 //                    it.next().onNotice(ircConnection, chan.updateUser(packet.getSender(), true), chan, packet.getMessage());
 //                }
-            } else {
-                // to user
-                PluginBus.getInstance().fireEvent(new NoticeEvent(ircConnection, packet.getSender(), packet.getMessage()));
+        } else {
+            // to user
+            PluginBus.getInstance().fireEvent(new NoticeEvent(ircConnection, packet.getSender(), packet.getMessage()));
 //                for (final Iterator<MessageListener> it = ircConnection.getMessageListeners(); it.hasNext(); ) {
 //                    it.next().onNotice(ircConnection, packet.getSender(), packet.getMessage());
 //                }
+        }
+    }
+
+    /**
+     * Parses someone joining a channel.
+     *
+     * @param ircConnection IRCConnection receiving this packet.
+     * @param packet        The input packet.
+     */
+    private void parseJoin(final IRCConnection ircConnection, final IRCPacket packet) {
+        // some server seem to send the joined channel as message,
+        // while others have it as an argument. (quakenet related)
+        final boolean extended = ircConnection.getCapabilities().isEnabled("extended-join");
+        final String[] arguments = extended ? packet.getArgumentsArray() : null;
+        String channel;
+        if (arguments != null) {
+            // <channel> <account> :<real name>
+            channel = arguments[0];
+        } else if (packet.hasMessage()) {
+            channel = packet.getMessage();
+        } else {
+            channel = packet.getArguments();
+        }
+        // someone joined a channel
+        if (packet.getSender().isUs()) {
+            // if the user joining the channel is the client
+            // we need to add it to the channel list.
+            ircConnection.getState().addChannel(new IRCChannel(channel, ircConnection, true));
+        } else {
+            // add user to channel list.
+            ircConnection.getState().getChannel(channel).addUser(packet.getSender());
+            final IRCUser joined = ircConnection.getState().getUser(packet.getSender().getNick());
+            if (joined != null) {
+                this.updateJoined(ircConnection, packet, joined, arguments);
             }
-        } else if (packet.getCommand().equals("JOIN")) {
-            // some server seem to send the joined channel as message,
-            // while others have it as an argument. (quakenet related)
-            String channel;
-            if (packet.hasMessage()) {
-                channel = packet.getMessage();
-            } else {
-                channel = packet.getArguments();
-            }
-            // someone joined a channel
-            if (packet.getSender().isUs()) {
-                // if the user joining the channel is the client
-                // we need to add it to the channel list.
-                ircConnection.getState().addChannel(new IRCChannel(channel, ircConnection, true));
-            } else {
-                // add user to channel list.
-                ircConnection.getState().getChannel(channel).addUser(packet.getSender());
+            if (this.netSplits.join(ircConnection, packet, joined != null ? joined : packet.getSender())
+                    && !ircConnection.isNetSplitUserEvents()) {
+                return;
             }
-            PluginBus.getInstance().fireEvent(new UserJoinedEvent(ircConnection, ircConnection.getState().getChannel(channel), packet.getSender()));
+        }
+        PluginBus.getInstance().fireEvent(new UserJoinedEvent(ircConnection, ircConnection.getState().getChannel(channel), packet.getSender()));
 //            for (final Iterator<ServerListener> it = ircConnection.getServerListeners(); it.hasNext(); ) {
 //                it.next().onJoin(ircConnection, ircConnection.getState().getChannel(channel), packet.getSender());
 //            }
-        } else if (packet.getCommand().equals("PART")) {
-            // someone left a channel
-            if (packet.getSender().isUs()) {
-                // if the user leaving the channel is the client
-                // we need to remove it from the channel list
-                ircConnection.getState().removeChannel(packet.getArguments());
-            } else {
-                // remove user from channel list.
-                ircConnection.getState().getChannel(packet.getArguments()).removeUser(packet.getSender());
+    }
+
+    /**
+     * Stores what a join tells about a user with IRCv3 capabilities, so
+     * it need not be asked for.
+     *
+     * @param ircConnection IRCConnection receiving this packet.
+     * @param packet        The JOIN line.
+     * @param user          The shared user object.
+     * @param arguments     The arguments of an extended join, or
+     *                      {@code null}.
+     */
+    private void updateJoined(final IRCConnection ircConnection, final IRCPacket packet, final IRCUser user,
+                              final String[] arguments) {
+        if ((arguments != null) && (arguments.length >= 2)) {
+            user.setAccount("*".equals(arguments[1]) ? null : arguments[1]);
+            if (packet.hasMessage()) {
+                user.setRealName(packet.getMessage());
             }
-            PluginBus.getInstance().fireEvent(new UserPartedEvent(ircConnection, ircConnection.getState().getChannel(packet.getArguments()), packet.getSender(), packet.getMessage()));
+        }
+        // the server reports users joining while away right after the join
+        if (ircConnection.getCapabilities().isEnabled("away-notify")) {
+            user.setAway(false);
+        }
+    }
+
+    /**
+     * Parses the start or end of an IRCv3 batch.
+     *
+     * @param ircConnection IRCConnection receiving this packet.
+     * @param packet        The input packet.
+     */
+    private void parseBatch(final IRCConnection ircConnection, final IRCPacket packet) {
+        this.netSplits.batch(ircConnection, packet);
+    }
+
+    /**
+     * Parses someone leaving a channel.
+     *
+     * @param ircConnection IRCConnection receiving this packet.
+     * @param packet        The input packet.
+     */
+    private void parsePart(final IRCConnection ircConnection, final IRCPacket packet) {
+        // someone left a channel
+        if (packet.getSender().isUs()) {
+            // if the user leaving the channel is the client
+            // we need to remove it from the channel list
+            ircConnection.getState().removeChannel(packet.getArguments());
+        } else {
+            // remove user from channel list.
+            packet.findChannel().removeUser(packet.getSender());
+        }
+        PluginBus.getInstance().fireEvent(new UserPartedEvent(ircConnection, ircConnection.getState().getChannel(packet.getArguments()), packet.getSender(), packet.getMessage()));
 //            for (final Iterator<ServerListener> it = ircConnection.getServerListeners(); it.hasNext(); ) {
 //                it.next().onPart(ircConnection, ircConnection.getState().getChannel(packet.getArguments()), packet.getSender(), packet.getMessage());
 //            }
-        } else if (packet.getCommand().equals("QUIT")) {
-            // someone quit the IRC server
-            final IRCUser quitter = packet.getSender();
+    }
+
+    /**
+     * Parses someone quitting the IRC server.
+     *
+     * @param ircConnection IRCConnection receiving this packet.
+     * @param packet        The input packet.
+     */
+    private void parseQuit(final IRCConnection ircConnection, final IRCPacket packet) {
+        // someone quit the IRC server
+        final IRCUser quitter = packet.getSender();
+        if ((!this.netSplits.quit(ircConnection, packet, quitter) || ircConnection.isNetSplitUserEvents())
+                && PluginBus.getInstance().hasListeners(UserQuitEvent.class)) {
             PluginBus.getInstance().fireEvent(new UserQuitEvent(ircConnection, quitter, packet.getMessage()));
+        }
 //            for (final Iterator<ServerListener> it = ircConnection.getServerListeners(); it.hasNext(); ) {
 //                it.next().onQuit(ircConnection, quitter, packet.getMessage());
 //            }
-            for (final Iterator<IRCChannel> it = ircConnection.getState().getChannels(); it.hasNext(); ) {
-                final IRCChannel IRCChannel = it.next();
-                if (IRCChannel.hasUser(quitter)) {
-                    IRCChannel.removeUser(quitter);
-                }
-            }
-        } else if (packet.getCommand().equals("KICK")) {
-            // someone was kicked from a IRCChannel
-            final String[] data = packet.getArgumentsArray();
-            if (data == null || data.length < 2) return;
-            final IRCUser kicked = new IRCUser(data[1], ircConnection);
-            final IRCChannel ircChannel = ircConnection.getState().getChannel(data[0]);
-            if (kicked.isUs()) {
-                // if the user leaving the IRCChannel is the client
-                // we need to remove it from the IRCChannel list
-                ircConnection.getState().removeChannel(data[0]);
-            } else {
-                // remove user from IRCChannel list.
-                ircChannel.removeUser(kicked);
-            }
-            PluginBus.getInstance().fireEvent(new UserKickedEvent(ircConnection, ircChannel, packet.getSender(), kicked, packet.getMessage()));
+        // only the channels of the quitter are visited
+        for (final IRCChannel ircChannel : quitter.getChannelArray()) {
+            ircChannel.removeUser(quitter);
+        }
+        ircConnection.getState().removeUser(quitter);
+    }
+
+    /**
+     * Parses someone being kicked from a channel.
+     *
+     * @param ircConnection IRCConnection receiving this packet.
+     * @param packet        The input packet.
+     */
+    private void parseKick(final IRCConnection ircConnection, final IRCPacket packet) {
+        // someone was kicked from a IRCChannel
+        final String[] data = packet.getArgumentsArray();
+        if (data == null || data.length < 2) return;
+        final IRCUser kicked = ircConnection.createUser(data[1]);
+        final IRCChannel ircChannel = ircConnection.getState().getChannel(data[0]);
+        if (kicked.isUs()) {
+            // if the user leaving the IRCChannel is the client
+            // we need to remove it from the IRCChannel list
+            ircConnection.getState().removeChannel(data[0]);
+        } else {
+            // remove user from IRCChannel list.
+            ircChannel.removeUser(kicked);
+        }
+        PluginBus.getInstance().fireEvent(new UserKickedEvent(ircConnection, ircChannel, packet.getSender(), kicked, packet.getMessage()));
 //            for (final Iterator<ServerListener> it = ircConnection.getServerListeners(); it.hasNext(); ) {
 //                it.next().onKick(ircConnection, IRCChannel, packet.getSender(), kicked, packet.getMessage());
 //            }
-        } else if (packet.getCommand().equals("MODE")) {
-            this.parseMode(ircConnection, packet);
-        } else if (packet.getCommand().equals("TOPIC")) {
-            // someone changed the topic.
-            final IRCChannel chan = ircConnection.getState().getChannel(packet.getArguments());
-            PluginBus.getInstance().fireEvent(new TopicChangedEvent(ircConnection, chan, chan.updateUser(packet.getSender(), false), packet.getMessage()));
+    }
+
+    /**
+     * Parses topic changes.
+     *
+     * @param ircConnection IRCConnection receiving this packet.
+     * @param packet        The input packet.
+     */
+    private void parseTopic(final IRCConnection ircConnection, final IRCPacket packet) {
+        // someone changed the topic.
+        final IRCChannel chan = packet.findChannel();
+        PluginBus.getInstance().fireEvent(new TopicChangedEvent(ircConnection, chan, chan.updateUser(packet.getSender(), false), packet.getMessage()));
 //            for (final Iterator<ServerListener> it = ircConnection.getServerListeners(); it.hasNext(); ) {
 //                it.next().onTopic(ircConnection, chan, chan.updateUser(packet.getSender(), false), packet.getMessage());
 //            }
-        } else if (packet.getCommand().equals("NICK")) {
-            IRCUser newIRCUser;
-            if (packet.hasMessage()) {
-                newIRCUser = new IRCUser(packet.getMessage(), ircConnection);
-            } else {
-                newIRCUser = new IRCUser(packet.getArguments(), ircConnection);
-            }
-            // someone changed his nick
-            for (final Iterator<IRCChannel> it = ircConnection.getState().getChannels(); it.hasNext(); ) {
-                it.next().renameUser(packet.getSender().getNickLower(), newIRCUser.getNick());
-            }
-            // change local user
-            if (packet.getSender().isUs()) {
-                ircConnection.getState().getClient().setNick(newIRCUser.getNick());
-            }
-            PluginBus.getInstance().fireEvent(new UserChangedNickEvent(ircConnection, packet.getSender(), newIRCUser));
+    }
+
+    /**
+     * Parses nickname changes.
+     *
+     * @param ircConnection IRCConnection receiving this packet.
+     * @param packet        The input packet.
+     */
+    private void parseNick(final IRCConnection ircConnection, final IRCPacket packet) {
+        final String nick = packet.hasMessage() ? packet.getMessage() : packet.getArguments();
+        final IRCUser user = packet.getSender();
+        // keep the old identity for listeners, the shared object is renamed
+        final IRCUser oldIRCUser = new IRCUser(user.getNick(), user.getUserName(), user.getHostName(), null, ircConnection);
+        final boolean us = user.isUs();
+        // someone changed his nick, channels store members by id
+        ircConnection.getState().renameUser(user, nick);
+        // change local user
+        if (us) {
+            ircConnection.getState().getClient().setNick(user.getNick());
+        }
+        PluginBus.getInstance().fireEvent(new UserChangedNickEvent(ircConnection, oldIRCUser, user));
 //            for (final Iterator<ServerListener> it = ircConnection.getServerListeners(); it.hasNext(); ) {
 //                it.next().onNick(ircConnection, packet.getSender(), newIRCUser);
 //            }
-        } else if (packet.getCommand().equals("INVITE")) {
-            // someone was invited
-            final String[] args = packet.getArgumentsArray();
-            if (args == null) return;
-            if ((args.length >= 2) && (packet.getMessage() == null)) {
-                final IRCChannel IRCChannel = ircConnection.createChannel(args[1]);
-                PluginBus.getInstance().fireEvent(new UserInvitedEvent(ircConnection, packet.getSender(), new IRCUser(args[0], ircConnection), IRCChannel));
+    }
+
+    /**
+     * Parses invitations.
+     *
+     * @param ircConnection IRCConnection receiving this packet.
+     * @param packet        The input packet.
+     */
+    private void parseInvite(final IRCConnection ircConnection, final IRCPacket packet) {
+        // someone was invited
+        final String[] args = packet.getArgumentsArray();
+        if (args == null) return;
+        if ((args.length >= 2) && (packet.getMessage() == null)) {
+            final IRCChannel IRCChannel = ircConnection.createChannel(args[1]);
+            PluginBus.getInstance().fireEvent(new UserInvitedEvent(ircConnection, packet.getSender(), ircConnection.createUser(args[0]), IRCChannel));
 //                for (final Iterator<ServerListener> it = ircConnection.getServerListeners(); it.hasNext(); ) {
 //                    it.next().onInvite(ircConnection, packet.getSender(), new IRCUser(args[0], ircConnection), IRCChannel);
 //                }
-            }
-        } else {
-            PluginBus.getInstance().fireEvent(new UnknownEvent(ircConnection, packet));
-//            if (ircConnection.getAdvancedListener() != null) {
-//                ircConnection.getAdvancedListener().onUnknown(ircConnection, packet);
-//            }
         }
     }
 
     /**
-     * Parses mode changes.
+     * Parses mode changes. Privileges of users are updated in the
+     * channel, so there is no need to ask the server for the user list.
+     * Mode types are taken from the features announced by the server.
      *
-     * @param ircConnection  IRCConnection receiving this packet.
-     * @param packet The mode change packet.
+     * @param ircConnection IRCConnection receiving this packet.
+     * @param packet        The mode change packet.
+     * @see IRCISupport
      */
     private void parseMode(final IRCConnection ircConnection, final IRCPacket packet) {
-        final String[] args = packet.getArgumentsArray();
-        if ((args.length >= 2) && (IRCChannel.CHANNEL_PREFIX.indexOf(args[0].charAt(0)) >= 0)) {
+        final String[] params = packet.getArgumentsArray();
+        if (params == null) {
+            return;
+        }
+        // the last parameter may be sent as trailing
+        final String trailing = packet.getMessage();
+        final boolean hasTrailing = (trailing != null) && !trailing.isEmpty();
+        final String[] args = hasTrailing ? Arrays.copyOf(params, params.length + 1) : params;
+        if (hasTrailing) {
+            args[params.length] = trailing;
+        }
+        if ((args.length >= 2) && ircConnection.getISupport().isChannel(args[0])) {
+            final IRCChannel ircChannel = ircConnection.getState().getChannel(args[0]);
             // general mode event listener
-            PluginBus.getInstance().fireEvent(new ModeChangedEvent(ircConnection, ircConnection.getState().getChannel(args[0]), packet.getSender(), packet.getArguments().substring(args[0].length() + 1)));
+            PluginBus.getInstance().fireEvent(new ModeChangedEvent(ircConnection, ircChannel, packet.getSender(),
+                    String.join(" ", Arrays.asList(args).subList(1, args.length))));
 //            for (final Iterator<ServerListener> it = ircConnection.getServerListeners(); it.hasNext(); ) {
 //                it.next().onMode(ircConnection, ircConnection.getState().getChannel(args[0]), packet.getSender(), packet.getArguments().substring(args[0].length() + 1));
 //            }
-            if ((args.length >= 3)) {
-                final IRCChannel ircChannel = ircConnection.getState().getChannel(args[0]);
-                final String mode = args[1];
-                final boolean enable = mode.charAt(0) == '+';
-                char current;
-                // tries all known modes.
-                // this is an ugly part of sIRC, but the only way to
-                // do this.
-                for (int x = 2; x < args.length; x++) {
-                    current = mode.charAt(x - 1);
-                    if (current == IRCUser.MODE_VOICE) {
-                        // voice or devoice
-                        ircConnection.askNames(ircChannel);
-                        if (enable) {
-                            PluginBus.getInstance().fireEvent(new UserVoicedEvent(ircConnection, ircChannel, packet.getSender(), ircConnection.createUser(args[x])));
-//                            for (final Iterator<ModeListener> it = ircConnection.getModeListeners(); it.hasNext(); ) {
-//                                it.next().onVoice(ircConnection, ircChannel, packet.getSender(), ircConnection.createUser(args[x]));
-//                            }
-                        } else {
-                            PluginBus.getInstance().fireEvent(new UserDeVoicedEvent(ircConnection, ircChannel, packet.getSender(), ircConnection.createUser(args[x])));
-//                            for (final Iterator<ModeListener> it = ircConnection.getModeListeners(); it.hasNext(); ) {
-//                                it.next().onDeVoice(ircConnection, ircChannel, packet.getSender(), ircConnection.createUser(args[x]));
-//                            }
-                        }
-                    } else if (current == IRCUser.MODE_ADMIN) {
-                        // admin or deadmin
-                        ircConnection.askNames(ircChannel);
-                        if (enable) {
-                            PluginBus.getInstance().fireEvent(new UserAdminedEvent(ircConnection, ircChannel, packet.getSender(), ircConnection.createUser(args[x])));
-//                            for (final Iterator<ModeListener> it = ircConnection.getModeListeners(); it.hasNext(); ) {
-//                                it.next().onAdmin(ircConnection, ircChannel, packet.getSender(), ircConnection.createUser(args[x]));
-//                            }
-                        } else {
-                            PluginBus.getInstance().fireEvent(new UserDeAdminedEvent(ircConnection, ircChannel, packet.getSender(), ircConnection.createUser(args[x])));
-//                            for (final Iterator<ModeListener> it = ircConnection.getModeListeners(); it.hasNext(); ) {
-//                                it.next().onDeAdmin(ircConnection, ircChannel, packet.getSender(), ircConnection.createUser(args[x]));
-//                            }
-                        }
-                    } else if (current == IRCUser.MODE_OPERATOR) {
-                        // op or deop
-                        ircConnection.askNames(ircChannel);
-                        if (enable) {
-                            PluginBus.getInstance().fireEvent(new UserOppedEvent(ircConnection, ircChannel, packet.getSender(), ircConnection.createUser(args[x])));
-//                            for (final Iterator<ModeListener> it = ircConnection.getModeListeners(); it.hasNext(); ) {
-//                                it.next().onOp(ircConnection, ircChannel, packet.getSender(), ircConnection.createUser(args[x]));
-//                            }
-                        } else {
-                            PluginBus.getInstance().fireEvent(new UserDeOppedEvent(ircConnection, ircChannel, packet.getSender(), ircConnection.createUser(args[x])));
-//                            for (final Iterator<ModeListener> it = ircConnection.getModeListeners(); it.hasNext(); ) {
-//                                it.next().onDeOp(ircConnection, ircChannel, packet.getSender(), ircConnection.createUser(args[x]));
-//                            }
-                        }
-                    } else if (current == IRCUser.MODE_HALF_OP) {
-                        // halfop or dehalfop
-                        ircConnection.askNames(ircChannel);
-                        if (enable) {
-                            PluginBus.getInstance().fireEvent(new UserHalfoppedEvent(ircConnection, ircChannel, packet.getSender(), ircConnection.createUser(args[x])));
-//                            for (final Iterator<ModeListener> it = ircConnection.getModeListeners(); it.hasNext(); ) {
-//                                it.next().onHalfop(ircConnection, ircChannel, packet.getSender(), ircConnection.createUser(args[x]));
-//                            }
-                        } else {
-                            PluginBus.getInstance().fireEvent(new UserDeHalfoppedEvent(ircConnection, ircChannel, packet.getSender(), ircConnection.createUser(args[x])));
-//                            for (final Iterator<ModeListener> it = ircConnection.getModeListeners(); it.hasNext(); ) {
-//                                it.next().onDeHalfop(ircConnection, ircChannel, packet.getSender(), ircConnection.createUser(args[x]));
-//                            }
-                        }
-                    } else if (current == IRCUser.MODE_FOUNDER) {
-                        // founder or defounder
-                        ircConnection.askNames(ircChannel);
-                        if (enable) {
-                            PluginBus.getInstance().fireEvent(new UserFounderedEvent(ircConnection, ircChannel, packet.getSender(), ircConnection.createUser(args[x])));
-//                            for (final Iterator<ModeListener> it = ircConnection.getModeListeners(); it.hasNext(); ) {
-//                                it.next().onFounder(ircConnection, ircChannel, packet.getSender(), ircConnection.createUser(args[x]));
-//                            }
-                        } else {
-                            PluginBus.getInstance().fireEvent(new UserDeFounderedEvent(ircConnection, ircChannel, packet.getSender(), ircConnection.createUser(args[x])));
-//                            for (final Iterator<ModeListener> it = ircConnection.getModeListeners(); it.hasNext(); ) {
-//                                it.next().onDeFounder(ircConnection, ircChannel, packet.getSender(), ircConnection.createUser(args[x]));
-//                            }
-                        }
+            final IRCISupport support = ircConnection.getISupport();
+            final String mode = args[1];
+            boolean enable = true;
+            int parameter = 2;
+            for (int x = 0; x < mode.length(); x++) {
+                final char current = mode.charAt(x);
+                if ((current == '+') || (current == '-')) {
+                    enable = current == '+';
+                } else if (support.hasParameter(current, enable)) {
+                    if (parameter >= args.length) {
+                        // malformed, parameters are missing
+                        return;
+                    }
+                    final String argument = args[parameter++];
+                    final int rank = support.getPrefixRank(current);
+                    if (rank >= 0) {
+                        this.parsePrivilege(ircConnection, packet, ircChannel, current, rank, enable, argument);
                     }
                 }
             }
@@ -318,68 +580,417 @@ final class IRCParser {
     }
 
     /**
-     * Parses numeric IRC replies.
+     * Applies a privilege given or taken by a mode change, and fires the
+     * matching event.
      *
-     * @param ircConnection  IRCConnection receiving this packet.
-     * @param packet The input packet.
+     * @param ircConnection IRCConnection receiving this packet.
+     * @param packet        The mode change packet.
+     * @param ircChannel    The channel, or {@code null} if we are not in it.
+     * @param mode          The privilege mode character.
+     * @param rank          The rank of the privilege.
+     * @param enable        Whether the privilege was given.
+     * @param nick          The nickname of the user.
      */
-    protected void parseNumeric(final IRCConnection ircConnection, final IRCPacket packet) {
-        switch (packet.getNumericCommand()) {
-            case IRCPacket.RPL_TOPIC:
-                PluginBus.getInstance().fireEvent(new TopicChangedEvent(ircConnection, ircConnection.getState().getChannel(packet.getArgumentsArray()[1]), null, packet.getMessage()));
-//                for (final Iterator<ServerListener> it = ircConnection.getServerListeners(); it.hasNext(); ) {
-//                    it.next().onTopic(ircConnection, ircConnection.getState().getChannel(packet.getArgumentsArray()[1]), null, packet.getMessage());
-//                }
+    private void parsePrivilege(final IRCConnection ircConnection, final IRCPacket packet, final IRCChannel ircChannel,
+                                final char mode, final int rank, final boolean enable, final String nick) {
+        final IRCUser user = ircConnection.createUser(nick);
+        if (ircChannel != null) {
+            ircChannel.setPrivilege(user, rank, enable);
+        }
+        final IRCUser sender = packet.getSender();
+        final Event event;
+        switch (mode) {
+            case IRCUser.MODE_VOICE:
+                event = enable ? new UserVoicedEvent(ircConnection, ircChannel, sender, user) : new UserDeVoicedEvent(ircConnection, ircChannel, sender, user);
                 break;
-            case IRCPacket.RPL_NAMREPLY:
-                final String[] arguments = packet.getArgumentsArray();
-                final IRCChannel IRCChannel = ircConnection.getState().getChannel(arguments[arguments.length - 1]);
-                if (IRCChannel != null) {
-                    final String[] users = packet.getMessage().split(" ");
-                    IRCUser buffer;
-                    for (final String user : users) {
-                        buffer = new IRCUser(user, ircConnection);
-                        /*
-                         * if (IRCChannel.hasUser(buffer)) {
-						 * IRCChannel.addUser(buffer); }
-						 * IRCChannel.addUser(buffer);
-						 */
-                        IRCChannel.updateUser(buffer, true);
-                    }
-                }
+            case IRCUser.MODE_ADMIN:
+                event = enable ? new UserAdminedEvent(ircConnection, ircChannel, sender, user) : new UserDeAdminedEvent(ircConnection, ircChannel, sender, user);
                 break;
-            case IRCPacket.RPL_MOTD:
-                if (this.buffer == null) {
-                    this.buffer = new StringBuffer();
-                }
-                this.buffer.append(packet.getMessage());
-                this.buffer.append(IRCConnection.ENDLINE);
+            case IRCUser.MODE_OPERATOR:
+                event = enable ? new UserOppedEvent(ircConnection, ircChannel, sender, user) : new UserDeOppedEvent(ircConnection, ircChannel, sender, user);
                 break;
-            case IRCPacket.RPL_ENDOFMOTD:
-                if (this.buffer != null) {
-                    final String motd = this.buffer.toString();
-                    this.buffer = null;
-                    PluginBus.getInstance().fireEvent(new MessageOfTheDayEvent(ircConnection, motd));
-//                    for (final Iterator<ServerListener> it = ircConnection.getServerListeners(); it.hasNext(); ) {
-//                        it.next().onMotd(ircConnection, motd);
-//                    }
-                }
+            case IRCUser.MODE_HALF_OP:
+                event = enable ? new UserHalfoppedEvent(ircConnection, ircChannel, sender, user) : new UserDeHalfoppedEvent(ircConnection, ircChannel, sender, user);
                 break;
-            case IRCPacket.RPL_BOUNCE:
-                // redirect to another server.
-                if (ircConnection.isBounceAllowed()) {
-                    ircConnection.disconnect();
-                    ircConnection.setServer(new IRCServer(packet.getArgumentsArray()[0], packet.getArgumentsArray()[1]));
-                    try {
-                        ircConnection.connect();
-                    } catch (final Exception ex) {
-                        // TODO: exception while connecting to new
-                        // server?
-                    }
-                }
+            case IRCUser.MODE_FOUNDER:
+                event = enable ? new UserFounderedEvent(ircConnection, ircChannel, sender, user) : new UserDeFounderedEvent(ircConnection, ircChannel, sender, user);
                 break;
             default:
-                PluginBus.getInstance().fireEvent(new UnknownEvent(ircConnection, packet));
+                // privilege without an event
+                return;
+        }
+        PluginBus.getInstance().fireEvent(event);
+    }
+
+    /**
+     * Parses the topic sent after joining a channel.
+     *
+     * @param ircConnection IRCConnection receiving this packet.
+     * @param packet        The input packet.
+     */
+    private void parseTopicReply(final IRCConnection ircConnection, final IRCPacket packet) {
+        PluginBus.getInstance().fireEvent(new TopicChangedEvent(ircConnection, ircConnection.getState().getChannel(packet.getArgumentsArray()[1]), null, packet.getMessage()));
+//        for (final Iterator<ServerListener> it = ircConnection.getServerListeners(); it.hasNext(); ) {
+//            it.next().onTopic(ircConnection, ircConnection.getState().getChannel(packet.getArgumentsArray()[1]), null, packet.getMessage());
+//        }
+    }
+
+    /**
+     * Parses a user list reply.
+     *
+     * @param ircConnection IRCConnection receiving this packet.
+     * @param packet        The input packet.
+     */
+    private void parseNamesReply(final IRCConnection ircConnection, final IRCPacket packet) {
+        final String[] arguments = packet.getArgumentsArray();
+        final IRCChannel ircChannel = ircConnection.getState().getChannel(arguments[arguments.length - 1]);
+        if ((ircChannel == null) || !ircChannel.isGlobal()) {
+            return;
+        }
+        if (ircChannel.isTracking()) {
+            packet.readNames(ircConnection.getState().getNamesBurst(ircChannel));
+        } else if (ircChannel.getTrackingPolicy() != IRCTrackingPolicy.NONE) {
+            ircConnection.getState().getNamesBurst(ircChannel).addCount(packet.countNames());
+        }
+    }
+
+    /**
+     * Parses the end of a user list, replacing the members of the channel
+     * with the users received.
+     *
+     * @param ircConnection IRCConnection receiving this packet.
+     * @param packet        The input packet.
+     */
+    private void parseEndOfNames(final IRCConnection ircConnection, final IRCPacket packet) {
+        final String[] arguments = packet.getArgumentsArray();
+        final IRCNamesBurst burst = ircConnection.getState().removeNamesBurst(arguments[arguments.length - 1]);
+        if ((burst != null) && (ircConnection.getState().getChannel(burst.getChannel()) == burst.getChannel())) {
+            burst.getChannel().setMembers(burst);
+            PluginBus.getInstance().fireEvent(new ChannelMembersSynchronizedEvent(ircConnection, burst.getChannel()));
+            this.whoSweeper.enqueue(ircConnection, burst.getChannel());
+        }
+        ircConnection.evictChannelsThrottled();
+    }
+
+    /**
+     * Parses capabilities offered, withdrawn or acknowledged after
+     * registering.
+     *
+     * @param ircConnection IRCConnection receiving this packet.
+     * @param packet        The input packet.
+     */
+    private void parseCap(final IRCConnection ircConnection, final IRCPacket packet) {
+        ircConnection.getCapabilities().parse(ircConnection, packet);
+    }
+
+    /**
+     * Parses a user logging in to or out of an account.
+     * ({@code account-notify})
+     *
+     * @param ircConnection IRCConnection receiving this packet.
+     * @param packet        The input packet.
+     */
+    private void parseAccount(final IRCConnection ircConnection, final IRCPacket packet) {
+        final IRCUser user = this.findSender(ircConnection, packet);
+        final String account = packet.getArguments();
+        if ((user != null) && (account != null)) {
+            user.setAccount("*".equals(account) ? null : account);
+        }
+    }
+
+    /**
+     * Parses a user going away or coming back. ({@code away-notify})
+     *
+     * @param ircConnection IRCConnection receiving this packet.
+     * @param packet        The input packet.
+     */
+    private void parseAway(final IRCConnection ircConnection, final IRCPacket packet) {
+        final IRCUser user = this.findSender(ircConnection, packet);
+        if (user != null) {
+            user.setAway(packet.hasMessage());
+        }
+    }
+
+    /**
+     * Parses a user changing username or hostname. ({@code chghost})
+     *
+     * @param ircConnection IRCConnection receiving this packet.
+     * @param packet        The input packet.
+     */
+    private void parseChangeHost(final IRCConnection ircConnection, final IRCPacket packet) {
+        final IRCUser user = this.findSender(ircConnection, packet);
+        final String[] arguments = packet.getArgumentsArray();
+        if ((user == null) || (user == ircConnection.getState().getClient())) {
+            // our own username is needed to register again
+            return;
+        }
+        if ((arguments != null) && (arguments.length >= 2)) {
+            user.setUserName(arguments[0]);
+            user.setHostName(arguments[1]);
+        } else if ((arguments != null) && packet.hasMessage()) {
+            // some servers send the hostname as trailing parameter
+            user.setUserName(arguments[0]);
+            user.setHostName(packet.getMessage());
+        }
+    }
+
+    /**
+     * Gives the shared user object of the sender of a line.
+     *
+     * @param ircConnection IRCConnection receiving this packet.
+     * @param packet        The input packet.
+     * @return The shared user object, or {@code null} if the sender shares
+     * no channel with us.
+     */
+    private IRCUser findSender(final IRCConnection ircConnection, final IRCPacket packet) {
+        final IRCUser sender = packet.getSender();
+        if ((sender == null) || (sender.getNick() == null)) {
+            return null;
+        }
+        final IRCUser shared = ircConnection.getState().getUser(sender.getNick());
+        return shared == sender ? shared : null;
+    }
+
+    /**
+     * Parses a line of a WHO reply, updating the user it is about. Lines
+     * answering the WHO sweep are not passed on to plugins.
+     *
+     * @param ircConnection IRCConnection receiving this packet.
+     * @param packet        The input packet.
+     */
+    private void parseWhoReply(final IRCConnection ircConnection, final IRCPacket packet) {
+        if (!this.whoSweeper.reply(ircConnection, packet)) {
+            this.parseUnknown(ircConnection, packet);
+        }
+    }
+
+    /**
+     * Parses the end of a WHO reply, sending the next request of the WHO
+     * sweep.
+     *
+     * @param ircConnection IRCConnection receiving this packet.
+     * @param packet        The input packet.
+     */
+    private void parseEndOfWho(final IRCConnection ircConnection, final IRCPacket packet) {
+        if (!this.whoSweeper.end(ircConnection, packet)) {
+            this.parseUnknown(ircConnection, packet);
+        }
+    }
+
+    /**
+     * Parses the features supported by the server.
+     *
+     * @param ircConnection IRCConnection receiving this packet.
+     * @param packet        The input packet.
+     */
+    private void parseISupport(final IRCConnection ircConnection, final IRCPacket packet) {
+        final String[] arguments = packet.getArgumentsArray();
+        if (arguments != null) {
+            ircConnection.getISupport().parse(arguments);
+            ircConnection.getState().setCaseMapping(ircConnection.getISupport().getCaseMapping());
+        }
+    }
+
+    /**
+     * Parses a line of the message of the day.
+     *
+     * @param ircConnection IRCConnection receiving this packet.
+     * @param packet        The input packet.
+     */
+    private void parseMotd(final IRCConnection ircConnection, final IRCPacket packet) {
+        if (this.buffer == null) {
+            this.buffer = new StringBuffer();
+        }
+        this.buffer.append(packet.getMessage());
+        this.buffer.append(IRCConnection.ENDLINE);
+    }
+
+    /**
+     * Parses the end of the message of the day.
+     *
+     * @param ircConnection IRCConnection receiving this packet.
+     * @param packet        The input packet.
+     */
+    private void parseEndOfMotd(final IRCConnection ircConnection, final IRCPacket packet) {
+        if (this.buffer != null) {
+            final String motd = this.buffer.toString();
+            this.buffer = null;
+            PluginBus.getInstance().fireEvent(new MessageOfTheDayEvent(ircConnection, motd));
+//            for (final Iterator<ServerListener> it = ircConnection.getServerListeners(); it.hasNext(); ) {
+//                it.next().onMotd(ircConnection, motd);
+//            }
+        }
+    }
+
+    /**
+     * Parses a server redirect.
+     *
+     * @param ircConnection IRCConnection receiving this packet.
+     * @param packet        The input packet.
+     */
+    private void parseBounce(final IRCConnection ircConnection, final IRCPacket packet) {
+        // redirect to another server.
+        if (ircConnection.isBounceAllowed()) {
+            ircConnection.disconnect();
+            ircConnection.setServer(new IRCServer(packet.getArgumentsArray()[0], packet.getArgumentsArray()[1]));
+            try {
+                ircConnection.connect();
+            } catch (final Exception ex) {
+                // TODO: exception while connecting to new
+                // server?
+            }
+        }
+    }
+
+    /**
+     * Parses an error sent before the server closes the connection,
+     * telling the rate limiter if we were disconnected for flooding.
+     *
+     * @param ircConnection IRCConnection receiving this packet.
+     * @param packet        The input packet.
+     */
+    private void parseError(final IRCConnection ircConnection, final IRCPacket packet) {
+        final String message = packet.getMessage();
+        if ((message != null) && message.toLowerCase(Locale.ROOT).contains("flood") && (ircConnection.getOutput() != null)) {
+            ircConnection.getOutput().flooded();
+        }
+        this.parseUnknown(ircConnection, packet);
+    }
+
+    /**
+     * Parses replies telling we are sending commands too fast.
+     *
+     * @param ircConnection IRCConnection receiving this packet.
+     * @param packet        The input packet.
+     */
+    private void parseFlood(final IRCConnection ircConnection, final IRCPacket packet) {
+        if (ircConnection.getOutput() != null) {
+            ircConnection.getOutput().flooded();
+        }
+        this.parseUnknown(ircConnection, packet);
+    }
+
+    /**
+     * Handles packets no handler was registered for. The packet is only
+     * decoded if a plugin listens for {@link UnknownEvent}.
+     *
+     * @param ircConnection IRCConnection receiving this packet.
+     * @param packet        The input packet.
+     */
+    private void parseUnknown(final IRCConnection ircConnection, final IRCPacket packet) {
+        if (PluginBus.getInstance().hasListeners(UnknownEvent.class)) {
+            PluginBus.getInstance().fireEvent(new UnknownEvent(ircConnection, packet.detach()));
+        }
+//        if (ircConnection.getAdvancedListener() != null) {
+//            ircConnection.getAdvancedListener().onUnknown(ircConnection, packet);
+//        }
+    }
+
+    /**
+     * Open addressing table mapping commands to their handlers. Lookups
+     * compare the raw command bytes of a packet, so the command is never
+     * decoded. Tables are never modified once published.
+     */
+    private static final class CommandTable {
+
+        /**
+         * Registered commands.
+         */
+        private final String[] keys;
+        /**
+         * Handlers for each command.
+         */
+        private final IRCPacketHandler[][] handlers;
+        /**
+         * Number of registered commands.
+         */
+        private final int size;
+
+        /**
+         * Creates a new, empty table.
+         *
+         * @param capacity The table capacity, a power of two.
+         */
+        private CommandTable(final int capacity) {
+            this.keys = new String[capacity];
+            this.handlers = new IRCPacketHandler[capacity][];
+            this.size = 0;
+        }
+
+        /**
+         * Creates a copy of given table with an updated entry.
+         *
+         * @param table    The table to copy.
+         * @param command  The command to update.
+         * @param handlers The new handlers, or {@code null} to remove.
+         */
+        private CommandTable(final CommandTable table, final String command, final IRCPacketHandler[] handlers) {
+            int capacity = table.keys.length;
+            while ((table.size + 1) * 2 > capacity) {
+                capacity *= 2;
+            }
+            this.keys = new String[capacity];
+            this.handlers = new IRCPacketHandler[capacity][];
+            int size = 0;
+            for (int i = 0; i < table.keys.length; i++) {
+                if ((table.keys[i] != null) && !table.keys[i].equals(command)) {
+                    this.insert(table.keys[i], table.handlers[i]);
+                    size++;
+                }
+            }
+            if (handlers != null) {
+                this.insert(command, handlers);
+                size++;
+            }
+            this.size = size;
+        }
+
+        /**
+         * Finds the handlers for a command name.
+         *
+         * @param command The command.
+         * @return The handlers, or {@code null} if there are none.
+         */
+        private IRCPacketHandler[] get(final String command) {
+            final int mask = this.keys.length - 1;
+            for (int i = command.hashCode() & mask; this.keys[i] != null; i = (i + 1) & mask) {
+                if (this.keys[i].equals(command)) {
+                    return this.handlers[i];
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Finds the handlers for the command of a packet.
+         *
+         * @param packet The packet.
+         * @return The handlers, or {@code null} if there are none.
+         */
+        private IRCPacketHandler[] get(final IRCPacket packet) {
+            final int mask = this.keys.length - 1;
+            for (int i = packet.getCommandHash() & mask; this.keys[i] != null; i = (i + 1) & mask) {
+                if (packet.isCommand(this.keys[i])) {
+                    return this.handlers[i];
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Stores an entry while building a table.
+         *
+         * @param command  The command.
+         * @param handlers The handlers.
+         */
+        private void insert(final String command, final IRCPacketHandler[] handlers) {
+            final int mask = this.keys.length - 1;
+            int i = command.hashCode() & mask;
+            while (this.keys[i] != null) {
+                i = (i + 1) & mask;
+            }
+            this.keys[i] = command;
+            this.handlers[i] = handlers;
         }
     }
 }
@@ -0,0 +1,91 @@
+package net.d4rkfly3r.irc.azmate.lib;
+
+/**
+ * Rate limiter modelled on the flood protection of common IRC servers.
+ * <p>
+ * Every message adds a penalty to a timer: a fixed penalty per message
+ * plus an extra penalty for every full block of bytes. The timer
+ * never lags behind the current time, and messages may be sent as long
+ * as the timer does not run further ahead than the allowed window. With
+ * the defaults (2 seconds per message, 1 second per 120 bytes, 10
+ * second window) this matches the classic ircd rules.
+ * </p>
+ */
+@SuppressWarnings("unused")
+public final class IRCPenaltyLimiter implements IRCRateLimiter {
+
+    /**
+     * Penalty per message, in milliseconds.
+     */
+    private final long penalty;
+    /**
+     * Number of bytes that add one extra byte penalty.
+     */
+    private final int bytes;
+    /**
+     * Penalty per block of bytes, in milliseconds.
+     */
+    private final long bytePenalty;
+    /**
+     * How far the timer may run ahead of the current time, in milliseconds.
+     */
+    private final long window;
+    /**
+     * The penalty timer, in milliseconds.
+     */
+    private long timer = 0;
+
+    /**
+     * Creates a new limiter using the classic ircd rules.
+     */
+    public IRCPenaltyLimiter() {
+        this(2000, 120, 1000, 10000);
+    }
+
+    /**
+     * Creates a new limiter.
+     *
+     * @param penalty     Penalty per message in milliseconds.
+     * @param bytes       Number of bytes per byte penalty.
+     * @param bytePenalty Penalty per full block of bytes in
+     *                    milliseconds.
+     * @param window      How far the timer may run ahead of the current
+     *                    time, in milliseconds.
+     */
+    public IRCPenaltyLimiter(final long penalty, final int bytes, final long bytePenalty, final long window) {
+        if ((penalty < 0) || (bytes < 1) || (bytePenalty < 0) || (window < 0)) {
+            throw new IllegalArgumentException("Invalid flood penalty settings!");
+        }
+        this.penalty = penalty;
+        this.bytes = bytes;
+        this.bytePenalty = bytePenalty;
+        this.window = window;
+    }
+
+    /**
+     * Computes the penalty of a message.
+     *
+     * @param length The length of the message in bytes.
+     * @return The penalty in milliseconds.
+     */
+    private long cost(final int length) {
+        return this.penalty + ((long) length / this.bytes) * this.bytePenalty;
+    }
+
+    @Override
+    public synchronized long delay(final long now, final int length) {
+        final long ahead = (Math.max(this.timer, now) + this.cost(length)) - now;
+        // a single message exceeding the window is sent once the timer caught up
+        return Math.max(0, Math.min(ahead - this.window, this.timer - now));
+    }
+
+    @Override
+    public synchronized void sent(final long now, final int length) {
+        this.timer = Math.max(this.timer, now) + this.cost(length);
+    }
+
+    @Override
+    public String toString() {
+        return "penalty(" + this.penalty + "ms+" + this.bytePenalty + "ms/" + this.bytes + "b, " + this.window + "ms)";
+    }
+}
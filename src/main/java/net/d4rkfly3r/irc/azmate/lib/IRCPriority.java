@@ -0,0 +1,26 @@
+package net.d4rkfly3r.irc.azmate.lib;
+
+/**
+ * Priority of a message in the outgoing message queue. Messages with a
+ * higher priority are sent first; lower priorities still get a turn
+ * every now and then, so they are never held back forever.
+ */
+public enum IRCPriority {
+
+    /**
+     * Protocol and keep-alive traffic, like CTCP replies.
+     */
+    CONTROL,
+    /**
+     * Messages typed by a person, who is waiting for them to appear.
+     */
+    INTERACTIVE,
+    /**
+     * Everything else. (Default)
+     */
+    NORMAL,
+    /**
+     * Large amounts of messages that may be delayed, like announcements.
+     */
+    BULK
+}
@@ -0,0 +1,90 @@
+package net.d4rkfly3r.irc.azmate.lib;
+
+/**
+ * Collapses duplicate queries: {@code NAMES}, {@code WHO}, {@code TOPIC}
+ * without a new topic, and {@code MODE} without changes, or asking for a
+ * ban, exception or invite list. (Default)
+ * <p>
+ * Parameters are compared in the case mapping of the server, so
+ * {@code NAMES #Channel} and {@code NAMES #channel} are the same query,
+ * and so are {@code MODE #channel b} and {@code MODE #channel +b}.
+ * </p>
+ */
+public class IRCQueryCoalescingRule implements IRCCoalescingRule {
+
+    /**
+     * Mode characters of lists that can be asked for without changing
+     * them.
+     */
+    private static final String LIST_MODES = "beI";
+
+    @Override
+    public String key(final String line, final IRCCaseMapping caseMapping) {
+        final int space = line.indexOf(' ');
+        final int end = space < 0 ? line.length() : space;
+        // one comparison at most for lines that are no query
+        final String command;
+        switch (end) {
+            case 3:
+                command = "WHO";
+                break;
+            case 4:
+                command = "MODE";
+                break;
+            case 5:
+                command = (line.charAt(0) == 'N') || (line.charAt(0) == 'n') ? "NAMES" : "TOPIC";
+                break;
+            default:
+                return null;
+        }
+        if (!line.regionMatches(true, 0, command, 0, end)) {
+            return null;
+        }
+        if (line.indexOf(':', end) >= 0) {
+            // trailing parameter, like a new topic
+            return null;
+        }
+        final boolean mode = end == 4;
+        final boolean topic = (end == 5) && (command.charAt(0) == 'T');
+        final StringBuilder key = new StringBuilder(line.length()).append(command);
+        int params = 0;
+        int from = end;
+        while (true) {
+            while ((from < line.length()) && (line.charAt(from) == ' ')) {
+                from++;
+            }
+            if (from == line.length()) {
+                break;
+            }
+            int to = line.indexOf(' ', from);
+            to = to < 0 ? line.length() : to;
+            params++;
+            if (mode && (params > 1)) {
+                // a single list mode, with or without '+'
+                if (line.charAt(from) == '+') {
+                    from++;
+                }
+                if ((params > 2) || ((to - from) != 1) || (IRCQueryCoalescingRule.LIST_MODES.indexOf(line.charAt(from)) < 0)) {
+                    return null;
+                }
+                // mode characters are case-sensitive
+                key.append(' ').append(line.charAt(from));
+            } else {
+                key.append(' ');
+                for (int i = from; i < to; i++) {
+                    key.append(caseMapping.fold(line.charAt(i)));
+                }
+            }
+            from = to;
+        }
+        if ((mode && (params == 0)) || (topic && (params != 1))) {
+            return null;
+        }
+        return key.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "queries";
+    }
+}
@@ -1,68 +1,548 @@
 package net.d4rkfly3r.irc.azmate.lib;
 
 import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
 
 /**
  * Outgoing message queue.
+ * <p>
+ * Lines are kept in a separate lane for every {@link IRCPriority}, and
+ * the lane with the highest priority is served first. To prevent
+ * starvation, a lower lane that was not served for
+ * {@link #STARVATION_TIME} milliseconds gets one turn before any lane
+ * except {@link IRCPriority#CONTROL}.
+ * </p>
+ * <p>
+ * Within a lane every target (channel or nickname) has its own queue,
+ * and targets take turns sending one line each. A target with a long
+ * backlog therefore does not hold back messages to other targets.
+ * </p>
+ * <p>
+ * The number of waiting lines is bounded; what happens to lines added
+ * to a full queue is decided by an {@link IRCOverflowPolicy}.
+ * </p>
+ * <p>
+ * Lines with a key (see {@link IRCCoalescingRule}) are not added while
+ * a line with the same key is waiting. If the new line has a higher
+ * priority, it replaces the waiting one.
+ * </p>
  */
 final class IRCQueue {
 
     /**
-     * Message Queue.
+     * Milliseconds a waiting lane may be passed over.
      */
-    private final ArrayDeque<String> queue;
+    protected static final long STARVATION_TIME = 5000;
+    /**
+     * All priorities, highest first.
+     */
+    private static final IRCPriority[] PRIORITIES = IRCPriority.values();
+    /**
+     * Message Queue, one lane per priority.
+     */
+    private final Lane[] lanes;
+    /**
+     * Waiting lines that have a key, by key.
+     */
+    private final HashMap<String, IRCOutboundLine> pending = new HashMap<>();
+    /**
+     * Total number of lines waiting.
+     */
+    private int size = 0;
+    /**
+     * Highest number of lines ever waiting.
+     */
+    private int highWater = 0;
+    /**
+     * Number of lines dropped because the queue was full.
+     */
+    private long dropped = 0;
+    /**
+     * Number of lines not added because the same line was waiting.
+     */
+    private long suppressed = 0;
+    /**
+     * Milliseconds the line held back by the last {@link #poll} must
+     * wait, or -1 if the queue was empty.
+     */
+    private long delay = -1;
+    /**
+     * Whether this queue was closed.
+     */
+    private boolean closed = false;
 
     /**
      * Creates a new outgoing message queue.
      */
     protected IRCQueue() {
-        this.queue = new ArrayDeque<>(8);
+        this.lanes = new Lane[IRCQueue.PRIORITIES.length];
+        for (int i = 0; i < this.lanes.length; i++) {
+            this.lanes[i] = new Lane();
+        }
     }
 
     /**
      * Adds raw message to queue.
      *
-     * @param line The raw IRC line to add to the queue.
+     * @param line     The raw IRC line to add to the queue.
+     * @param capacity Maximum number of waiting lines.
+     * @param policy   What to do if the queue is full, or {@code null} to
+     *                 reject the line without dropping or waiting.
+     * @return True if the line or a line with the same effect was added,
+     * false if it was dropped or rejected.
      */
-    protected void add(final String line) {
-        synchronized (this.queue) {
-            this.queue.addLast(line);
-            this.queue.notify();
+    protected boolean add(final IRCOutboundLine line, final int capacity, final IRCOverflowPolicy policy) {
+        synchronized (this.lanes) {
+            final String key = line.getKey();
+            final IRCOutboundLine waiting = key != null ? this.pending.get(key) : null;
+            if (waiting != null) {
+                this.suppressed++;
+                if (waiting.getPriority().compareTo(line.getPriority()) <= 0) {
+                    return true;
+                }
+                // the new line is more urgent, take the place of the waiting one
+                this.lanes[waiting.getPriority().ordinal()].remove(waiting);
+                this.pending.remove(key);
+                this.size--;
+            }
+            while (!this.closed && (this.size >= capacity)) {
+                if (policy == IRCOverflowPolicy.BLOCK) {
+                    try {
+                        this.lanes.wait();
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        this.dropped++;
+                        return false;
+                    }
+                } else if ((policy == IRCOverflowPolicy.DROP_OLDEST) && this.drop(null)) {
+                    this.dropped++;
+                } else if ((policy == IRCOverflowPolicy.COALESCE_TARGET) && (this.drop(line.getTarget()) || this.drop(null))) {
+                    this.dropped++;
+                } else {
+                    if (policy != null) {
+                        this.dropped++;
+                    }
+                    return false;
+                }
+            }
+            if (this.closed) {
+                return false;
+            }
+            this.lanes[line.getPriority().ordinal()].add(line, false);
+            if (key != null) {
+                this.pending.put(key, line);
+            }
+            this.highWater = Math.max(this.highWater, ++this.size);
+            this.lanes.notifyAll();
+            return true;
         }
     }
 
     /**
-     * Adds raw message to the front of the queue. This should only be
+     * Adds raw message to the front of its lane. This should only be
      * used for urgent messages, as other will be delayed even more if
      * this is used frequently.
      *
      * @param line The raw IRC line to add to the queue.
      */
-    protected void addToFront(final String line) {
-        synchronized (this.queue) {
-            this.queue.addFirst(line);
-            this.queue.notify();
+    protected void addToFront(final IRCOutboundLine line) {
+        synchronized (this.lanes) {
+            this.lanes[line.getPriority().ordinal()].add(line, true);
+            if (line.getKey() != null) {
+                this.pending.put(line.getKey(), line);
+            }
+            this.highWater = Math.max(this.highWater, ++this.size);
+            this.lanes.notifyAll();
+        }
+    }
+
+    /**
+     * Closes this queue. Threads waiting for room are released, and no
+     * more lines are accepted.
+     */
+    protected void close() {
+        synchronized (this.lanes) {
+            this.closed = true;
+            this.lanes.notifyAll();
+        }
+    }
+
+    /**
+     * Drops a waiting line to make room. Lines with the lowest priority
+     * are dropped first.
+     *
+     * @param target Only drop lines for this target, or {@code null} to
+     *               drop the oldest line.
+     * @return True if a line was dropped.
+     */
+    private boolean drop(final String target) {
+        for (int i = this.lanes.length - 1; i >= 0; i--) {
+            final IRCOutboundLine line = this.lanes[i].drop(target);
+            if (line != null) {
+                this.forget(line);
+                this.size--;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Removes the key of a line that is no longer waiting.
+     *
+     * @param line The line taken from the queue, or {@code null}.
+     */
+    private void forget(final IRCOutboundLine line) {
+        if ((line != null) && (line.getKey() != null) && (this.pending.get(line.getKey()) == line)) {
+            this.pending.remove(line.getKey());
+        }
+    }
+
+    /**
+     * Gives the number of lines dropped because the queue was full.
+     *
+     * @return The number of dropped lines.
+     */
+    protected long getDropped() {
+        synchronized (this.lanes) {
+            return this.dropped;
+        }
+    }
+
+    /**
+     * Gives the highest number of lines ever waiting.
+     *
+     * @return The high-water mark.
+     */
+    protected int getHighWater() {
+        synchronized (this.lanes) {
+            return this.highWater;
+        }
+    }
+
+    /**
+     * Gives the number of lines not added because a line with the same
+     * effect was waiting.
+     *
+     * @return The number of suppressed lines.
+     */
+    protected long getSuppressed() {
+        synchronized (this.lanes) {
+            return this.suppressed;
+        }
+    }
+
+    /**
+     * Checks whether the queue is empty.
+     *
+     * @return True if no lines are waiting.
+     */
+    protected boolean isEmpty() {
+        synchronized (this.lanes) {
+            return this.size == 0;
+        }
+    }
+
+    /**
+     * Gives how long the line the last {@link #poll} held back must
+     * wait.
+     *
+     * @return Milliseconds until the line may be sent, or -1 if the
+     * queue was empty.
+     */
+    protected long getDelay() {
+        synchronized (this.lanes) {
+            return this.delay;
         }
     }
 
     /**
-     * Takes a raw line from the queue.
+     * Takes the next raw line from the queue if the rate limiter lets it
+     * be sent now. The line is selected, judged and removed under one
+     * lock, so the line taken is always the one the limiter approved.
      *
-     * @return A raw IRC line to be sent.
+     * @param now     The current time in milliseconds.
+     * @param limiter The rate limiter judging the line.
+     * @return A raw IRC line to be sent, or {@code null} if the queue is
+     * empty or the line must wait (see {@link #getDelay()}).
      */
-    protected String take() {
-        String line;
-        synchronized (this.queue) {
-            if (this.queue.isEmpty()) {
+    protected IRCOutboundLine poll(final long now, final IRCRateLimiter limiter) {
+        synchronized (this.lanes) {
+            final int lane = this.select(now);
+            if (lane < 0) {
+                this.delay = -1;
+                return null;
+            }
+            final long delay = limiter.delay(now, this.lanes[lane].peek().length());
+            if (delay > 0) {
+                this.delay = delay;
+                return null;
+            }
+            this.size--;
+            // wake up senders waiting for room
+            this.lanes.notifyAll();
+            final IRCOutboundLine line = this.lanes[lane].poll(now);
+            this.forget(line);
+            return line;
+        }
+    }
+
+    /**
+     * Selects the lane to serve next.
+     *
+     * @param now The current time in milliseconds.
+     * @return The lane index, or -1 if all lanes are empty.
+     */
+    private int select(final long now) {
+        int first = -1;
+        for (int i = 0; i < this.lanes.length; i++) {
+            if (this.lanes[i].size > 0) {
+                first = i;
+                break;
+            }
+        }
+        if (first <= IRCPriority.CONTROL.ordinal()) {
+            return first;
+        }
+        // serve the lane passed over the longest, if it starves
+        int starving = first;
+        for (int i = first + 1; i < this.lanes.length; i++) {
+            final Lane lane = this.lanes[i];
+            if ((lane.size > 0) && (now - lane.served >= IRCQueue.STARVATION_TIME)
+                    && (lane.served < this.lanes[starving].served || starving == first)) {
+                starving = i;
+            }
+        }
+        return starving;
+    }
+
+    /**
+     * Gives the number of lines waiting.
+     *
+     * @return The number of raw lines in the queue.
+     */
+    protected int size() {
+        synchronized (this.lanes) {
+            return this.size;
+        }
+    }
+
+    /**
+     * Gives the number of lines waiting with given priority.
+     *
+     * @param priority The priority.
+     * @return The number of raw lines in that lane.
+     */
+    protected int size(final IRCPriority priority) {
+        synchronized (this.lanes) {
+            return this.lanes[priority.ordinal()].size;
+        }
+    }
+
+    /**
+     * Creates a snapshot of the lines waiting for each target, over all
+     * priorities.
+     *
+     * @param now The current time in milliseconds.
+     * @return The statistics of all targets with waiting lines.
+     */
+    protected List<IRCTargetStatistics> targets(final long now) {
+        synchronized (this.lanes) {
+            final IRCNameMap<IRCTargetStatistics> targets = new IRCNameMap<>();
+            for (final Lane lane : this.lanes) {
+                for (final TargetQueue queue : lane.active) {
+                    final long wait = Math.max(0, now - queue.lines.peekFirst().getQueued());
+                    final IRCTargetStatistics total = targets.get(queue.target);
+                    if (total == null) {
+                        targets.put(queue.target, new IRCTargetStatistics(queue.target, queue.lines.size(), wait));
+                    } else {
+                        targets.put(queue.target, new IRCTargetStatistics(total.getTarget(),
+                                total.getPending() + queue.lines.size(), Math.max(total.getWait(), wait)));
+                    }
+                }
+            }
+            return targets.values();
+        }
+    }
+
+    /**
+     * Waits until a raw line is available, without removing it from
+     * the queue.
+     *
+     * @return True if a line is waiting, false if interrupted.
+     */
+    protected boolean await() {
+        synchronized (this.lanes) {
+            while (this.size == 0) {
                 try {
-                    this.queue.wait();
+                    this.lanes.wait();
                 } catch (final InterruptedException e) {
-                    return null;
+                    return false;
                 }
             }
-            line = this.queue.getFirst();
-            this.queue.removeFirst();
+            return true;
+        }
+    }
+
+    /**
+     * Lines of a single priority, queued per target and served
+     * round-robin.
+     */
+    private static final class Lane {
+
+        /**
+         * Queues of targets with waiting lines, by target.
+         */
+        private final IRCNameMap<TargetQueue> targets = new IRCNameMap<>();
+        /**
+         * Targets with waiting lines, in the order they will be served.
+         */
+        private final ArrayDeque<TargetQueue> active = new ArrayDeque<>(8);
+        /**
+         * Time this lane was last served or became non-empty, in
+         * milliseconds.
+         */
+        private long served = 0;
+        /**
+         * Number of lines waiting in this lane.
+         */
+        private int size = 0;
+
+        /**
+         * Adds a line to the queue of its target.
+         *
+         * @param line  The line to add.
+         * @param front Whether the line and its target go first.
+         */
+        private void add(final IRCOutboundLine line, final boolean front) {
+            if (this.size++ == 0) {
+                this.served = line.getQueued();
+            }
+            TargetQueue queue = this.targets.get(line.getTarget());
+            if (queue == null) {
+                queue = new TargetQueue(line.getTarget());
+                this.targets.put(line.getTarget(), queue);
+            }
+            if (queue.lines.isEmpty()) {
+                if (front) {
+                    this.active.addFirst(queue);
+                } else {
+                    this.active.addLast(queue);
+                }
+            } else if (front) {
+                // move the target to the front
+                this.active.remove(queue);
+                this.active.addFirst(queue);
+            }
+            if (front) {
+                queue.lines.addFirst(line);
+            } else {
+                queue.lines.addLast(line);
+            }
+        }
+
+        /**
+         * Removes the oldest line of this lane, or of a single target.
+         *
+         * @param target Only drop lines for this target, or {@code null}.
+         * @return The dropped line, or {@code null} if none was dropped.
+         */
+        private IRCOutboundLine drop(final String target) {
+            TargetQueue queue = null;
+            if (target != null) {
+                queue = this.targets.get(target);
+            } else {
+                for (final TargetQueue candidate : this.active) {
+                    if ((queue == null) || (candidate.lines.peekFirst().getQueued() < queue.lines.peekFirst().getQueued())) {
+                        queue = candidate;
+                    }
+                }
+            }
+            if (queue == null) {
+                return null;
+            }
+            final IRCOutboundLine line = queue.lines.pollFirst();
+            if (queue.lines.isEmpty()) {
+                this.active.remove(queue);
+                this.targets.remove(queue.target);
+            }
+            this.size--;
             return line;
         }
+
+        /**
+         * Removes a waiting line.
+         *
+         * @param line The line to remove.
+         */
+        private void remove(final IRCOutboundLine line) {
+            final TargetQueue queue = this.targets.get(line.getTarget());
+            if ((queue == null) || !queue.lines.remove(line)) {
+                return;
+            }
+            if (queue.lines.isEmpty()) {
+                this.active.remove(queue);
+                this.targets.remove(queue.target);
+            }
+            this.size--;
+        }
+
+        /**
+         * Gives the next line of this lane.
+         *
+         * @return The next line, or {@code null} if the lane is empty.
+         */
+        private IRCOutboundLine peek() {
+            final TargetQueue queue = this.active.peekFirst();
+            return queue == null ? null : queue.lines.peekFirst();
+        }
+
+        /**
+         * Takes the next line of this lane and moves its target to the
+         * back.
+         *
+         * @param now The current time in milliseconds.
+         * @return The next line, or {@code null} if the lane is empty.
+         */
+        private IRCOutboundLine poll(final long now) {
+            final TargetQueue queue = this.active.pollFirst();
+            if (queue == null) {
+                return null;
+            }
+            final IRCOutboundLine line = queue.lines.pollFirst();
+            if (queue.lines.isEmpty()) {
+                this.targets.remove(queue.target);
+            } else {
+                this.active.addLast(queue);
+            }
+            this.served = now;
+            this.size--;
+            return line;
+        }
+    }
+
+    /**
+     * Lines waiting for a single target.
+     */
+    private static final class TargetQueue {
+
+        /**
+         * The channel or nickname.
+         */
+        private final String target;
+        /**
+         * The waiting lines.
+         */
+        private final ArrayDeque<IRCOutboundLine> lines = new ArrayDeque<>(4);
+
+        /**
+         * Creates a new target queue.
+         *
+         * @param target The channel or nickname.
+         */
+        private TargetQueue(final String target) {
+            this.target = target;
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,49 @@
+package net.d4rkfly3r.irc.azmate.lib;
+
+/**
+ * Decides when queued messages may be sent to the IRC server.
+ * <p>
+ * Every {@link IRCConnection} uses a rate limiter to avoid being
+ * disconnected for flooding. By default a fixed delay between messages
+ * is used (see {@link IRCConnection#setMessageDelay(int)}), other
+ * strategies can be set using
+ * {@link IRCConnection#setRateLimiter(IRCRateLimiter)}.
+ * </p>
+ * <p>
+ * <pre>
+ * irc.setRateLimiter(new IRCAdaptiveLimiter(new IRCTokenBucketLimiter(5, 2000)));
+ * </pre>
+ *
+ * @see IRCTokenBucketLimiter
+ * @see IRCPenaltyLimiter
+ * @see IRCAdaptiveLimiter
+ */
+public interface IRCRateLimiter {
+
+    /**
+     * Computes how long a message has to wait before it may be sent.
+     *
+     * @param now    The current time in milliseconds.
+     * @param length The length of the message in bytes, including CR-LF.
+     * @return Milliseconds to wait, or 0 if the message may be sent now.
+     */
+    long delay(long now, int length);
+
+    /**
+     * Called when the server indicates we are sending too fast, either
+     * by disconnecting us for flooding or with a rate limit reply.
+     *
+     * @param now The current time in milliseconds.
+     */
+    default void flooded(final long now) {
+    }
+
+    /**
+     * Records a message written to the server. Called for every message,
+     * including those not sent through the message queue.
+     *
+     * @param now    The current time in milliseconds.
+     * @param length The length of the message in bytes, including CR-LF.
+     */
+    void sent(long now, int length);
+}
@@ -0,0 +1,353 @@
+package net.d4rkfly3r.irc.azmate.lib;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * A single non-blocking connection serviced by an {@link IRCEventLoop}.
+ * <p>
+ * Replaces the {@link IRCInput} thread and drives the {@link IRCOutput}
+ * queue from the event loop thread this session is assigned to.
+ * </p>
+ */
+final class IRCSession {
+
+    /**
+     * The IRCConnection.
+     */
+    private final IRCConnection irc;
+    /**
+     * The channel used to talk to the IRC server.
+     */
+    private final SocketChannel channel;
+    /**
+     * Splits the received data into lines.
+     */
+    private final IRCLineFramer framer;
+    /**
+     * Encoded lines waiting to be written to the channel.
+     */
+    private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>(8);
+    /**
+     * Completed once the server accepted our registration.
+     */
+    private final CompletableFuture<Void> registration = new CompletableFuture<>();
+    /**
+     * The output queue driven by this session.
+     */
+    private IRCOutput output = null;
+    /**
+     * The event loop thread this session is assigned to.
+     */
+    private IRCEventLoop.Worker worker = null;
+    /**
+     * The selection key of this session.
+     */
+    private SelectionKey key = null;
+    /**
+     * Whether this session was closed.
+     */
+    private volatile boolean closed = false;
+    /**
+     * Whether the channel finished connecting. Data written before is
+     * kept and written at once when it did.
+     */
+    private volatile boolean connected;
+    /**
+     * Number of writes to the channel.
+     */
+    private volatile long writes = 0;
+
+    /**
+     * Creates a new session.
+     *
+     * @param irc     The IRCConnection using this session.
+     * @param channel The connected, non-blocking channel.
+     */
+    protected IRCSession(final IRCConnection irc, final SocketChannel channel) {
+        this.irc = irc;
+        this.channel = channel;
+        this.framer = new IRCLineFramer(irc.getCharset());
+        this.connected = channel.isConnected();
+    }
+
+    /**
+     * Waits until the server accepted our registration.
+     *
+     * @throws IOException          When the connection was lost while registering.
+     * @throws IRCNickNameException If the given nickname is already in use or invalid.
+     * @throws IRCPasswordException If the server password is incorrect.
+     */
+    protected void awaitRegistration() throws IOException, IRCNickNameException, IRCPasswordException {
+        try {
+            this.registration.get();
+        } catch (final InterruptedException ex) {
+            this.close();
+            throw new InterruptedIOException("Interrupted while connecting!");
+        } catch (final ExecutionException ex) {
+            final Throwable cause = ex.getCause();
+            if (cause instanceof IRCNickNameException) {
+                throw (IRCNickNameException) cause;
+            } else if (cause instanceof IRCPasswordException) {
+                throw (IRCPasswordException) cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Finishes connecting the channel, and writes the data waiting for
+     * it. Must be called on the event loop thread.
+     */
+    protected void finishConnect() {
+        try {
+            if (!this.channel.finishConnect()) {
+                return;
+            }
+        } catch (final IOException ex) {
+            this.registration.completeExceptionally(ex);
+            this.close();
+            return;
+        }
+        this.connected = true;
+        this.flush();
+    }
+
+    /**
+     * Gives the future completed once the server accepted our
+     * registration.
+     *
+     * @return The registration future.
+     */
+    protected CompletableFuture<Void> getRegistration() {
+        return this.registration;
+    }
+
+    /**
+     * Closes this session. Safe to call from any thread, more than once.
+     */
+    protected void close() {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        try {
+            this.channel.close();
+        } catch (final IOException ex) {
+            // ignore
+        }
+        this.registration.completeExceptionally(new IOException("Connection closed while registering!"));
+        // when reaching this, we are disconnected
+        this.irc.setConnected(false);
+        this.irc.disconnect();
+    }
+
+    /**
+     * Sends queued messages whose delay has passed.
+     *
+     * @param now The current time in milliseconds.
+     * @return Milliseconds until the next queued message may be sent, or
+     * -1 if no messages are waiting.
+     */
+    protected long drain(final long now) {
+        if (this.closed || (this.output == null)) {
+            return -1;
+        }
+        return this.output.drain(now);
+    }
+
+    /**
+     * Writes as much of the outgoing data as the channel accepts, using
+     * a single gathering write. Must be called on the event loop thread.
+     */
+    protected void flush() {
+        if (!this.connected) {
+            return;
+        }
+        synchronized (this.outbound) {
+            try {
+                if (!this.outbound.isEmpty()) {
+                    this.channel.write(this.outbound.toArray(new ByteBuffer[this.outbound.size()]));
+                    this.writes++;
+                    while (!this.outbound.isEmpty() && !this.outbound.peek().hasRemaining()) {
+                        this.outbound.poll();
+                    }
+                }
+                this.setWritable(!this.outbound.isEmpty());
+            } catch (final IOException ex) {
+                this.close();
+            }
+        }
+    }
+
+    /**
+     * Returns the channel of this session.
+     *
+     * @return The channel.
+     */
+    protected SocketChannel getChannel() {
+        return this.channel;
+    }
+
+    /**
+     * Gives the number of writes to the channel.
+     *
+     * @return The number of writes.
+     */
+    protected long getWrites() {
+        return this.writes;
+    }
+
+    /**
+     * Handles the current line of the framer.
+     */
+    private void handleLine() {
+        if (!this.registration.isDone()) {
+            try {
+                if (this.irc.handshake(this.framer.line())) {
+                    this.registration.complete(null);
+                }
+            } catch (final IRCNickNameException | IRCPasswordException ex) {
+                this.registration.completeExceptionally(ex);
+                this.close();
+            }
+            return;
+        }
+        if (IRCDebug.isEnabled()) {
+            IRCDebug.log("<<< " + this.framer.line());
+        }
+        try {
+            this.irc.getParser().parseLine(this.irc, this.framer);
+        } catch (final Exception ex) {
+            IRCDebug.log("Exception " + ex + " on: " + this.framer.line());
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Checks whether the calling thread is the event loop thread of this
+     * session.
+     *
+     * @return True if called from the event loop thread.
+     */
+    protected boolean inLoop() {
+        return (this.worker != null) && this.worker.inLoop();
+    }
+
+    /**
+     * Tells the event loop there are queued outgoing messages.
+     */
+    protected void outputPending() {
+        if (this.worker != null) {
+            this.worker.outputPending(this);
+        }
+    }
+
+    /**
+     * Reads available data from the channel and handles all complete
+     * lines. Must be called on the event loop thread.
+     */
+    protected void read() {
+        try {
+            if (this.framer.read(this.channel) < 0) {
+                this.close();
+                return;
+            }
+        } catch (final IOException ex) {
+            this.close();
+            return;
+        }
+        while (!this.closed && this.framer.next()) {
+            this.handleLine();
+        }
+    }
+
+    /**
+     * Sets the selection key of this session.
+     *
+     * @param key The selection key.
+     */
+    protected void setKey(final SelectionKey key) {
+        this.key = key;
+    }
+
+    /**
+     * Sets the output queue driven by this session.
+     *
+     * @param output The output queue.
+     */
+    protected void setOutput(final IRCOutput output) {
+        this.output = output;
+    }
+
+    /**
+     * Sets the event loop thread this session is assigned to.
+     *
+     * @param worker The event loop thread.
+     */
+    protected void setWorker(final IRCEventLoop.Worker worker) {
+        this.worker = worker;
+    }
+
+    /**
+     * Sets whether the event loop should wait for the channel to become
+     * writable.
+     *
+     * @param pending True if outgoing data is waiting.
+     */
+    private void setWritable(final boolean pending) {
+        if ((this.key != null) && this.key.isValid() && this.connected) {
+            this.key.interestOps(pending ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Writes data to the channel. On the event loop thread the data is
+     * written right away if nothing else is waiting; whatever the channel
+     * does not accept, or data written before connected, is copied and
+     * written once it becomes writable.
+     * The buffer may be reused as soon as this method returns.
+     *
+     * @param data The encoded data.
+     */
+    protected void write(final ByteBuffer data) {
+        if (this.closed) {
+            return;
+        }
+        // not registered with the event loop yet, written once it is
+        final boolean inLoop = (this.worker != null) && this.worker.inLoop();
+        synchronized (this.outbound) {
+            if (inLoop && this.connected && this.outbound.isEmpty()) {
+                try {
+                    this.channel.write(data);
+                    this.writes++;
+                } catch (final IOException ex) {
+                    this.close();
+                    return;
+                }
+                if (!data.hasRemaining()) {
+                    return;
+                }
+            }
+            final ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+            copy.put(data).flip();
+            this.outbound.add(copy);
+            if (inLoop) {
+                // socket buffer is full or not connected yet, wait
+                this.setWritable(true);
+                return;
+            }
+        }
+        if (this.worker != null) {
+            this.worker.execute(this::flush);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package net.d4rkfly3r.irc.azmate.lib;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An unchanging, consistent copy of all channels of a connection, with
+ * their topics and members, as they were at one version of the client
+ * state.
+ *
+ * @see IRCClientState#getSnapshot()
+ */
+public final class IRCStateSnapshot {
+
+    /**
+     * The channels.
+     */
+    private final List<IRCChannelSnapshot> channels;
+    /**
+     * The rules used to compare channel names.
+     */
+    private final IRCCaseMapping caseMapping;
+    /**
+     * Number of shared user objects.
+     */
+    private final int userCount;
+    /**
+     * Version of the client state.
+     */
+    private final long version;
+
+    /**
+     * Creates a new snapshot.
+     *
+     * @param channels    The channels.
+     * @param caseMapping The rules used to compare channel names.
+     * @param userCount   Number of shared user objects.
+     * @param version     Version of the client state.
+     */
+    protected IRCStateSnapshot(final List<IRCChannelSnapshot> channels, final IRCCaseMapping caseMapping,
+                               final int userCount, final long version) {
+        this.channels = Collections.unmodifiableList(channels);
+        this.caseMapping = caseMapping;
+        this.userCount = userCount;
+        this.version = version;
+    }
+
+    /**
+     * Retrieves a channel by name. Case is ignored.
+     *
+     * @param name The channel name.
+     * @return The channel, or {@code null} if the client was not in it.
+     */
+    public IRCChannelSnapshot getChannel(final String name) {
+        for (final IRCChannelSnapshot channel : this.channels) {
+            if (this.caseMapping.matches(channel.getName(), name)) {
+                return channel;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gives all channels.
+     *
+     * @return An unmodifiable list of channels.
+     */
+    public List<IRCChannelSnapshot> getChannels() {
+        return this.channels;
+    }
+
+    /**
+     * Gives the number of shared user objects.
+     *
+     * @return The number of known users, not counting the local user.
+     * @see IRCClientState#getUserCount()
+     */
+    public int getUserCount() {
+        return this.userCount;
+    }
+
+    /**
+     * Gives the version of the client state this copy was taken at. The
+     * version grows with every change, so two snapshots with the same
+     * version are equal.
+     *
+     * @return The version.
+     */
+    public long getVersion() {
+        return this.version;
+    }
+}
@@ -0,0 +1,69 @@
+package net.d4rkfly3r.irc.azmate.lib;
+
+/**
+ * Snapshot of the messages waiting for a single channel or user.
+ *
+ * @see IRCOutputStatistics#getTargets()
+ */
+@SuppressWarnings("unused")
+public final class IRCTargetStatistics {
+
+    /**
+     * The channel or nickname, or an empty string for lines without a
+     * target.
+     */
+    private final String target;
+    /**
+     * Number of lines waiting.
+     */
+    private final int pending;
+    /**
+     * Time the oldest line has been waiting, in milliseconds.
+     */
+    private final long wait;
+
+    /**
+     * Creates a new snapshot.
+     *
+     * @param target  The channel or nickname.
+     * @param pending Number of lines waiting.
+     * @param wait    Time the oldest line has been waiting.
+     */
+    protected IRCTargetStatistics(final String target, final int pending, final long wait) {
+        this.target = target;
+        this.pending = pending;
+        this.wait = wait;
+    }
+
+    /**
+     * Gives the number of lines waiting for this target.
+     *
+     * @return The number of waiting lines.
+     */
+    public int getPending() {
+        return this.pending;
+    }
+
+    /**
+     * Gives the channel or nickname.
+     *
+     * @return The target, or an empty string for lines without a target.
+     */
+    public String getTarget() {
+        return this.target;
+    }
+
+    /**
+     * Gives how long the oldest line for this target has been waiting.
+     *
+     * @return The wait time in milliseconds.
+     */
+    public long getWait() {
+        return this.wait;
+    }
+
+    @Override
+    public String toString() {
+        return this.target + ": " + this.pending + " pending, " + this.wait + "ms";
+    }
+}
@@ -0,0 +1,98 @@
+package net.d4rkfly3r.irc.azmate.lib;
+
+/**
+ * Token bucket rate limiter. Allows a burst of messages after an idle
+ * period, then one message each refill interval.
+ * <p>
+ * <pre>
+ * // bursts of 5 messages, then one message every 2 seconds
+ * irc.setRateLimiter(new IRCTokenBucketLimiter(5, 2000));
+ * </pre>
+ */
+@SuppressWarnings("unused")
+public final class IRCTokenBucketLimiter implements IRCRateLimiter {
+
+    /**
+     * Maximum number of tokens.
+     */
+    private final int burst;
+    /**
+     * Milliseconds needed to refill one token.
+     */
+    private final long refill;
+    /**
+     * Tokens available.
+     */
+    private double tokens;
+    /**
+     * Time tokens were last refilled, in milliseconds.
+     */
+    private long refilled = 0;
+
+    /**
+     * Creates a new token bucket.
+     *
+     * @param burst  Maximum number of messages sent at once.
+     * @param refill Milliseconds needed to earn one more message.
+     */
+    public IRCTokenBucketLimiter(final int burst, final long refill) {
+        if ((burst < 1) || (refill < 0)) {
+            throw new IllegalArgumentException("Burst must be positive and refill can't be negative!");
+        }
+        this.burst = burst;
+        this.refill = refill;
+        this.tokens = burst;
+    }
+
+    @Override
+    public synchronized long delay(final long now, final int length) {
+        this.refill(now);
+        if (this.tokens >= 1) {
+            return 0;
+        }
+        return (long) Math.ceil((1 - this.tokens) * this.refill);
+    }
+
+    /**
+     * Gives the maximum number of messages sent at once.
+     *
+     * @return The burst size.
+     */
+    public int getBurst() {
+        return this.burst;
+    }
+
+    /**
+     * Gives the time needed to earn one more message.
+     *
+     * @return The refill interval in milliseconds.
+     */
+    public long getRefill() {
+        return this.refill;
+    }
+
+    /**
+     * Adds the tokens earned since the last refill.
+     *
+     * @param now The current time in milliseconds.
+     */
+    private void refill(final long now) {
+        if (this.refilled == 0 || this.refill == 0) {
+            this.tokens = this.burst;
+        } else if (now > this.refilled) {
+            this.tokens = Math.min(this.burst, this.tokens + ((double) (now - this.refilled) / this.refill));
+        }
+        this.refilled = now;
+    }
+
+    @Override
+    public synchronized void sent(final long now, final int length) {
+        this.refill(now);
+        this.tokens -= 1;
+    }
+
+    @Override
+    public String toString() {
+        return "bucket(" + this.burst + "/" + this.refill + "ms)";
+    }
+}
@@ -0,0 +1,31 @@
+package net.d4rkfly3r.irc.azmate.lib;
+
+/**
+ * How much a channel keeps track of its members. Events are fired for
+ * all channels, whatever their policy.
+ *
+ * @see IRCConnection#setTrackingPolicy(IRCTrackingPolicy)
+ * @see IRCChannel#setTrackingPolicy(IRCTrackingPolicy)
+ */
+public enum IRCTrackingPolicy {
+
+    /**
+     * Keep all members and their privileges. (Default) If the channel
+     * was not used for a while, its members may be evicted and are
+     * requested again the next time they are needed.
+     *
+     * @see IRCConnection#setChannelIdleTime(long)
+     * @see IRCConnection#setMemberBudget(long)
+     */
+    FULL,
+    /**
+     * Only keep the number of members. Quits cannot be related to a
+     * channel without its members, so the count is refreshed when it is
+     * asked for after the channel idle time.
+     */
+    COUNTS,
+    /**
+     * Keep nothing; members are only reported through events.
+     */
+    NONE
+}
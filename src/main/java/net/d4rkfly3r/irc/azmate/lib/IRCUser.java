@@ -1,6 +1,8 @@
 package net.d4rkfly3r.irc.azmate.lib;
 
 import javax.annotation.Nonnull;
+import java.util.Arrays;
+import java.util.Iterator;
 
 /**
  * Represents a user on the IRC server.
@@ -8,6 +10,10 @@ import javax.annotation.Nonnull;
 @SuppressWarnings({"WeakerAccess", "unused"})
 public final class IRCUser {
 
+    /**
+     * Shared by users in no channel.
+     */
+    private static final int[] NO_CHANNELS = new int[0];
     /**
      * Mode character for voice.
      */
@@ -49,13 +55,15 @@ public final class IRCUser {
      */
     protected static final char PREFIX_OPERATOR = '@';
     /**
-     * Possible user prefixes.
+     * Default user prefixes, used until the server announces its own.
+     *
+     * @see IRCISupport#getPrefixChars()
      */
     protected static final String USER_PREFIX = "~@%+&";
     /**
      * Hostname of this user (or null if unknown).
      */
-    private final String hostName;
+    private String hostName;
     /**
      * IRCConnection used to contact this user.
      */
@@ -63,16 +71,39 @@ public final class IRCUser {
     /**
      * Username of this user (or null if unknown).
      */
-    private final String userName;
-    private final String realName;
+    private String userName;
+    /**
+     * Real name of this user (or null if unknown).
+     */
+    private volatile String realName;
     /**
      * Nickname of this user.
      */
-    private String nick;
+    private volatile String nick;
     /**
-     * Lowercase nickname of this user.
+     * Lowercase nickname of this user, folded lazily.
      */
     private String nickLower;
+    /**
+     * The case mapping {@link #nickLower} was folded with.
+     */
+    private IRCCaseMapping nickMapping;
+    /**
+     * Id of the shared user object, or 0 if this object is not shared.
+     */
+    private volatile int id = 0;
+    /**
+     * Ids of the channels shared with this user, in the first
+     * {@link #channelCount} slots. Only changed within write sections of
+     * the client state, so other threads validate what they read.
+     *
+     * @see IRCClientState#getChannel(int)
+     */
+    private volatile int[] channelIds = IRCUser.NO_CHANNELS;
+    /**
+     * Number of channels shared with this user.
+     */
+    private volatile int channelCount = 0;
     /**
      * The prefix.
      */
@@ -81,6 +112,27 @@ public final class IRCUser {
      * Custom address to send messages to.
      */
     private String address = null;
+    /**
+     * Cached prefix for messages to this user.
+     */
+    private IRCOutboundPrefix messagePrefix = null;
+    /**
+     * Cached prefix for notices to this user.
+     */
+    private IRCOutboundPrefix noticePrefix = null;
+    /**
+     * Account this user is logged in to, or {@code null}.
+     */
+    private volatile String account = null;
+    /**
+     * Whether this user is away.
+     */
+    private volatile boolean away = false;
+    /**
+     * When each kind of information was last received, by ordinal, or 0
+     * if never.
+     */
+    private final long[] infoTimes = new long[IRCUserInfo.values().length];
 
     /**
      * Creates a new {@code IRCUser}.
@@ -104,12 +156,15 @@ public final class IRCUser {
      *                      user.
      */
     protected IRCUser(final String nick, final String user, final String host, final String realName, final IRCConnection ircConnection) {
+        this.ircConnection = ircConnection;
         this.setNick(nick);
         this.realName = realName;
         this.userName = user;
         this.hostName = host;
-        this.ircConnection = ircConnection;
         this.address = this.getNick();
+        if (host != null) {
+            this.setInfoTime(IRCUserInfo.HOST, System.currentTimeMillis());
+        }
     }
 
     @Override
@@ -130,6 +185,91 @@ public final class IRCUser {
         return this.address;
     }
 
+    /**
+     * Returns the account this user is logged in to.
+     *
+     * @return The account name, or null if the user is not logged in or
+     * this is unknown.
+     * @see #isInfoKnown(IRCUserInfo)
+     */
+    public String getAccount() {
+        return this.account;
+    }
+
+    /**
+     * Changes the account this user is logged in to.
+     *
+     * @param account The account name, or {@code null} if the user is not
+     *                logged in.
+     */
+    protected void setAccount(final String account) {
+        this.account = account;
+        this.setInfoTime(IRCUserInfo.ACCOUNT, System.currentTimeMillis());
+    }
+
+    /**
+     * Checks whether this user is away.
+     *
+     * @return True if the user is away, false if not or unknown.
+     * @see #isInfoKnown(IRCUserInfo)
+     */
+    public boolean isAway() {
+        return this.away;
+    }
+
+    /**
+     * Changes whether this user is away.
+     *
+     * @param away True if the user is away.
+     */
+    protected void setAway(final boolean away) {
+        this.away = away;
+        this.setInfoTime(IRCUserInfo.AWAY, System.currentTimeMillis());
+    }
+
+    /**
+     * Gives when information about this user was last received.
+     *
+     * @param info The kind of information.
+     * @return The time in milliseconds, or 0 if it was never received.
+     */
+    public long getInfoTime(final IRCUserInfo info) {
+        // a long may be torn, but only on old 32 bit virtual machines
+        return this.infoTimes[info.ordinal()];
+    }
+
+    /**
+     * Records when information about this user was received.
+     *
+     * @param info The kind of information.
+     * @param time The time in milliseconds.
+     */
+    protected void setInfoTime(final IRCUserInfo info, final long time) {
+        this.infoTimes[info.ordinal()] = time;
+    }
+
+    /**
+     * Checks whether information about this user is known and not older
+     * than its time to live. This never contacts the server; stale
+     * information is refreshed by the next WHO sweep. Information kept
+     * up to date by IRCv3 notifications never expires.
+     *
+     * @param info The kind of information.
+     * @return True if the information is fresh.
+     * @see IRCConnection#setUserInfoTtl(IRCUserInfo, long)
+     */
+    public boolean isInfoKnown(final IRCUserInfo info) {
+        final long time = this.getInfoTime(info);
+        if (time == 0) {
+            return false;
+        }
+        if ((this.ircConnection == null) || this.ircConnection.isUserInfoLive(info)) {
+            return true;
+        }
+        final long ttl = this.ircConnection.getUserInfoTtl(info);
+        return (ttl == 0) || ((System.currentTimeMillis() - time) <= ttl);
+    }
+
     /**
      * Returns the hostname for this user.
      *
@@ -139,6 +279,16 @@ public final class IRCUser {
         return this.hostName;
     }
 
+    /**
+     * Changes the hostname of this user.
+     *
+     * @param hostName The new hostname.
+     */
+    protected void setHostName(final String hostName) {
+        this.hostName = hostName;
+        this.setInfoTime(IRCUserInfo.HOST, System.currentTimeMillis());
+    }
+
     /**
      * Returns the nickname for this user.
      *
@@ -156,12 +306,15 @@ public final class IRCUser {
     protected void setNick(String nick) {
         if (nick == null)
             return;
-        if (IRCUser.USER_PREFIX.indexOf(nick.charAt(0)) >= 0) {
+        final boolean prefixed = this.ircConnection != null
+                ? this.ircConnection.getISupport().getPrefixCharRank(nick.charAt(0)) >= 0
+                : IRCUser.USER_PREFIX.indexOf(nick.charAt(0)) >= 0;
+        if (prefixed) {
             this.prefix = nick.charAt(0);
             nick = nick.substring(1);
         }
         this.nick = nick;
-        this.nickLower = nick.toLowerCase();
+        this.nickLower = null;
         // TODO: Check whether addresses like nick!user@server are
         // allowed
         if ((this.address != null) && this.address.contains("@")) {
@@ -172,16 +325,138 @@ public final class IRCUser {
     }
 
     /**
-     * Returns the lowercase nickname for this user.
+     * Gives the id of the shared user object, used by channels to store
+     * their members.
+     *
+     * @return The id, or 0 if this object is not shared.
+     * @see IRCClientState#getUser(int)
+     */
+    protected int getId() {
+        return this.id;
+    }
+
+    /**
+     * Changes the id of the shared user object.
+     *
+     * @param id The id, or 0 if this object is no longer shared.
+     */
+    protected void setId(final int id) {
+        this.id = id;
+    }
+
+    /**
+     * Records that this user joined a channel. The ids grow by half, so
+     * joins do not copy them each time.
+     *
+     * @param channel The shared channel object.
+     */
+    protected void addChannel(final IRCChannel channel) {
+        final int id = channel.getId();
+        if (id == 0) {
+            return;
+        }
+        int[] ids = this.channelIds;
+        if (this.channelCount == ids.length) {
+            ids = Arrays.copyOf(ids, Math.max(2, ids.length + (ids.length >> 1)));
+            this.channelIds = ids;
+        }
+        ids[this.channelCount] = id;
+        this.channelCount++;
+    }
+
+    /**
+     * Forgets all channels of this user.
+     */
+    protected void clearChannels() {
+        this.channelIds = IRCUser.NO_CHANNELS;
+        this.channelCount = 0;
+    }
+
+    /**
+     * Copies the ids of the channels shared with this user.
+     *
+     * @return The channel ids. Other threads than the one changing the
+     * client state must validate the result before using it.
+     */
+    protected int[] copyChannelIds() {
+        final int count = this.channelCount;
+        final int[] ids = this.channelIds;
+        return Arrays.copyOf(ids, Math.min(count, ids.length));
+    }
+
+    /**
+     * Gives the channels shared with this user. The array is a copy, so
+     * it does not change when the user joins or leaves channels later.
+     *
+     * @return The shared channel objects.
+     * @see IRCClientState#getChannels(IRCUser)
+     */
+    protected IRCChannel[] getChannelArray() {
+        return this.ircConnection != null ? this.ircConnection.getState().getChannels(this) : new IRCChannel[0];
+    }
+
+    /**
+     * Gives the number of channels shared with this user. The shared user
+     * object is forgotten when this drops to zero.
+     *
+     * @return The number of channels.
+     */
+    public int getChannelCount() {
+        return this.channelCount;
+    }
+
+    /**
+     * Creates an iterator through the channels shared with this user.
+     * Only shared user objects know their channels.
+     *
+     * @return An iterator through the channels at the time of the call.
+     */
+    public Iterator<IRCChannel> getChannels() {
+        return Arrays.asList(this.getChannelArray()).iterator();
+    }
+
+    /**
+     * Records that this user left a channel.
+     *
+     * @param channel The shared channel object.
+     * @return True if the channel was recorded.
+     */
+    protected boolean removeChannel(final IRCChannel channel) {
+        final int id = channel.getId();
+        final int[] ids = this.channelIds;
+        final int last = this.channelCount - 1;
+        for (int i = 0; (id != 0) && (i <= last); i++) {
+            if (ids[i] == id) {
+                ids[i] = ids[last];
+                this.channelCount = last;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the lowercase nickname for this user, folded according to
+     * the case mapping of the server.
      *
      * @return Lowercase nickname.
+     * @see IRCISupport#getCaseMapping()
      */
     public String getNickLower() {
+        final IRCCaseMapping mapping = this.ircConnection != null
+                ? this.ircConnection.getState().getCaseMapping() : IRCCaseMapping.RFC1459;
+        if ((this.nickLower == null) || (this.nickMapping != mapping)) {
+            this.nickLower = this.nick != null ? mapping.toLowerCase(this.nick) : null;
+            this.nickMapping = mapping;
+        }
         return this.nickLower;
     }
 
     /**
-     * Returns this user's prefix.
+     * Returns the prefix this user object was created with. Shared user
+     * objects are used in all channels, so they carry no prefix; use
+     * {@link IRCChannel#getPrefix(IRCUser)} for the privileges of a user
+     * in a channel.
      *
      * @return The prefix.
      */
@@ -198,56 +473,99 @@ public final class IRCUser {
         return this.userName;
     }
 
+    /**
+     * Changes the username of this user.
+     *
+     * @param userName The new username.
+     */
+    protected void setUserName(final String userName) {
+        this.userName = userName;
+    }
+
     public String getRealName() {
         return this.realName != null ? this.realName : this.nick;
     }
 
     /**
-     * Checks whether this user has Admin privileges.
+     * Changes the real name of this user.
+     *
+     * @param realName The new real name.
+     */
+    protected void setRealName(final String realName) {
+        this.realName = realName;
+    }
+
+    /**
+     * Checks whether this user has Admin privileges. This only reflects the
+     * prefix this object was created with; shared user objects carry no
+     * prefix, so it is always false for channel members.
      *
-     * @return True if this user is an admin.
+     * @return True if this user object was created with the prefix.
      * @since 1.1.0
+     * @deprecated Use {@link IRCChannel#hasPrivilege(IRCUser, char)} with
+     * mode {@code a} instead.
      */
+    @Deprecated
     public boolean hasAdmin() {
         return this.getPrefix() == IRCUser.PREFIX_ADMIN;
     }
 
     /**
-     * Checks whether this user has Founder privileges.
+     * Checks whether this user has Founder privileges. This only reflects the
+     * prefix this object was created with; shared user objects carry no
+     * prefix, so it is always false for channel members.
      *
-     * @return True if this user is a founder.
+     * @return True if this user object was created with the prefix.
      * @since 1.1.0
+     * @deprecated Use {@link IRCChannel#hasPrivilege(IRCUser, char)} with
+     * mode {@code q} instead.
      */
+    @Deprecated
     public boolean hasFounder() {
         return this.getPrefix() == IRCUser.PREFIX_FOUNDER;
     }
 
     /**
-     * Checks whether this user has Halfop privileges.
+     * Checks whether this user has Halfop privileges. This only reflects the
+     * prefix this object was created with; shared user objects carry no
+     * prefix, so it is always false for channel members.
      *
-     * @return True if this user is a half operator.
+     * @return True if this user object was created with the prefix.
      * @since 1.1.0
+     * @deprecated Use {@link IRCChannel#hasPrivilege(IRCUser, char)} with
+     * mode {@code h} instead.
      */
+    @Deprecated
     public boolean hasHalfOp() {
         return this.getPrefix() == IRCUser.PREFIX_HALF_OP;
     }
 
     /**
-     * Checks whether this user has Operator privileges.
+     * Checks whether this user has Operator privileges. This only reflects the
+     * prefix this object was created with; shared user objects carry no
+     * prefix, so it is always false for channel members.
      *
-     * @return True if this user is an operator.
+     * @return True if this user object was created with the prefix.
      * @since 1.1.0
+     * @deprecated Use {@link IRCChannel#hasPrivilege(IRCUser, char)} with
+     * mode {@code o} instead.
      */
+    @Deprecated
     public boolean hasOperator() {
         return this.getPrefix() == IRCUser.PREFIX_OPERATOR;
     }
 
     /**
-     * Checks whether this user has Voice privileges.
+     * Checks whether this user has Voice privileges. This only reflects the
+     * prefix this object was created with; shared user objects carry no
+     * prefix, so it is always false for channel members.
      *
-     * @return True if this user has voice.
+     * @return True if this user object was created with the prefix.
      * @since 1.1.0
+     * @deprecated Use {@link IRCChannel#hasPrivilege(IRCUser, char)} with
+     * mode {@code v} instead.
      */
+    @Deprecated
     public boolean hasVoice() {
         return this.getPrefix() == IRCUser.PREFIX_VOICE;
     }
@@ -273,6 +591,17 @@ public final class IRCUser {
         this.sendMessage(message);
     }
 
+    /**
+     * Send message to user with given priority.
+     *
+     * @param message  The message to send.
+     * @param priority The priority in the outgoing message queue.
+     * @see #sendMessage(String, IRCPriority)
+     */
+    public void send(final String message, final IRCPriority priority) {
+        this.sendMessage(message, priority);
+    }
+
     /**
      * Sends an action.
      *
@@ -289,7 +618,9 @@ public final class IRCUser {
      * @param command Command to send.
      */
     public void sendCtcp(final String command) {
-        this.ircConnection.getOutput().send("PRIVMSG " + this.getAddress() + " :" + IRCPacket.CTCP + command + IRCPacket.CTCP);
+        final IRCOutput out = this.ircConnection.getOutput();
+        this.messagePrefix = out.prefix(this.messagePrefix, "PRIVMSG", this.getAddress());
+        out.send(this.messagePrefix, out.ctcp(this.messagePrefix, command), IRCPriority.NORMAL, false);
     }
 
     /**
@@ -334,16 +665,19 @@ public final class IRCUser {
 
     /**
      * Sends CTCP reply using notices. Replies to CTCP requests should
-     * be sent using a notice.
+     * be sent using a notice. Queued replies use the
+     * {@link IRCPriority#CONTROL} priority.
      *
      * @param command   Command to send.
      * @param skipQueue Whether to skip the outgoing message queue.
      */
     protected void sendCtcpReply(final String command, final boolean skipQueue) {
+        final IRCOutput out = this.ircConnection.getOutput();
+        this.noticePrefix = out.prefix(this.noticePrefix, "NOTICE", this.getAddress());
         if (skipQueue) {
-            this.ircConnection.getOutput().sendNow("NOTICE " + this.getAddress() + " :" + IRCPacket.CTCP + command + IRCPacket.CTCP);
+            out.sendNow(this.noticePrefix, out.ctcp(this.noticePrefix, command));
         } else {
-            this.ircConnection.getOutput().send("NOTICE " + this.getAddress() + " :" + IRCPacket.CTCP + command + IRCPacket.CTCP);
+            out.send(this.noticePrefix, out.ctcp(this.noticePrefix, command), IRCPriority.CONTROL, false);
         }
     }
 
@@ -360,7 +694,19 @@ public final class IRCUser {
      * @param message The message to send.
      */
     public void sendMessage(final String message) {
-        this.ircConnection.getOutput().send("PRIVMSG " + this.getAddress() + " :" + message);
+        this.sendMessage(message, IRCPriority.NORMAL);
+    }
+
+    /**
+     * Send message to this user with given priority.
+     *
+     * @param message  The message to send.
+     * @param priority The priority in the outgoing message queue.
+     */
+    public void sendMessage(final String message, final IRCPriority priority) {
+        final IRCOutput out = this.ircConnection.getOutput();
+        this.messagePrefix = out.prefix(this.messagePrefix, "PRIVMSG", this.getAddress());
+        out.send(this.messagePrefix, message, priority, true);
     }
 
     /**
@@ -369,7 +715,19 @@ public final class IRCUser {
      * @param message The notice to send.
      */
     public void sendNotice(final String message) {
-        this.ircConnection.getOutput().send("NOTICE " + this.getAddress() + " :" + message);
+        this.sendNotice(message, IRCPriority.NORMAL);
+    }
+
+    /**
+     * Send notice to this user with given priority.
+     *
+     * @param message  The notice to send.
+     * @param priority The priority in the outgoing message queue.
+     */
+    public void sendNotice(final String message, final IRCPriority priority) {
+        final IRCOutput out = this.ircConnection.getOutput();
+        this.noticePrefix = out.prefix(this.noticePrefix, "NOTICE", this.getAddress());
+        out.send(this.noticePrefix, message, priority, true);
     }
 
     /**
@@ -428,7 +786,13 @@ public final class IRCUser {
      * @param IRCUser The fresh IRCUser object.
      */
     protected void updateUser(final IRCUser IRCUser) {
-        //TODO: Unfinished method?
+        if (IRCUser.getUserName() != null) {
+            this.userName = IRCUser.getUserName();
+        }
+        if (IRCUser.getHostName() != null) {
+            this.hostName = IRCUser.getHostName();
+            this.setInfoTime(IRCUserInfo.HOST, Math.max(this.getInfoTime(IRCUserInfo.HOST), IRCUser.getInfoTime(IRCUserInfo.HOST)));
+        }
     }
 
     @Nonnull
@@ -0,0 +1,48 @@
+package net.d4rkfly3r.irc.azmate.lib;
+
+/**
+ * Information about a user that is cached from the lines received, and
+ * refreshed with WHO requests once it is older than its time to live.
+ *
+ * @see IRCUser#isInfoKnown(IRCUserInfo)
+ * @see IRCConnection#setUserInfoTtl(IRCUserInfo, long)
+ */
+public enum IRCUserInfo {
+
+    /**
+     * The username and hostname.
+     */
+    HOST(6 * 60 * 60 * 1000L),
+    /**
+     * The account the user is logged in to.
+     */
+    ACCOUNT(60 * 60 * 1000L),
+    /**
+     * Whether the user is away.
+     */
+    AWAY(15 * 60 * 1000L);
+
+    /**
+     * Time to live used unless changed, in milliseconds.
+     */
+    private final long defaultTtl;
+
+    /**
+     * Creates a new kind of information.
+     *
+     * @param defaultTtl Time to live used unless changed, in
+     *                   milliseconds.
+     */
+    IRCUserInfo(final long defaultTtl) {
+        this.defaultTtl = defaultTtl;
+    }
+
+    /**
+     * Gives the time to live used unless changed.
+     *
+     * @return The time in milliseconds.
+     */
+    protected long getDefaultTtl() {
+        return this.defaultTtl;
+    }
+}
@@ -0,0 +1,261 @@
+package net.d4rkfly3r.irc.azmate.lib;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Fills in the usernames, hostnames, accounts and away states of channel
+ * members with a single WHO request per channel, instead of asking for
+ * users one by one.
+ * <p>
+ * Channels are swept after their members were received, and again once
+ * the information about their members expired. Only one request is
+ * waiting for replies at a time, and requests are sent with
+ * {@link IRCPriority#BULK}, so sweeping many channels never floods the
+ * connection. Servers supporting WHOX are asked for the fields needed
+ * only, with a query type to tell the replies apart from WHO requests
+ * sent by plugins. Without WHOX the replies cannot be told apart, so
+ * they are used but also passed on to plugins.
+ * </p>
+ *
+ * @see IRCConnection#setWhoSweep(boolean)
+ * @see IRCUser#isInfoKnown(IRCUserInfo)
+ */
+final class IRCWhoSweeper {
+
+    /**
+     * Query type of WHOX requests sent by the sweeper.
+     */
+    protected static final String TOKEN = "152";
+    /**
+     * Fields asked for with WHOX: query type, channel, username,
+     * hostname, nickname, flags and account.
+     */
+    private static final String FIELDS = "%tcuhnfa," + IRCWhoSweeper.TOKEN;
+    /**
+     * How long to wait for the end of a reply, in milliseconds, before
+     * sweeping the next channel.
+     */
+    private static final long TIMEOUT = 60 * 1000L;
+    /**
+     * Channels waiting to be swept, oldest first.
+     */
+    private final ArrayDeque<IRCChannel> queue = new ArrayDeque<>();
+    /**
+     * The channel being swept, or {@code null}.
+     */
+    private IRCChannel current = null;
+    /**
+     * Whether the channel being swept was asked for with WHOX.
+     */
+    private boolean whox = false;
+    /**
+     * Whether a reply to a request of a plugin for the channel being
+     * swept was received since the last end of a reply. Servers answer
+     * requests in order, so the next end belongs to that request.
+     */
+    private boolean foreign = false;
+    /**
+     * When the channel being swept was asked for.
+     */
+    private long sent = 0;
+
+    /**
+     * Forgets all channels, for a new connection.
+     */
+    protected void clear() {
+        this.queue.clear();
+        this.current = null;
+        this.foreign = false;
+    }
+
+    /**
+     * Handles the end of a WHO reply.
+     *
+     * @param ircConnection The connection.
+     * @param packet        The RPL_ENDOFWHO line.
+     * @return True if the reply is known to be for the sweeper only.
+     */
+    protected boolean end(final IRCConnection ircConnection, final IRCPacket packet) {
+        final String[] arguments = packet.getArgumentsArray();
+        if ((this.current == null) || (arguments == null) || (arguments.length < 2)
+                || !this.isCurrent(ircConnection, arguments[1])) {
+            return false;
+        }
+        if (this.foreign) {
+            // ends the request of a plugin, ours is still being answered
+            this.foreign = false;
+            return false;
+        }
+        final boolean whox = this.whox;
+        this.current = null;
+        this.next(ircConnection);
+        // without WHOX, a plugin may have asked for the same channel
+        return whox;
+    }
+
+    /**
+     * Checks whether a channel is the channel being swept.
+     *
+     * @param ircConnection The connection.
+     * @param channel       The channel name.
+     * @return True if the channel is being swept.
+     */
+    private boolean isCurrent(final IRCConnection ircConnection, final String channel) {
+        return (this.current != null) && ircConnection.getState().getCaseMapping().matches(channel, this.current.getName());
+    }
+
+    /**
+     * Sweeps a channel once the requests before it were answered.
+     *
+     * @param ircConnection The connection.
+     * @param channel       The channel.
+     */
+    protected void enqueue(final IRCConnection ircConnection, final IRCChannel channel) {
+        if ((channel != this.current) && !this.queue.contains(channel)) {
+            this.queue.add(channel);
+        }
+        this.next(ircConnection);
+    }
+
+    /**
+     * Sweeps all channels whose members have expired information, unless
+     * a sweep is still going on.
+     *
+     * @param ircConnection The connection.
+     */
+    protected void refresh(final IRCConnection ircConnection) {
+        if ((this.current != null) && ((System.currentTimeMillis() - this.sent) > IRCWhoSweeper.TIMEOUT)) {
+            // the reply got lost
+            this.current = null;
+        }
+        if ((this.current == null) && this.queue.isEmpty()) {
+            for (final Iterator<IRCChannel> it = ircConnection.getState().getChannels(); it.hasNext(); ) {
+                this.queue.add(it.next());
+            }
+        }
+        this.next(ircConnection);
+    }
+
+    /**
+     * Handles a WHO or WHOX reply line, updating the user it is about.
+     * Replies to requests of plugins are used too.
+     *
+     * @param ircConnection The connection.
+     * @param packet        The RPL_WHOREPLY or RPL_WHOSPCRPL line.
+     * @return True if the line is known to be a reply to the sweeper.
+     */
+    protected boolean reply(final IRCConnection ircConnection, final IRCPacket packet) {
+        final String[] arguments = packet.getArgumentsArray();
+        if (arguments == null) {
+            return false;
+        }
+        if (packet.getNumericCommand() == IRCPacket.RPL_WHOSPCRPL) {
+            // <client> <token> <channel> <user> <host> <nick> <flags> <account>
+            if ((arguments.length < 8) || !IRCWhoSweeper.TOKEN.equals(arguments[1])) {
+                if ((arguments.length >= 3) && this.whox && this.isCurrent(ircConnection, arguments[2])) {
+                    this.foreign = true;
+                }
+                return false;
+            }
+            final String account = arguments[7];
+            IRCWhoSweeper.update(ircConnection, arguments[5], arguments[3], arguments[4], arguments[6],
+                    "0".equals(account) ? null : account, true);
+            return true;
+        }
+        // <client> <channel> <user> <host> <server> <nick> <flags> :<hopcount> <real name>
+        if (arguments.length < 7) {
+            return false;
+        }
+        IRCWhoSweeper.update(ircConnection, arguments[5], arguments[2], arguments[3], arguments[6], null, false);
+        if (this.whox && this.isCurrent(ircConnection, arguments[1])) {
+            // we asked with WHOX, so this answers a plugin
+            this.foreign = true;
+        }
+        return false;
+    }
+
+    /**
+     * Stores the information of a reply line on the shared user object.
+     *
+     * @param ircConnection The connection.
+     * @param nick          The nickname.
+     * @param userName      The username.
+     * @param hostName      The hostname.
+     * @param flags         The flags, starting with {@code H} for here or
+     *                      {@code G} for gone.
+     * @param account       The account, or {@code null}.
+     * @param hasAccount    Whether the account was asked for.
+     */
+    private static void update(final IRCConnection ircConnection, final String nick, final String userName,
+                               final String hostName, final String flags, final String account,
+                               final boolean hasAccount) {
+        final IRCUser user = ircConnection.getState().getUser(nick);
+        // our own username is needed to register again
+        if ((user == null) || (user == ircConnection.getState().getClient())) {
+            return;
+        }
+        if (!userName.equals(user.getUserName())) {
+            user.setUserName(userName);
+        }
+        if (!hostName.equals(user.getHostName())) {
+            user.setHostName(hostName);
+        } else {
+            user.setInfoTime(IRCUserInfo.HOST, System.currentTimeMillis());
+        }
+        if (!flags.isEmpty()) {
+            user.setAway(flags.charAt(0) == 'G');
+        }
+        if (hasAccount) {
+            user.setAccount(account);
+        }
+    }
+
+    /**
+     * Checks whether any member of a channel has information that is
+     * unknown or expired and would be sent in a WHO reply.
+     *
+     * @param ircConnection The connection.
+     * @param channel       The channel.
+     * @param whox          Whether the account would be sent.
+     * @return True if the channel should be swept.
+     */
+    private static boolean isStale(final IRCConnection ircConnection, final IRCChannel channel, final boolean whox) {
+        final IRCUser client = ircConnection.getState().getClient();
+        for (final IRCUser user : channel.getMemberArray()) {
+            if ((user != client) && (!user.isInfoKnown(IRCUserInfo.HOST) || !user.isInfoKnown(IRCUserInfo.AWAY)
+                    || (whox && !user.isInfoKnown(IRCUserInfo.ACCOUNT)))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Asks for the next channel that needs to be swept, unless a request
+     * is still being answered.
+     *
+     * @param ircConnection The connection.
+     */
+    private void next(final IRCConnection ircConnection) {
+        final IRCOutput out = ircConnection.getOutput();
+        if ((this.current != null) || (out == null) || !ircConnection.isWhoSweep()) {
+            return;
+        }
+        final boolean whox = ircConnection.getISupport().hasWhox();
+        IRCChannel channel;
+        while ((channel = this.queue.poll()) != null) {
+            // skip channels left meanwhile, and channels without members
+            if ((ircConnection.getState().getChannel(channel) == channel)
+                    && IRCWhoSweeper.isStale(ircConnection, channel, whox)) {
+                this.current = channel;
+                this.whox = whox;
+                this.foreign = false;
+                this.sent = System.currentTimeMillis();
+                out.send(whox ? "WHO " + channel.getName() + " " + IRCWhoSweeper.FIELDS : "WHO " + channel.getName(),
+                        IRCPriority.BULK);
+                return;
+            }
+        }
+    }
+}
@@ -10,17 +10,18 @@ import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class PluginBus {
 
     private static final PluginBus ourInstance = new PluginBus();
-    public final HashMap<Class<?>, Object> plugins;
+    private final Map<Class<?>, Object> plugins = new ConcurrentHashMap<>();
     private final ClassFinder classFinder;
+    private final Map<Class<?>, List<RegisteredListener>> listeners = new ConcurrentHashMap<>();
 
     private PluginBus() {
-        this.plugins = new HashMap<>();
         this.classFinder = new ClassFinder();
         this.classFinder.initialize();
     }
@@ -29,13 +30,50 @@ public class PluginBus {
         return ourInstance;
     }
 
+    @Nonnull
+    public Map<Class<?>, Object> getPlugins() {
+        return Collections.unmodifiableMap(this.plugins);
+    }
+
+    public void register(@Nonnull Object plugin) {
+        this.plugins.put(plugin.getClass(), plugin);
+        // listeners are looked up again on the next event
+        this.listeners.clear();
+    }
+
     @Nonnull
     public void fireEvent(@Nonnull Event event) {
+        for (RegisteredListener listener : this.getListeners(event.getClass())) {
+            try {
+                listener.method.invoke(listener.instance, event);
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public boolean hasListeners(@Nonnull Class<? extends Event> eventClass) {
+        return !this.getListeners(eventClass).isEmpty();
+    }
+
+    @Nonnull
+    private List<RegisteredListener> getListeners(@Nonnull Class<?> eventClass) {
+        return this.listeners.computeIfAbsent(eventClass, this::findListeners);
+    }
+
+    @Nonnull
+    private List<RegisteredListener> findListeners(@Nonnull Class<?> eventClass) {
+        List<RegisteredListener> found = new ArrayList<>();
         this.plugins.forEach((aClass, instance) -> {
-            List<Method> methods = new ArrayList<>();
-            Collections.addAll(methods, aClass.getDeclaredMethods());
-            this.invokeMethods(instance, methods, event);
+            for (Method method : aClass.getDeclaredMethods()) {
+                if (method.isAnnotationPresent(Listener.class)) {
+                    if (method.getParameterCount() > 0 && method.getParameterTypes()[0] == eventClass) {
+                        found.add(new RegisteredListener(instance, method));
+                    }
+                }
+            }
         });
+        return Collections.unmodifiableList(found);
     }
 
     private void invokeMethods(@Nonnull Object instance, @Nonnull List<Method> methods, @Nonnull Event event) {
@@ -69,10 +107,21 @@ public class PluginBus {
                 e.printStackTrace();
             }
         });
+        this.listeners.clear();
         System.out.println("Plugins: ");
         this.plugins.forEach((aClass, instance) -> {
             System.out.println("\t" + aClass.getName());
             this.fireEventToObject(instance, new PluginPreInitEvent());
         });
     }
+
+    private static final class RegisteredListener {
+        private final Object instance;
+        private final Method method;
+
+        private RegisteredListener(@Nonnull Object instance, @Nonnull Method method) {
+            this.instance = instance;
+            this.method = method;
+        }
+    }
 }
@@ -0,0 +1,26 @@
+package net.d4rkfly3r.irc.azmate.plugins.events;
+
+import net.d4rkfly3r.irc.azmate.lib.IRCChannel;
+import net.d4rkfly3r.irc.azmate.lib.IRCConnection;
+
+import javax.annotation.Nonnull;
+
+public class ChannelMembersSynchronizedEvent extends Event {
+    private final IRCConnection ircConnection;
+    private final IRCChannel channel;
+
+    public ChannelMembersSynchronizedEvent(@Nonnull IRCConnection ircConnection, @Nonnull IRCChannel channel) {
+        this.ircConnection = ircConnection;
+        this.channel = channel;
+    }
+
+    @Nonnull
+    public IRCConnection getIrcConnection() {
+        return ircConnection;
+    }
+
+    @Nonnull
+    public IRCChannel getChannel() {
+        return channel;
+    }
+}
@@ -0,0 +1,43 @@
+package net.d4rkfly3r.irc.azmate.plugins.events;
+
+import net.d4rkfly3r.irc.azmate.lib.IRCConnection;
+import net.d4rkfly3r.irc.azmate.lib.IRCUser;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Collections;
+import java.util.List;
+
+public class NetJoinEvent extends Event {
+    private final IRCConnection ircConnection;
+    private final String server;
+    private final String splitServer;
+    private final List<IRCUser> users;
+
+    public NetJoinEvent(@Nonnull IRCConnection ircConnection, @Nullable String server, @Nullable String splitServer, @Nonnull List<IRCUser> users) {
+        this.ircConnection = ircConnection;
+        this.server = server;
+        this.splitServer = splitServer;
+        this.users = Collections.unmodifiableList(users);
+    }
+
+    @Nonnull
+    public IRCConnection getIrcConnection() {
+        return ircConnection;
+    }
+
+    @Nullable
+    public String getServer() {
+        return server;
+    }
+
+    @Nullable
+    public String getSplitServer() {
+        return splitServer;
+    }
+
+    @Nonnull
+    public List<IRCUser> getUsers() {
+        return users;
+    }
+}
@@ -0,0 +1,220 @@
+package net.d4rkfly3r.irc.azmate.lib;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Negotiates capabilities with {@link IRCTestServer} and checks the
+ * lines sent and the state kept, with the blocking threads and with an
+ * event loop.
+ */
+@RunWith(Parameterized.class)
+public class IRCCapabilitiesTest {
+
+    /**
+     * Everything the client may want, and more.
+     */
+    private static final String ALL = "multi-prefix userhost-in-names extended-join account-notify away-notify"
+            + " chghost message-tags batch server-time cap-notify echo-message sasl=PLAIN,EXTERNAL draft/unknown";
+
+    /**
+     * Whether to connect through an event loop.
+     */
+    private final boolean loop;
+    /**
+     * The event loop, or {@code null} for the blocking threads.
+     */
+    private IRCEventLoop eventLoop = null;
+    /**
+     * The server of the current test.
+     */
+    private IRCTestServer server;
+
+    /**
+     * Creates the tests for one engine.
+     *
+     * @param engine The engine, {@code threads} or {@code loop}.
+     */
+    public IRCCapabilitiesTest(final String engine) {
+        this.loop = engine.equals("loop");
+    }
+
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<Object[]> engines() {
+        return Arrays.asList(new Object[]{"threads"}, new Object[]{"loop"});
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        if (this.loop) {
+            this.eventLoop = new IRCEventLoop(1);
+        }
+        this.server = new IRCTestServer();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        this.server.close();
+        if (this.eventLoop != null) {
+            this.eventLoop.shutdown();
+        }
+    }
+
+    @Test
+    public void negotiate() throws Exception {
+        this.server.setCapabilities(IRCCapabilitiesTest.ALL);
+        final IRCConnection irc = this.connect();
+        final List<String> lines = this.server.getReceived();
+        final Set<String> requested = new HashSet<>();
+        int lastRequest = -1;
+        for (int i = 0; i < lines.size(); i++) {
+            if (lines.get(i).startsWith("CAP REQ ")) {
+                requested.addAll(Arrays.asList(lines.get(i).substring(8).replace(":", "").split(" ")));
+                lastRequest = i;
+            }
+        }
+        final Set<String> defaults = new HashSet<>(Arrays.asList(IRCCapabilities.DEFAULTS));
+        assertEquals("CAP LS 302 is sent first", "CAP LS 302", lines.get(0));
+        assertEquals("the default capabilities are requested", defaults, requested);
+        assertTrue("CAP END follows the requests", lines.indexOf("CAP END") > lastRequest);
+        assertEquals("acknowledged capabilities are enabled", defaults, irc.getCapabilities().getEnabled());
+        assertTrue("echo-message is offered but not enabled",
+                irc.getCapabilities().isAvailable("echo-message") && !irc.getCapabilities().isEnabled("echo-message"));
+        assertEquals("values are kept", "PLAIN,EXTERNAL", irc.getCapabilities().getValue("sasl"));
+        irc.disconnect();
+    }
+
+    @Test
+    public void notifications() throws Exception {
+        this.server.setCapabilities(IRCCapabilitiesTest.ALL);
+        this.server.setMembers("bob");
+        final IRCConnection irc = this.connect();
+        irc.setUserInfoTtl(IRCUserInfo.AWAY, 1);
+        irc.setUserInfoTtl(IRCUserInfo.HOST, 1);
+        irc.createChannel("#test").join();
+        assertTrue("members present before joining are swept",
+                IRCCapabilitiesTest.await(() -> (irc.getState().getUser("bob") != null)
+                        && "bob.example.com".equals(irc.getState().getUser("bob").getHostName())));
+        this.server.broadcast(":alice!~alice@alice.example.com JOIN #test alice :Alice Liddell");
+        IRCCapabilitiesTest.await(() -> irc.getState().getUser("alice") != null);
+        final IRCUser alice = irc.getState().getUser("alice");
+        assertTrue("extended-join sets account and real name",
+                "alice".equals(alice.getAccount()) && "Alice Liddell".equals(alice.getRealName()));
+        assertTrue("away-notify marks joining users present", !alice.isAway());
+        this.server.broadcast(":alice!~alice@alice.example.com AWAY :gone");
+        assertTrue("AWAY marks the user away", IRCCapabilitiesTest.await(alice::isAway));
+        this.server.broadcast(":alice!~alice@alice.example.com CHGHOST ~al new.example.com");
+        assertTrue("CHGHOST changes user and host", IRCCapabilitiesTest.await(
+                () -> "new.example.com".equals(alice.getHostName()) && "~al".equals(alice.getUserName())));
+        this.server.broadcast(":alice!~al@new.example.com ACCOUNT *");
+        assertTrue("ACCOUNT * logs the user out", IRCCapabilitiesTest.await(() -> alice.getAccount() == null));
+        this.server.broadcast(":" + IRCTestServer.NAME + " CAP " + irc.getClient().getNick() + " DEL :away-notify");
+        assertTrue("CAP DEL disables the capability",
+                IRCCapabilitiesTest.await(() -> !irc.getCapabilities().isEnabled("away-notify")));
+        this.server.broadcast(":" + IRCTestServer.NAME + " CAP " + irc.getClient().getNick() + " NEW :away-notify");
+        assertTrue("CAP NEW requests and enables the capability",
+                IRCCapabilitiesTest.await(() -> irc.getCapabilities().isEnabled("away-notify")));
+        this.ping();
+        assertEquals("members are not polled again while notifications keep them live", 1, this.count("WHO "));
+        irc.disconnect();
+    }
+
+    @Test
+    public void polling() throws Exception {
+        this.server.setCapabilities("multi-prefix");
+        this.server.setMembers("bob");
+        final IRCConnection irc = this.connect();
+        irc.setUserInfoTtl(IRCUserInfo.AWAY, 1);
+        irc.createChannel("#test").join();
+        IRCCapabilitiesTest.await(() -> this.count("WHO ") == 1);
+        Thread.sleep(100);
+        this.ping();
+        assertTrue("without away-notify expired members are polled again",
+                IRCCapabilitiesTest.await(() -> this.count("WHO ") == 2));
+        irc.disconnect();
+    }
+
+    @Test
+    public void partial() throws Exception {
+        this.server.setCapabilities("multi-prefix batch echo-message");
+        final IRCConnection irc = this.connect();
+        assertEquals("only offered capabilities are enabled",
+                new HashSet<>(Arrays.asList("multi-prefix", "batch")), irc.getCapabilities().getEnabled());
+        irc.disconnect();
+    }
+
+    @Test
+    public void refused() throws Exception {
+        final IRCConnection irc = this.connect();
+        assertTrue("servers without CAP register the client",
+                irc.isConnected() && irc.getCapabilities().getEnabled().isEmpty());
+        irc.disconnect();
+    }
+
+    private IRCConnection connect() throws Exception {
+        final IRCConnection irc = IRCTestSupport.connection(this.server, this.eventLoop, "caps");
+        irc.connect();
+        return irc;
+    }
+
+    /**
+     * Pings the clients and waits for their answer. Clients sweep
+     * channels with expired information when pinged.
+     *
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    private void ping() throws InterruptedException {
+        final int pongs = this.count("PONG ");
+        this.server.broadcast("PING :" + IRCTestServer.NAME);
+        IRCCapabilitiesTest.await(() -> this.count("PONG ") > pongs);
+        // lines queued after the answer
+        Thread.sleep(100);
+    }
+
+    /**
+     * Counts the lines received by the server starting with given text.
+     *
+     * @param start The start of the lines.
+     * @return The number of lines.
+     */
+    private int count(final String start) {
+        int count = 0;
+        for (final String line : this.server.getReceived()) {
+            if (line.startsWith(start)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Waits up to two seconds for a condition.
+     *
+     * @param condition The condition.
+     * @return Whether the condition became true.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    private static boolean await(final BooleanSupplier condition) throws InterruptedException {
+        for (int i = 0; i < 200; i++) {
+            if (condition.getAsBoolean()) {
+                return true;
+            }
+            Thread.sleep(10);
+        }
+        return false;
+    }
+}
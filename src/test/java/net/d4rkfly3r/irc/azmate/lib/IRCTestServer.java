@@ -0,0 +1,643 @@
+package net.d4rkfly3r.irc.azmate.lib;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Local stand-in for an IRC server, used by the tests and harnesses.
+ * <p>
+ * It registers clients once they sent NICK and USER, answers PING,
+ * swallows messages and refuses every other command with
+ * ERR_UNKNOWNCOMMAND. All clients are served by a single selector
+ * thread, so the server adds one thread however many connections a
+ * harness opens.
+ * </p>
+ * <p>
+ * When given capabilities to offer, it negotiates them: registration
+ * waits for {@code CAP END}, requests for offered capabilities are
+ * acknowledged and JOIN replies use extended-join when enabled.
+ * Without, CAP is refused like any unknown command. Joined channels
+ * list the members set with {@link #setMembers(String...)}, which WHO
+ * replies describe.
+ * </p>
+ * <p>
+ * To measure connecting, replies can be held back to simulate network
+ * latency, nicknames can be taken and SASL PLAIN checks one account.
+ * </p>
+ * <p>
+ * <pre>
+ * try (IRCTestServer server = new IRCTestServer()) {
+ * 	IRCConnection irc = new IRCConnection("127.0.0.1", server.getPort());
+ * 	irc.setNick("bench");
+ * 	irc.connect();
+ * }
+ * </pre>
+ */
+final class IRCTestServer implements Closeable {
+
+    /**
+     * Server name used as prefix of all replies.
+     */
+    protected static final String NAME = "test.server";
+    /**
+     * Buffer lines are read into, shared by all clients.
+     */
+    private final ByteBuffer input = ByteBuffer.allocate(16384);
+    /**
+     * The listening socket.
+     */
+    private final ServerSocketChannel server;
+    /**
+     * Selector watching the listening socket and all clients.
+     */
+    private final Selector selector;
+    /**
+     * The selector thread.
+     */
+    private final Thread thread;
+    /**
+     * Actions to run on the selector thread.
+     */
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    /**
+     * All lines received, from any client.
+     */
+    private final List<String> received = Collections.synchronizedList(new ArrayList<>());
+    /**
+     * Number of clients that completed registration.
+     */
+    private volatile int registered = 0;
+    /**
+     * Space separated capabilities offered, or {@code null} to refuse CAP.
+     */
+    private volatile String capabilities = null;
+    /**
+     * Nicknames listed in every channel besides the joining client.
+     */
+    private volatile String[] members = new String[0];
+    /**
+     * Nicknames refused with ERR_NICKNAMEINUSE.
+     */
+    private volatile Set<String> nicksInUse = Collections.emptySet();
+    /**
+     * Expected SASL PLAIN message, or {@code null} to fail all attempts.
+     */
+    private volatile String sasl = null;
+    /**
+     * Milliseconds replies are held back.
+     */
+    private volatile long delay = 0;
+    /**
+     * Sends replies held back, created on first use.
+     */
+    private ScheduledExecutorService delayed = null;
+
+    /**
+     * Starts a server listening on a free port of the loopback address.
+     *
+     * @throws IOException If the socket could not be opened.
+     */
+    protected IRCTestServer() throws IOException {
+        this.selector = Selector.open();
+        this.server = ServerSocketChannel.open();
+        this.server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+        this.server.configureBlocking(false);
+        this.server.register(this.selector, SelectionKey.OP_ACCEPT);
+        this.thread = new Thread(this::run, "IRCTestServer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Runs a server until standard input is closed, so a harness can
+     * keep the server out of the process it measures. The port is
+     * printed on the first line of standard output.
+     *
+     * @param args Ignored.
+     * @throws IOException If the socket could not be opened.
+     */
+    public static void main(final String[] args) throws IOException {
+        try (IRCTestServer server = new IRCTestServer()) {
+            System.out.println(server.getPort());
+            System.out.flush();
+            while (System.in.read() >= 0) {
+                // wait for the harness to go away
+            }
+        }
+    }
+
+    /**
+     * Gives the port this server listens on.
+     *
+     * @return The port.
+     */
+    protected int getPort() {
+        return this.server.socket().getLocalPort();
+    }
+
+    /**
+     * Gives the number of clients that completed registration.
+     *
+     * @return The number of registered clients.
+     */
+    protected int getRegistered() {
+        return this.registered;
+    }
+
+    /**
+     * Gives all lines received so far, from any client.
+     *
+     * @return A copy of the received lines.
+     */
+    protected List<String> getReceived() {
+        synchronized (this.received) {
+            return new ArrayList<>(this.received);
+        }
+    }
+
+    /**
+     * Sets the capabilities offered to clients connecting from now on.
+     *
+     * @param capabilities Space separated capabilities, with values, or
+     *                     {@code null} to refuse CAP.
+     */
+    protected void setCapabilities(final String capabilities) {
+        this.capabilities = capabilities;
+    }
+
+    /**
+     * Sets the nicknames listed in every channel joined from now on,
+     * besides the joining client.
+     *
+     * @param members The nicknames.
+     */
+    protected void setMembers(final String... members) {
+        this.members = members.clone();
+    }
+
+    /**
+     * Sets the nicknames refused with ERR_NICKNAMEINUSE.
+     *
+     * @param nicks The nicknames in use.
+     */
+    protected void setNicksInUse(final String... nicks) {
+        this.nicksInUse = new HashSet<>(Arrays.asList(nicks));
+    }
+
+    /**
+     * Sets the only account SASL PLAIN accepts.
+     *
+     * @param account  The account.
+     * @param password The password.
+     */
+    protected void setSaslAccount(final String account, final String password) {
+        this.sasl = account + "\0" + account + "\0" + password;
+    }
+
+    /**
+     * Holds back every reply for given time, to simulate the latency of
+     * a real network. Replies keep their order.
+     *
+     * @param delay The delay in milliseconds.
+     */
+    protected synchronized void setDelay(final long delay) {
+        if ((delay > 0) && (this.delayed == null)) {
+            this.delayed = Executors.newSingleThreadScheduledExecutor(task -> {
+                final Thread thread = new Thread(task, "IRCTestServer-delay");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        this.delay = delay;
+    }
+
+    /**
+     * Sends a line to every registered client.
+     *
+     * @param line The line, without line ending.
+     */
+    protected void broadcast(final String line) {
+        this.tasks.add(() -> {
+            for (final SelectionKey key : this.selector.keys()) {
+                final Client client = (Client) key.attachment();
+                if ((client != null) && client.registered && key.isValid()) {
+                    client.reply(line);
+                }
+            }
+        });
+        this.selector.wakeup();
+    }
+
+    /**
+     * Stops the server and drops all clients.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (this.delayed != null) {
+                this.delayed.shutdownNow();
+            }
+        }
+        this.thread.interrupt();
+        this.selector.wakeup();
+        try {
+            this.thread.join(1000);
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Handles one line received from a client.
+     *
+     * @param client The client.
+     * @param line   The line, without line ending.
+     */
+    private void handle(final Client client, final String line) {
+        this.received.add(line);
+        final String[] words = line.split(" ", 3);
+        switch (words[0].toUpperCase()) {
+            case "CAP":
+                if ((this.capabilities == null) || (words.length < 2)) {
+                    this.reply(client, ":" + IRCTestServer.NAME + " 421 " + client.getNick() + " CAP :Unknown command");
+                } else {
+                    this.capability(client, words[1].toUpperCase(), words.length > 2 ? words[2] : "");
+                }
+                break;
+            case "JOIN":
+                if (client.registered && (words.length > 1)) {
+                    final String source = ":" + client.nick + "!~" + client.nick + "@" + client.nick + ".example.com";
+                    this.reply(client, client.enabled.contains("extended-join")
+                                    ? source + " JOIN " + words[1] + " * :" + client.nick
+                                    : source + " JOIN " + words[1],
+                            ":" + IRCTestServer.NAME + " 353 " + client.nick + " = " + words[1] + " :@" + client.nick
+                                    + (this.members.length > 0 ? " " + String.join(" ", this.members) : ""),
+                            ":" + IRCTestServer.NAME + " 366 " + client.nick + " " + words[1] + " :End of /NAMES list.");
+                }
+                break;
+            case "WHO": {
+                final String mask = words.length > 1 ? words[1] : "*";
+                final List<String> replies = new ArrayList<>();
+                for (final String member : this.members) {
+                    replies.add(":" + IRCTestServer.NAME + " 352 " + client.getNick() + " " + mask + " ~" + member + " "
+                            + member + ".example.com " + IRCTestServer.NAME + " " + member + " H :0 " + member);
+                }
+                replies.add(":" + IRCTestServer.NAME + " 315 " + client.getNick() + " " + mask + " :End of /WHO list.");
+                this.reply(client, replies.toArray(new String[replies.size()]));
+            }
+            break;
+            case "NICK":
+                if ((words.length > 1) && this.nicksInUse.contains(words[1])) {
+                    this.reply(client, ":" + IRCTestServer.NAME + " 433 " + client.getNick() + " " + words[1]
+                            + " :Nickname is already in use");
+                } else if (words.length > 1) {
+                    client.nick = words[1];
+                }
+                break;
+            case "AUTHENTICATE":
+                if (words.length < 2) {
+                    break;
+                }
+                if (words[1].equals("PLAIN")) {
+                    this.reply(client, "AUTHENTICATE +");
+                } else if (!words[1].equals("*") && (this.sasl != null)
+                        && this.sasl.equals(new String(Base64.getDecoder().decode(words[1]), StandardCharsets.UTF_8))) {
+                    final String account = this.sasl.substring(0, this.sasl.indexOf('\0'));
+                    this.reply(client, ":" + IRCTestServer.NAME + " 900 " + client.getNick() + " " + client.getNick() + "!~"
+                                    + client.getNick() + "@test " + account + " :You are now logged in as " + account,
+                            ":" + IRCTestServer.NAME + " 903 " + client.getNick() + " :SASL authentication successful");
+                } else {
+                    this.reply(client, ":" + IRCTestServer.NAME + " 904 " + client.getNick() + " :SASL authentication failed");
+                }
+                break;
+            case "USER":
+                client.user = true;
+                break;
+            case "PASS":
+            case "PRIVMSG":
+            case "NOTICE":
+                break;
+            case "PING":
+                this.reply(client, ":" + IRCTestServer.NAME + " PONG " + IRCTestServer.NAME + " " + line.substring(5));
+                break;
+            case "QUIT":
+                client.close();
+                return;
+            default:
+                this.reply(client, ":" + IRCTestServer.NAME + " 421 " + client.getNick() + " " + words[0] + " :Unknown command");
+        }
+        if (!client.registered && client.nick != null && client.user && !client.negotiating) {
+            client.registered = true;
+            this.registered++;
+            this.reply(client, ":" + IRCTestServer.NAME + " 001 " + client.nick + " :Welcome to the test server " + client.nick,
+                    ":" + IRCTestServer.NAME + " 002 " + client.nick + " :Your host is " + IRCTestServer.NAME,
+                    ":" + IRCTestServer.NAME + " 003 " + client.nick + " :This server was created today",
+                    ":" + IRCTestServer.NAME + " 004 " + client.nick + " " + IRCTestServer.NAME + " test iow ov",
+                    ":" + IRCTestServer.NAME + " 005 " + client.nick + " CASEMAPPING=rfc1459 CHANTYPES=# PREFIX=(ov)@+ :are supported");
+        }
+    }
+
+    /**
+     * Handles a CAP subcommand.
+     *
+     * @param client     The client.
+     * @param subcommand The subcommand, in upper case.
+     * @param arguments  The rest of the line.
+     */
+    private void capability(final Client client, final String subcommand, final String arguments) {
+        final String prefix = ":" + IRCTestServer.NAME + " CAP " + client.getNick() + " ";
+        final Set<String> offered = new HashSet<>();
+        for (final String capability : this.capabilities.split(" ")) {
+            final int value = capability.indexOf('=');
+            offered.add(value < 0 ? capability : capability.substring(0, value));
+        }
+        switch (subcommand) {
+            case "LS":
+                if (!client.registered) {
+                    client.negotiating = true;
+                }
+                this.reply(client, prefix + "LS :" + this.capabilities);
+                break;
+            case "LIST":
+                this.reply(client, prefix + "LIST :" + String.join(" ", client.enabled));
+                break;
+            case "REQ": {
+                final String requested = arguments.startsWith(":") ? arguments.substring(1) : arguments;
+                final List<String> names = Arrays.asList(requested.trim().split(" +"));
+                for (final String name : names) {
+                    if (!offered.contains(name.startsWith("-") ? name.substring(1) : name)) {
+                        this.reply(client, prefix + "NAK :" + requested);
+                        return;
+                    }
+                }
+                for (final String name : names) {
+                    if (name.startsWith("-")) {
+                        client.enabled.remove(name.substring(1));
+                    } else {
+                        client.enabled.add(name);
+                    }
+                }
+                this.reply(client, prefix + "ACK :" + requested);
+            }
+            break;
+            case "END":
+                client.negotiating = false;
+                break;
+            default:
+                this.reply(client, ":" + IRCTestServer.NAME + " 410 " + client.getNick() + " " + subcommand + " :Invalid CAP command");
+        }
+    }
+
+    /**
+     * Sends given lines to a client in one write, once the delay passed.
+     *
+     * @param client The client.
+     * @param lines  The lines, without line endings.
+     */
+    private void reply(final Client client, final String... lines) {
+        final long delay = this.delay;
+        if (delay <= 0) {
+            client.reply(lines);
+            return;
+        }
+        this.delayed.schedule(() -> {
+            this.tasks.add(() -> client.reply(lines));
+            this.selector.wakeup();
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Selects until the server is closed.
+     */
+    private void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                this.selector.select();
+                Runnable task;
+                while ((task = this.tasks.poll()) != null) {
+                    task.run();
+                }
+                final Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        this.accept();
+                    } else {
+                        final Client client = (Client) key.attachment();
+                        if (key.isReadable()) {
+                            this.read(client);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            client.flush();
+                        }
+                    }
+                }
+            }
+        } catch (final IOException ex) {
+            ex.printStackTrace();
+        } finally {
+            for (final SelectionKey key : this.selector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (final IOException ignored) {
+                }
+            }
+            try {
+                this.selector.close();
+            } catch (final IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Accepts all pending clients.
+     *
+     * @throws IOException If the listening socket failed.
+     */
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = this.server.accept()) != null) {
+            channel.configureBlocking(false);
+            // replies are small and sent as soon as they are ready
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            final Client client = new Client(channel);
+            client.key = channel.register(this.selector, SelectionKey.OP_READ, client);
+        }
+    }
+
+    /**
+     * Reads from a client and handles every complete line.
+     *
+     * @param client The client.
+     */
+    private void read(final Client client) {
+        this.input.clear();
+        final int read;
+        try {
+            read = client.channel.read(this.input);
+        } catch (final IOException ex) {
+            client.close();
+            return;
+        }
+        if (read < 0) {
+            client.close();
+            return;
+        }
+        final String text = client.partial + new String(this.input.array(), 0, this.input.position(), StandardCharsets.UTF_8);
+        int start = 0;
+        int end;
+        while ((end = text.indexOf('\n', start)) >= 0) {
+            final int stop = (end > start) && (text.charAt(end - 1) == '\r') ? end - 1 : end;
+            if (stop > start) {
+                this.handle(client, text.substring(start, stop));
+            }
+            if (!client.channel.isOpen()) {
+                return;
+            }
+            start = end + 1;
+        }
+        client.partial = text.substring(start);
+    }
+
+    /**
+     * A connected client.
+     */
+    private static final class Client {
+
+        /**
+         * The client socket.
+         */
+        private final SocketChannel channel;
+        /**
+         * Replies the socket did not accept yet.
+         */
+        private ByteBuffer output = null;
+        /**
+         * Selection key of the socket.
+         */
+        private SelectionKey key;
+        /**
+         * Start of a line not terminated yet.
+         */
+        private String partial = "";
+        /**
+         * The nickname, or {@code null} before NICK.
+         */
+        private String nick = null;
+        /**
+         * Whether USER was received.
+         */
+        private boolean user = false;
+        /**
+         * Whether this client is registered.
+         */
+        private boolean registered = false;
+        /**
+         * Whether capability negotiation holds registration.
+         */
+        private boolean negotiating = false;
+        /**
+         * Capabilities enabled for this client.
+         */
+        private final Set<String> enabled = new HashSet<>();
+
+        /**
+         * Creates a client for given socket.
+         *
+         * @param channel The socket.
+         */
+        private Client(final SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Gives the nickname to address replies to.
+         *
+         * @return The nickname, or {@code *} before NICK.
+         */
+        private String getNick() {
+            return this.nick != null ? this.nick : "*";
+        }
+
+        /**
+         * Sends given lines in one write.
+         *
+         * @param lines The lines, without line endings.
+         */
+        private void reply(final String... lines) {
+            if (!this.key.isValid()) {
+                return;
+            }
+            final StringBuilder text = new StringBuilder();
+            for (final String line : lines) {
+                text.append(line).append("\r\n");
+            }
+            final byte[] data = text.toString().getBytes(StandardCharsets.UTF_8);
+            if (this.output == null) {
+                this.output = ByteBuffer.wrap(data);
+            } else {
+                final ByteBuffer joined = ByteBuffer.allocate(this.output.remaining() + data.length);
+                joined.put(this.output).put(data).flip();
+                this.output = joined;
+            }
+            this.flush();
+        }
+
+        /**
+         * Writes as much of the pending replies as the socket accepts.
+         */
+        private void flush() {
+            if (this.output == null) {
+                return;
+            }
+            try {
+                this.channel.write(this.output);
+            } catch (final IOException ex) {
+                this.close();
+                return;
+            }
+            if (this.output.hasRemaining()) {
+                this.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            } else {
+                this.output = null;
+                this.key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        /**
+         * Drops this client.
+         */
+        private void close() {
+            this.key.cancel();
+            try {
+                this.channel.close();
+            } catch (final IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package net.d4rkfly3r.irc.azmate.lib;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Helpers shared by the tests and harnesses: connections to
+ * {@link IRCTestServer}, connections that only parse lines fed to them,
+ * building those lines and measuring the heap.
+ */
+final class IRCTestSupport {
+
+    private IRCTestSupport() {
+    }
+
+    /**
+     * Creates a connection to a test server, not connected yet.
+     *
+     * @param server    The server.
+     * @param eventLoop The event loop, or {@code null} for the blocking
+     *                  threads.
+     * @param nick      The nickname.
+     * @return The connection.
+     */
+    protected static IRCConnection connection(final IRCTestServer server, final IRCEventLoop eventLoop, final String nick) {
+        final IRCConnection irc = new IRCConnection("127.0.0.1", server.getPort());
+        irc.setNick(nick);
+        irc.setEventLoop(eventLoop);
+        return irc;
+    }
+
+    /**
+     * Creates a connection without a server, named {@code me}, that
+     * discards everything it sends. Lines are fed to its parser with
+     * {@link #parse(IRCConnection, IRCLineFramer, InputStream)}.
+     *
+     * @return The connection.
+     */
+    protected static IRCConnection offline() {
+        final IRCConnection irc = new IRCConnection("irc.example.net");
+        irc.setNick("me");
+        irc.setCharset(StandardCharsets.UTF_8);
+        irc.out = new IRCOutput(irc, new OutputStream() {
+            @Override
+            public void write(final int b) {
+            }
+
+            @Override
+            public void write(final byte[] b, final int off, final int len) {
+            }
+        });
+        return irc;
+    }
+
+    /**
+     * Parses all lines of a stream on a connection.
+     *
+     * @param irc    The connection.
+     * @param framer The framer splitting the stream into lines.
+     * @param in     The raw lines.
+     * @throws IOException If the stream could not be read.
+     */
+    protected static void parse(final IRCConnection irc, final IRCLineFramer framer, final InputStream in) throws IOException {
+        while (framer.read(in) > 0) {
+            while (framer.next()) {
+                irc.getParser().parseLine(irc, framer);
+            }
+        }
+    }
+
+    /**
+     * Appends a line, as the server sends it, to a buffer.
+     *
+     * @param out  The buffer.
+     * @param line The line, without line ending.
+     */
+    protected static void write(final ByteArrayOutputStream out, final String line) {
+        final byte[] bytes = (line + "\r\n").getBytes(StandardCharsets.UTF_8);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Gives the heap in use after garbage collection.
+     *
+     * @return The used heap in bytes.
+     * @throws InterruptedException If interrupted while waiting for the collector.
+     */
+    protected static long usedHeap() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+}